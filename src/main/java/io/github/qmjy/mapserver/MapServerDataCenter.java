@@ -21,6 +21,11 @@ import io.github.qmjy.mapserver.model.AdministrativeDivisionTmp;
 import io.github.qmjy.mapserver.model.FontsFileModel;
 import io.github.qmjy.mapserver.model.MetaData;
 import io.github.qmjy.mapserver.model.TilesFileModel;
+import io.github.qmjy.mapserver.util.BackendLimiter;
+import io.github.qmjy.mapserver.util.BackendOverloadException;
+import io.github.qmjy.mapserver.util.PmtilesReader;
+import io.github.qmjy.mapserver.util.SourceRegistry;
+import io.github.qmjy.mapserver.util.TpkBundleReader;
 import lombok.Getter;
 import org.geotools.api.data.FileDataStore;
 import org.geotools.api.data.FileDataStoreFinder;
@@ -35,13 +40,17 @@ import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Component;
 import org.springframework.util.StringUtils;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 
 /**
- * 地图数据库服务工具
+ * 地图数据库服务工具。<br>
+ * 数据源注册表采用写时复制，运行期间可以新增、替换、移除数据文件，被替换的文件在正在进行的读取结束后关闭。
  */
 @Component
 public class MapServerDataCenter {
@@ -50,45 +59,59 @@ public class MapServerDataCenter {
     /**
      * 瓦片数据库文件模型
      */
-    @Getter
-    private static final Map<String, TilesFileModel> tilesMap = new HashMap<>();
+    private static final SourceRegistry<TilesFileModel> tilesMap = new SourceRegistry<>(TilesFileModel::close);
+
+
+    private static final SourceRegistry<Map<Long, TPKZoomLevel>> tpkMap = new SourceRegistry<>(null);
+    private static final SourceRegistry<TPKFile> tpkFileMap = new SourceRegistry<>(TPKFile::close);
 
+    /**
+     * TPK文件的bundle直接读取器
+     */
+    private static final SourceRegistry<TpkBundleReader> tpkReaderMap = new SourceRegistry<>(MapServerDataCenter::closeQuietly);
 
-    private static final Map<String, Map<Long, TPKZoomLevel>> tpkMap = new HashMap<>();
-    private static final Map<String, TPKFile> tpkFileMap = new HashMap<>();
+    /**
+     * PMTiles文件读取器
+     */
+    private static final SourceRegistry<PmtilesReader> pmtilesMap = new SourceRegistry<>(MapServerDataCenter::closeQuietly);
 
 
-    private static final Map<String, FileDataStore> shpDataStores = new HashMap<>();
+    private static final SourceRegistry<FileDataStore> shpDataStores = new SourceRegistry<>(FileDataStore::dispose);
 
     /**
      * 字体文件模型
      */
-    private static final Map<String, FontsFileModel> fontsMap = new HashMap<>();
+    private static final SourceRegistry<FontsFileModel> fontsMap = new SourceRegistry<>(null);
 
     /**
      * 行政区划数据。key:行政级别、value:区划对象列表
      */
     @Getter
-    private static final Map<Integer, List<SimpleFeature>> administrativeDivisionLevel = new HashMap<>();
+    private static volatile Map<Integer, List<SimpleFeature>> administrativeDivisionLevel = new HashMap<>();
 
     /**
      * 行政区划数据。key:区划ID、value:区划对象
      */
     @Getter
-    private static final Map<Integer, SimpleFeature> administrativeDivision = new HashMap<>();
+    private static volatile Map<Integer, SimpleFeature> administrativeDivision = new HashMap<>();
 
     @Getter
-    private static final Map<String, GraphHopper> hopperMap = new HashMap<>();
+    private static final Map<String, GraphHopper> hopperMap = new ConcurrentHashMap<>();
 
     /**
      * 行政区划层级树
      */
     @Getter
-    private static AdministrativeDivisionTmp simpleAdminDivision;
+    private static volatile AdministrativeDivisionTmp simpleAdminDivision;
 
     @Getter
     private static boolean mapnikReady = false;
 
+    /**
+     * 每个瓦片集的并发读取限制
+     */
+    private static volatile BackendLimiter backendLimiter = new BackendLimiter(0, 30000);
+
     /**
      * 初始化数据源
      *
@@ -96,10 +119,30 @@ public class MapServerDataCenter {
      * @param file      待链接的数据库文件
      */
     public static void initJdbcTemplate(String className, File file) {
-        TilesFileModel dbFileModel = new TilesFileModel(file, className);
+        initJdbcTemplate(className, file, false);
+    }
+
+    /**
+     * 初始化数据源
+     *
+     * @param className 驱动名称
+     * @param file      待链接的数据库文件
+     * @param immutable 服务期间文件是否不会被修改
+     */
+    public static void initJdbcTemplate(String className, File file, boolean immutable) {
+        TilesFileModel dbFileModel = new TilesFileModel(file, className, immutable);
         tilesMap.put(file.getName(), dbFileModel);
     }
 
+    /**
+     * 所有瓦片数据库文件模型的快照
+     *
+     * @return key为文件名
+     */
+    public static Map<String, TilesFileModel> getTilesMap() {
+        return tilesMap.snapshot();
+    }
+
     /**
      * 初始化TPK文件
      *
@@ -110,6 +153,30 @@ public class MapServerDataCenter {
         TPKFile tpkFile = new TPKFile(tpk, zoomLevelMap);
         tpkMap.put(tpk.getName(), zoomLevelMap);
         tpkFileMap.put(tpk.getName(), tpkFile);
+        try {
+            TpkBundleReader reader = new TpkBundleReader(tpk);
+            if (reader.isSupported()) {
+                tpkReaderMap.put(tpk.getName(), reader);
+            } else {
+                tpkReaderMap.remove(tpk.getName());
+                reader.close();
+            }
+        } catch (IOException e) {
+            logger.error("Open tpk bundle reader failed: {}", tpk.getAbsolutePath());
+        }
+    }
+
+    /**
+     * 初始化PMTiles文件
+     *
+     * @param pmtiles pmtiles地图数据文件
+     */
+    public static void initPmtiles(File pmtiles) {
+        try {
+            pmtilesMap.put(pmtiles.getName(), new PmtilesReader(pmtiles));
+        } catch (IOException e) {
+            logger.error("Open pmtiles file failed: {}, {}", pmtiles.getAbsolutePath(), e.getMessage());
+        }
     }
 
     public static void initShapefile(File shapefile) {
@@ -119,11 +186,49 @@ public class MapServerDataCenter {
         } catch (IOException e) {
             logger.error("FileDataStoreFinder.getDataStore() failed: " + shapefile.getAbsolutePath());
         }
-        shpDataStores.put(shapefile.getName(), dataStore);
+        if (dataStore != null) {
+            shpDataStores.put(shapefile.getName(), dataStore);
+        }
     }
 
     public static FileDataStore getShpDataStores(String shapefile) {
-        return shpDataStores.get(shapefile);
+        return shpDataStores.get(shapefile).orElse(null);
+    }
+
+    /**
+     * 移除瓦片数据文件，正在读取的请求结束后关闭文件
+     *
+     * @param fileName 文件名
+     * @return 文件是否已加载
+     */
+    public static boolean removeTileset(String fileName) {
+        boolean removed = tilesMap.remove(fileName);
+        removed |= tpkMap.remove(fileName);
+        removed |= tpkFileMap.remove(fileName);
+        removed |= tpkReaderMap.remove(fileName);
+        removed |= pmtilesMap.remove(fileName);
+        removed |= shpDataStores.remove(fileName);
+        backendLimiter.remove(fileName);
+        return removed;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            logger.warn("Close data file failed: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * 初始化瓦片集的并发读取限制，需在加载数据源之前调用
+     *
+     * @param permits       每个瓦片集的并发读取数，小于等于0时为CPU核数
+     * @param timeoutMillis 等待许可的超时时间（毫秒）
+     */
+    public static void initBackendLimiter(int permits, long timeoutMillis) {
+        backendLimiter = new BackendLimiter(permits, timeoutMillis);
+        logger.info("Concurrent reads per tileset: {}", backendLimiter.getPermits());
     }
 
     public static void initHopper(String fileName, GraphHopper hopper) {
@@ -144,7 +249,7 @@ public class MapServerDataCenter {
     public MetaData getTpkMetaData(String fileName) {
         MetaData metaData = new MetaData();
         if (StringUtils.hasLength(fileName)) {
-            TPKFile tpkFile = tpkFileMap.get(fileName);
+            TPKFile tpkFile = tpkFileMap.get(fileName).orElse(null);
             if (tpkFile != null) {
                 metaData.setBounds(tpkFile.getBounds().toString());
                 metaData.setCrs(tpkFile.getBounds().getCoordinateReferenceSystem().getName().toString());
@@ -163,9 +268,120 @@ public class MapServerDataCenter {
      * @return tpk文件数据
      */
     public TPKFile getTpkData(String fileName) {
-        return tpkFileMap.get(fileName);
+        return tpkFileMap.get(fileName).orElse(null);
+    }
+
+    /**
+     * 持有TPK文件的租约读取数据，读取期间文件不会被关闭
+     *
+     * @param fileName 文件名
+     * @param action   读取方法
+     * @param <T>      读取结果类型
+     * @return 读取结果，文件不存在时为空
+     */
+    public <T> Optional<T> withTpkData(String fileName, Function<TPKFile, Optional<T>> action) {
+        return with(tpkFileMap, fileName, action);
     }
 
+    /**
+     * 获取TPK文件的bundle直接读取器
+     *
+     * @param fileName 文件名
+     * @return bundle读取器，bundle被压缩存放时不存在
+     */
+    public Optional<TpkBundleReader> getTpkReader(String fileName) {
+        return tpkReaderMap.get(fileName);
+    }
+
+    /**
+     * 持有TPK bundle读取器的租约读取数据，读取期间文件不会被关闭
+     *
+     * @param fileName 文件名
+     * @param action   读取方法
+     * @param <T>      读取结果类型
+     * @return 读取结果，读取器不存在时为空
+     */
+    public <T> Optional<T> withTpkReader(String fileName, Function<TpkBundleReader, Optional<T>> action) {
+        return with(tpkReaderMap, fileName, action);
+    }
+
+    /**
+     * 持有TPK bundle读取器的租约执行后台任务，不占用读取许可
+     *
+     * @param fileName 文件名
+     * @param action   执行方法
+     * @param <T>      执行结果类型
+     * @return 执行结果，读取器不存在时为空
+     */
+    public <T> Optional<T> withTpkReaderInBackground(String fileName, Function<TpkBundleReader, Optional<T>> action) {
+        return lease(tpkReaderMap, fileName, action);
+    }
+
+
+    /**
+     * 获取PMTiles文件读取器
+     *
+     * @param fileName 文件名
+     * @return pmtiles读取器
+     */
+    public Optional<PmtilesReader> getPmtilesReader(String fileName) {
+        return pmtilesMap.get(fileName);
+    }
+
+    /**
+     * 持有PMTiles读取器的租约读取数据，读取期间文件不会被关闭
+     *
+     * @param fileName 文件名
+     * @param action   读取方法
+     * @param <T>      读取结果类型
+     * @return 读取结果，文件不存在时为空
+     */
+    public <T> Optional<T> withPmtilesReader(String fileName, Function<PmtilesReader, Optional<T>> action) {
+        return with(pmtilesMap, fileName, action);
+    }
+
+    /**
+     * 持有PMTiles读取器的租约执行后台任务，不占用读取许可
+     *
+     * @param fileName 文件名
+     * @param action   执行方法
+     * @param <T>      执行结果类型
+     * @return 执行结果，文件不存在时为空
+     */
+    public <T> Optional<T> withPmtilesReaderInBackground(String fileName, Function<PmtilesReader, Optional<T>> action) {
+        return lease(pmtilesMap, fileName, action);
+    }
+
+    /**
+     * 获取数据源的读取许可，用于不经过数据源注册表的阻塞读取，如瓦片目录的文件和POI索引。读取结束后关闭许可
+     *
+     * @param key 数据源名称
+     * @return 读取许可
+     * @throws BackendOverloadException 等待许可超时
+     */
+    public static BackendLimiter.Permit acquireReadPermit(String key) {
+        return backendLimiter.acquire(key);
+    }
+
+    private static <V, T> Optional<T> with(SourceRegistry<V> registry, String fileName, Function<V, Optional<T>> action) {
+        Optional<SourceRegistry.Lease<V>> leaseOpt = registry.acquire(fileName);
+        if (leaseOpt.isEmpty()) {
+            return Optional.empty();
+        }
+        try (SourceRegistry.Lease<V> lease = leaseOpt.get()) {
+            return backendLimiter.call(fileName, () -> action.apply(lease.get()));
+        }
+    }
+
+    private static <V, T> Optional<T> lease(SourceRegistry<V> registry, String fileName, Function<V, Optional<T>> action) {
+        Optional<SourceRegistry.Lease<V>> leaseOpt = registry.acquire(fileName);
+        if (leaseOpt.isEmpty()) {
+            return Optional.empty();
+        }
+        try (SourceRegistry.Lease<V> lease = leaseOpt.get()) {
+            return action.apply(lease.get());
+        }
+    }
 
     /**
      * 初始化字体库文件
@@ -176,41 +392,72 @@ public class MapServerDataCenter {
         fontsMap.put(fontFolder.getName(), new FontsFileModel(fontFolder));
     }
 
+    /**
+     * 移除字体库
+     *
+     * @param fontName 字体文件目录名
+     */
+    public static void removeFontsFile(String fontName) {
+        fontsMap.remove(fontName);
+    }
+
     /**
      * geojson格式的加载行政区划边界数据。
      *
      * @param boundary 行政区划边界
      */
-    public static void initBoundaryFile(File boundary) {
-        try {
-            GeoJSONReader reader = new GeoJSONReader(new FileInputStream(boundary));
+    public static synchronized void initBoundaryFile(File boundary) {
+        Map<Integer, SimpleFeature> divisions = new HashMap<>(administrativeDivision);
+        Map<Integer, List<SimpleFeature>> levels = new HashMap<>();
+        administrativeDivisionLevel.forEach((level, features) -> levels.put(level, new ArrayList<>(features)));
+        readBoundaryFile(boundary, divisions, levels);
+        swapBoundaries(divisions, levels);
+    }
+
+    /**
+     * 重新加载全部行政区划边界数据，加载完成后整体替换，加载期间查询仍使用旧数据。
+     *
+     * @param boundaries 行政区划边界文件
+     */
+    public static synchronized void reloadBoundaryFiles(List<File> boundaries) {
+        Map<Integer, SimpleFeature> divisions = new HashMap<>();
+        Map<Integer, List<SimpleFeature>> levels = new HashMap<>();
+        for (File boundary : boundaries) {
+            readBoundaryFile(boundary, divisions, levels);
+        }
+        swapBoundaries(divisions, levels);
+    }
+
+    private static void readBoundaryFile(File boundary, Map<Integer, SimpleFeature> divisions, Map<Integer, List<SimpleFeature>> levels) {
+        try (FileInputStream inputStream = new FileInputStream(boundary)) {
+            GeoJSONReader reader = new GeoJSONReader(inputStream);
             SimpleFeatureIterator features = reader.getFeatures().features();
             while (features.hasNext()) {
                 SimpleFeature feature = features.next();
 
-                administrativeDivision.put((int) feature.getAttribute("osm_id"), feature);
+                divisions.put((int) feature.getAttribute("osm_id"), feature);
 
                 int adminLevel = feature.getAttribute("admin_level") == null ? -1 : (int) feature.getAttribute("admin_level");
-                if (administrativeDivisionLevel.containsKey(adminLevel)) {
-                    List<SimpleFeature> simpleFeatures = administrativeDivisionLevel.get(adminLevel);
-                    simpleFeatures.add(feature);
-                } else {
-                    ArrayList<SimpleFeature> value = new ArrayList<>();
-                    value.add(feature);
-                    administrativeDivisionLevel.put(adminLevel, value);
-                }
+                levels.computeIfAbsent(adminLevel, k -> new ArrayList<>()).add(feature);
             }
             features.close();
-            packageModel();
         } catch (IOException e) {
             logger.error("Read OSM file failed：" + boundary.getAbsolutePath());
         }
     }
 
-    private static void packageModel() {
-        administrativeDivision.values().forEach(feature -> {
-            if (simpleAdminDivision == null) {
-                simpleAdminDivision = initRootNode(feature);
+    private static void swapBoundaries(Map<Integer, SimpleFeature> divisions, Map<Integer, List<SimpleFeature>> levels) {
+        AdministrativeDivisionTmp root = packageModel(divisions);
+        administrativeDivision = divisions;
+        administrativeDivisionLevel = levels;
+        simpleAdminDivision = root;
+    }
+
+    private static AdministrativeDivisionTmp packageModel(Map<Integer, SimpleFeature> divisions) {
+        AdministrativeDivisionTmp root = null;
+        for (SimpleFeature feature : divisions.values()) {
+            if (root == null) {
+                root = initRootNode(feature, divisions);
             } else {
                 Object parentsObj = feature.getAttribute("parents");
                 if (parentsObj != null) {
@@ -220,7 +467,7 @@ public class MapServerDataCenter {
 
                     for (int i = 0; i < parents.length; i++) {
                         int parentId = Integer.parseInt(parents[i]);
-                        Optional<AdministrativeDivisionTmp> nodeOpt = findNode(simpleAdminDivision, parentId);
+                        Optional<AdministrativeDivisionTmp> nodeOpt = findNode(root, parentId);
                         if (nodeOpt.isPresent()) {
                             AdministrativeDivisionTmp child = nodeOpt.get();
                             //如果父节点已经在早期全路径时构造过了，则不需要再追加此单节点。
@@ -229,14 +476,15 @@ public class MapServerDataCenter {
                             }
                             break;
                         } else {
-                            AdministrativeDivisionTmp tmp = new AdministrativeDivisionTmp(administrativeDivision.get(parentId), Integer.parseInt(parents[i + 1]));
+                            AdministrativeDivisionTmp tmp = new AdministrativeDivisionTmp(divisions.get(parentId), Integer.parseInt(parents[i + 1]));
                             tmp.getChildren().add(tempNode);
                             tempNode = tmp;
                         }
                     }
                 }
             }
-        });
+        }
+        return root;
     }
 
     private static boolean contains(AdministrativeDivisionTmp child, int parentId) {
@@ -249,7 +497,7 @@ public class MapServerDataCenter {
     }
 
 
-    private static AdministrativeDivisionTmp initRootNode(SimpleFeature feature) {
+    private static AdministrativeDivisionTmp initRootNode(SimpleFeature feature, Map<Integer, SimpleFeature> divisions) {
         Object parents = feature.getAttribute("parents");
         if (parents == null) {
             return new AdministrativeDivisionTmp(feature, -1);
@@ -260,10 +508,10 @@ public class MapServerDataCenter {
             for (int i = 0; i < split.length; i++) {
                 int osmId = Integer.parseInt(split[i]);
                 if (i + 1 > split.length - 1) {
-                    tmp = new AdministrativeDivisionTmp(administrativeDivision.get(osmId), -1);
+                    tmp = new AdministrativeDivisionTmp(divisions.get(osmId), -1);
                     tmp.setChildren(children);
                 } else {
-                    tmp = new AdministrativeDivisionTmp(administrativeDivision.get(osmId), Integer.parseInt(split[i + 1]));
+                    tmp = new AdministrativeDivisionTmp(divisions.get(osmId), Integer.parseInt(split[i + 1]));
                     tmp.setChildren(children);
                     children = new ArrayList<>();
                     children.add(tmp);
@@ -299,12 +547,7 @@ public class MapServerDataCenter {
      * @return 数据库数据源
      */
     public Optional<JdbcTemplate> getDataSource(String fileName) {
-        if (StringUtils.hasLength(fileName)) {
-            TilesFileModel model = tilesMap.get(fileName);
-            return Optional.of(model.getJdbcTemplate());
-        } else {
-            return Optional.empty();
-        }
+        return tilesMap.get(fileName).map(TilesFileModel::getJdbcTemplate);
     }
 
     /**
@@ -314,7 +557,31 @@ public class MapServerDataCenter {
      * @return 瓦片集文件对象
      */
     public TilesFileModel getTilesFileModel(String fileName) {
-        return tilesMap.get(fileName);
+        return tilesMap.get(fileName).orElse(null);
+    }
+
+    /**
+     * 持有瓦片数据库的租约读取数据，读取期间数据库连接不会被关闭
+     *
+     * @param fileName 瓦片集文件名称
+     * @param action   读取方法
+     * @param <T>      读取结果类型
+     * @return 读取结果，文件不存在时为空
+     */
+    public <T> Optional<T> withTilesFileModel(String fileName, Function<TilesFileModel, Optional<T>> action) {
+        return with(tilesMap, fileName, action);
+    }
+
+    /**
+     * 持有瓦片数据库的租约执行后台任务，不占用读取许可，避免长时间的任务（如POI提取）阻塞在线瓦片读取
+     *
+     * @param fileName 瓦片集文件名称
+     * @param action   执行方法
+     * @param <T>      执行结果类型
+     * @return 执行结果，文件不存在时为空
+     */
+    public <T> Optional<T> withTilesFileModelInBackground(String fileName, Function<TilesFileModel, Optional<T>> action) {
+        return lease(tilesMap, fileName, action);
     }
 
 
@@ -325,12 +592,7 @@ public class MapServerDataCenter {
      * @return 瓦片元数据
      */
     public Map<String, String> getTileMetaData(String fileName) {
-        if (StringUtils.hasLength(fileName)) {
-            TilesFileModel model = tilesMap.get(fileName);
-            return model.getMetaDataMap();
-        } else {
-            return new HashMap<>();
-        }
+        return tilesMap.get(fileName).map(TilesFileModel::getMetaDataMap).orElseGet(HashMap::new);
     }
 
 
@@ -341,11 +603,6 @@ public class MapServerDataCenter {
      * @return 字体文件目录
      */
     public Optional<FontsFileModel> getFontFolder(String fontName) {
-        if (StringUtils.hasLength(fontName)) {
-            FontsFileModel fontsFileModel = fontsMap.get(fontName);
-            return Optional.of(fontsFileModel);
-        } else {
-            return Optional.empty();
-        }
+        return fontsMap.get(fontName);
     }
 }
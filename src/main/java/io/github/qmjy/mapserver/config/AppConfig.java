@@ -31,6 +31,7 @@ public class AppConfig {
 
     public static final String FILE_EXTENSION_NAME_MBTILES = ".mbtiles";
     public static final String FILE_EXTENSION_NAME_TPK = ".tpk";
+    public static final String FILE_EXTENSION_NAME_PMTILES = ".pmtiles";
     public static final String FILE_EXTENSION_NAME_SHP = ".shp";
     public static final String FILE_EXTENSION_NAME_PBF = ".pbf";
     public static final String FILE_EXTENSION_NAME_OSM_PBF = ".osm.pbf";
@@ -92,6 +93,96 @@ public class AppConfig {
     @Value("${enable-planning}")
     private boolean enablePlanning = false;
 
+    /**
+     * mbtiles文件在服务期间不会被修改时可开启，SQLite将以immutable方式打开文件，跳过文件锁检测
+     */
+    @Value("${mbtiles-immutable:false}")
+    private boolean mbtilesImmutable = false;
+
+    /**
+     * 瓦片内存缓存的字节数上限，小于等于0时关闭缓存
+     */
+    @Value("${tile-cache.max-bytes:268435456}")
+    private long tileCacheMaxBytes = 256L * 1024 * 1024;
+
+    /**
+     * 启用瓦片覆盖范围索引，不存在的瓦片直接在内存中返回404
+     */
+    @Value("${tile-coverage.enabled:true}")
+    private boolean tileCoverageEnabled = true;
+
+    /**
+     * 超出矢量瓦片集最大层级时，最多向下生成的层级数，小于等于0时关闭
+     */
+    @Value("${overzoom.max-levels:6}")
+    private int overzoomMaxLevels = 6;
+
+    /**
+     * 生成瓦片缓存的字节数上限，小于等于0时关闭缓存
+     */
+    @Value("${overzoom.cache-max-bytes:67108864}")
+    private long overzoomCacheMaxBytes = 64L * 1024 * 1024;
+
+    /**
+     * 按样式裁剪后的瓦片缓存的字节数上限，小于等于0时关闭缓存
+     */
+    @Value("${tile-prune.cache-max-bytes:67108864}")
+    private long tilePruneCacheMaxBytes = 64L * 1024 * 1024;
+
+    /**
+     * 叠加合并后的瓦片缓存的字节数上限，小于等于0时关闭缓存
+     */
+    @Value("${tile-composite.cache-max-bytes:67108864}")
+    private long tileCompositeCacheMaxBytes = 64L * 1024 * 1024;
+
+    /**
+     * 监听数据目录，运行期间加载、替换、卸载数据文件
+     */
+    @Value("${data-watch.enabled:true}")
+    private boolean dataWatchEnabled = true;
+
+    /**
+     * 同一个文件在该时间内没有新的变更事件后才会处理，避免加载拷贝到一半的文件
+     */
+    @Value("${data-watch.debounce-ms:2000}")
+    private long dataWatchDebounceMs = 2000;
+
+    /**
+     * 每个瓦片集同时进行的阻塞读取数，小于等于0时为CPU核数，与SQLite只读连接池的大小一致
+     */
+    @Value("${backend.max-concurrency-per-tileset:0}")
+    private int backendMaxConcurrency = 0;
+
+    /**
+     * 等待瓦片集读取许可的超时时间（毫秒）
+     */
+    @Value("${backend.acquire-timeout-ms:30000}")
+    private long backendAcquireTimeoutMs = 30000;
+
+    /**
+     * 未带版本的瓦片、字体、雪碧图和样式响应的缓存时间（秒），小于等于0时客户端每次都需要校验
+     */
+    @Value("${http-cache.max-age-seconds:0}")
+    private long httpCacheMaxAge = 0;
+
+    /**
+     * POI搜索结果的缓存时间（秒），小于等于0时关闭缓存
+     */
+    @Value("${poi-search.cache-ttl-seconds:30}")
+    private long poiSearchCacheTtlSeconds = 30;
+
+    /**
+     * 缓存的POI搜索结果条数上限
+     */
+    @Value("${poi-search.cache-max-size:10000}")
+    private long poiSearchCacheMaxSize = 10000;
+
+    /**
+     * POI文件的连接池空闲该时间（秒）后关闭
+     */
+    @Value("${poi-search.idle-close-seconds:300}")
+    private long poiSearchIdleCloseSeconds = 300;
+
     private AppConfig() {
     }
 }
@@ -18,6 +18,13 @@ package io.github.qmjy.mapserver.config;
 
 import io.github.qmjy.mapserver.MapServerDataCenter;
 import io.github.qmjy.mapserver.service.AsyncService;
+import io.github.qmjy.mapserver.service.CompositeTileService;
+import io.github.qmjy.mapserver.service.HttpCacheService;
+import io.github.qmjy.mapserver.service.OverzoomService;
+import io.github.qmjy.mapserver.service.TileCacheService;
+import io.github.qmjy.mapserver.service.TileCoverageService;
+import io.github.qmjy.mapserver.service.TilePruneService;
+import io.github.qmjy.mapserver.service.VirtualTilesetService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.boot.ApplicationArguments;
@@ -27,6 +34,8 @@ import org.springframework.stereotype.Component;
 import org.springframework.util.StringUtils;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
 @Component
 @Order(value = 1)
@@ -34,14 +43,32 @@ public class DataSourceApplicationRunner implements ApplicationRunner {
     private final Logger logger = LoggerFactory.getLogger(DataSourceApplicationRunner.class);
     private final AppConfig appConfig;
     private final AsyncService asyncService;
+    private final TileCoverageService tileCoverageService;
+    private final TileCacheService tileCacheService;
+    private final OverzoomService overzoomService;
+    private final TilePruneService tilePruneService;
+    private final HttpCacheService httpCacheService;
+    private final VirtualTilesetService virtualTilesetService;
+    private final CompositeTileService compositeTileService;
 
-    public DataSourceApplicationRunner(AppConfig appConfig, AsyncService asyncService) {
+    public DataSourceApplicationRunner(AppConfig appConfig, AsyncService asyncService, TileCoverageService tileCoverageService,
+                                       TileCacheService tileCacheService, OverzoomService overzoomService, TilePruneService tilePruneService,
+                                       HttpCacheService httpCacheService, VirtualTilesetService virtualTilesetService,
+                                       CompositeTileService compositeTileService) {
         this.appConfig = appConfig;
         this.asyncService = asyncService;
+        this.tileCoverageService = tileCoverageService;
+        this.tileCacheService = tileCacheService;
+        this.overzoomService = overzoomService;
+        this.tilePruneService = tilePruneService;
+        this.httpCacheService = httpCacheService;
+        this.virtualTilesetService = virtualTilesetService;
+        this.compositeTileService = compositeTileService;
     }
 
     @Override
     public void run(ApplicationArguments args) throws Exception {
+        MapServerDataCenter.initBackendLimiter(appConfig.getBackendMaxConcurrency(), appConfig.getBackendAcquireTimeoutMs());
         if (StringUtils.hasLength(appConfig.getDataPath())) {
             File dataFolder = new File(appConfig.getDataPath());
             if (dataFolder.isDirectory() && dataFolder.exists()) {
@@ -85,40 +112,99 @@ public class DataSourceApplicationRunner implements ApplicationRunner {
         File tilesetsFolder = new File(dataFolder, "tilesets");
         searchMbtiles(tilesetsFolder);
         searchTpk(tilesetsFolder);
+        searchPmtiles(tilesetsFolder);
         searchShapefile(tilesetsFolder);
+        searchTileFolders(tilesetsFolder);
+        asyncService.resumeMergeTasks(tilesetsFolder);
     }
 
-    private void searchShapefile(File tilesetsFolder) {
-        File[] files = tilesetsFolder.listFiles(pathname -> pathname.getName().endsWith(AppConfig.FILE_EXTENSION_NAME_SHP));
-        if (files != null) {
-            for (File shapefile : files) {
-                logger.info("Load shapefile: {}", shapefile.getName());
-                MapServerDataCenter.initShapefile(shapefile);
+    private void searchTileFolders(File tilesetsFolder) {
+        File[] folders = tilesetsFolder.listFiles(pathname -> pathname.isDirectory() && new File(pathname, "metadata.json").exists());
+        if (folders != null) {
+            for (File folder : folders) {
+                loadTileset(folder);
             }
         }
     }
 
+    private void searchShapefile(File tilesetsFolder) {
+        searchTilesets(tilesetsFolder, AppConfig.FILE_EXTENSION_NAME_SHP);
+    }
+
     private void searchTpk(File tilesetsFolder) {
-        File[] files = tilesetsFolder.listFiles(pathname -> pathname.getName().endsWith(AppConfig.FILE_EXTENSION_NAME_TPK));
+        searchTilesets(tilesetsFolder, AppConfig.FILE_EXTENSION_NAME_TPK);
+    }
+
+    private void searchPmtiles(File tilesetsFolder) {
+        searchTilesets(tilesetsFolder, AppConfig.FILE_EXTENSION_NAME_PMTILES);
+    }
+
+    private void searchMbtiles(File tilesetsFolder) {
+        searchTilesets(tilesetsFolder, AppConfig.FILE_EXTENSION_NAME_MBTILES);
+    }
+
+    private void searchTilesets(File tilesetsFolder, String extension) {
+        File[] files = tilesetsFolder.listFiles(pathname -> pathname.getName().endsWith(extension));
         if (files != null) {
-            for (File tpk : files) {
-                logger.info("Load tpk tile file: {}", tpk.getName());
-                MapServerDataCenter.initTpk(tpk);
+            for (File file : files) {
+                loadTileset(file);
             }
         }
     }
 
-    private void searchMbtiles(File tilesetsFolder) {
-        File[] files = tilesetsFolder.listFiles(pathname -> pathname.getName().endsWith(AppConfig.FILE_EXTENSION_NAME_MBTILES));
-        if (files != null) {
-            for (File dbFile : files) {
-                logger.info("Load tile file: {}", dbFile.getName());
-                MapServerDataCenter.initJdbcTemplate(appConfig.getDriverClassName(), dbFile);
-                if (appConfig.isEnablePoiExtractMvt()) {
-                    asyncService.asyncMbtilesToPOI(dbFile);
-                }
+    /**
+     * 加载或替换tilesets目录下的数据文件。替换时新文件加载完成后才切换，旧文件在正在进行的读取结束后关闭。
+     *
+     * @param file mbtiles、tpk、pmtiles、shp文件或瓦片目录
+     * @return 是否为支持的数据文件
+     */
+    public boolean loadTileset(File file) {
+        String name = file.getName();
+        if (name.endsWith(AppConfig.FILE_EXTENSION_NAME_MBTILES)) {
+            logger.info("Load tile file: {}", name);
+            MapServerDataCenter.initJdbcTemplate(appConfig.getDriverClassName(), file, appConfig.isMbtilesImmutable());
+            if (appConfig.isEnablePoiExtractMvt()) {
+                asyncService.asyncMbtilesToPOI(file);
             }
+        } else if (name.endsWith(AppConfig.FILE_EXTENSION_NAME_TPK)) {
+            logger.info("Load tpk tile file: {}", name);
+            MapServerDataCenter.initTpk(file);
+        } else if (name.endsWith(AppConfig.FILE_EXTENSION_NAME_PMTILES)) {
+            logger.info("Load pmtiles file: {}", name);
+            MapServerDataCenter.initPmtiles(file);
+        } else if (name.endsWith(AppConfig.FILE_EXTENSION_NAME_SHP)) {
+            logger.info("Load shapefile: {}", name);
+            MapServerDataCenter.initShapefile(file);
+            return true;
+        } else if (!file.isDirectory() || !new File(file, "metadata.json").exists()) {
+            return false;
         }
+        invalidateCaches(name);
+        tileCoverageService.load(file);
+        return true;
+    }
+
+    /**
+     * 卸载tilesets目录下被删除的数据文件
+     *
+     * @param name 文件名或瓦片目录名
+     */
+    public void unloadTileset(String name) {
+        if (MapServerDataCenter.removeTileset(name)) {
+            logger.info("Unload tile file: {}", name);
+        }
+        invalidateCaches(name);
+    }
+
+    private void invalidateCaches(String name) {
+        tileCoverageService.invalidate(name);
+        tileCacheService.invalidate(name);
+        overzoomService.invalidate(name);
+        tilePruneService.invalidate(name);
+        httpCacheService.invalidate(name);
+        compositeTileService.invalidate(name);
+        //以虚拟瓦片集参与叠加的结果同样需要清除
+        virtualTilesetService.invalidate(name).forEach(compositeTileService::invalidate);
     }
 
     /**
@@ -126,16 +212,18 @@ public class DataSourceApplicationRunner implements ApplicationRunner {
      *
      * @param dataFolder 行政区划边界数据
      */
-    private void wrapOSMBFile(File dataFolder) {
+    public void wrapOSMBFile(File dataFolder) {
         File boundariesFolder = new File(dataFolder, "OSMB");
         File[] files = boundariesFolder.listFiles();
         if (files != null) {
+            List<File> boundaries = new ArrayList<>();
             for (File boundary : files) {
                 if (!boundary.isDirectory() && boundary.getName().endsWith(AppConfig.FILE_EXTENSION_NAME_GEOJSON)) {
                     logger.info("Load boundary file: {}", boundary.getName());
-                    MapServerDataCenter.initBoundaryFile(boundary);
+                    boundaries.add(boundary);
                 }
             }
+            MapServerDataCenter.reloadBoundaryFiles(boundaries);
         }
     }
 
@@ -0,0 +1,267 @@
+/*
+ * Copyright (c) 2024 QMJY.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+
+package io.github.qmjy.mapserver.config;
+
+import io.github.qmjy.mapserver.MapServerDataCenter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * 数据目录监听。<br>
+ * 监听数据目录下的tilesets、fonts和OSMB文件夹，运行期间新增、替换、删除的数据文件无需重启即可生效。
+ * 文件拷贝过程中会持续产生修改事件，同一个文件在一段时间内没有新的事件后才会处理；
+ * 瓦片目录会递归监听所有子文件夹，子文件夹中的事件都记在瓦片目录上，整个目录树一段时间内没有变化后才加载。
+ * 加载在单独的线程中进行，加载完成后才替换注册表中的数据源，不阻塞请求线程。
+ *
+ * @author liushaofeng
+ */
+@Component
+@Order(value = 2)
+public class DataSourceWatcher implements ApplicationRunner, DisposableBean {
+    private final Logger logger = LoggerFactory.getLogger(DataSourceWatcher.class);
+
+    private static final String FOLDER_TILESETS = "tilesets";
+    private static final String FOLDER_FONTS = "fonts";
+    private static final String FOLDER_OSMB = "OSMB";
+
+    private final AppConfig appConfig;
+    private final DataSourceApplicationRunner dataSourceRunner;
+    private final Map<WatchKey, Path> watchFolders = new ConcurrentHashMap<>();
+    /**
+     * 瓦片目录内的子文件夹所属的瓦片目录
+     */
+    private final Map<WatchKey, Path> tilesetTrees = new ConcurrentHashMap<>();
+    private final Map<Path, Long> pendingEvents = new ConcurrentHashMap<>();
+    private WatchService watchService;
+    private ScheduledExecutorService executor;
+
+    public DataSourceWatcher(AppConfig appConfig, DataSourceApplicationRunner dataSourceRunner) {
+        this.appConfig = appConfig;
+        this.dataSourceRunner = dataSourceRunner;
+    }
+
+    @Override
+    public void run(ApplicationArguments args) throws IOException {
+        if (!appConfig.isDataWatchEnabled() || !StringUtils.hasLength(appConfig.getDataPath())) {
+            return;
+        }
+        File dataFolder = new File(appConfig.getDataPath());
+        if (!dataFolder.isDirectory()) {
+            return;
+        }
+
+        watchService = FileSystems.getDefault().newWatchService();
+        for (String folderName : new String[]{FOLDER_TILESETS, FOLDER_FONTS, FOLDER_OSMB}) {
+            Path folder = new File(dataFolder, folderName).toPath();
+            if (Files.isDirectory(folder)) {
+                WatchKey key = folder.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+                watchFolders.put(key, folder);
+                logger.info("Watch data folder: {}", folder);
+            }
+        }
+        File[] tilesetFolders = new File(dataFolder, FOLDER_TILESETS).listFiles(file -> file.isDirectory() && isTilesetName(file.getName()));
+        if (tilesetFolders != null) {
+            for (File tilesetFolder : tilesetFolders) {
+                registerTree(tilesetFolder.toPath(), tilesetFolder.toPath(), false);
+            }
+        }
+        if (watchFolders.isEmpty()) {
+            return;
+        }
+
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "data-source-loader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long debounce = Math.max(100, appConfig.getDataWatchDebounceMs());
+        executor.scheduleWithFixedDelay(() -> flush(debounce), debounce, Math.max(50, debounce / 4), TimeUnit.MILLISECONDS);
+
+        Thread watchThread = new Thread(this::watch, "data-source-watcher");
+        watchThread.setDaemon(true);
+        watchThread.start();
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                Path folder = watchFolders.get(key);
+                Path tileset = tilesetTrees.get(key);
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        if (tileset != null) {
+                            pendingEvents.put(tileset, System.currentTimeMillis());
+                        }
+                        continue;
+                    }
+                    if (folder == null && tileset == null) {
+                        continue;
+                    }
+                    Path path = (folder != null ? folder : ((Path) key.watchable())).resolve((Path) event.context());
+                    boolean created = event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path);
+                    if (tileset != null) {
+                        //瓦片目录内新建的子文件夹加入监听，事件记在瓦片目录上
+                        if (created) {
+                            registerTree(path, tileset, true);
+                        }
+                        pendingEvents.put(tileset, System.currentTimeMillis());
+                    } else {
+                        if (created && FOLDER_TILESETS.equals(folder.getFileName().toString()) && isTilesetName(path.getFileName().toString())) {
+                            registerTree(path, path, true);
+                        }
+                        pendingEvents.put(path, System.currentTimeMillis());
+                    }
+                }
+                if (!key.reset()) {
+                    watchFolders.remove(key);
+                    tilesetTrees.remove(key);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException e) {
+            logger.info("Data folder watcher closed.");
+        }
+    }
+
+    /**
+     * 递归监听瓦片目录及其所有子文件夹。运行期间新建的文件夹在注册前可能已写入文件，注册后记一次瓦片目录的变化。
+     *
+     * @param folder  待监听的文件夹
+     * @param tileset 所属的瓦片目录
+     * @param changed 是否记一次瓦片目录的变化
+     */
+    private void registerTree(Path folder, Path tileset, boolean changed) {
+        try (Stream<Path> folders = Files.walk(folder)) {
+            folders.filter(Files::isDirectory).forEach(child -> {
+                try {
+                    WatchKey key = child.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+                    tilesetTrees.put(key, tileset);
+                } catch (IOException e) {
+                    logger.warn("Watch tileset folder failed: {}, {}", child, e.getMessage());
+                }
+            });
+        } catch (IOException | UncheckedIOException e) {
+            logger.warn("Walk tileset folder failed: {}, {}", folder, e.getMessage());
+        }
+        if (changed) {
+            pendingEvents.put(tileset, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * 处理一段时间内没有新事件的文件
+     */
+    private void flush(long debounce) {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<Path, Long>> iterator = pendingEvents.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Path, Long> entry = iterator.next();
+            if (now - entry.getValue() < debounce) {
+                continue;
+            }
+            iterator.remove();
+            try {
+                handle(entry.getKey());
+            } catch (RuntimeException e) {
+                logger.error("Reload data file failed: {}, {}", entry.getKey(), e.getMessage());
+            }
+        }
+    }
+
+    private void handle(Path path) {
+        String folderName = path.getParent().getFileName().toString();
+        File file = path.toFile();
+        String name = file.getName();
+        switch (folderName) {
+            case FOLDER_TILESETS -> {
+                if (!isTilesetName(name)) {
+                    return;
+                }
+                if (file.exists()) {
+                    dataSourceRunner.loadTileset(file);
+                } else {
+                    dataSourceRunner.unloadTileset(name);
+                }
+            }
+            case FOLDER_FONTS -> {
+                if (file.isDirectory()) {
+                    logger.info("Load fonts folder: {}", name);
+                    MapServerDataCenter.initFontsFile(file);
+                } else if (!file.exists()) {
+                    logger.info("Unload fonts folder: {}", name);
+                    MapServerDataCenter.removeFontsFile(name);
+                }
+            }
+            case FOLDER_OSMB -> {
+                if (name.endsWith(AppConfig.FILE_EXTENSION_NAME_GEOJSON)) {
+                    dataSourceRunner.wrapOSMBFile(path.getParent().getParent().toFile());
+                }
+            }
+            default -> {
+            }
+        }
+    }
+
+    /**
+     * 只处理数据文件和瓦片目录，忽略SQLite日志、覆盖范围等伴随文件
+     */
+    private boolean isTilesetName(String name) {
+        return name.endsWith(AppConfig.FILE_EXTENSION_NAME_MBTILES) || name.endsWith(AppConfig.FILE_EXTENSION_NAME_TPK)
+                || name.endsWith(AppConfig.FILE_EXTENSION_NAME_PMTILES) || name.endsWith(AppConfig.FILE_EXTENSION_NAME_SHP)
+                || !name.contains(".");
+    }
+
+    @Override
+    public void destroy() throws IOException {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        if (watchService != null) {
+            watchService.close();
+        }
+    }
+}
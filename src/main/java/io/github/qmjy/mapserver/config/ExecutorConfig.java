@@ -21,6 +21,7 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
 import org.springframework.scheduling.annotation.AsyncConfigurer;
 import org.springframework.scheduling.annotation.EnableAsync;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
@@ -44,9 +45,21 @@ public class ExecutorConfig implements AsyncConfigurer {
     private int keepAliveSeconds;
     @Value("${async.executor.thread.name.prefix}")
     private String namePrefix;
+    @Value("${spring.threads.virtual.enabled:false}")
+    private boolean virtualThreads;
 
     @Bean("asyncServiceExecutor")
     public Executor asyncServiceExecutor() {
+        if (virtualThreads) {
+            logger.info("开启SpringBoot的虚拟线程执行器！");
+
+            SimpleAsyncTaskExecutor executor = new SimpleAsyncTaskExecutor(namePrefix);
+            executor.setVirtualThreads(true);
+            // 同时执行的任务数仍以最大线程数为上限，超出时提交任务的线程等待，与CALLER_RUNS一样起到反压作用
+            executor.setConcurrencyLimit(maxPoolSize);
+            return executor;
+        }
+
         logger.info("开启SpringBoot的线程池！");
 
         ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2024 QMJY.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+
+package io.github.qmjy.mapserver.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 虚拟瓦片集配置。虚拟瓦片集由多个瓦片集组成，请求时按瓦片所在范围选择数据源，不生成合并后的文件。
+ *
+ * @author liushaofeng
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "virtual-tileset")
+public class VirtualTilesetConfig {
+
+    /**
+     * 虚拟瓦片集列表
+     */
+    private List<VirtualTileset> tilesets = new ArrayList<>();
+
+    /**
+     * 虚拟瓦片集
+     */
+    @Data
+    public static class VirtualTileset {
+        /**
+         * 虚拟瓦片集名称，不能与tilesets目录下的文件重名
+         */
+        private String name;
+
+        /**
+         * 数据源瓦片集
+         */
+        private List<Source> sources = new ArrayList<>();
+    }
+
+    /**
+     * 虚拟瓦片集的数据源
+     */
+    @Data
+    public static class Source {
+        /**
+         * tilesets目录下的瓦片集文件名，例如：sichuan.mbtiles
+         */
+        private String tileset;
+
+        /**
+         * 优先级，多个数据源都包含同一瓦片时使用优先级高的
+         */
+        private int priority = 0;
+    }
+}
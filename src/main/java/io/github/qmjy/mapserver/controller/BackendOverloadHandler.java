@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2024 QMJY.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+
+package io.github.qmjy.mapserver.controller;
+
+import io.github.qmjy.mapserver.util.BackendOverloadException;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.RestControllerAdvice;
+
+/**
+ * 后端读取饱和时返回503，客户端按Retry-After稍后重试，不会把存在的瓦片当作404缓存。<br>
+ * 瓦片、字体等接口的响应类型不是JSON，这里不返回响应体，避免与请求的Accept不匹配。
+ *
+ * @author liushaofeng
+ */
+@RestControllerAdvice
+public class BackendOverloadHandler {
+    /**
+     * 建议客户端重试的间隔（秒）
+     */
+    private static final String RETRY_AFTER_SECONDS = "1";
+
+    @ExceptionHandler(BackendOverloadException.class)
+    public ResponseEntity<Void> handleOverload(BackendOverloadException e) {
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, RETRY_AFTER_SECONDS)
+                .header(HttpHeaders.CACHE_CONTROL, "no-store")
+                .build();
+    }
+}
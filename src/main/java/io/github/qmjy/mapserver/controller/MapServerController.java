@@ -21,6 +21,7 @@ import io.github.qmjy.mapserver.config.AppConfig;
 import io.github.qmjy.mapserver.model.MetaData;
 import io.github.qmjy.mapserver.model.TilesFileModel;
 import io.github.qmjy.mapserver.model.TilesViewModel;
+import io.github.qmjy.mapserver.util.PmtilesReader;
 import io.github.qmjy.mapserver.util.SystemUtils;
 import jakarta.servlet.http.HttpServletRequest;
 import org.slf4j.Logger;
@@ -39,6 +40,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 
 /**
  * 系统主页
@@ -92,7 +94,8 @@ public class MapServerController extends BaseController {
                         return false;
                     } else {
                         String name = pathname.getName();
-                        return name.endsWith(AppConfig.FILE_EXTENSION_NAME_MBTILES) || name.endsWith(AppConfig.FILE_EXTENSION_NAME_TPK);
+                        return name.endsWith(AppConfig.FILE_EXTENSION_NAME_MBTILES) || name.endsWith(AppConfig.FILE_EXTENSION_NAME_TPK)
+                                || name.endsWith(AppConfig.FILE_EXTENSION_NAME_PMTILES);
                     }
                 });
                 model.addAttribute("tileFiles", wrapThymeleafModel(files));
@@ -123,6 +126,16 @@ public class MapServerController extends BaseController {
             Map<String, String> tileMetaData = mapServerDataCenter.getTileMetaData(tileset);
             model.addAttribute("metaData", tileMetaData);
 
+            return "pbf".equals(tileMetaData.get("format")) ? "mapbox-vector" : "mapbox-raster";
+        } else if (tileset.endsWith(AppConfig.FILE_EXTENSION_NAME_PMTILES)) {
+            Optional<PmtilesReader> readerOpt = mapServerDataCenter.getPmtilesReader(tileset);
+            if (readerOpt.isEmpty()) {
+                return "error";
+            }
+            model.addAttribute("tilesetName", tileset);
+            Map<String, String> tileMetaData = readerOpt.get().getMetaDataMap();
+            model.addAttribute("metaData", tileMetaData);
+
             return "pbf".equals(tileMetaData.get("format")) ? "mapbox-vector" : "mapbox-raster";
         } else if (tileset.endsWith(AppConfig.FILE_EXTENSION_NAME_TPK)) {
             model.addAttribute("tilesetName", tileset);
@@ -165,6 +178,16 @@ public class MapServerController extends BaseController {
             Map<String, String> tileMetaData = mapServerDataCenter.getTileMetaData(tileset);
             model.addAttribute("metaData", tileMetaData);
 
+            return "pbf".equals(tileMetaData.get("format")) ? "openlayers-vector" : "openlayers-raster";
+        } else if (tileset.endsWith(AppConfig.FILE_EXTENSION_NAME_PMTILES)) {
+            Optional<PmtilesReader> readerOpt = mapServerDataCenter.getPmtilesReader(tileset);
+            if (readerOpt.isEmpty()) {
+                return "error";
+            }
+            model.addAttribute("tilesetName", tileset);
+            Map<String, String> tileMetaData = readerOpt.get().getMetaDataMap();
+            model.addAttribute("metaData", tileMetaData);
+
             return "pbf".equals(tileMetaData.get("format")) ? "openlayers-vector" : "openlayers-raster";
         } else if (tileset.endsWith(AppConfig.FILE_EXTENSION_NAME_TPK)) {
             model.addAttribute("tilesetName", tileset);
@@ -257,6 +280,9 @@ public class MapServerController extends BaseController {
             if (file.getName().endsWith(AppConfig.FILE_EXTENSION_NAME_MBTILES)) {
                 TilesFileModel tilesFileModel = MapServerDataCenter.getTilesMap().get(file.getName());
                 dataList.add(new TilesViewModel(file, tilesFileModel.getMetaDataMap()));
+            } else if (file.getName().endsWith(AppConfig.FILE_EXTENSION_NAME_PMTILES)) {
+                Optional<PmtilesReader> readerOpt = mapServerDataCenter.getPmtilesReader(file.getName());
+                dataList.add(readerOpt.map(reader -> new TilesViewModel(file, reader.getMetaDataMap())).orElseGet(() -> new TilesViewModel(file)));
             } else {
                 dataList.add(new TilesViewModel(file));
             }
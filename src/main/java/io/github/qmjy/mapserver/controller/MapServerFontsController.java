@@ -19,6 +19,7 @@ package io.github.qmjy.mapserver.controller;
 import io.github.qmjy.mapserver.MapServerDataCenter;
 import io.github.qmjy.mapserver.config.AppConfig;
 import io.github.qmjy.mapserver.model.FontsFileModel;
+import io.github.qmjy.mapserver.service.HttpCacheService;
 import io.swagger.v3.oas.annotations.tags.Tag;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -29,6 +30,7 @@ import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.util.FileCopyUtils;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
 
 import java.io.File;
 import java.io.IOException;
@@ -46,26 +48,36 @@ public class MapServerFontsController {
     private MapServerDataCenter mapServerDataCenter;
     @Autowired
     private AppConfig appConfig;
+    @Autowired
+    private HttpCacheService httpCacheService;
 
 
     /**
      * 返回字体文件二进制流
      *
-     * @param fontName 文件名
-     * @param range    文件数据区间
+     * @param fontName   文件名
+     * @param range      文件数据区间
+     * @param webRequest 当前请求，用于校验客户端缓存
      * @return 字体文件的pbf数据
      */
     @GetMapping(value = "/{fontName}/{range}.pbf", produces = "application/x-protobuf")
     @ResponseBody
-    public ResponseEntity<ByteArrayResource> loadPbfFont(@PathVariable("fontName") String fontName, @PathVariable("range") String range) {
+    public ResponseEntity<ByteArrayResource> loadPbfFont(@PathVariable("fontName") String fontName, @PathVariable("range") String range,
+                                                         WebRequest webRequest) {
         Optional<FontsFileModel> fontFolder = mapServerDataCenter.getFontFolder(fontName);
         if (fontFolder.isPresent()) {
             FontsFileModel fontsFileModel = fontFolder.get();
             String fileName = fontsFileModel.getFolder().getAbsolutePath() + File.separator + range + AppConfig.FILE_EXTENSION_NAME_PBF;
+            File file = new File(fileName);
+            //字体pbf由服务器压缩，200和304都使用弱ETag
+            Optional<HttpCacheService.CacheValidator> validator = httpCacheService.fileValidator(file, "").map(HttpCacheService.CacheValidator::asWeak);
+            Optional<ResponseEntity<ByteArrayResource>> notModified = httpCacheService.checkNotModified(webRequest, validator);
+            if (notModified.isPresent()) {
+                return notModified.get();
+            }
             try {
-                File file = new File(fileName);
                 byte[] buffer = FileCopyUtils.copyToByteArray(file);
-                HttpHeaders headers = new HttpHeaders();
+                HttpHeaders headers = validator.map(httpCacheService::headers).orElseGet(HttpHeaders::new);
                 headers.setContentType(AppConfig.APPLICATION_X_PROTOBUF_VALUE);
                 ByteArrayResource resource = new ByteArrayResource(buffer);
                 return ResponseEntity.ok().headers(headers).contentLength(buffer.length).body(resource);
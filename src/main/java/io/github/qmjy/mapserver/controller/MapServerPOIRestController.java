@@ -16,10 +16,10 @@
 
 package io.github.qmjy.mapserver.controller;
 
-import io.github.qmjy.mapserver.config.AppConfig;
 import io.github.qmjy.mapserver.model.PoiPoint;
+import io.github.qmjy.mapserver.service.PoiQueryService;
 import io.github.qmjy.mapserver.util.GeometryUtils;
-import io.github.qmjy.mapserver.util.JdbcUtils;
+import io.github.qmjy.mapserver.util.PoiFullTextIndex;
 import io.github.qmjy.mapserver.util.ResponseMapUtil;
 import io.github.qmjy.mapserver.util.SystemUtils;
 import io.swagger.v3.oas.annotations.Operation;
@@ -31,13 +31,13 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
-import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.web.bind.annotation.*;
 
-import java.io.File;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
 
 /**
@@ -50,49 +50,201 @@ import java.util.Optional;
 @Tag(name = "地图POI服务管理", description = "地图POI服务接口能力")
 public class MapServerPOIRestController {
     private static final Logger logger = LoggerFactory.getLogger(MapServerPOIRestController.class);
-    private final AppConfig appConfig;
+    /**
+     * 周边查询的最大半径，单位米
+     */
+    private static final double MAX_RADIUS = 50000;
+
+    private final PoiQueryService poiQueryService;
 
-    public MapServerPOIRestController(AppConfig appConfig) {
-        this.appConfig = appConfig;
+    public MapServerPOIRestController(PoiQueryService poiQueryService) {
+        this.poiQueryService = poiQueryService;
     }
 
     /**
      * POI搜索
      *
      * @param poiFile  待查询的瓦片数据文件名或POI文件名，例如chengdu.mbtiles或者chengdu.poi
-     * @param keywords POI关键字。目前只支持单个关键词
+     * @param keywords POI关键字，多个关键字用空格分隔，结果需同时包含所有关键字
+     * @param pageSize 每页的条数
+     * @param page     页码，从1开始
      * @return 查询到到的POI搜索结果
      */
     @GetMapping(value = "/{poiIndexFile}", produces = MediaType.APPLICATION_JSON_VALUE)
     @ResponseBody
-    @Operation(summary = "获取POI数据", description = "查询POI数据。")
+    @Operation(summary = "获取POI数据", description = "查询POI数据。POI文件建有全文索引时按相关度排序，并支持用拼音、拼音首字母或拉丁转写搜索。")
     public ResponseEntity<Map<String, Object>> loadJpegTile(@Parameter(description = "查询POI数据的矢量瓦片数据源或POI文件名，例如：Chengdu.mbtiles | Chengdu.poi") @PathVariable("poiIndexFile") String poiFile,
-                                                            @Parameter(description = "待查询POI关键字，目前只支持一个关键词") @RequestParam String keywords,
-                                                            @Parameter(description = "返回的POI结果条数,取值范围为1-100") @RequestParam(required = false) int pageSize) {
-        if (keywords.trim().isEmpty() || keywords.split(" ").length > 1 || SystemUtils.checkTilesetName(poiFile)) {
+                                                            @Parameter(description = "待查询POI关键字，多个关键字用空格分隔，最多8个") @RequestParam String keywords,
+                                                            @Parameter(description = "返回的POI结果条数,取值范围为1-100") @RequestParam(required = false, defaultValue = "10") int pageSize,
+                                                            @Parameter(description = "页码，从1开始") @RequestParam(required = false, defaultValue = "1") int page) {
+        List<String> keywordList = PoiFullTextIndex.splitKeywords(keywords);
+        if (keywordList.isEmpty() || keywordList.size() > PoiFullTextIndex.MAX_KEYWORDS || page < 1 || SystemUtils.checkTilesetName(poiFile)) {
             return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(ResponseMapUtil.notFound("参数不合法，请检查参数！"));
         }
 
-        String filePath = poiFile.endsWith(".poi") ? appConfig.getDataPath() + File.separator + "poi" + File.separator
-                + poiFile : appConfig.getDataPath() + File.separator + "tilesets" + File.separator + poiFile + ".idx";
-        File poiIndexFile = new File(filePath);
-        if (poiIndexFile.exists()) {
-            JdbcTemplate idxJdbcTemp = JdbcUtils.getInstance().getJdbcTemplate(appConfig.getDriverClassName(), filePath);
-            String sql = "SELECT * FROM poi WHERE name LIKE ? LIMIT " + (pageSize <= 0 || pageSize > 100 ? 10 : pageSize);
-            List<Map<String, Object>> maps = idxJdbcTemp.queryForList(sql, "%" + keywords + "%");
+        int limit = pageSize <= 0 || pageSize > 100 ? 10 : pageSize;
+        try {
+            Optional<List<Map<String, Object>>> mapsOpt = poiQueryService.search(poiFile, keywordList, limit, (long) (page - 1) * limit);
+            if (mapsOpt.isEmpty()) {
+                return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(ResponseMapUtil.notFound("Can't find POI data or POI index service not ready yet!"));
+            }
             List<PoiPoint> dataList = new ArrayList<>();
-            maps.forEach(stringObjectMap -> {
+            mapsOpt.get().forEach(stringObjectMap -> {
                 dataList.add(formatPoiPoint(stringObjectMap, poiFile.endsWith(".poi")));
             });
             return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(ResponseMapUtil.ok(dataList));
-        } else {
-            return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(ResponseMapUtil.notFound("Can't find POI data or POI index service not ready yet!"));
+        } catch (SQLException e) {
+            logger.error("Search poi failed: {}, {}", poiFile, e.getMessage());
+            return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(ResponseMapUtil.nok(ResponseMapUtil.STATUS_OTHERS, "POI查询失败！"));
+        }
+    }
+
+    /**
+     * 查询某点周边的POI
+     *
+     * @param poiFile  待查询的瓦片数据文件名或POI文件名，例如chengdu.mbtiles或者chengdu.poi
+     * @param lon      中心经度
+     * @param lat      中心纬度
+     * @param radius   半径，单位米
+     * @param keywords POI关键字，可为空
+     * @param category POI类别，只有POI文件支持
+     * @param pageSize 返回的条数
+     * @return 按距离由近到远排序的POI
+     */
+    @GetMapping(value = "/{poiIndexFile}/nearby", produces = MediaType.APPLICATION_JSON_VALUE)
+    @ResponseBody
+    @Operation(summary = "查询周边POI", description = "查询距离某点指定半径内的POI，按距离由近到远排序。需要POI文件建有空间索引。")
+    public ResponseEntity<Map<String, Object>> nearby(@Parameter(description = "查询POI数据的矢量瓦片数据源或POI文件名，例如：Chengdu.mbtiles | Chengdu.poi") @PathVariable("poiIndexFile") String poiFile,
+                                                      @Parameter(description = "中心经度") @RequestParam double lon,
+                                                      @Parameter(description = "中心纬度") @RequestParam double lat,
+                                                      @Parameter(description = "半径，单位米，取值范围为1-50000") @RequestParam(required = false, defaultValue = "1000") double radius,
+                                                      @Parameter(description = "待查询POI关键字，多个关键字用空格分隔，最多8个") @RequestParam(required = false) String keywords,
+                                                      @Parameter(description = "POI类别，只有POI文件支持") @RequestParam(required = false) String category,
+                                                      @Parameter(description = "返回的POI结果条数,取值范围为1-100") @RequestParam(required = false, defaultValue = "10") int pageSize) {
+        List<String> keywordList = keywords == null ? List.of() : PoiFullTextIndex.splitKeywords(keywords);
+        if (!isValidPoint(lon, lat) || !(radius > 0 && radius <= MAX_RADIUS) || keywordList.size() > PoiFullTextIndex.MAX_KEYWORDS
+                || SystemUtils.checkTilesetName(poiFile)) {
+            return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(ResponseMapUtil.notFound("参数不合法，请检查参数！"));
+        }
+        int limit = pageSize <= 0 || pageSize > 100 ? 10 : pageSize;
+        try {
+            return toResponse(poiFile, poiQueryService.nearby(poiFile, lon, lat, radius, keywordList, category, limit));
+        } catch (SQLException e) {
+            logger.error("Search nearby poi failed: {}, {}", poiFile, e.getMessage());
+            return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(ResponseMapUtil.nok(ResponseMapUtil.STATUS_OTHERS, "POI查询失败！"));
+        }
+    }
+
+    /**
+     * 查询矩形范围内的POI
+     *
+     * @param poiFile  待查询的瓦片数据文件名或POI文件名，例如chengdu.mbtiles或者chengdu.poi
+     * @param bbox     范围，格式为minLon,minLat,maxLon,maxLat
+     * @param keywords POI关键字，可为空
+     * @param category POI类别，只有POI文件支持
+     * @param pageSize 返回的条数
+     * @return 按到范围中心的距离由近到远排序的POI，truncated为true时范围内的POI过多，结果只在部分POI中排序
+     */
+    @GetMapping(value = "/{poiIndexFile}/within", produces = MediaType.APPLICATION_JSON_VALUE)
+    @ResponseBody
+    @Operation(summary = "查询范围内的POI", description = "查询矩形范围内的POI，按到范围中心的距离排序。需要POI文件建有空间索引。范围内的POI过多时响应中truncated为true，结果只在部分POI中排序，应缩小范围。")
+    public ResponseEntity<Map<String, Object>> within(@Parameter(description = "查询POI数据的矢量瓦片数据源或POI文件名，例如：Chengdu.mbtiles | Chengdu.poi") @PathVariable("poiIndexFile") String poiFile,
+                                                      @Parameter(description = "范围，格式为minLon,minLat,maxLon,maxLat") @RequestParam String bbox,
+                                                      @Parameter(description = "待查询POI关键字，多个关键字用空格分隔，最多8个") @RequestParam(required = false) String keywords,
+                                                      @Parameter(description = "POI类别，只有POI文件支持") @RequestParam(required = false) String category,
+                                                      @Parameter(description = "返回的POI结果条数,取值范围为1-100") @RequestParam(required = false, defaultValue = "10") int pageSize) {
+        List<String> keywordList = keywords == null ? List.of() : PoiFullTextIndex.splitKeywords(keywords);
+        Optional<double[]> bboxOpt = parseBbox(bbox);
+        if (bboxOpt.isEmpty() || keywordList.size() > PoiFullTextIndex.MAX_KEYWORDS || SystemUtils.checkTilesetName(poiFile)) {
+            return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(ResponseMapUtil.notFound("参数不合法，请检查参数！"));
+        }
+        int limit = pageSize <= 0 || pageSize > 100 ? 10 : pageSize;
+        try {
+            Optional<PoiQueryService.WithinResult> resultOpt = poiQueryService.within(poiFile, bboxOpt.get(), keywordList, category, limit);
+            ResponseEntity<Map<String, Object>> response = toResponse(poiFile, resultOpt.map(PoiQueryService.WithinResult::rows));
+            //范围内的POI超过候选数上限时结果不一定是离中心最近的，提示调用方缩小范围
+            resultOpt.ifPresent(result -> Objects.requireNonNull(response.getBody()).put("truncated", result.truncated()));
+            return response;
+        } catch (SQLException e) {
+            logger.error("Search poi within bbox failed: {}, {}", poiFile, e.getMessage());
+            return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(ResponseMapUtil.nok(ResponseMapUtil.STATUS_OTHERS, "POI查询失败！"));
+        }
+    }
+
+    /**
+     * 查询距离某点最近的k个POI
+     *
+     * @param poiFile  待查询的瓦片数据文件名或POI文件名，例如chengdu.mbtiles或者chengdu.poi
+     * @param lon      中心经度
+     * @param lat      中心纬度
+     * @param k        返回的条数
+     * @param keywords POI关键字，可为空
+     * @param category POI类别，只有POI文件支持
+     * @return 按距离由近到远排序的POI
+     */
+    @GetMapping(value = "/{poiIndexFile}/nearest", produces = MediaType.APPLICATION_JSON_VALUE)
+    @ResponseBody
+    @Operation(summary = "查询最近的POI", description = "查询距离某点最近的k个POI，按距离由近到远排序。需要POI文件建有空间索引。")
+    public ResponseEntity<Map<String, Object>> nearest(@Parameter(description = "查询POI数据的矢量瓦片数据源或POI文件名，例如：Chengdu.mbtiles | Chengdu.poi") @PathVariable("poiIndexFile") String poiFile,
+                                                       @Parameter(description = "中心经度") @RequestParam double lon,
+                                                       @Parameter(description = "中心纬度") @RequestParam double lat,
+                                                       @Parameter(description = "返回的POI结果条数,取值范围为1-100") @RequestParam(required = false, defaultValue = "10") int k,
+                                                       @Parameter(description = "待查询POI关键字，多个关键字用空格分隔，最多8个") @RequestParam(required = false) String keywords,
+                                                       @Parameter(description = "POI类别，只有POI文件支持") @RequestParam(required = false) String category) {
+        List<String> keywordList = keywords == null ? List.of() : PoiFullTextIndex.splitKeywords(keywords);
+        if (!isValidPoint(lon, lat) || k < 1 || k > 100 || keywordList.size() > PoiFullTextIndex.MAX_KEYWORDS || SystemUtils.checkTilesetName(poiFile)) {
+            return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(ResponseMapUtil.notFound("参数不合法，请检查参数！"));
+        }
+        try {
+            return toResponse(poiFile, poiQueryService.nearest(poiFile, lon, lat, k, keywordList, category));
+        } catch (SQLException e) {
+            logger.error("Search nearest poi failed: {}, {}", poiFile, e.getMessage());
+            return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(ResponseMapUtil.nok(ResponseMapUtil.STATUS_OTHERS, "POI查询失败！"));
+        }
+    }
+
+    private ResponseEntity<Map<String, Object>> toResponse(String poiFile, Optional<List<Map<String, Object>>> mapsOpt) {
+        if (mapsOpt.isEmpty()) {
+            return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(ResponseMapUtil.notFound("Can't find POI data or POI spatial index not ready yet!"));
+        }
+        List<PoiPoint> dataList = new ArrayList<>();
+        for (Map<String, Object> map : mapsOpt.get()) {
+            PoiPoint poiPoint = formatPoiPoint(map, poiFile.endsWith(".poi"));
+            if (map.get(PoiQueryService.DISTANCE) instanceof Double distance) {
+                poiPoint.setDistance(Math.round(distance * 10) / 10.0);
+            }
+            dataList.add(poiPoint);
+        }
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(ResponseMapUtil.ok(dataList));
+    }
+
+    private boolean isValidPoint(double lon, double lat) {
+        return lon >= -180 && lon <= 180 && lat >= -90 && lat <= 90;
+    }
+
+    private Optional<double[]> parseBbox(String bbox) {
+        String[] split = bbox.split(",");
+        if (split.length != 4) {
+            return Optional.empty();
+        }
+        try {
+            double[] values = new double[4];
+            for (int i = 0; i < 4; i++) {
+                values[i] = Double.parseDouble(split[i].trim());
+            }
+            if (!isValidPoint(values[0], values[1]) || !isValidPoint(values[2], values[3]) || values[0] > values[2] || values[1] > values[3]) {
+                return Optional.empty();
+            }
+            return Optional.of(values);
+        } catch (NumberFormatException e) {
+            return Optional.empty();
         }
     }
 
     private PoiPoint formatPoiPoint(Map<String, Object> stringObjectMap, boolean isPoi) {
         String name = (String) stringObjectMap.get("name");
-        if (isPoi) {
+        //poi文件和新版本的idx文件直接保存经纬度，旧版本的idx文件保存瓦片内的像素坐标
+        if (isPoi || stringObjectMap.containsKey("lon")) {
             return new PoiPoint(name, stringObjectMap.get("lon") + "," + stringObjectMap.get("lat"));
         } else {
             String wellKnownText = (String) stringObjectMap.get("geometry");
@@ -107,7 +259,7 @@ public class MapServerPOIRestController {
                     Optional<Geometry> geometryOpt = GeometryUtils.toGeometryFromWkt(wellKnownText);
                     if (geometryOpt.isPresent()) {
                         Point point = (Point) geometryOpt.get();
-                        double[] doubles = GeometryUtils.pixel2deg(tileColumn, tileRow, zoomLevel, (int) point.getX(), (int) point.getY(), 4096);
+                        double[] doubles = GeometryUtils.pixel2deg(tileColumn, tileRow, zoomLevel, point.getX(), point.getY(), 4096);
                         return new PoiPoint(name, doubles[0] + "," + doubles[1]);
                     }
                 default:
@@ -17,6 +17,7 @@
 package io.github.qmjy.mapserver.controller;
 
 import io.github.qmjy.mapserver.config.AppConfig;
+import io.github.qmjy.mapserver.service.HttpCacheService;
 import io.github.qmjy.mapserver.util.SystemUtils;
 import io.swagger.v3.oas.annotations.tags.Tag;
 import org.apache.tomcat.util.http.fileupload.IOUtils;
@@ -29,11 +30,13 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.util.FileCopyUtils;
 import org.springframework.util.StringUtils;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
 
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.util.Optional;
 
 @RestController
 @RequestMapping("/api/sprites")
@@ -41,6 +44,8 @@ import java.nio.file.Files;
 public class MapServerSpritesController {
     @Autowired
     private AppConfig appConfig;
+    @Autowired
+    private HttpCacheService httpCacheService;
 
 
     /**
@@ -50,7 +55,8 @@ public class MapServerSpritesController {
      */
     @ResponseBody
     @GetMapping(value = "/{spriteName}/{fileName}.json", produces = "application/json")
-    public ResponseEntity<String> loadStyle(@PathVariable("spriteName") String spriteName, @PathVariable("fileName") String fileName) {
+    public ResponseEntity<String> loadStyle(@PathVariable("spriteName") String spriteName, @PathVariable("fileName") String fileName,
+                                            WebRequest webRequest) {
         if (SystemUtils.checkTilesetName(fileName)) {
             return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
         }
@@ -58,9 +64,14 @@ public class MapServerSpritesController {
         if (StringUtils.hasLength(appConfig.getDataPath())) {
             StringBuilder sb = new StringBuilder(appConfig.getDataPath());
             sb.append(File.separator).append("sprites").append(File.separator).append(spriteName).append(File.separator).append(fileName).append(AppConfig.FILE_EXTENSION_NAME_JSON);
+            Optional<HttpCacheService.CacheValidator> validator = httpCacheService.fileValidator(new File(sb.toString()), "");
+            Optional<ResponseEntity<String>> notModified = httpCacheService.checkNotModified(webRequest, validator);
+            if (notModified.isPresent()) {
+                return notModified.get();
+            }
             try {
                 String styleJson = FileCopyUtils.copyToString(new FileReader(sb.toString()));
-                HttpHeaders headers = new HttpHeaders();
+                HttpHeaders headers = validator.map(httpCacheService::headers).orElseGet(HttpHeaders::new);
                 headers.setContentType(MediaType.APPLICATION_JSON);
                 return ResponseEntity.ok().headers(headers).contentLength(styleJson.getBytes().length).body(styleJson);
             } catch (IOException e) {
@@ -78,7 +89,8 @@ public class MapServerSpritesController {
      */
     @ResponseBody
     @GetMapping(value = "/{spriteName}/{fileName}.png")
-    public ResponseEntity<ByteArrayResource> loadSpritePng(@PathVariable("spriteName") String spriteName, @PathVariable("fileName") String fileName) {
+    public ResponseEntity<ByteArrayResource> loadSpritePng(@PathVariable("spriteName") String spriteName, @PathVariable("fileName") String fileName,
+                                                           WebRequest webRequest) {
         if (SystemUtils.checkTilesetName(fileName)) {
             return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
         }
@@ -86,11 +98,16 @@ public class MapServerSpritesController {
         if (StringUtils.hasLength(appConfig.getDataPath())) {
             StringBuilder sb = new StringBuilder(appConfig.getDataPath());
             sb.append(File.separator).append("sprites").append(File.separator).append(spriteName).append(File.separator).append(fileName).append(AppConfig.FILE_EXTENSION_NAME_PNG);
+            File file = new File(sb.toString());
+            Optional<HttpCacheService.CacheValidator> validator = httpCacheService.fileValidator(file, "");
+            Optional<ResponseEntity<ByteArrayResource>> notModified = httpCacheService.checkNotModified(webRequest, validator);
+            if (notModified.isPresent()) {
+                return notModified.get();
+            }
             try {
-                File file = new File(sb.toString());
                 byte[] buffer = FileCopyUtils.copyToByteArray(file);
                 IOUtils.readFully(Files.newInputStream(file.toPath()), buffer);
-                HttpHeaders headers = new HttpHeaders();
+                HttpHeaders headers = validator.map(httpCacheService::headers).orElseGet(HttpHeaders::new);
                 headers.setContentType(MediaType.IMAGE_PNG);
                 ByteArrayResource resource = new ByteArrayResource(buffer);
                 return ResponseEntity.ok().headers(headers).contentLength(buffer.length).body(resource);
@@ -17,6 +17,7 @@
 package io.github.qmjy.mapserver.controller;
 
 import io.github.qmjy.mapserver.config.AppConfig;
+import io.github.qmjy.mapserver.service.HttpCacheService;
 import io.github.qmjy.mapserver.util.SystemUtils;
 import io.swagger.v3.oas.annotations.tags.Tag;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -27,19 +28,23 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.util.FileCopyUtils;
 import org.springframework.util.StringUtils;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
 
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.Optional;
 
 @RestController
 @RequestMapping("/api/styles")
 @Tag(name = "Mapbox样式服务管理", description = "Mapbox离线服务接口能力")
 public class MapServerStyleController {
     private final AppConfig appConfig;
+    private final HttpCacheService httpCacheService;
 
-    public MapServerStyleController(AppConfig appConfig) {
+    public MapServerStyleController(AppConfig appConfig, HttpCacheService httpCacheService) {
         this.appConfig = appConfig;
+        this.httpCacheService = httpCacheService;
     }
 
 
@@ -50,16 +55,21 @@ public class MapServerStyleController {
      */
     @ResponseBody
     @GetMapping(value = "/{styleName}", produces = "application/json")
-    public ResponseEntity<String> loadStyle(@PathVariable("styleName") String styleName) {
+    public ResponseEntity<String> loadStyle(@PathVariable("styleName") String styleName, WebRequest webRequest) {
         if (SystemUtils.checkTilesetName(styleName)) {
             return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
         }
         if (StringUtils.hasLength(appConfig.getDataPath())) {
             StringBuilder sb = new StringBuilder(appConfig.getDataPath());
             sb.append(File.separator).append("styles").append(File.separator).append(styleName);
+            Optional<HttpCacheService.CacheValidator> validator = httpCacheService.fileValidator(new File(sb.toString()), "");
+            Optional<ResponseEntity<String>> notModified = httpCacheService.checkNotModified(webRequest, validator);
+            if (notModified.isPresent()) {
+                return notModified.get();
+            }
             try {
                 String styleJson = FileCopyUtils.copyToString(new FileReader(sb.toString()));
-                HttpHeaders headers = new HttpHeaders();
+                HttpHeaders headers = validator.map(httpCacheService::headers).orElseGet(HttpHeaders::new);
                 headers.setContentType(MediaType.APPLICATION_JSON);
                 return ResponseEntity.ok().headers(headers).contentLength(styleJson.getBytes().length).body(styleJson);
             } catch (IOException e) {
@@ -19,14 +19,35 @@ package io.github.qmjy.mapserver.controller;
 import com.wdtinc.mapbox_vector_tile.adapt.jts.model.JtsMvt;
 import io.github.qmjy.mapserver.MapServerDataCenter;
 import io.github.qmjy.mapserver.config.AppConfig;
+import io.github.qmjy.mapserver.model.MbtilesMergeTask;
+import io.github.qmjy.mapserver.model.MbtilesOfExtract;
 import io.github.qmjy.mapserver.model.MbtilesOfMerge;
 import io.github.qmjy.mapserver.model.MbtilesOfMergeProgress;
 import io.github.qmjy.mapserver.model.MetaData;
+import io.github.qmjy.mapserver.model.TilesFileModel;
+import io.github.qmjy.mapserver.model.TilesOfBatch;
+import io.github.qmjy.mapserver.model.TilesetOptimizeReport;
+import io.github.qmjy.mapserver.model.TilesetStats;
 import io.github.qmjy.mapserver.model.osm.pbf.OsmPbfTileOfReadable;
 import io.github.qmjy.mapserver.service.AsyncService;
+import io.github.qmjy.mapserver.service.CompositeTileService;
+import io.github.qmjy.mapserver.service.HttpCacheService;
+import io.github.qmjy.mapserver.service.OverzoomService;
+import io.github.qmjy.mapserver.service.TileCacheService;
+import io.github.qmjy.mapserver.service.TileCoverageService;
+import io.github.qmjy.mapserver.service.TilePruneService;
+import io.github.qmjy.mapserver.service.TilesetOptimizeService;
+import io.github.qmjy.mapserver.service.TilesetStatsService;
+import io.github.qmjy.mapserver.service.VirtualTilesetService;
+import io.github.qmjy.mapserver.util.BackendLimiter;
+import io.github.qmjy.mapserver.util.GeometryUtils;
 import io.github.qmjy.mapserver.util.IOUtils;
+import io.github.qmjy.mapserver.util.MbtilesTileReader;
+import io.github.qmjy.mapserver.util.PmtilesReader;
 import io.github.qmjy.mapserver.util.ResponseMapUtil;
 import io.github.qmjy.mapserver.util.SystemUtils;
+import io.github.qmjy.mapserver.util.TileCoverage;
+import io.github.qmjy.mapserver.util.TilePruneProfile;
 import io.github.qmjy.mapserver.util.VectorTileUtils;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.Parameter;
@@ -35,8 +56,11 @@ import io.swagger.v3.oas.annotations.media.Schema;
 import io.swagger.v3.oas.annotations.responses.ApiResponse;
 import io.swagger.v3.oas.annotations.tags.Tag;
 import jakarta.servlet.http.HttpServletRequest;
-import org.geotools.tpk.TPKFile;
 import org.geotools.tpk.TPKTile;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.geotools.api.feature.simple.SimpleFeature;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.core.io.ByteArrayResource;
@@ -45,12 +69,15 @@ import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
-import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.lang.Nullable;
 import org.springframework.util.FileCopyUtils;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
@@ -59,7 +86,7 @@ import java.util.*;
 
 
 /**
- * Mbtiles、TPK支持的数据库访问API。<br>
+ * Mbtiles、TPK、PMTiles支持的数据库访问API。<br>
  * MBTiles 1.3 规范定义：<a href="https://github.com/mapbox/mbtiles-spec/blob/master/1.3/spec.md">MBTiles 1.3</a>
  *
  * @author liushaofeng
@@ -72,68 +99,136 @@ public class MapServerTilesetsRestController {
     private final AsyncService asyncService;
     private final MapServerDataCenter mapServerDataCenter;
     private final AppConfig appConfig;
+    private final TileCacheService tileCacheService;
+    private final TileCoverageService tileCoverageService;
+    private final OverzoomService overzoomService;
+    private final TilePruneService tilePruneService;
+    private final HttpCacheService httpCacheService;
+    private final VirtualTilesetService virtualTilesetService;
+    private final CompositeTileService compositeTileService;
+    private final TilesetOptimizeService tilesetOptimizeService;
+    private final TilesetStatsService tilesetStatsService;
 
-    public MapServerTilesetsRestController(AsyncService asyncService, MapServerDataCenter mapServerDataCenter, AppConfig appConfig) {
+    /**
+     * 覆盖范围GeoJSON允许展开的最大瓦片数
+     */
+    private static final long MAX_COVERAGE_TILES = 4 * 1024 * 1024;
+
+    /**
+     * 单次叠加允许的最大瓦片集数
+     */
+    private static final int MAX_COMPOSITE_TILESETS = 8;
+
+    /**
+     * 单次批量获取允许的最大瓦片数
+     */
+    private static final int MAX_BATCH_TILES = 256;
+
+    /**
+     * 批量响应中瓦片数据的编码，gzip或identity
+     */
+    public static final String HEADER_TILE_ENCODING = "X-Tile-Encoding";
+
+    /**
+     * 墨卡托投影的最大纬度
+     */
+    private static final double MAX_MERCATOR_LATITUDE = 85.0511287798;
+
+    public MapServerTilesetsRestController(AsyncService asyncService, MapServerDataCenter mapServerDataCenter, AppConfig appConfig,
+                                           TileCacheService tileCacheService, TileCoverageService tileCoverageService,
+                                           OverzoomService overzoomService, TilePruneService tilePruneService,
+                                           HttpCacheService httpCacheService, VirtualTilesetService virtualTilesetService,
+                                           CompositeTileService compositeTileService, TilesetOptimizeService tilesetOptimizeService,
+                                           TilesetStatsService tilesetStatsService) {
         this.asyncService = asyncService;
         this.mapServerDataCenter = mapServerDataCenter;
         this.appConfig = appConfig;
+        this.tileCacheService = tileCacheService;
+        this.tileCoverageService = tileCoverageService;
+        this.overzoomService = overzoomService;
+        this.tilePruneService = tilePruneService;
+        this.httpCacheService = httpCacheService;
+        this.virtualTilesetService = virtualTilesetService;
+        this.compositeTileService = compositeTileService;
+        this.tilesetOptimizeService = tilesetOptimizeService;
+        this.tilesetStatsService = tilesetStatsService;
     }
 
     /**
      * 加载图片瓦片数据
      *
-     * @param tileset 瓦片数据库名称
-     * @param z       地图缩放层级
-     * @param x       地图的x轴瓦片坐标
-     * @param y       地图的y轴瓦片坐标
+     * @param tileset    瓦片数据库名称
+     * @param version    瓦片集版本，与当前版本一致时响应标记为immutable并长期缓存
+     * @param z          地图缩放层级
+     * @param x          地图的x轴瓦片坐标
+     * @param y          地图的y轴瓦片坐标
+     * @param webRequest 当前请求，用于校验客户端缓存
      * @return jpg格式的瓦片数据
      */
-    @GetMapping(value = "/{tileset}/{z}/{x}/{y}.jpeg", produces = MediaType.IMAGE_JPEG_VALUE)
+    @GetMapping(value = {"/{tileset}/{z}/{x}/{y}.jpeg", "/{tileset}/{version}/{z}/{x}/{y}.jpeg"}, produces = MediaType.IMAGE_JPEG_VALUE)
     @ResponseBody
     @Operation(summary = "获取JPG格式瓦片数据", description = "获取JPG格式瓦片数据。")
     public ResponseEntity<ByteArrayResource> loadJpegTile(
             @Parameter(description = "待查询的瓦片数据源或文件夹名字，例如：Chengdu.mbtiles") @PathVariable("tileset") String tileset,
+            @Parameter(description = "瓦片集版本，与当前版本一致时响应标记为immutable并长期缓存") @PathVariable(value = "version", required = false) String version,
             @Parameter(description = "待查询的底图瓦片层级zoom_level") @PathVariable("z") int z,
             @Parameter(description = "待查询的底图瓦片坐标x") @PathVariable("x") int x,
-            @Parameter(description = "待查询的底图瓦片坐标y") @PathVariable("y") int y) {
+            @Parameter(description = "待查询的底图瓦片坐标y") @PathVariable("y") int y,
+            WebRequest webRequest) {
         if (SystemUtils.checkTilesetName(tileset)) {
             return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
         }
-        return this.loadJpgTile(tileset, z, x, y);
+        return this.loadJpgTile(tileset, version, z, x, y, webRequest);
     }
 
     /**
      * 加载图片瓦片数据
      *
-     * @param tileset 瓦片数据库名称
-     * @param z       地图缩放层级
-     * @param x       地图的x轴瓦片坐标
-     * @param y       地图的y轴瓦片坐标
+     * @param tileset    瓦片数据库名称
+     * @param version    瓦片集版本，与当前版本一致时响应标记为immutable并长期缓存
+     * @param z          地图缩放层级
+     * @param x          地图的x轴瓦片坐标
+     * @param y          地图的y轴瓦片坐标
+     * @param webRequest 当前请求，用于校验客户端缓存
      * @return jpg格式的瓦片数据
      */
-    @GetMapping(value = "/{tileset}/{z}/{x}/{y}.jpg", produces = MediaType.IMAGE_JPEG_VALUE)
+    @GetMapping(value = {"/{tileset}/{z}/{x}/{y}.jpg", "/{tileset}/{version}/{z}/{x}/{y}.jpg"}, produces = MediaType.IMAGE_JPEG_VALUE)
     @ResponseBody
     @Operation(summary = "获取JPG格式瓦片数据", description = "获取JPG格式瓦片数据。")
     public ResponseEntity<ByteArrayResource> loadJpgTile(
             @Parameter(description = "待查询的瓦片数据源或文件夹名字，例如：Chengdu.mbtiles") @PathVariable("tileset") String tileset,
+            @Parameter(description = "瓦片集版本，与当前版本一致时响应标记为immutable并长期缓存") @PathVariable(value = "version", required = false) String version,
             @Parameter(description = "待查询的底图瓦片层级zoom_level") @PathVariable("z") int z,
             @Parameter(description = "待查询的底图瓦片坐标x") @PathVariable("x") int x,
-            @Parameter(description = "待查询的底图瓦片坐标y") @PathVariable("y") int y) {
+            @Parameter(description = "待查询的底图瓦片坐标y") @PathVariable("y") int y,
+            WebRequest webRequest) {
         if (SystemUtils.checkTilesetName(tileset)) {
             return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
         }
+        if (virtualTilesetService.isVirtual(tileset)) {
+            Optional<String> sourceOpt = virtualTilesetService.route(tileset, z, x, y);
+            return sourceOpt.isPresent() ? loadJpgTile(sourceOpt.get(), null, z, x, y, webRequest) : new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        }
+        if (!tileCoverageService.mayContain(tileset, z, x, y)) {
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        }
+        Optional<HttpCacheService.CacheValidator> validator = httpCacheService.tileValidator(tileset, version, z, x, y, "");
+        Optional<ResponseEntity<ByteArrayResource>> notModified = httpCacheService.checkNotModified(webRequest, validator);
+        if (notModified.isPresent()) {
+            return notModified.get();
+        }
 
         if (tileset.endsWith(AppConfig.FILE_EXTENSION_NAME_TPK)) {
             String lowerCase = mapServerDataCenter.getTpkMetaData(tileset).getFormat().toLowerCase(Locale.getDefault());
             if (!lowerCase.endsWith("jpg") && !lowerCase.endsWith("jpeg")) {
                 return new ResponseEntity<>(HttpStatus.NOT_FOUND);
             }
-            return getByteArrayResourceResponseEntityInTpk(tileset, z, x, y);
+            return getByteArrayResourceResponseEntityInTpk(tileset, z, x, y, MediaType.IMAGE_JPEG, validator);
         } else {
             Optional<byte[]> OptionalResource = getByteArrayResourceResponseEntity(tileset, z, x, y);
             if (OptionalResource.isPresent()) {
                 byte[] bytes = OptionalResource.get();
-                return wrapResponse(bytes, MediaType.IMAGE_JPEG);
+                return wrapResponse(bytes, MediaType.IMAGE_JPEG, validator);
             }
             return new ResponseEntity<>(HttpStatus.NOT_FOUND);
         }
@@ -142,30 +237,44 @@ public class MapServerTilesetsRestController {
     /**
      * 加载图片瓦片数据
      *
-     * @param tileset 瓦片数据库名称
-     * @param z       地图缩放层级
-     * @param x       地图的x轴瓦片坐标
-     * @param y       地图的y轴瓦片坐标
+     * @param tileset    瓦片数据库名称
+     * @param version    瓦片集版本，与当前版本一致时响应标记为immutable并长期缓存
+     * @param z          地图缩放层级
+     * @param x          地图的x轴瓦片坐标
+     * @param y          地图的y轴瓦片坐标
+     * @param webRequest 当前请求，用于校验客户端缓存
      * @return png格式的瓦片数据
      */
-    @GetMapping(value = "/{tileset}/{z}/{x}/{y}.webp", produces = AppConfig.IMAGE_WEBP_VALUE)
+    @GetMapping(value = {"/{tileset}/{z}/{x}/{y}.webp", "/{tileset}/{version}/{z}/{x}/{y}.webp"}, produces = AppConfig.IMAGE_WEBP_VALUE)
     @ResponseBody
     @Operation(summary = "获取WEBP格式瓦片数据", description = "获取WEBP格式瓦片数据。")
     public ResponseEntity<ByteArrayResource> loadWebpTile(
             @Parameter(description = "待查询的瓦片数据源或文件夹名字，例如：Chengdu.mbtiles") @PathVariable("tileset") String tileset,
+            @Parameter(description = "瓦片集版本，与当前版本一致时响应标记为immutable并长期缓存") @PathVariable(value = "version", required = false) String version,
             @Parameter(description = "待查询的底图瓦片层级zoom_level") @PathVariable("z") int z,
             @Parameter(description = "待查询的底图瓦片坐标x") @PathVariable("x") int x,
-            @Parameter(description = "待查询的底图瓦片坐标y") @PathVariable("y") int y) {
+            @Parameter(description = "待查询的底图瓦片坐标y") @PathVariable("y") int y,
+            WebRequest webRequest) {
         if (SystemUtils.checkTilesetName(tileset)) {
             return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
         }
+        if (virtualTilesetService.isVirtual(tileset)) {
+            Optional<String> sourceOpt = virtualTilesetService.route(tileset, z, x, y);
+            return sourceOpt.isPresent() ? loadWebpTile(sourceOpt.get(), null, z, x, y, webRequest) : new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        }
+        if (!tileCoverageService.mayContain(tileset, z, x, y)) {
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        }
+        Optional<HttpCacheService.CacheValidator> validator = httpCacheService.tileValidator(tileset, version, z, x, y, "");
+        Optional<ResponseEntity<ByteArrayResource>> notModified = httpCacheService.checkNotModified(webRequest, validator);
+        if (notModified.isPresent()) {
+            return notModified.get();
+        }
 
-        if (tileset.endsWith(AppConfig.FILE_EXTENSION_NAME_MBTILES)) {
-            Optional<byte[]> OptionalResource = getByteArrayResourceResponseEntity(tileset, z, x, y);
-            if (OptionalResource.isPresent()) {
-                byte[] bytes = OptionalResource.get();
-                return wrapResponse(bytes, AppConfig.IMAGE_WEBP);
-            }
+        Optional<byte[]> OptionalResource = getByteArrayResourceResponseEntity(tileset, z, x, y);
+        if (OptionalResource.isPresent()) {
+            byte[] bytes = OptionalResource.get();
+            return wrapResponse(bytes, AppConfig.IMAGE_WEBP, validator);
         }
         return new ResponseEntity<>(HttpStatus.NOT_FOUND);
     }
@@ -174,34 +283,50 @@ public class MapServerTilesetsRestController {
     /**
      * 加载图片瓦片数据
      *
-     * @param tileset 瓦片数据库名称
-     * @param z       地图缩放层级
-     * @param x       地图的x轴瓦片坐标
-     * @param y       地图的y轴瓦片坐标
+     * @param tileset    瓦片数据库名称
+     * @param version    瓦片集版本，与当前版本一致时响应标记为immutable并长期缓存
+     * @param z          地图缩放层级
+     * @param x          地图的x轴瓦片坐标
+     * @param y          地图的y轴瓦片坐标
+     * @param webRequest 当前请求，用于校验客户端缓存
      * @return png格式的瓦片数据
      */
-    @GetMapping(value = "/{tileset}/{z}/{x}/{y}.png", produces = MediaType.IMAGE_PNG_VALUE)
+    @GetMapping(value = {"/{tileset}/{z}/{x}/{y}.png", "/{tileset}/{version}/{z}/{x}/{y}.png"}, produces = MediaType.IMAGE_PNG_VALUE)
     @ResponseBody
     @Operation(summary = "获取PNG格式瓦片数据", description = "获取PNG格式瓦片数据。")
     public ResponseEntity<ByteArrayResource> loadPngTile(
             @Parameter(description = "待查询的瓦片数据源或文件夹名字，例如：Chengdu.mbtiles") @PathVariable("tileset") String tileset,
+            @Parameter(description = "瓦片集版本，与当前版本一致时响应标记为immutable并长期缓存") @PathVariable(value = "version", required = false) String version,
             @Parameter(description = "待查询的底图瓦片层级zoom_level") @PathVariable("z") int z,
             @Parameter(description = "待查询的底图瓦片坐标x") @PathVariable("x") int x,
-            @Parameter(description = "待查询的底图瓦片坐标y") @PathVariable("y") int y) {
+            @Parameter(description = "待查询的底图瓦片坐标y") @PathVariable("y") int y,
+            WebRequest webRequest) {
         if (SystemUtils.checkTilesetName(tileset)) {
             return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
         }
+        if (virtualTilesetService.isVirtual(tileset)) {
+            Optional<String> sourceOpt = virtualTilesetService.route(tileset, z, x, y);
+            return sourceOpt.isPresent() ? loadPngTile(sourceOpt.get(), null, z, x, y, webRequest) : new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        }
+        if (!tileCoverageService.mayContain(tileset, z, x, y)) {
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        }
+        Optional<HttpCacheService.CacheValidator> validator = httpCacheService.tileValidator(tileset, version, z, x, y, "");
+        Optional<ResponseEntity<ByteArrayResource>> notModified = httpCacheService.checkNotModified(webRequest, validator);
+        if (notModified.isPresent()) {
+            return notModified.get();
+        }
 
         if (tileset.endsWith(AppConfig.FILE_EXTENSION_NAME_TPK)) {
             if (!mapServerDataCenter.getTpkMetaData(tileset).getFormat().toLowerCase(Locale.getDefault()).endsWith("png")) {
                 return new ResponseEntity<>(HttpStatus.NOT_FOUND);
             }
-            return getByteArrayResourceResponseEntityInTpk(tileset, z, x, y);
+            return getByteArrayResourceResponseEntityInTpk(tileset, z, x, y, MediaType.IMAGE_PNG, validator);
         } else {
             Optional<byte[]> OptionalResource = getByteArrayResourceResponseEntity(tileset, z, x, y);
             if (OptionalResource.isPresent()) {
                 byte[] bytes = OptionalResource.get();
-                return wrapResponse(bytes, MediaType.IMAGE_PNG);
+                return wrapResponse(bytes, MediaType.IMAGE_PNG, validator);
             }
             return new ResponseEntity<>(HttpStatus.NOT_FOUND);
         }
@@ -211,63 +336,278 @@ public class MapServerTilesetsRestController {
     /**
      * 加载pbf格式的瓦片数据
      *
-     * @param tileset 瓦片数据库名称
-     * @param z       地图缩放层级
-     * @param x       地图的x轴瓦片坐标
-     * @param y       地图的y轴瓦片坐标
+     * @param tileset    瓦片数据库名称
+     * @param version    瓦片集版本，与当前版本一致时响应标记为immutable并长期缓存
+     * @param z          地图缩放层级
+     * @param x          地图的x轴瓦片坐标
+     * @param y          地图的y轴瓦片坐标
+     * @param style      按样式文件裁剪瓦片，只保留样式用到的图层和属性
+     * @param layers     只保留的图层，多个用英文逗号分割
+     * @param fields     只保留的属性，多个用英文逗号分割
+     * @param webRequest 当前请求，用于校验客户端缓存
      * @return pbf格式的瓦片数据
      */
-    @GetMapping(value = "/{tileset}/{z}/{x}/{y}.pbf", produces = "application/x-protobuf")
+    @GetMapping(value = {"/{tileset}/{z}/{x}/{y}.pbf", "/{tileset}/{version}/{z}/{x}/{y}.pbf"}, produces = "application/x-protobuf")
     @ResponseBody
-    @Operation(summary = "获取PBF格式瓦片数据", description = "获取PBF格式瓦片数据。")
+    @Operation(summary = "获取PBF格式瓦片数据", description = "获取PBF格式瓦片数据。指定style或layers、fields时，删除不需要的图层和属性后返回。")
     public ResponseEntity<ByteArrayResource> loadPbfTile(
             @Parameter(description = "待查询的瓦片数据源或文件夹名字，例如：Chengdu.mbtiles") @PathVariable("tileset") String tileset,
+            @Parameter(description = "瓦片集版本，与当前版本一致时响应标记为immutable并长期缓存") @PathVariable(value = "version", required = false) String version,
             @Parameter(description = "待查询的底图瓦片层级zoom_level") @PathVariable("z") int z,
             @Parameter(description = "待查询的底图瓦片坐标x") @PathVariable("x") int x,
-            @Parameter(description = "待查询的底图瓦片坐标y") @PathVariable("y") int y) {
+            @Parameter(description = "待查询的底图瓦片坐标y") @PathVariable("y") int y,
+            @Parameter(description = "裁剪瓦片使用的样式文件名称，例如：bright.json") @RequestParam(value = "style", required = false) String style,
+            @Parameter(description = "只保留的图层，多个用英文逗号分割，例如：water,road") @RequestParam(value = "layers", required = false) String layers,
+            @Parameter(description = "只保留的属性，多个用英文逗号分割，例如：class,name") @RequestParam(value = "fields", required = false) String fields,
+            @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding,
+            WebRequest webRequest) {
         if (SystemUtils.checkTilesetName(tileset)) {
             return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
         }
+        if (virtualTilesetService.isVirtual(tileset)) {
+            Optional<String> sourceOpt = virtualTilesetService.route(tileset, z, x, y);
+            if (sourceOpt.isEmpty()) {
+                return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+            }
+            return loadPbfTile(sourceOpt.get(), null, z, x, y, style, layers, fields, acceptEncoding, webRequest);
+        }
+        boolean acceptsGzip = IOUtils.acceptsGzip(acceptEncoding);
+        Optional<Integer> maxzoomOpt = getVectorMaxZoom(tileset);
+        boolean overzoom = maxzoomOpt.isPresent() && z > maxzoomOpt.get();
+        if (!overzoom && !tileCoverageService.mayContain(tileset, z, x, y)) {
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        }
 
-        if (tileset.endsWith(AppConfig.FILE_EXTENSION_NAME_MBTILES)) {
-            Optional<byte[]> optionalRes = getBytesFromSqlite(tileset, z, x, y);
-            if (optionalRes.isPresent()) {
-                byte[] bytes = optionalRes.get();
-                return wrapResponse(bytes, AppConfig.APPLICATION_X_PROTOBUF_VALUE);
+        Optional<TilePruneProfile> profileOpt = Optional.empty();
+        String variant = acceptsGzip ? TileCacheService.ENCODING_GZIP : TileCacheService.ENCODING_IDENTITY;
+        if (style != null || layers != null || fields != null) {
+            if (style != null) {
+                if (SystemUtils.checkTilesetName(style)) {
+                    return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+                }
+                profileOpt = tilePruneService.getStyleProfile(style);
+                //样式文件修改后裁剪结果可能不同
+                variant += "|" + style + "@" + tilePruneService.getStyleModified(style).orElse(0L);
             } else {
-                return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+                profileOpt = Optional.of(TilePruneProfile.fromParams(layers, fields));
+                variant += "|" + profileOpt.get().getName();
+            }
+            if (profileOpt.isEmpty()) {
+                return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+            }
+        }
+        //客户端接受GZIP时未压缩的数据由服务器压缩，200和304都使用弱ETag
+        Optional<HttpCacheService.CacheValidator> validator = httpCacheService.tileValidator(tileset, version, z, x, y, variant)
+                .map(v -> acceptsGzip ? v.asWeak() : v);
+        Optional<ResponseEntity<ByteArrayResource>> notModified = httpCacheService.checkNotModified(webRequest, validator);
+        if (notModified.isPresent()) {
+            return notModified.get();
+        }
+
+        if (profileOpt.isPresent()) {
+            Optional<byte[]> optionalRes = tilePruneService.getTile(tileset, profileOpt.get(), z, x, y, acceptsGzip,
+                    () -> overzoom ? getOverzoomBytes(tileset, maxzoomOpt.get(), z, x, y) : getPbfBytes(tileset, z, x, y));
+            if (optionalRes.isPresent()) {
+                return wrapPbfResponse(optionalRes.get(), acceptsGzip, validator);
+            }
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        }
+
+        if (overzoom) {
+            Optional<byte[]> optionalRes = getOverzoomBytes(tileset, maxzoomOpt.get(), z, x, y);
+            if (optionalRes.isPresent()) {
+                return wrapPbfResponse(optionalRes.get(), acceptsGzip, validator);
+            }
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        }
+
+        if (tileset.endsWith(AppConfig.FILE_EXTENSION_NAME_MBTILES)) {
+            TilesFileModel tilesFileModel = mapServerDataCenter.getTilesFileModel(tileset);
+            if (tilesFileModel != null) {
+                boolean decompress = tilesFileModel.isCompressed() && !acceptsGzip;
+                String encoding = tilesFileModel.isCompressed() && acceptsGzip ? TileCacheService.ENCODING_GZIP : TileCacheService.ENCODING_IDENTITY;
+                Optional<byte[]> optionalRes = tileCacheService.get(tileset, z, x, y, encoding,
+                        () -> mapServerDataCenter.withTilesFileModel(tileset, model -> model.getTileReader().readTile(z, x, y))
+                                .map(data -> decompress ? IOUtils.decompress(data) : data));
+                if (optionalRes.isPresent()) {
+                    return wrapPbfResponse(optionalRes.get(), acceptsGzip, validator);
+                }
             }
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        } else if (tileset.endsWith(AppConfig.FILE_EXTENSION_NAME_PMTILES)) {
+            Optional<PmtilesReader> readerOpt = mapServerDataCenter.getPmtilesReader(tileset);
+            if (readerOpt.isPresent()) {
+                PmtilesReader reader = readerOpt.get();
+                boolean decompress = reader.isCompressed() && !acceptsGzip;
+                String encoding = reader.isCompressed() && acceptsGzip ? TileCacheService.ENCODING_GZIP : TileCacheService.ENCODING_IDENTITY;
+                Optional<byte[]> optionalRes = tileCacheService.get(tileset, z, x, y, encoding,
+                        () -> mapServerDataCenter.withPmtilesReader(tileset, pmtiles -> pmtiles.readTile(z, x, y))
+                                .map(data -> decompress ? IOUtils.decompress(data) : data));
+                if (optionalRes.isPresent()) {
+                    return wrapPbfResponse(optionalRes.get(), acceptsGzip, validator);
+                }
+            }
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
         } else {
             if (tileset.indexOf(".") > 0) {
                 return new ResponseEntity<>(HttpStatus.NOT_FOUND);
             }
 
-            String sb = appConfig.getDataPath() + File.separator + "tilesets" + File.separator + tileset + File.separator + z + File.separator + x + File.separator + y + AppConfig.FILE_EXTENSION_NAME_PBF;
-            File pbfFile = new File(sb);
-            if (pbfFile.exists()) {
-                try {
-                    byte[] buffer = FileCopyUtils.copyToByteArray(pbfFile);
-                    return wrapResponse(IOUtils.decompress(buffer), AppConfig.APPLICATION_X_PROTOBUF_VALUE);
-                } catch (IOException e) {
-                    return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+            String encoding = acceptsGzip ? TileCacheService.ENCODING_GZIP : TileCacheService.ENCODING_IDENTITY;
+            Optional<byte[]> optionalRes = tileCacheService.get(tileset, z, x, y, encoding, () -> {
+                String sb = appConfig.getDataPath() + File.separator + "tilesets" + File.separator + tileset + File.separator + z + File.separator + x + File.separator + y + AppConfig.FILE_EXTENSION_NAME_PBF;
+                File pbfFile = new File(sb);
+                if (pbfFile.exists()) {
+                    try (BackendLimiter.Permit ignored = MapServerDataCenter.acquireReadPermit(tileset)) {
+                        byte[] buffer = FileCopyUtils.copyToByteArray(pbfFile);
+                        return Optional.of(!acceptsGzip && IOUtils.isGzipped(buffer) ? IOUtils.decompress(buffer) : buffer);
+                    } catch (IOException e) {
+                        logger.error("Load pbf file failed: {}", pbfFile.getAbsolutePath());
+                    }
                 }
+                return Optional.empty();
+            });
+            if (optionalRes.isPresent()) {
+                return wrapPbfResponse(optionalRes.get(), acceptsGzip, validator);
             }
             return new ResponseEntity<>(HttpStatus.NOT_FOUND);
         }
     }
 
-    private ResponseEntity<ByteArrayResource> getByteArrayResourceResponseEntityInTpk(String tileset, int z, int x, int y) {
+    /**
+     * 叠加多个矢量瓦片集同一位置的瓦片
+     *
+     * @param tilesets       参与叠加的瓦片集
+     * @param z              地图缩放层级
+     * @param x              地图的x轴瓦片坐标
+     * @param y              地图的y轴瓦片坐标
+     * @param acceptEncoding 客户端接受的编码
+     * @param webRequest     当前请求，用于校验客户端缓存
+     * @return 合并图层后的pbf瓦片
+     */
+    @GetMapping(value = "/composite/{z}/{x}/{y}.pbf", produces = "application/x-protobuf")
+    @ResponseBody
+    @Operation(summary = "获取叠加后的PBF格式瓦片数据", description = "读取多个矢量瓦片集同一位置的瓦片，按顺序合并图层后作为一个瓦片返回。图层重名时，后面瓦片集的图层名追加瓦片集名称。")
+    public ResponseEntity<ByteArrayResource> loadCompositeTile(
+            @Parameter(description = "参与叠加的瓦片集，按叠加顺序用英文逗号分割，例如：base.mbtiles,poi.mbtiles,transit.mbtiles") @RequestParam("tilesets") String tilesets,
+            @Parameter(description = "待查询的底图瓦片层级zoom_level") @PathVariable("z") int z,
+            @Parameter(description = "待查询的底图瓦片坐标x") @PathVariable("x") int x,
+            @Parameter(description = "待查询的底图瓦片坐标y") @PathVariable("y") int y,
+            @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding,
+            WebRequest webRequest) {
+        List<String> tilesetList = Arrays.stream(tilesets.split(",")).map(String::trim).filter(item -> !item.isEmpty()).distinct().toList();
+        if (tilesetList.isEmpty() || tilesetList.size() > MAX_COMPOSITE_TILESETS || tilesetList.stream().anyMatch(SystemUtils::checkTilesetName)) {
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        }
+        boolean acceptsGzip = IOUtils.acceptsGzip(acceptEncoding);
+        Optional<HttpCacheService.CacheValidator> validator = httpCacheService.compositeValidator(tilesetList, z, x, y,
+                acceptsGzip ? TileCacheService.ENCODING_GZIP : TileCacheService.ENCODING_IDENTITY).map(v -> acceptsGzip ? v.asWeak() : v);
+        Optional<ResponseEntity<ByteArrayResource>> notModified = httpCacheService.checkNotModified(webRequest, validator);
+        if (notModified.isPresent()) {
+            return notModified.get();
+        }
+
+        Optional<byte[]> optionalRes = compositeTileService.getTile(tilesetList, z, x, y, acceptsGzip, tileset -> getVectorTileBytes(tileset, z, x, y));
+        if (optionalRes.isPresent()) {
+            return wrapPbfResponse(optionalRes.get(), acceptsGzip, validator);
+        }
+        return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+    }
+
+    /**
+     * 读取未压缩的矢量瓦片，支持虚拟瓦片集和超出最大层级的超级缩放
+     */
+    private Optional<byte[]> getVectorTileBytes(String tileset, int z, int x, int y) {
+        if (virtualTilesetService.isVirtual(tileset)) {
+            return virtualTilesetService.route(tileset, z, x, y).flatMap(source -> getVectorTileBytes(source, z, x, y));
+        }
+        Optional<Integer> maxzoomOpt = getVectorMaxZoom(tileset);
+        if (maxzoomOpt.isPresent() && z > maxzoomOpt.get()) {
+            return getOverzoomBytes(tileset, maxzoomOpt.get(), z, x, y);
+        }
+        return tileCoverageService.mayContain(tileset, z, x, y) ? getPbfBytes(tileset, z, x, y) : Optional.empty();
+    }
+
+    private Optional<byte[]> getOverzoomBytes(String tileset, int maxzoom, int z, int x, int y) {
+        return overzoomService.getTile(tileset, maxzoom, z, x, y,
+                (az, ax, ay) -> tileCoverageService.mayContain(tileset, az, ax, ay) ? getPbfBytes(tileset, az, ax, ay) : Optional.empty());
+    }
+
+    /**
+     * 获取矢量瓦片集的最大层级，用于判断是否需要超级缩放
+     *
+     * @param tileset 瓦片集名称
+     * @return 最大层级，非矢量瓦片集或元数据中没有maxzoom时为空
+     */
+    private Optional<Integer> getVectorMaxZoom(String tileset) {
+        //瓦片目录没有元数据，取覆盖范围中的最大层级，覆盖范围未启用或尚未构建完成时不做超级缩放
+        if (!tileset.contains(".")) {
+            return tileCoverageService.getCoverage(tileset).map(TileCoverage::getZooms).filter(zooms -> !zooms.isEmpty()).map(List::getLast);
+        }
+        Map<String, String> metaDataMap = null;
+        if (tileset.endsWith(AppConfig.FILE_EXTENSION_NAME_MBTILES)) {
+            TilesFileModel tilesFileModel = mapServerDataCenter.getTilesFileModel(tileset);
+            metaDataMap = tilesFileModel == null ? null : tilesFileModel.getMetaDataMap();
+        } else if (tileset.endsWith(AppConfig.FILE_EXTENSION_NAME_PMTILES)) {
+            metaDataMap = mapServerDataCenter.getPmtilesReader(tileset).map(PmtilesReader::getMetaDataMap).orElse(null);
+        }
+        if (metaDataMap == null || !("pbf".equals(metaDataMap.get("format")) || "mvt".equals(metaDataMap.get("format")))) {
+            return Optional.empty();
+        }
+        try {
+            return Optional.of(Integer.parseInt(metaDataMap.get("maxzoom")));
+        } catch (NumberFormatException e) {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * 封装pbf瓦片响应。存储的数据已经是GZIP压缩且客户端接受GZIP时直接透传，避免重复的解压与压缩；
+     * 客户端不接受GZIP的数据在读取时已经解压。
+     *
+     * @param data        待返回的瓦片数据
+     * @param acceptsGzip 客户端是否接受GZIP
+     * @param validator   缓存校验信息
+     * @return 瓦片响应
+     */
+    private ResponseEntity<ByteArrayResource> wrapPbfResponse(byte[] data, boolean acceptsGzip, Optional<HttpCacheService.CacheValidator> validator) {
+        boolean gzipped = IOUtils.isGzipped(data);
+        HttpHeaders headers = validator.map(httpCacheService::headers).orElseGet(HttpHeaders::new);
+        headers.setContentType(AppConfig.APPLICATION_X_PROTOBUF_VALUE);
+        headers.add(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        if (acceptsGzip && gzipped) {
+            headers.set(HttpHeaders.CONTENT_ENCODING, "gzip");
+        }
+        return ResponseEntity.ok().headers(headers).contentLength(data.length).body(new ByteArrayResource(data));
+    }
+
+    private ResponseEntity<ByteArrayResource> getByteArrayResourceResponseEntityInTpk(String tileset, int z, int x, int y, MediaType mediaType,
+                                                                                      Optional<HttpCacheService.CacheValidator> validator) {
+        Optional<byte[]> optionalRes = tileCacheService.get(tileset, z, x, y, TileCacheService.ENCODING_IDENTITY, () -> getBytesFromTpk(tileset, z, x, y));
+        if (optionalRes.isPresent()) {
+            return wrapResponse(optionalRes.get(), mediaType, validator);
+        }
+        return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+    }
+
+    private Optional<byte[]> getBytesFromTpk(String tileset, int z, int x, int y) {
+        if (mapServerDataCenter.getTpkReader(tileset).isPresent()) {
+            return mapServerDataCenter.withTpkReader(tileset, reader -> reader.readTile(z, x, y));
+        }
+
+        //bundle被压缩存放时只能通过GeoTools按层级加载
         String format = mapServerDataCenter.getTpkMetaData(tileset).getFormat();
-        TPKFile tpkData = mapServerDataCenter.getTpkData(tileset);
-        List<TPKTile> tiles = tpkData.getTiles(z, tpkData.getMaxColumn(z), 0, 0, tpkData.getMaxRow(z), format);
-        if (tiles != null) {
-            for (TPKTile tile : tiles) {
-                if (tile.row == y && tile.col == x) {
-                    return wrapResponse(tile.tileData, AppConfig.APPLICATION_X_PROTOBUF_VALUE);
+        return mapServerDataCenter.withTpkData(tileset, tpkData -> {
+            List<TPKTile> tiles = tpkData.getTiles(z, tpkData.getMaxColumn(z), 0, 0, tpkData.getMaxRow(z), format);
+            if (tiles != null) {
+                for (TPKTile tile : tiles) {
+                    if (tile.row == y && tile.col == x) {
+                        return Optional.of(tile.tileData);
+                    }
                 }
             }
-        }
-        return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+            return Optional.empty();
+        });
     }
 
 
@@ -310,13 +650,16 @@ public class MapServerTilesetsRestController {
     private Optional<byte[]> getPbfBytes(String tileset, int z, int x, int y) {
         if (tileset.endsWith(AppConfig.FILE_EXTENSION_NAME_MBTILES)) {
             return getBytesFromSqlite(tileset, z, x, y);
+        } else if (tileset.endsWith(AppConfig.FILE_EXTENSION_NAME_PMTILES)) {
+            return getBytesFromPmtiles(tileset, z, x, y);
         } else {
             if (!tileset.contains(".")) {
                 String sb = appConfig.getDataPath() + File.separator + "tilesets" + File.separator + tileset + File.separator + z + File.separator + x + File.separator + y + AppConfig.FILE_EXTENSION_NAME_PBF;
                 File pbfFile = new File(sb);
                 if (pbfFile.exists()) {
-                    try {
-                        return Optional.of(FileCopyUtils.copyToByteArray(pbfFile));
+                    try (BackendLimiter.Permit ignored = MapServerDataCenter.acquireReadPermit(tileset)) {
+                        byte[] buffer = FileCopyUtils.copyToByteArray(pbfFile);
+                        return Optional.of(IOUtils.isGzipped(buffer) ? IOUtils.decompress(buffer) : buffer);
                     } catch (IOException e) {
                         logger.error("Load pbf file failed!");
                     }
@@ -341,18 +684,29 @@ public class MapServerTilesetsRestController {
         if (SystemUtils.checkTilesetName(tileset)) {
             return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
         }
+        Optional<Map<String, String>> virtualMetaData = virtualTilesetService.getMetaData(tileset);
+        if (virtualMetaData.isPresent()) {
+            return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(ResponseMapUtil.ok(virtualMetaData.get()));
+        }
 
         if (tileset.endsWith(AppConfig.FILE_EXTENSION_NAME_MBTILES)) {
-            Optional<JdbcTemplate> jdbcTemplateOpt = mapServerDataCenter.getDataSource(tileset);
-            if (jdbcTemplateOpt.isPresent()) {
-                JdbcTemplate jdbcTemplate = jdbcTemplateOpt.get();
-                try {
-                    List<Map<String, Object>> maps = jdbcTemplate.queryForList("SELECT * FROM metadata");
-                    return ResponseEntity.ok().body(ResponseMapUtil.ok(wrapMap(maps)));
-                } catch (EmptyResultDataAccessException e) {
-                    return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(ResponseMapUtil.notFound());
+            try {
+                Optional<List<Map<String, Object>>> mapsOpt = mapServerDataCenter.withTilesFileModel(tileset,
+                        model -> Optional.of(model.getJdbcTemplate().queryForList("SELECT * FROM metadata")));
+                if (mapsOpt.isPresent()) {
+                    return ResponseEntity.ok().body(ResponseMapUtil.ok(wrapMap(mapsOpt.get())));
                 }
+            } catch (EmptyResultDataAccessException e) {
+                return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(ResponseMapUtil.notFound());
+            }
+        }
+
+        if (tileset.endsWith(AppConfig.FILE_EXTENSION_NAME_PMTILES)) {
+            Optional<PmtilesReader> readerOpt = mapServerDataCenter.getPmtilesReader(tileset);
+            if (readerOpt.isPresent()) {
+                return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(ResponseMapUtil.ok(readerOpt.get().getMetaDataMap()));
             }
+            return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(ResponseMapUtil.notFound());
         }
 
         if (tileset.endsWith(AppConfig.FILE_EXTENSION_NAME_TPK)) {
@@ -373,6 +727,30 @@ public class MapServerTilesetsRestController {
         return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(ResponseMapUtil.notFound());
     }
 
+    /**
+     * 获取瓦片集版本，用于拼接可长期缓存的版本化瓦片路径
+     *
+     * @param tileset 瓦片集文件名
+     * @return 瓦片集版本与版本化的瓦片路径模板
+     */
+    @GetMapping(value = "/{tileset}/version", produces = MediaType.APPLICATION_JSON_VALUE)
+    @ResponseBody
+    @Operation(summary = "获取瓦片集版本", description = "瓦片集版本由文件内容计算，数据文件替换后随之变化。请求路径中带有当前版本的瓦片响应标记为immutable。")
+    public ResponseEntity<Map<String, Object>> version(
+            @Parameter(description = "待查询的瓦片数据源，例如：Chengdu.mbtiles") @PathVariable("tileset") String tileset) {
+        if (SystemUtils.checkTilesetName(tileset)) {
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        }
+        Optional<String> versionOpt = httpCacheService.getTilesetVersion(tileset);
+        if (versionOpt.isEmpty()) {
+            return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(ResponseMapUtil.notFound());
+        }
+        Map<String, Object> result = new HashMap<>();
+        result.put("version", versionOpt.get());
+        result.put("tiles", "/api/tilesets/" + tileset + "/" + versionOpt.get() + "/{z}/{x}/{y}");
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(ResponseMapUtil.ok(result));
+    }
+
     private Map<String, Object> wrapMap(List<Map<String, Object>> maps) {
         Map<String, Object> result = new HashMap<>();
         for (Map<String, Object> map : maps) {
@@ -382,6 +760,352 @@ public class MapServerTilesetsRestController {
     }
 
 
+    /**
+     * 获取瓦片集在指定层级的覆盖范围
+     *
+     * @param tileset 瓦片集名称
+     * @param z       瓦片层级
+     * @return GeoJSON格式的覆盖范围
+     */
+    @GetMapping(value = "/{tileset}/coverage", produces = MediaType.APPLICATION_JSON_VALUE)
+    @ResponseBody
+    @Operation(summary = "获取瓦片集覆盖范围", description = "以GeoJSON FeatureCollection返回瓦片集在指定层级实际存在瓦片的区域，相邻瓦片合并为矩形。")
+    public ResponseEntity<Map<String, Object>> coverage(
+            @Parameter(description = "待查询的瓦片数据源或文件夹名字，例如：Chengdu.mbtiles") @PathVariable("tileset") String tileset,
+            @Parameter(description = "待查询的瓦片层级") @RequestParam("z") int z) {
+        if (SystemUtils.checkTilesetName(tileset)) {
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        }
+        Optional<TileCoverage> coverageOpt = tileCoverageService.getCoverage(tileset);
+        if (coverageOpt.isEmpty()) {
+            return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(ResponseMapUtil.notFound("Coverage is not ready yet!"));
+        }
+        TileCoverage coverage = coverageOpt.get();
+        Optional<List<int[]>> rectanglesOpt = coverage.toRectangles(z, MAX_COVERAGE_TILES);
+        if (rectanglesOpt.isEmpty()) {
+            String msg = "Too many tiles at zoom " + z + ", please use a lower zoom level!";
+            return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(ResponseMapUtil.nok(ResponseMapUtil.STATUS_PARAM_CONFIG_ERROR_API, msg));
+        }
+
+        //API的y为TMS行号，转换为左上角原点后计算经纬度
+        int n = 1 << z;
+        List<List<List<double[]>>> polygons = new ArrayList<>();
+        for (int[] rectangle : rectanglesOpt.get()) {
+            double[] northWest = GeometryUtils.mercatorTileToLatLon(rectangle[0], n - 1 - rectangle[3], z);
+            double[] southEast = GeometryUtils.mercatorTileToLatLon(rectangle[2] + 1, n - rectangle[1], z);
+            List<double[]> ring = List.of(new double[]{northWest[1], southEast[0]}, new double[]{southEast[1], southEast[0]},
+                    new double[]{southEast[1], northWest[0]}, new double[]{northWest[1], northWest[0]}, new double[]{northWest[1], southEast[0]});
+            polygons.add(List.of(ring));
+        }
+
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("zoom", z);
+        properties.put("tiles", coverage.getTileCount(z));
+        properties.put("runs", coverage.getRunCount(z));
+        properties.put("zooms", coverage.getZooms());
+        Map<String, Object> geometry = new HashMap<>();
+        geometry.put("type", "MultiPolygon");
+        geometry.put("coordinates", polygons);
+        Map<String, Object> feature = new HashMap<>();
+        feature.put("type", "Feature");
+        feature.put("properties", properties);
+        feature.put("geometry", geometry);
+        Map<String, Object> featureCollection = new HashMap<>();
+        featureCollection.put("type", "FeatureCollection");
+        featureCollection.put("features", List.of(feature));
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(ResponseMapUtil.ok(featureCollection));
+    }
+
+
+    /**
+     * 批量获取瓦片，供客户端预取整个视口使用。<br>
+     * 响应为连续的二进制帧，每帧依次为：z(int32)、x(int32)、y(int32, TMS)、length(int32)、瓦片数据，整数均为大端序，不存在的瓦片不返回。
+     * 瓦片数据的编码由响应头X-Tile-Encoding给出，客户端接受GZIP且数据以GZIP存储时原样返回，否则返回解压后的数据。
+     * mbtiles每个层级只执行一次范围查询。瓦片在返回响应前全部读取完毕，数据源过载时返回503，不会输出被截断的帧流。
+     *
+     * @param tileset        瓦片集名称
+     * @param batch          待获取的瓦片列表或经纬度范围
+     * @param acceptEncoding 客户端接受的编码
+     * @return 二进制帧流
+     */
+    @PostMapping(value = "/{tileset}/batch", produces = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    @ResponseBody
+    @Operation(summary = "批量获取瓦片数据", description = "按瓦片列表或经纬度范围加层级批量获取瓦片，以(z, x, y, length, bytes)二进制帧流返回，单次最多256个瓦片。")
+    public ResponseEntity<StreamingResponseBody> batch(
+            @Parameter(description = "待查询的瓦片数据源或文件夹名字，例如：Chengdu.mbtiles") @PathVariable("tileset") String tileset,
+            @RequestBody TilesOfBatch batch,
+            @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding) {
+        if (SystemUtils.checkTilesetName(tileset)) {
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        }
+        Optional<List<int[]>> tilesOpt = resolveBatchTiles(batch);
+        if (tilesOpt.isEmpty()) {
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        }
+        Optional<String> encodingOpt = getBatchEncoding(tileset, IOUtils.acceptsGzip(acceptEncoding));
+        if (encodingOpt.isEmpty()) {
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        }
+        String encoding = encodingOpt.get();
+
+        Map<Integer, List<int[]>> tilesOfZoom = new TreeMap<>();
+        for (int[] tile : tilesOpt.get()) {
+            if (tileCoverageService.mayContain(tileset, tile[0], tile[1], tile[2])) {
+                tilesOfZoom.computeIfAbsent(tile[0], k -> new ArrayList<>()).add(new int[]{tile[1], tile[2]});
+            }
+        }
+
+        Map<Integer, Map<Long, byte[]>> dataOfZoom = new TreeMap<>();
+        for (Map.Entry<Integer, List<int[]>> entry : tilesOfZoom.entrySet()) {
+            int z = entry.getKey();
+            dataOfZoom.put(z, virtualTilesetService.isVirtual(tileset)
+                    ? readVirtualBatchTiles(tileset, z, entry.getValue(), encoding) : readBatchTiles(tileset, z, entry.getValue(), encoding));
+        }
+
+        StreamingResponseBody body = outputStream -> {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(outputStream));
+            for (Map.Entry<Integer, List<int[]>> entry : tilesOfZoom.entrySet()) {
+                int z = entry.getKey();
+                Map<Long, byte[]> tiles = dataOfZoom.get(z);
+                for (int[] tile : entry.getValue()) {
+                    byte[] data = tiles.get(MbtilesTileReader.tileKey(tile[0], tile[1]));
+                    if (data != null) {
+                        out.writeInt(z);
+                        out.writeInt(tile[0]);
+                        out.writeInt(tile[1]);
+                        out.writeInt(data.length);
+                        out.write(data);
+                    }
+                }
+                out.flush();
+            }
+        };
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_OCTET_STREAM);
+        headers.add(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        headers.set(HEADER_TILE_ENCODING, encoding);
+        return ResponseEntity.ok().headers(headers).body(body);
+    }
+
+    /**
+     * 将批量请求展开为瓦片列表
+     *
+     * @param batch 批量请求
+     * @return 每项为[z, x, y]，y为TMS行号；请求不合法或超过上限时为空
+     */
+    private Optional<List<int[]>> resolveBatchTiles(TilesOfBatch batch) {
+        List<int[]> tiles = new ArrayList<>();
+        if (batch.getTiles() != null) {
+            for (int[] tile : batch.getTiles()) {
+                if (tile == null || tile.length != 3 || tiles.size() >= MAX_BATCH_TILES) {
+                    return Optional.empty();
+                }
+                tiles.add(tile);
+            }
+        }
+        if (batch.getBbox() != null && batch.getMinzoom() != null) {
+            String[] split = batch.getBbox().split(",");
+            if (split.length != 4) {
+                return Optional.empty();
+            }
+            double minLon, minLat, maxLon, maxLat;
+            try {
+                minLon = Double.parseDouble(split[0].trim());
+                minLat = Math.max(Double.parseDouble(split[1].trim()), -MAX_MERCATOR_LATITUDE);
+                maxLon = Double.parseDouble(split[2].trim());
+                maxLat = Math.min(Double.parseDouble(split[3].trim()), MAX_MERCATOR_LATITUDE);
+            } catch (NumberFormatException e) {
+                return Optional.empty();
+            }
+            int minzoom = batch.getMinzoom();
+            int maxzoom = batch.getMaxzoom() == null ? minzoom : batch.getMaxzoom();
+            if (minzoom < 0 || maxzoom > TileCoverage.MAX_ZOOM || minzoom > maxzoom || minLon > maxLon || minLat > maxLat) {
+                return Optional.empty();
+            }
+            for (int z = minzoom; z <= maxzoom; z++) {
+                int n = 1 << z;
+                int[] northWest = GeometryUtils.mercatorLatLonToTile(maxLat, minLon, z);
+                int[] southEast = GeometryUtils.mercatorLatLonToTile(minLat, maxLon, z);
+                int minX = Math.max(0, northWest[0]), maxX = Math.min(n - 1, southEast[0]);
+                int minY = Math.max(0, northWest[1]), maxY = Math.min(n - 1, southEast[1]);
+                if (tiles.size() + (long) (maxX - minX + 1) * (maxY - minY + 1) > MAX_BATCH_TILES) {
+                    return Optional.empty();
+                }
+                for (int x = minX; x <= maxX; x++) {
+                    for (int y = minY; y <= maxY; y++) {
+                        tiles.add(new int[]{z, x, n - 1 - y});
+                    }
+                }
+            }
+        }
+        return tiles.isEmpty() ? Optional.empty() : Optional.of(tiles);
+    }
+
+    /**
+     * 批量响应中瓦片数据的编码，规则与单个pbf瓦片一致；瓦片目录中的文件是否压缩不统一，始终解压后返回
+     *
+     * @param tileset     瓦片集名称
+     * @param acceptsGzip 客户端是否接受GZIP
+     * @return 编码，瓦片集不存在时为空
+     */
+    private Optional<String> getBatchEncoding(String tileset, boolean acceptsGzip) {
+        if (virtualTilesetService.isVirtual(tileset)) {
+            //所有数据源都以GZIP存储时才能原样返回
+            List<String> sources = virtualTilesetService.getSources(tileset);
+            if (sources.isEmpty()) {
+                return Optional.empty();
+            }
+            boolean gzip = sources.stream().allMatch(source -> getBatchEncoding(source, acceptsGzip).filter(TileCacheService.ENCODING_GZIP::equals).isPresent());
+            return Optional.of(gzip ? TileCacheService.ENCODING_GZIP : TileCacheService.ENCODING_IDENTITY);
+        }
+        if (tileset.endsWith(AppConfig.FILE_EXTENSION_NAME_MBTILES)) {
+            TilesFileModel tilesFileModel = mapServerDataCenter.getTilesFileModel(tileset);
+            if (tilesFileModel == null) {
+                return Optional.empty();
+            }
+            return Optional.of(tilesFileModel.isCompressed() && acceptsGzip ? TileCacheService.ENCODING_GZIP : TileCacheService.ENCODING_IDENTITY);
+        } else if (tileset.endsWith(AppConfig.FILE_EXTENSION_NAME_PMTILES)) {
+            return mapServerDataCenter.getPmtilesReader(tileset)
+                    .map(reader -> reader.isCompressed() && acceptsGzip ? TileCacheService.ENCODING_GZIP : TileCacheService.ENCODING_IDENTITY);
+        } else if (tileset.endsWith(AppConfig.FILE_EXTENSION_NAME_TPK)) {
+            return mapServerDataCenter.getTpkData(tileset) == null && mapServerDataCenter.getTpkReader(tileset).isEmpty()
+                    ? Optional.empty() : Optional.of(TileCacheService.ENCODING_IDENTITY);
+        } else if (!tileset.contains(".") && new File(appConfig.getDataPath() + File.separator + "tilesets" + File.separator + tileset).isDirectory()) {
+            return Optional.of(TileCacheService.ENCODING_IDENTITY);
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * 读取虚拟瓦片集同一层级的多个瓦片，按数据源分组后分别批量读取
+     *
+     * @param tileset  虚拟瓦片集名称
+     * @param z        瓦片层级
+     * @param tiles    待读取的瓦片，每项为x, y（TMS）
+     * @param encoding 瓦片数据编码
+     * @return key为 {@link MbtilesTileReader#tileKey(int, int)} 的瓦片数据
+     */
+    private Map<Long, byte[]> readVirtualBatchTiles(String tileset, int z, List<int[]> tiles, String encoding) {
+        Map<String, List<int[]>> tilesOfSource = new HashMap<>();
+        for (int[] tile : tiles) {
+            virtualTilesetService.route(tileset, z, tile[0], tile[1])
+                    .ifPresent(source -> tilesOfSource.computeIfAbsent(source, k -> new ArrayList<>()).add(tile));
+        }
+        Map<Long, byte[]> result = new HashMap<>();
+        tilesOfSource.forEach((source, sourceTiles) -> result.putAll(readBatchTiles(source, z, sourceTiles, encoding)));
+        return result;
+    }
+
+    /**
+     * 读取同一层级的多个瓦片，先查缓存，mbtiles未命中的瓦片合并为一次范围查询后回填缓存
+     *
+     * @param tileset  瓦片集名称
+     * @param z        瓦片层级
+     * @param tiles    待读取的瓦片，每项为x, y（TMS）
+     * @param encoding 瓦片数据编码
+     * @return key为 {@link MbtilesTileReader#tileKey(int, int)} 的瓦片数据
+     */
+    private Map<Long, byte[]> readBatchTiles(String tileset, int z, List<int[]> tiles, String encoding) {
+        Map<Long, byte[]> result = new HashMap<>();
+        List<int[]> misses = new ArrayList<>();
+        for (int[] tile : tiles) {
+            Optional<byte[]> cached = tileCacheService.getIfPresent(tileset, z, tile[0], tile[1], encoding);
+            if (cached.isPresent()) {
+                result.put(MbtilesTileReader.tileKey(tile[0], tile[1]), cached.get());
+            } else {
+                misses.add(tile);
+            }
+        }
+        if (misses.isEmpty()) {
+            return result;
+        }
+
+        if (tileset.endsWith(AppConfig.FILE_EXTENSION_NAME_MBTILES)) {
+            TilesFileModel tilesFileModel = mapServerDataCenter.getTilesFileModel(tileset);
+            if (tilesFileModel == null) {
+                return result;
+            }
+            boolean decompress = tilesFileModel.isCompressed() && TileCacheService.ENCODING_IDENTITY.equals(encoding);
+            mapServerDataCenter.withTilesFileModel(tileset, model -> Optional.of(model.getTileReader().readTiles(z, misses))).orElseGet(Map::of).forEach((key, data) -> {
+                byte[] value = decompress ? IOUtils.decompress(data) : data;
+                result.put(key, value);
+                tileCacheService.put(tileset, z, (int) (key >>> 32), key.intValue(), encoding, value);
+            });
+        } else if (tileset.endsWith(AppConfig.FILE_EXTENSION_NAME_PMTILES)) {
+            Optional<PmtilesReader> readerOpt = mapServerDataCenter.getPmtilesReader(tileset);
+            if (readerOpt.isEmpty()) {
+                return result;
+            }
+            PmtilesReader reader = readerOpt.get();
+            boolean decompress = reader.isCompressed() && TileCacheService.ENCODING_IDENTITY.equals(encoding);
+            for (int[] tile : misses) {
+                tileCacheService.get(tileset, z, tile[0], tile[1], encoding,
+                                () -> mapServerDataCenter.withPmtilesReader(tileset, pmtiles -> pmtiles.readTile(z, tile[0], tile[1]))
+                                        .map(data -> decompress ? IOUtils.decompress(data) : data))
+                        .ifPresent(data -> result.put(MbtilesTileReader.tileKey(tile[0], tile[1]), data));
+            }
+        } else if (tileset.endsWith(AppConfig.FILE_EXTENSION_NAME_TPK)) {
+            for (int[] tile : misses) {
+                tileCacheService.get(tileset, z, tile[0], tile[1], encoding, () -> getBytesFromTpk(tileset, z, tile[0], tile[1]))
+                        .ifPresent(data -> result.put(MbtilesTileReader.tileKey(tile[0], tile[1]), data));
+            }
+        } else {
+            for (int[] tile : misses) {
+                tileCacheService.get(tileset, z, tile[0], tile[1], encoding, () -> getPbfBytes(tileset, z, tile[0], tile[1]))
+                        .ifPresent(data -> result.put(MbtilesTileReader.tileKey(tile[0], tile[1]), data));
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * 获取瓦片缓存统计信息
+     *
+     * @return 命中、未命中、淘汰等计数
+     */
+    @GetMapping(value = "/cache", produces = MediaType.APPLICATION_JSON_VALUE)
+    @ResponseBody
+    @Operation(summary = "获取瓦片缓存统计信息", description = "获取瓦片内存缓存的命中、未命中、淘汰次数以及占用字节数。")
+    public ResponseEntity<Map<String, Object>> cacheStats() {
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(ResponseMapUtil.ok(tileCacheService.stats()));
+    }
+
+    /**
+     * 获取瓦片裁剪统计信息
+     *
+     * @return 各裁剪规则裁剪的瓦片数以及裁剪前后的字节数
+     */
+    @GetMapping(value = "/prune", produces = MediaType.APPLICATION_JSON_VALUE)
+    @ResponseBody
+    @Operation(summary = "获取瓦片裁剪统计信息", description = "获取每个裁剪规则（样式或图层、属性列表）裁剪的瓦片数、裁剪前后的字节数以及缩减比例。")
+    public ResponseEntity<Map<String, Object>> pruneStats() {
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(ResponseMapUtil.ok(tilePruneService.stats()));
+    }
+
+    /**
+     * 清除指定瓦片集的缓存
+     *
+     * @param tileset 瓦片集名称
+     * @return 操作结果
+     */
+    @DeleteMapping(value = "/{tileset}/cache", produces = MediaType.APPLICATION_JSON_VALUE)
+    @ResponseBody
+    @Operation(summary = "清除瓦片集缓存", description = "清除指定瓦片集在内存中的所有瓦片缓存，包括超级缩放生成的瓦片、裁剪后的瓦片和叠加后的瓦片。")
+    public ResponseEntity<Map<String, Object>> invalidateCache(
+            @Parameter(description = "待清除缓存的瓦片数据源或文件夹名字，例如：Chengdu.mbtiles") @PathVariable("tileset") String tileset) {
+        if (SystemUtils.checkTilesetName(tileset)) {
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        }
+        tileCacheService.invalidate(tileset);
+        overzoomService.invalidate(tileset);
+        tilePruneService.invalidate(tileset);
+        httpCacheService.invalidate(tileset);
+        compositeTileService.invalidate(tileset);
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(ResponseMapUtil.ok());
+    }
+
+
     /**
      * 将多个mbtiles文件合并成一个mbtiles文件。
      * 部分文件不存在则跳过，所有不存在或者目标文件已存在则合并失败。
@@ -413,19 +1137,270 @@ public class MapServerTilesetsRestController {
             return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(ok);
         }
         String taskId = asyncService.computeTaskId(sourceNamePaths);
+        Optional<MbtilesMergeTask> newTaskOpt = asyncService.createTask(taskId, basePath + mergeInfo.getTargetName());
+        if (newTaskOpt.isPresent()) {
+            asyncService.submit(newTaskOpt.get(), sourceNamePaths, mergeInfo.isUnionLayers());
+            Map<String, Object> ok = ResponseMapUtil.ok(newTaskOpt.get().toProgress());
+            return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(ok);
+        }
+        Optional<MbtilesOfMergeProgress> taskOpt = asyncService.getTask(taskId);
+        Map<String, Object> ok = ResponseMapUtil.ok(taskOpt.orElse(new MbtilesOfMergeProgress(taskId, 0)));
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(ok);
+    }
+
+    /**
+     * 查询合并任务的进度、速度和预计剩余时间
+     *
+     * @param taskId 合并任务ID
+     * @return 合并进度
+     */
+    @GetMapping(value = "/merge/{taskId}", produces = MediaType.APPLICATION_JSON_VALUE)
+    @ResponseBody
+    @Operation(summary = "查询合并任务进度", description = "返回合并百分比、已合并瓦片数、tiles/s、bytes/s和预计剩余秒数。")
+    @Parameter(name = "taskId", description = "合并任务ID")
+    public ResponseEntity<Map<String, Object>> getMergeTask(@PathVariable("taskId") String taskId) {
         Optional<MbtilesOfMergeProgress> taskOpt = asyncService.getTask(taskId);
         if (taskOpt.isPresent()) {
-            Map<String, Object> ok = ResponseMapUtil.ok(taskOpt.get());
-            return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(ok);
-        } else {
-            asyncService.submit(taskId, sourceNamePaths, basePath + mergeInfo.getTargetName());
-            Map<String, Object> ok = ResponseMapUtil.ok(new MbtilesOfMergeProgress(taskId, 0));
-            return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(ok);
+            return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(ResponseMapUtil.ok(taskOpt.get()));
         }
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(ResponseMapUtil.notFound());
     }
 
-    private ResponseEntity<ByteArrayResource> wrapResponse(byte[] data, @Nullable MediaType mediaType) {
-        HttpHeaders headers = new HttpHeaders();
+    /**
+     * 取消运行中的合并任务
+     *
+     * @param taskId 合并任务ID
+     * @return 取消结果
+     */
+    @DeleteMapping(value = "/merge/{taskId}", produces = MediaType.APPLICATION_JSON_VALUE)
+    @ResponseBody
+    @Operation(summary = "取消合并任务", description = "在当前批次提交后停止合并，并删除未完成的目标文件。")
+    @Parameter(name = "taskId", description = "合并任务ID")
+    public ResponseEntity<Map<String, Object>> cancelMergeTask(@PathVariable("taskId") String taskId) {
+        if (asyncService.cancelTask(taskId)) {
+            Optional<MbtilesOfMergeProgress> taskOpt = asyncService.getTask(taskId);
+            return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(ResponseMapUtil.ok(taskOpt.orElse(null)));
+        }
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(ResponseMapUtil.notFound());
+    }
+
+    /**
+     * 从mbtiles中按矩形范围或行政区划边界、层级范围裁剪出新的mbtiles文件
+     *
+     * @param extractInfo 裁剪任务信息
+     * @return 裁剪任务进度
+     */
+    @PostMapping(value = "/extract")
+    @ResponseBody
+    @Operation(summary = "裁剪Mbtiles文件", description = "按矩形范围或行政区划边界、层级范围从mbtiles文件中裁剪出新的mbtiles文件。重复提交同一任务时返回任务进度。")
+    @Parameter(name = "extractInfo", description = "裁剪任务模型")
+    @ApiResponse(responseCode = "200", description = "成功响应", content = @Content(mediaType = "application/json", schema = @Schema(implementation = Map.class)))
+    public ResponseEntity<Map<String, Object>> extract(@RequestBody MbtilesOfExtract extractInfo) {
+        String sourceName = extractInfo.getSourceName();
+        String targetName = extractInfo.getTargetName();
+        if (sourceName == null || !sourceName.endsWith(AppConfig.FILE_EXTENSION_NAME_MBTILES) || mapServerDataCenter.getTilesFileModel(sourceName) == null) {
+            return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(ResponseMapUtil.notFound("源mbtiles文件不存在！"));
+        }
+        if (targetName == null || !targetName.endsWith(AppConfig.FILE_EXTENSION_NAME_MBTILES) || targetName.contains("/") || targetName.contains("\\")) {
+            return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(ResponseMapUtil.nok(ResponseMapUtil.STATUS_PARAM_CONFIG_ERROR_API, "目标文件名必须是mbtiles文件！"));
+        }
+        String targetFilePath = appConfig.getDataPath() + File.separator + "tilesets" + File.separator + targetName;
+        if (new File(targetFilePath).exists()) {
+            return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(ResponseMapUtil.nok(ResponseMapUtil.STATUS_RESOURCE_ALREADY_EXISTS, "目标资源已存在！"));
+        }
+
+        Optional<Geometry> areaOpt = getExtractArea(extractInfo);
+        if (areaOpt.isEmpty()) {
+            return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(ResponseMapUtil.nok(ResponseMapUtil.STATUS_PARAM_CONFIG_ERROR_API, "bbox格式不正确或行政区划不存在！"));
+        }
+        Map<String, String> metaData = mapServerDataCenter.getTileMetaData(sourceName);
+        int minZoom = extractInfo.getMinZoom() != null ? extractInfo.getMinZoom() : parseZoom(metaData.get("minzoom"), 0);
+        int maxZoom = extractInfo.getMaxZoom() != null ? extractInfo.getMaxZoom() : parseZoom(metaData.get("maxzoom"), TileCoverage.MAX_ZOOM);
+        if (minZoom < 0 || maxZoom > TileCoverage.MAX_ZOOM || minZoom > maxZoom) {
+            return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(ResponseMapUtil.nok(ResponseMapUtil.STATUS_PARAM_CONFIG_ERROR_API, "层级范围不正确！"));
+        }
+
+        String taskId = asyncService.computeTaskId(new ArrayList<>(List.of(sourceName, targetName, String.valueOf(extractInfo.getBbox()),
+                String.valueOf(extractInfo.getDivisionId()), String.valueOf(minZoom), String.valueOf(maxZoom))));
+        Optional<MbtilesMergeTask> newTaskOpt = asyncService.createExtractTask(taskId, targetFilePath);
+        if (newTaskOpt.isPresent()) {
+            asyncService.extract(newTaskOpt.get(), sourceName, areaOpt.get(), minZoom, maxZoom);
+            return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(ResponseMapUtil.ok(newTaskOpt.get().toProgress()));
+        }
+        Optional<MbtilesOfMergeProgress> taskOpt = asyncService.getExtractTask(taskId);
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(ResponseMapUtil.ok(taskOpt.orElse(new MbtilesOfMergeProgress(taskId, 0))));
+    }
+
+    /**
+     * 查询裁剪任务进度
+     *
+     * @param taskId 裁剪任务ID
+     * @return 裁剪进度
+     */
+    @GetMapping(value = "/extract/{taskId}", produces = MediaType.APPLICATION_JSON_VALUE)
+    @ResponseBody
+    @Operation(summary = "查询裁剪任务进度", description = "返回裁剪百分比、已拷贝瓦片数、tiles/s和预计剩余秒数。")
+    @Parameter(name = "taskId", description = "裁剪任务ID")
+    public ResponseEntity<Map<String, Object>> getExtractTask(@PathVariable("taskId") String taskId) {
+        Optional<MbtilesOfMergeProgress> taskOpt = asyncService.getExtractTask(taskId);
+        if (taskOpt.isPresent()) {
+            return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(ResponseMapUtil.ok(taskOpt.get()));
+        }
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(ResponseMapUtil.notFound());
+    }
+
+    /**
+     * 取消运行中的裁剪任务
+     *
+     * @param taskId 裁剪任务ID
+     * @return 取消结果
+     */
+    @DeleteMapping(value = "/extract/{taskId}", produces = MediaType.APPLICATION_JSON_VALUE)
+    @ResponseBody
+    @Operation(summary = "取消裁剪任务", description = "停止裁剪并删除未完成的目标文件。")
+    @Parameter(name = "taskId", description = "裁剪任务ID")
+    public ResponseEntity<Map<String, Object>> cancelExtractTask(@PathVariable("taskId") String taskId) {
+        if (asyncService.cancelExtractTask(taskId)) {
+            Optional<MbtilesOfMergeProgress> taskOpt = asyncService.getExtractTask(taskId);
+            return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(ResponseMapUtil.ok(taskOpt.orElse(null)));
+        }
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(ResponseMapUtil.notFound());
+    }
+
+    /**
+     * 离线优化mbtiles文件：瓦片数据去重、按希尔伯特曲线排列并压缩，完成后替换原文件
+     *
+     * @param tileset   瓦片集名称
+     * @param accessLog 数据目录下的访问日志相对路径，用于模拟优化前后的读页次数，可为空
+     * @return 优化任务状态
+     */
+    @PostMapping(value = "/{tileset}/optimize", produces = MediaType.APPLICATION_JSON_VALUE)
+    @ResponseBody
+    @Operation(summary = "优化Mbtiles文件", description = "重写为map/images结构，相同的瓦片只保存一份，瓦片数据按希尔伯特曲线顺序存储，最后执行VACUUM和ANALYZE。")
+    @Parameter(name = "tileset", description = "待优化的mbtiles文件名称，例如：china.mbtiles")
+    @Parameter(name = "accessLog", description = "数据目录下的访问日志相对路径，例如：logs/access.log")
+    public ResponseEntity<Map<String, Object>> optimize(@PathVariable("tileset") String tileset,
+                                                        @RequestParam(value = "accessLog", required = false) String accessLog) {
+        if (!tileset.endsWith(AppConfig.FILE_EXTENSION_NAME_MBTILES) || mapServerDataCenter.getTilesFileModel(tileset) == null) {
+            return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(ResponseMapUtil.notFound());
+        }
+        File accessLogFile = null;
+        if (accessLog != null && !accessLog.isBlank()) {
+            try {
+                File dataFolder = new File(appConfig.getDataPath()).getCanonicalFile();
+                accessLogFile = new File(dataFolder, accessLog).getCanonicalFile();
+                if (!accessLogFile.toPath().startsWith(dataFolder.toPath()) || !accessLogFile.isFile()) {
+                    return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(ResponseMapUtil.nok(ResponseMapUtil.STATUS_PARAM_CONFIG_ERROR_API, "访问日志不存在！"));
+                }
+            } catch (IOException e) {
+                return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(ResponseMapUtil.nok(ResponseMapUtil.STATUS_PARAM_CONFIG_ERROR_API, "访问日志不存在！"));
+            }
+        }
+        Optional<TilesetOptimizeReport> taskOpt = tilesetOptimizeService.createTask(tileset);
+        if (taskOpt.isPresent()) {
+            tilesetOptimizeService.optimize(taskOpt.get(), accessLogFile);
+            return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(ResponseMapUtil.ok(taskOpt.get()));
+        }
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(ResponseMapUtil.ok(tilesetOptimizeService.getReport(tileset).orElse(null)));
+    }
+
+    /**
+     * 查询最近一次优化任务的状态和结果
+     *
+     * @param tileset 瓦片集名称
+     * @return 优化结果，包括节省的空间和模拟的读页次数
+     */
+    @GetMapping(value = "/{tileset}/optimize", produces = MediaType.APPLICATION_JSON_VALUE)
+    @ResponseBody
+    @Operation(summary = "查询Mbtiles优化结果", description = "返回优化前后的文件大小、去重后的瓦片数和访问日志模拟的读页次数。")
+    @Parameter(name = "tileset", description = "mbtiles文件名称，例如：china.mbtiles")
+    public ResponseEntity<Map<String, Object>> getOptimizeReport(@PathVariable("tileset") String tileset) {
+        Optional<TilesetOptimizeReport> reportOpt = tilesetOptimizeService.getReport(tileset);
+        if (reportOpt.isPresent()) {
+            return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(ResponseMapUtil.ok(reportOpt.get()));
+        }
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(ResponseMapUtil.notFound());
+    }
+
+    /**
+     * 后台并行扫描mbtiles文件，统计每个层级的瓦片数、字节数分布、最大的瓦片和矢量瓦片的图层构成
+     *
+     * @param tileset 瓦片集名称
+     * @return 统计任务状态
+     */
+    @PostMapping(value = "/{tileset}/stats", produces = MediaType.APPLICATION_JSON_VALUE)
+    @ResponseBody
+    @Operation(summary = "统计Mbtiles文件", description = "按层级和列号范围并行扫描全部瓦片，统计结果保存在数据文件旁的.stats.json文件中。")
+    @Parameter(name = "tileset", description = "mbtiles文件名称，例如：china.mbtiles")
+    public ResponseEntity<Map<String, Object>> scanStats(@PathVariable("tileset") String tileset) {
+        if (!tileset.endsWith(AppConfig.FILE_EXTENSION_NAME_MBTILES) || mapServerDataCenter.getTilesFileModel(tileset) == null) {
+            return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(ResponseMapUtil.notFound());
+        }
+        Optional<TilesetStats> taskOpt = tilesetStatsService.createTask(tileset);
+        if (taskOpt.isPresent()) {
+            tilesetStatsService.scan(taskOpt.get());
+            return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(ResponseMapUtil.ok(taskOpt.get()));
+        }
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(ResponseMapUtil.ok(tilesetStatsService.getStats(tileset).orElse(null)));
+    }
+
+    /**
+     * 获取mbtiles文件的统计结果
+     *
+     * @param tileset 瓦片集名称
+     * @return 统计结果，从未统计或数据文件已变化时返回404
+     */
+    @GetMapping(value = "/{tileset}/stats", produces = MediaType.APPLICATION_JSON_VALUE)
+    @ResponseBody
+    @Operation(summary = "获取Mbtiles统计结果", description = "返回每个层级的瓦片数、字节数百分位数、最大的瓦片和图层的要素数、字节数。")
+    @Parameter(name = "tileset", description = "mbtiles文件名称，例如：china.mbtiles")
+    public ResponseEntity<Map<String, Object>> getStats(@PathVariable("tileset") String tileset) {
+        Optional<TilesetStats> statsOpt = tilesetStatsService.getStats(tileset);
+        if (statsOpt.isPresent()) {
+            return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(ResponseMapUtil.ok(statsOpt.get()));
+        }
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(ResponseMapUtil.notFound());
+    }
+
+    private Optional<Geometry> getExtractArea(MbtilesOfExtract extractInfo) {
+        if (extractInfo.getDivisionId() != null) {
+            SimpleFeature feature = MapServerDataCenter.getAdministrativeDivision().get(extractInfo.getDivisionId());
+            if (feature != null && feature.getDefaultGeometry() instanceof Geometry geometry) {
+                return Optional.of(geometry);
+            }
+            return Optional.empty();
+        }
+        if (extractInfo.getBbox() == null) {
+            return Optional.empty();
+        }
+        String[] split = extractInfo.getBbox().split(",");
+        if (split.length != 4) {
+            return Optional.empty();
+        }
+        try {
+            double minLon = Double.parseDouble(split[0].trim());
+            double minLat = Double.parseDouble(split[1].trim());
+            double maxLon = Double.parseDouble(split[2].trim());
+            double maxLat = Double.parseDouble(split[3].trim());
+            if (minLon >= maxLon || minLat >= maxLat) {
+                return Optional.empty();
+            }
+            return Optional.of(new GeometryFactory().toGeometry(new Envelope(minLon, maxLon, minLat, maxLat)));
+        } catch (NumberFormatException e) {
+            return Optional.empty();
+        }
+    }
+
+    private int parseZoom(String zoom, int defaultValue) {
+        try {
+            return zoom == null ? defaultValue : Integer.parseInt(zoom.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private ResponseEntity<ByteArrayResource> wrapResponse(byte[] data, @Nullable MediaType mediaType, Optional<HttpCacheService.CacheValidator> validator) {
+        HttpHeaders headers = validator.map(httpCacheService::headers).orElseGet(HttpHeaders::new);
         headers.setContentType(mediaType);
         ByteArrayResource resource = new ByteArrayResource(data);
         return ResponseEntity.ok().headers(headers).contentLength(data.length).body(resource);
@@ -435,22 +1410,32 @@ public class MapServerTilesetsRestController {
         if (tileset.endsWith(AppConfig.FILE_EXTENSION_NAME_MBTILES)) {
             return getBytesFromSqlite(tileset, z, x, y);
         }
+        if (tileset.endsWith(AppConfig.FILE_EXTENSION_NAME_PMTILES)) {
+            return getBytesFromPmtiles(tileset, z, x, y);
+        }
         return Optional.empty();
     }
 
+    private Optional<byte[]> getBytesFromPmtiles(String tileset, int z, int x, int y) {
+        Optional<PmtilesReader> readerOpt = mapServerDataCenter.getPmtilesReader(tileset);
+        if (readerOpt.isEmpty()) {
+            return Optional.empty();
+        }
+        PmtilesReader reader = readerOpt.get();
+        return tileCacheService.get(tileset, z, x, y, TileCacheService.ENCODING_IDENTITY, () -> {
+            Optional<byte[]> value = mapServerDataCenter.withPmtilesReader(tileset, pmtiles -> pmtiles.readTile(z, x, y));
+            return reader.isCompressed() ? value.map(IOUtils::decompress) : value;
+        });
+    }
+
     private Optional<byte[]> getBytesFromSqlite(String tileset, int z, int x, int y) {
-        boolean compressed = MapServerDataCenter.getTilesMap().get(tileset).isCompressed();
-        Optional<JdbcTemplate> jdbcTemplateOpt = mapServerDataCenter.getDataSource(tileset);
-        if (jdbcTemplateOpt.isPresent()) {
-            JdbcTemplate jdbcTemplate = jdbcTemplateOpt.get();
-            String sql = "SELECT tile_data FROM tiles WHERE zoom_level = " + z + " AND tile_column = " + x + " AND tile_row = " + y;
-            try {
-                byte[] value = jdbcTemplate.queryForObject(sql, (rs, rowNum) -> rs.getBytes(1));
-                return value == null ? Optional.empty() : Optional.of(compressed ? IOUtils.decompress(value) : value);
-            } catch (EmptyResultDataAccessException e) {
-                return Optional.empty();
-            }
+        TilesFileModel tilesFileModel = mapServerDataCenter.getTilesFileModel(tileset);
+        if (tilesFileModel == null) {
+            return Optional.empty();
         }
-        return Optional.empty();
+        return tileCacheService.get(tileset, z, x, y, TileCacheService.ENCODING_IDENTITY, () -> {
+            Optional<byte[]> value = mapServerDataCenter.withTilesFileModel(tileset, model -> model.getTileReader().readTile(z, x, y));
+            return tilesFileModel.isCompressed() ? value.map(IOUtils::decompress) : value;
+        });
     }
 }
@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2024 QMJY.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.github.qmjy.mapserver.model;
+
+import lombok.Getter;
+
+/**
+ * 运行中的mbtiles合并或裁剪任务，由任务线程更新，查询线程读取
+ *
+ * @author liushaofeng
+ */
+@Getter
+public class MbtilesMergeTask {
+    private final String taskId;
+    private final String targetFilePath;
+    private volatile String status = MbtilesOfMergeProgress.STATUS_RUNNING;
+    private volatile boolean cancelled = false;
+    private volatile long totalCount;
+    private volatile long completeCount;
+    /**
+     * 本次运行开始时已完成的瓦片数，断点续传时不计入速度
+     */
+    private volatile long startCount;
+    private volatile long startNanos = System.nanoTime();
+    private volatile double bytesPerTile;
+
+    public MbtilesMergeTask(String taskId, String targetFilePath) {
+        this.taskId = taskId;
+        this.targetFilePath = targetFilePath;
+    }
+
+    /**
+     * 开始计时
+     *
+     * @param totalCount    总瓦片数
+     * @param completeCount 已完成的瓦片数
+     * @param bytesPerTile  源文件的平均瓦片大小
+     */
+    public void start(long totalCount, long completeCount, double bytesPerTile) {
+        this.totalCount = totalCount;
+        this.completeCount = completeCount;
+        this.startCount = completeCount;
+        this.bytesPerTile = bytesPerTile;
+        this.startNanos = System.nanoTime();
+    }
+
+    public void addComplete(long count) {
+        this.completeCount += count;
+    }
+
+    public void cancel() {
+        this.cancelled = true;
+    }
+
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    public boolean isRunning() {
+        return MbtilesOfMergeProgress.STATUS_RUNNING.equals(status);
+    }
+
+    public MbtilesOfMergeProgress toProgress() {
+        long total = totalCount;
+        long complete = completeCount;
+        int progress;
+        if (MbtilesOfMergeProgress.STATUS_FAILED.equals(status)) {
+            progress = -1;
+        } else if (MbtilesOfMergeProgress.STATUS_COMPLETED.equals(status)) {
+            progress = 100;
+        } else {
+            //去重和重建索引完成前不报告100%
+            progress = total == 0 ? 0 : (int) Math.min(99, complete * 100 / total);
+        }
+        MbtilesOfMergeProgress result = new MbtilesOfMergeProgress(taskId, progress);
+        result.setStatus(status);
+        result.setCompleteCount(complete);
+        result.setTotalCount(total);
+
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        long copied = complete - startCount;
+        if (seconds > 0 && copied > 0) {
+            double tilesPerSecond = copied / seconds;
+            result.setTilesPerSecond((long) tilesPerSecond);
+            result.setBytesPerSecond((long) (tilesPerSecond * bytesPerTile));
+            if (isRunning()) {
+                result.setEtaSeconds((long) (Math.max(0, total - complete) / tilesPerSecond));
+            }
+        }
+        return result;
+    }
+}
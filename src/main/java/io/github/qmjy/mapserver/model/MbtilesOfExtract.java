@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) 2024 QMJY.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.github.qmjy.mapserver.model;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+import lombok.Data;
+
+@Data
+@Schema(description = "mbtiles裁剪任务信息")
+public class MbtilesOfExtract {
+    @Schema(description = "待裁剪的mbtiles文件名称，例如：'china.mbtiles'")
+    private String sourceName;
+    @Schema(description = "裁剪后的文件名字，不能与现有的mbtiles文件重名。例如：'hangzhou.mbtiles'")
+    private String targetName;
+    @Schema(description = "裁剪范围，格式为'minLon,minLat,maxLon,maxLat'。与divisionId二选一。")
+    private String bbox;
+    @Schema(description = "行政区划的OSM ID，以该行政区划的边界作为裁剪范围。与bbox二选一。")
+    private Integer divisionId;
+    @Schema(description = "最小层级，默认与源文件一致")
+    private Integer minZoom;
+    @Schema(description = "最大层级，默认与源文件一致")
+    private Integer maxZoom;
+}
@@ -26,4 +26,6 @@ public class MbtilesOfMerge {
     private String sourceNames;
     @Schema(description = "合并完成后的文件名字，不能与现有的mbtiles文件重名。例如：'target.mbtiles'")
     private String targetName;
+    @Schema(description = "是否按图层合并同一坐标的矢量瓦片。默认为false，后合并的瓦片覆盖先合并的；只对pbf格式生效。")
+    private boolean unionLayers;
 }
@@ -20,8 +20,31 @@ import lombok.Data;
 
 @Data
 public class MbtilesOfMergeProgress {
+    public static final String STATUS_RUNNING = "running";
+    public static final String STATUS_COMPLETED = "completed";
+    public static final String STATUS_FAILED = "failed";
+    public static final String STATUS_CANCELLED = "cancelled";
+
     private String taskId;
+    /**
+     * 完成百分比，失败时为-1
+     */
     private int progress;
+    private String status = STATUS_RUNNING;
+    private long completeCount;
+    private long totalCount;
+    /**
+     * 本次运行的平均拷贝速度
+     */
+    private long tilesPerSecond;
+    /**
+     * 按源文件平均瓦片大小估算的拷贝速度
+     */
+    private long bytesPerSecond;
+    /**
+     * 预计剩余秒数，未知时为-1
+     */
+    private long etaSeconds = -1;
 
     public MbtilesOfMergeProgress(String taskId, int progress) {
         this.taskId = taskId;
@@ -18,7 +18,6 @@ package io.github.qmjy.mapserver.model;
 
 import lombok.Data;
 import org.locationtech.jts.geom.Geometry;
-import org.locationtech.jts.geom.Point;
 
 @Data
 public class PoiCache {
@@ -26,7 +25,8 @@ public class PoiCache {
     private int tileColumn;
     private int zoomLevel;
     private String name;
-    private String geometry;
+    private double lon;
+    private double lat;
 
     /**
      * See type code of {@link Geometry}
@@ -34,9 +34,10 @@ public class PoiCache {
     private int geometryType = -1;
 
 
-    public PoiCache(String name, int tileRow, int tileColumn, int zoomLevel, int geometryType, Point point) {
+    public PoiCache(String name, int tileRow, int tileColumn, int zoomLevel, int geometryType, double[] lonLat) {
         this(name, tileRow, tileColumn, zoomLevel, geometryType);
-        this.geometry = point.toText();
+        this.lon = lonLat[0];
+        this.lat = lonLat[1];
     }
 
     public PoiCache(String name, int tileRow, int tileColumn, int zoomLevel, int geometryType) {
@@ -16,12 +16,18 @@
 
 package io.github.qmjy.mapserver.model;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import lombok.Data;
 
 @Data
 public class PoiPoint {
     private String name;
     private String location;
+    /**
+     * 到查询中心的距离，单位米，只有空间查询时返回
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private Double distance;
 
     public PoiPoint(String name, String location) {
         this.name = name;
@@ -17,6 +17,7 @@
 package io.github.qmjy.mapserver.model;
 
 import io.github.qmjy.mapserver.util.JdbcUtils;
+import io.github.qmjy.mapserver.util.MbtilesTileReader;
 import lombok.Getter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -43,16 +44,32 @@ public class TilesFileModel {
     private final String filePath;
     private final Map<String, String> metaDataMap = new HashMap<>();
     private JdbcTemplate jdbcTemplate;
+    /**
+     * 瓦片读取专用的只读连接池
+     */
+    private final MbtilesTileReader tileReader;
     private long tilesCount = -1;
     //maptiler的数据是gzip压缩；bbbike的未被压缩；
     private boolean isCompressed = false;
 
     public TilesFileModel(File file, String className) {
+        this(file, className, false);
+    }
+
+    /**
+     * 构造方法
+     *
+     * @param file      mbtiles文件
+     * @param className JDBC驱动名称
+     * @param immutable 服务期间文件是否不会被修改
+     */
+    public TilesFileModel(File file, String className, boolean immutable) {
         this.filePath = file.getAbsolutePath();
 
         initJdbc(className, file);
         loadMetaData();
         this.isCompressed = compressed();
+        this.tileReader = new MbtilesTileReader(filePath, immutable);
     }
 
     public void countSize() {
@@ -61,6 +78,14 @@ public class TilesFileModel {
         tilesCount = (int) result.get("count");
     }
 
+    /**
+     * 关闭瓦片读取连接池和JDBC数据源，文件被替换或删除时调用
+     */
+    public void close() {
+        tileReader.close();
+        JdbcUtils.getInstance().releaseJdbcTemplate(jdbcTemplate);
+    }
+
     private void initJdbc(String className, File file) {
         this.jdbcTemplate = JdbcUtils.getInstance().getJdbcTemplate(className, file.getAbsolutePath());
     }
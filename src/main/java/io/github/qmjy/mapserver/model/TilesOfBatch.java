@@ -0,0 +1,35 @@
+/*
+ * Copyright (c) 2024 QMJY.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.github.qmjy.mapserver.model;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+@Schema(description = "批量获取瓦片的请求对象，tiles与bbox二选一")
+public class TilesOfBatch {
+    @Schema(description = "待获取的瓦片列表，每项为[z, x, y]，y为TMS行号。例如：[[14, 13234, 9986], [14, 13235, 9986]]")
+    private List<int[]> tiles;
+    @Schema(description = "待获取的经纬度范围，格式为'minLon,minLat,maxLon,maxLat'。例如：'104.0,30.6,104.1,30.7'")
+    private String bbox;
+    @Schema(description = "bbox方式下的最小层级")
+    private Integer minzoom;
+    @Schema(description = "bbox方式下的最大层级，为空时与minzoom相同")
+    private Integer maxzoom;
+}
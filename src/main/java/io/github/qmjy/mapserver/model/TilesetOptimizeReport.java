@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2024 QMJY.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.github.qmjy.mapserver.model;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+import lombok.Data;
+
+@Data
+@Schema(description = "瓦片集优化结果")
+public class TilesetOptimizeReport {
+    @Schema(description = "瓦片集名称")
+    private String tileset;
+    @Schema(description = "任务状态：running、completed、failed")
+    private String status = MbtilesOfMergeProgress.STATUS_RUNNING;
+    @Schema(description = "失败原因")
+    private String message;
+    @Schema(description = "瓦片总数")
+    private long tilesCount;
+    @Schema(description = "去重后的瓦片数据条数")
+    private long uniqueTilesCount;
+    @Schema(description = "优化前的文件字节数")
+    private long sourceBytes;
+    @Schema(description = "优化后的文件字节数")
+    private long targetBytes;
+    @Schema(description = "节省的空间百分比")
+    private double savedPercent;
+    @Schema(description = "访问日志中参与模拟的瓦片请求数，未提供访问日志时为0")
+    private long sampleRequests;
+    @Schema(description = "优化前按LRU页缓存模拟的读页次数")
+    private long sourcePageReads;
+    @Schema(description = "优化后按LRU页缓存模拟的读页次数")
+    private long targetPageReads;
+    @Schema(description = "读页次数减少的百分比")
+    private double pageReadReduction;
+    @Schema(description = "耗时，单位毫秒")
+    private long elapsedMillis;
+}
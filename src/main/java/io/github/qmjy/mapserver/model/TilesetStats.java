@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2024 QMJY.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.github.qmjy.mapserver.model;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+@Data
+@Schema(description = "瓦片集统计信息")
+public class TilesetStats {
+    @Schema(description = "瓦片集名称")
+    private String tileset;
+    @Schema(description = "任务状态：running、completed、failed")
+    private String status = MbtilesOfMergeProgress.STATUS_RUNNING;
+    @Schema(description = "统计时数据文件的字节数，与当前文件不一致时统计结果失效")
+    private long sourceLength;
+    @Schema(description = "统计时数据文件的修改时间")
+    private long sourceModified;
+    @Schema(description = "统计完成的时间戳")
+    private long generatedAt;
+    @Schema(description = "统计耗时，单位毫秒")
+    private long elapsedMillis;
+    @Schema(description = "瓦片总数")
+    private long tilesCount;
+    @Schema(description = "瓦片数据总字节数")
+    private long totalBytes;
+    @Schema(description = "按层级的统计")
+    private List<ZoomStats> zooms = new ArrayList<>();
+
+    @Data
+    @Schema(description = "单个层级的统计信息，字节数均为存储的字节数")
+    public static class ZoomStats {
+        private int zoom;
+        private long tilesCount;
+        @Schema(description = "无法解析的矢量瓦片数")
+        private long invalidTilesCount;
+        private long totalBytes;
+        private long minBytes;
+        private long maxBytes;
+        private long avgBytes;
+        @Schema(description = "字节数的百分位数，误差约3%")
+        private long p50Bytes;
+        private long p90Bytes;
+        private long p95Bytes;
+        private long p99Bytes;
+        @Schema(description = "最大的若干个瓦片")
+        private List<LargestTile> largestTiles = new ArrayList<>();
+        @Schema(description = "矢量瓦片按图层的统计，字节数为解压后的字节数")
+        private Map<String, LayerStats> layers = new TreeMap<>();
+    }
+
+    @Data
+    public static class LargestTile {
+        private int x;
+        @Schema(description = "TMS行号")
+        private int y;
+        private long bytes;
+    }
+
+    @Data
+    public static class LayerStats {
+        @Schema(description = "包含该图层的瓦片数")
+        private long tilesCount;
+        private long featuresCount;
+        private long bytes;
+    }
+}
@@ -25,8 +25,13 @@ import eu.smartdatalake.athenarc.osmwrangle.utils.Configuration;
 import io.github.qmjy.mapserver.MapServerDataCenter;
 import io.github.qmjy.mapserver.config.AppConfig;
 import io.github.qmjy.mapserver.model.*;
+import io.github.qmjy.mapserver.util.GeometryUtils;
 import io.github.qmjy.mapserver.util.IOUtils;
 import io.github.qmjy.mapserver.util.JdbcUtils;
+import io.github.qmjy.mapserver.util.MbtilesExtractor;
+import io.github.qmjy.mapserver.util.MbtilesMerger;
+import io.github.qmjy.mapserver.util.PoiFullTextIndex;
+import io.github.qmjy.mapserver.util.PoiSpatialIndex;
 import io.github.qmjy.mapserver.util.VectorTileUtils;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.LineIterator;
@@ -34,6 +39,7 @@ import org.jetbrains.annotations.NotNull;
 import org.locationtech.jts.geom.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.scheduling.annotation.Async;
 import org.springframework.scheduling.annotation.Scheduled;
@@ -44,8 +50,17 @@ import org.springframework.util.FileCopyUtils;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.DriverManager;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
 
 @Service
 public class AsyncService {
@@ -55,9 +70,34 @@ public class AsyncService {
     private final MapServerDataCenter mapServerDataCenter;
 
     /**
-     * taskId:完成百分比
+     * 提取POI时每次读取的瓦片数
      */
-    private final Map<String, Integer> mergeTaskProgress = new HashMap<>();
+    private static final int POI_TILE_PAGE_SIZE = 2000;
+
+    /**
+     * 提取POI时每个事务写入的POI数
+     */
+    private static final int POI_COMMIT_ROWS = 200000;
+
+    /**
+     * 矢量瓦片的坐标范围
+     */
+    private static final int MVT_EXTENT = 4096;
+
+    /**
+     * 正在生成的.idx文件，同一个文件同时只生成一次
+     */
+    private final Set<String> poiExtracting = ConcurrentHashMap.newKeySet();
+
+    /**
+     * taskId:合并任务
+     */
+    private final Map<String, MbtilesMergeTask> mergeTasks = new ConcurrentHashMap<>();
+
+    /**
+     * taskId:裁剪任务
+     */
+    private final Map<String, MbtilesMergeTask> extractTasks = new ConcurrentHashMap<>();
 
     public AsyncService(AppConfig appConfig, MapServerDataCenter mapServerDataCenter) {
         this.appConfig = appConfig;
@@ -124,58 +164,158 @@ public class AsyncService {
     }
 
     /**
-     * 初始化瓦片数据库的POI信息
+     * 初始化瓦片数据库的POI信息。先写入临时文件，全文索引建立完成后再改名为.idx文件，搜索不会读到不完整的索引。
+     * .idx文件中记录了瓦片数据库的大小和修改时间，瓦片数据库被替换后重新生成。
      */
     @Async("asyncServiceExecutor")
     public void asyncMbtilesToPOI(File tilesetFile) {
         Map<String, String> tileMetaData = mapServerDataCenter.getTileMetaData(tilesetFile.getName());
         if ("pbf".equals(tileMetaData.get("format")) || "mvt".equals(tileMetaData.get("format"))) {
             String idxFilePath = tilesetFile.getAbsolutePath() + ".idx";
-            if (!new File(idxFilePath).exists()) {
-                JdbcTemplate idxJdbcTemp = JdbcUtils.getInstance().getJdbcTemplate(appConfig.getDriverClassName(), idxFilePath);
-                idxJdbcTemp.execute("CREATE TABLE poi(id INTEGER PRIMARY KEY AUTOINCREMENT, name TEXT NOT NULL, tile_row INTEGER NOT NULL, tile_column INTEGER NOT NULL, zoom_level INTEGER NOT NULL, geometry TEXT NOT NULL, geometry_type INTEGER NOT NULL);");
-
-                TilesFileModel tilesFileModel = mapServerDataCenter.getTilesFileModel(tilesetFile.getName());
-                tilesFileModel.countSize();
-                extractPoi2Idx(tilesFileModel, idxJdbcTemp);
-                JdbcUtils.getInstance().releaseJdbcTemplate(idxJdbcTemp);
+            if (!poiExtracting.add(idxFilePath)) {
+                LOGGER.info("Poi index is being extracted: {}", idxFilePath);
+                return;
+            }
+            try {
+                extractPoiIndex(tilesetFile, idxFilePath);
+            } finally {
+                poiExtracting.remove(idxFilePath);
             }
         }
     }
 
-    private void extractPoi2Idx(TilesFileModel tilesFileModel, JdbcTemplate idxJdbcTemp) {
+    private void extractPoiIndex(File tilesetFile, String idxFilePath) {
+        long sourceLength = tilesetFile.length();
+        long sourceModified = tilesetFile.lastModified();
+        File idxFile = new File(idxFilePath);
+        if (idxFile.exists() && isPoiIndexCurrent(idxFile, sourceLength, sourceModified)) {
+            upgradePoiIndex(idxFilePath);
+            return;
+        }
+        if (idxFile.exists()) {
+            LOGGER.info("Tile file changed, rebuild poi index: {}", idxFilePath);
+        }
+        File tmpFile = new File(idxFilePath + ".tmp");
+        deleteQuietly(tmpFile);
+        long start = System.currentTimeMillis();
+        try (Connection idxConnection = DriverManager.getConnection("jdbc:sqlite:" + tmpFile.getAbsolutePath())) {
+            try (Statement statement = idxConnection.createStatement()) {
+                statement.execute("PRAGMA journal_mode = OFF");
+                statement.execute("PRAGMA synchronous = OFF");
+                statement.execute("CREATE TABLE poi(id INTEGER PRIMARY KEY AUTOINCREMENT, name TEXT NOT NULL, tile_row INTEGER NOT NULL, tile_column INTEGER NOT NULL, zoom_level INTEGER NOT NULL, geometry_type INTEGER NOT NULL, lon REAL NOT NULL, lat REAL NOT NULL)");
+            }
+            idxConnection.setAutoCommit(false);
+            Optional<Long> countOpt = mapServerDataCenter.withTilesFileModelInBackground(tilesetFile.getName(), tilesFileModel -> {
+                try {
+                    return Optional.of(extractPoi2Idx(tilesFileModel, idxConnection));
+                } catch (SQLException e) {
+                    LOGGER.error("Extract poi failed: {}, {}", tilesetFile.getName(), e.getMessage());
+                    return Optional.empty();
+                }
+            });
+            if (countOpt.isEmpty()) {
+                idxConnection.close();
+                deleteQuietly(tmpFile);
+                return;
+            }
+            idxConnection.commit();
+            LOGGER.info("Extract {} poi of {} in {} ms", countOpt.get(), tilesetFile.getName(), System.currentTimeMillis() - start);
+        } catch (SQLException e) {
+            LOGGER.error("Write poi index failed: {}, {}", tmpFile.getAbsolutePath(), e.getMessage());
+            deleteQuietly(tmpFile);
+            return;
+        }
+
+        JdbcTemplate idxJdbcTemp = JdbcUtils.getInstance().getJdbcTemplate(appConfig.getDriverClassName(), tmpFile.getAbsolutePath());
+        try {
+            PoiFullTextIndex.build(idxJdbcTemp);
+            PoiSpatialIndex.build(idxJdbcTemp);
+            idxJdbcTemp.update("INSERT OR REPLACE INTO poi_meta (name, value) VALUES ('source_length', ?), ('source_modified', ?)",
+                    String.valueOf(sourceLength), String.valueOf(sourceModified));
+        } finally {
+            JdbcUtils.getInstance().releaseJdbcTemplate(idxJdbcTemp);
+        }
+        try {
+            Files.move(tmpFile.toPath(), idxFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            LOGGER.error("Rename poi index failed: {}, {}", tmpFile.getAbsolutePath(), e.getMessage());
+            deleteQuietly(tmpFile);
+        }
+    }
+
+    /**
+     * 判断.idx文件是否由当前的瓦片数据库生成
+     */
+    private boolean isPoiIndexCurrent(File idxFile, long sourceLength, long sourceModified) {
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + idxFile.getAbsolutePath());
+             Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT name, value FROM poi_meta WHERE name IN ('source_length', 'source_modified')")) {
+            Map<String, String> values = new HashMap<>();
+            while (rs.next()) {
+                values.put(rs.getString(1), rs.getString(2));
+            }
+            return String.valueOf(sourceLength).equals(values.get("source_length"))
+                    && String.valueOf(sourceModified).equals(values.get("source_modified"));
+        } catch (SQLException e) {
+            //旧版本的.idx文件没有poi_meta表，同样重新生成
+            return false;
+        }
+    }
+
+    /**
+     * 按(tile_column, tile_row)分页读取最高层级的瓦片，在ForkJoin线程池中并行解码，按原顺序写入POI
+     *
+     * @return 写入的POI数
+     */
+    private long extractPoi2Idx(TilesFileModel tilesFileModel, Connection idxConnection) throws SQLException {
         //只从最高层级解析POI数据
-        String maxZoom = tilesFileModel.getMetaDataMap().get("maxzoom");
         JdbcTemplate jdbcTemplate = tilesFileModel.getJdbcTemplate();
+        Integer maxZoom = jdbcTemplate.queryForObject("SELECT MAX(zoom_level) FROM tiles", Integer.class);
+        if (maxZoom == null) {
+            return 0;
+        }
 
-        int pageSize = 5000;
-        List<PoiCache> cache = new ArrayList<>();
-
-        long totalPage = tilesFileModel.getTilesCount() % pageSize == 0 ? tilesFileModel.getTilesCount() / pageSize : tilesFileModel.getTilesCount() / pageSize + 1;
-        for (long currentPage = 0; currentPage < totalPage; currentPage++) {
-            List<Map<String, Object>> dataList = jdbcTemplate.queryForList("SELECT * FROM tiles WHERE zoom_level = '" + maxZoom + "' LIMIT " + pageSize + " OFFSET " + currentPage * pageSize);
-            for (Map<String, Object> rowDataMap : dataList) {
-                byte[] data = (byte[]) rowDataMap.get("tile_data");
-                List<PoiCache> poiList = extractPoi((int) rowDataMap.get("tile_row"), (int) rowDataMap.get("tile_column"), (int) rowDataMap.get("zoom_level"), tilesFileModel.isCompressed() ? IOUtils.decompress(data) : data);
-                cache.addAll(poiList);
-                if (cache.size() > pageSize) {
-                    batchUpdate(idxJdbcTemp, cache);
-                    cache.clear();
+        long count = 0;
+        long uncommitted = 0;
+        int lastColumn = -1;
+        int lastRow = -1;
+        ForkJoinPool decodePool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        try (PreparedStatement insert = idxConnection.prepareStatement("INSERT INTO poi(name, geometry_type, zoom_level, tile_row, tile_column, lon, lat) VALUES (?, ?, ?, ?, ?, ?, ?)")) {
+            while (true) {
+                List<PoiTile> tiles = jdbcTemplate.query("SELECT tile_column, tile_row, tile_data FROM tiles WHERE zoom_level = ? AND (tile_column, tile_row) > (?, ?) ORDER BY tile_column, tile_row LIMIT ?",
+                        (rs, rowNum) -> new PoiTile(rs.getInt(1), rs.getInt(2), rs.getBytes(3)), maxZoom, lastColumn, lastRow, POI_TILE_PAGE_SIZE);
+                if (tiles.isEmpty()) {
+                    break;
+                }
+                lastColumn = tiles.getLast().column();
+                lastRow = tiles.getLast().row();
+
+                List<PoiCache> poiList = decodePool.submit(() -> tiles.parallelStream().flatMap(tile -> {
+                    byte[] data = tilesFileModel.isCompressed() ? IOUtils.decompress(tile.data()) : tile.data();
+                    return extractPoi(tile.row(), tile.column(), maxZoom, data).stream();
+                }).toList()).join();
+                for (PoiCache poi : poiList) {
+                    insert.setString(1, poi.getName());
+                    insert.setInt(2, poi.getGeometryType());
+                    insert.setInt(3, poi.getZoomLevel());
+                    insert.setInt(4, poi.getTileRow());
+                    insert.setInt(5, poi.getTileColumn());
+                    insert.setDouble(6, poi.getLon());
+                    insert.setDouble(7, poi.getLat());
+                    insert.addBatch();
+                }
+                insert.executeBatch();
+                count += poiList.size();
+                uncommitted += poiList.size();
+                if (uncommitted >= POI_COMMIT_ROWS) {
+                    idxConnection.commit();
+                    uncommitted = 0;
                 }
             }
+        } finally {
+            decodePool.shutdown();
         }
-        batchUpdate(idxJdbcTemp, cache);
-    }
-
-    private static void batchUpdate(JdbcTemplate idxJdbcTemp, List<PoiCache> poiList) {
-        idxJdbcTemp.batchUpdate("INSERT INTO poi(name, geometry, geometry_type, zoom_level, tile_row, tile_column) VALUES (?, ?, ?, ?, ?, ?)", poiList, poiList.size(), (PreparedStatement ps, PoiCache poi) -> {
-            ps.setString(1, poi.getName());
-            ps.setString(2, poi.getGeometry());
-            ps.setInt(3, poi.getGeometryType());
-            ps.setInt(4, poi.getZoomLevel());
-            ps.setInt(5, poi.getTileRow());
-            ps.setInt(6, poi.getTileColumn());
-        });
+        return count;
     }
 
     private List<PoiCache> extractPoi(int tileRow, int tileColumn, int zoomLevel, byte[] data) {
@@ -190,7 +330,8 @@ public class AsyncService {
                     if (name != null) {
                         switch (geometry) {
                             case Point point -> {
-                                objects.add(new PoiCache(name, tileRow, tileColumn, zoomLevel, 0, point));
+                                objects.add(new PoiCache(name, tileRow, tileColumn, zoomLevel, 0,
+                                        GeometryUtils.pixel2deg(tileColumn, tileRow, zoomLevel, point.getX(), point.getY(), MVT_EXTENT)));
                             }
                             case MultiPoint multiPoint -> {
 //                            objects.add(new PoiCache(name, tileRow, tileColumn, zoomLevel, 1));
@@ -224,65 +365,184 @@ public class AsyncService {
 
 
     /**
-     * 提交文件合并任务。合并任务失败，则process is -1。
+     * 登记文件合并任务。同一任务已在运行或已完成时不重复登记，失败或取消的任务可重新登记。
      *
+     * @param taskId         任务ID
+     * @param targetFilePath 目标文件名字
+     * @return 新登记的任务，已存在时为空
+     */
+    public Optional<MbtilesMergeTask> createTask(String taskId, String targetFilePath) {
+        return createTask(mergeTasks, taskId, targetFilePath);
+    }
+
+    private Optional<MbtilesMergeTask> createTask(Map<String, MbtilesMergeTask> tasks, String taskId, String targetFilePath) {
+        MbtilesMergeTask task = new MbtilesMergeTask(taskId, targetFilePath);
+        MbtilesMergeTask existing = tasks.compute(taskId, (key, old) ->
+                old == null || MbtilesOfMergeProgress.STATUS_FAILED.equals(old.getStatus())
+                        || MbtilesOfMergeProgress.STATUS_CANCELLED.equals(old.getStatus()) ? task : old);
+        return existing == task ? Optional.of(task) : Optional.empty();
+    }
+
+    /**
+     * 提交文件合并任务。合并任务失败，则process is -1。目标临时文件已存在时从断点处继续合并。
+     *
+     * @param task            通过createTask登记的任务
      * @param sourceNamePaths 待合并的文件列表
-     * @param targetFilePath  目标文件名字
+     * @param unionLayers     是否按图层合并同一坐标的矢量瓦片，只对pbf格式生效
      */
     @Async("asyncServiceExecutor")
-    public void submit(String taskId, List<String> sourceNamePaths, String targetFilePath) {
-        mergeTaskProgress.put(taskId, 0);
-        Optional<MbtileMergeWrapper> wrapperOpt = arrange(sourceNamePaths);
+    public void submit(MbtilesMergeTask task, List<String> sourceNamePaths, boolean unionLayers) {
+        merge(task, sourceNamePaths, unionLayers);
+    }
 
-        if (wrapperOpt.isPresent()) {
-            MbtileMergeWrapper wrapper = wrapperOpt.get();
-            Map<String, MbtileMergeFile> needMerges = wrapper.getNeedMerges();
-            long totalCount = wrapper.getTotalCount();
-            String largestFilePath = wrapper.getLargestFilePath();
+    /**
+     * 继续执行服务重启前未完成的合并任务
+     *
+     * @param tilesetsFolder 瓦片集目录
+     */
+    @Async("asyncServiceExecutor")
+    public void resumeMergeTasks(File tilesetsFolder) {
+        File[] files = tilesetsFolder.listFiles(file -> file.isFile() && file.getName().endsWith(AppConfig.FILE_EXTENSION_NAME_MBTILES + ".tmp"));
+        if (files == null) {
+            return;
+        }
+        for (File tmpFile : files) {
+            Optional<List<String>> sourcesOpt = MbtilesMerger.readSources(tmpFile.getAbsolutePath());
+            if (sourcesOpt.isEmpty() || sourcesOpt.get().isEmpty()) {
+                continue;
+            }
+            List<String> sources = new ArrayList<>(sourcesOpt.get());
+            String targetFilePath = tmpFile.getAbsolutePath().substring(0, tmpFile.getAbsolutePath().length() - ".tmp".length());
+            Optional<MbtilesMergeTask> taskOpt = createTask(computeTaskId(sources), targetFilePath);
+            if (taskOpt.isPresent()) {
+                //合并模式以目标文件中记录的为准
+                LOGGER.info("Resume merge task: {}", targetFilePath);
+                merge(taskOpt.get(), sources, false);
+            }
+        }
+    }
 
-            long completeCount;
-            //直接拷贝最大的文件，提升合并速度
-            File targetTmpFile = new File(targetFilePath + ".tmp");
+    private void merge(MbtilesMergeTask task, List<String> sourceNamePaths, boolean unionLayers) {
+        Optional<MbtileMergeWrapper> wrapperOpt = arrange(sourceNamePaths);
+        if (wrapperOpt.isEmpty()) {
+            task.setStatus(MbtilesOfMergeProgress.STATUS_FAILED);
+            return;
+        }
+        MbtileMergeWrapper wrapper = wrapperOpt.get();
+        List<MbtileMergeFile> sourceFiles = new ArrayList<>(wrapper.getNeedMerges().values());
+        try {
+            task.setStatus(mergeInto(task, wrapper, sourceNamePaths, unionLayers));
+        } finally {
+            releaseSourceFiles(sourceFiles);
+        }
+    }
+
+    private String mergeInto(MbtilesMergeTask task, MbtileMergeWrapper wrapper, List<String> sourceNamePaths, boolean unionLayers) {
+        Map<String, MbtileMergeFile> needMerges = wrapper.getNeedMerges();
+        String largestFilePath = wrapper.getLargestFilePath();
+        String targetFilePath = task.getTargetFilePath();
+        File targetTmpFile = new File(targetFilePath + ".tmp");
+        if (!targetTmpFile.exists()) {
+            //直接拷贝最大的文件，提升合并速度。先拷贝为.copy再改名，.tmp存在即说明底本已完整
+            File copyFile = new File(targetFilePath + ".copy");
             try {
-                FileCopyUtils.copy(new File(largestFilePath), targetTmpFile);
-                completeCount = needMerges.get(largestFilePath).getCount();
-                mergeTaskProgress.put(taskId, (int) (completeCount * 100 / totalCount));
-                needMerges.remove(largestFilePath);
+                FileCopyUtils.copy(new File(largestFilePath), copyFile);
             } catch (IOException e) {
                 LOGGER.info("Copy the largest file failed: {}", largestFilePath);
-                mergeTaskProgress.put(taskId, -1);
-                return;
+                return MbtilesOfMergeProgress.STATUS_FAILED;
             }
-
-            JdbcTemplate jdbcTemplate = JdbcUtils.getInstance().getJdbcTemplate(appConfig.getDriverClassName(), targetTmpFile.getAbsolutePath());
-            Iterator<Map.Entry<String, MbtileMergeFile>> iterator = needMerges.entrySet().iterator();
-            while (iterator.hasNext()) {
-                Map.Entry<String, MbtileMergeFile> next = iterator.next();
-                mergeTo(next.getValue(), jdbcTemplate);
-                completeCount += next.getValue().getCount();
-                mergeTaskProgress.put(taskId, (int) (completeCount * 100 / totalCount));
-                iterator.remove();
-                LOGGER.info("Merged file: {}", next.getValue().getFilePath());
+            if (!copyFile.renameTo(targetTmpFile)) {
+                LOGGER.error("Rename file failed: {}", targetTmpFile.getAbsolutePath());
+                return MbtilesOfMergeProgress.STATUS_FAILED;
             }
+        }
 
-            updateMetadata(wrapper, jdbcTemplate);
-            JdbcUtils.getInstance().releaseJdbcTemplate(jdbcTemplate);
+        //最大的文件作为底本，其余文件按顺序合并，同一坐标以后合并的为准
+        List<String> order = new ArrayList<>(sourceNamePaths);
+        order.remove(largestFilePath);
+        order.addFirst(largestFilePath);
+        long totalBytes = order.stream().mapToLong(item -> new File(item).length()).sum();
 
-            if (targetTmpFile.renameTo(new File(targetFilePath))) {
-                mergeTaskProgress.put(taskId, 100);
-            } else {
-                LOGGER.error("Rename file failed: {}", targetFilePath);
+        boolean union = unionLayers && AppConfig.FILE_EXTENSION_NAME_PBF.equals("." + wrapper.getFormat());
+        if (unionLayers && !union) {
+            LOGGER.warn("Only vector tiles can be merged by layers, format: {}", wrapper.getFormat());
+        }
+        boolean cancelled = false;
+        try (MbtilesMerger merger = new MbtilesMerger(targetTmpFile.getAbsolutePath(), order, MbtilesMerger.DEFAULT_CHUNK_SIZE, union)) {
+            merger.markDone(largestFilePath, needMerges.get(largestFilePath).getCount());
+            task.start(wrapper.getTotalCount(), merger.getCopiedCount(), (double) totalBytes / Math.max(1, wrapper.getTotalCount()));
+            for (String source : order.subList(1, order.size())) {
+                boolean complete = merger.merge(source, copied -> {
+                    task.addComplete(copied);
+                    return !task.isCancelled();
+                });
+                if (!complete) {
+                    cancelled = true;
+                    break;
+                }
+                LOGGER.info("Merged file: {}", source);
             }
-        } else {
-            mergeTaskProgress.put(taskId, -1);
+            if (!cancelled) {
+                merger.finish();
+                merger.updateMetadata(buildMetadata(wrapper));
+            }
+        } catch (SQLException e) {
+            //保留临时文件，重新提交同一任务或重启服务后从断点继续
+            LOGGER.error("Merge mbtiles failed: {}", e.getMessage());
+            return MbtilesOfMergeProgress.STATUS_FAILED;
+        }
+
+        if (cancelled) {
+            deleteQuietly(targetTmpFile);
+            deleteQuietly(new File(targetTmpFile.getAbsolutePath() + "-wal"));
+            LOGGER.info("Merge task cancelled: {}", task.getTaskId());
+            return MbtilesOfMergeProgress.STATUS_CANCELLED;
+        }
+        MbtilesOfMergeProgress progress = task.toProgress();
+        LOGGER.info("Merged {} tiles, {} tiles/s, {} bytes/s", progress.getCompleteCount(), progress.getTilesPerSecond(), progress.getBytesPerSecond());
+        if (targetTmpFile.renameTo(new File(targetFilePath))) {
+            return MbtilesOfMergeProgress.STATUS_COMPLETED;
+        }
+        LOGGER.error("Rename file failed: {}", targetFilePath);
+        return MbtilesOfMergeProgress.STATUS_FAILED;
+    }
+
+    private void deleteQuietly(File file) {
+        if (file.exists() && !file.delete()) {
+            LOGGER.warn("Delete file failed: {}", file.getAbsolutePath());
+        }
+    }
+
+    /**
+     * 取消运行中的合并任务，已写入的临时文件会被删除
+     *
+     * @param taskId 任务ID
+     * @return 任务不存在或不在运行中时为false
+     */
+    public boolean cancelTask(String taskId) {
+        return cancelTask(mergeTasks, taskId);
+    }
+
+    private boolean cancelTask(Map<String, MbtilesMergeTask> tasks, String taskId) {
+        MbtilesMergeTask task = tasks.get(taskId);
+        if (task == null || !task.isRunning()) {
+            return false;
         }
+        task.cancel();
+        return true;
     }
 
-    private void updateMetadata(MbtileMergeWrapper wrapper, JdbcTemplate jdbcTemplate) {
+    private void releaseSourceFiles(List<MbtileMergeFile> sourceFiles) {
+        sourceFiles.forEach(item -> JdbcUtils.getInstance().releaseJdbcTemplate(item.getJdbcTemplate()));
+    }
+
+    private Map<String, String> buildMetadata(MbtileMergeWrapper wrapper) {
         String bounds = wrapper.getMinLon() + "," + wrapper.getMinLat() + "," + wrapper.getMaxLon() + "," + wrapper.getMaxLat();
-        jdbcTemplate.update("UPDATE metadata SET value = " + wrapper.getMinZoom() + " WHERE name = 'minzoom'");
-        jdbcTemplate.update("UPDATE metadata SET value = " + wrapper.getMaxZoom() + " WHERE name = 'maxzoom'");
-        jdbcTemplate.update("UPDATE metadata SET value = '" + bounds + "' WHERE name = 'bounds'");
+        Map<String, String> metadata = new LinkedHashMap<>();
+        metadata.put("minzoom", String.valueOf(wrapper.getMinZoom()));
+        metadata.put("maxzoom", String.valueOf(wrapper.getMaxZoom()));
+        metadata.put("bounds", bounds);
+        return metadata;
     }
 
     private Optional<MbtileMergeWrapper> arrange(List<String> sourceNamePaths) {
@@ -340,40 +600,133 @@ public class AsyncService {
     }
 
 
-    public void mergeTo(MbtileMergeFile mbtile, JdbcTemplate jdbcTemplate) {
-        int pageSize = 5000;
-        long totalPage = mbtile.getCount() % pageSize == 0 ? mbtile.getCount() / pageSize : mbtile.getCount() / pageSize + 1;
-        for (long currentPage = 0; currentPage < totalPage; currentPage++) {
-            List<Map<String, Object>> dataList = mbtile.getJdbcTemplate().queryForList("SELECT * FROM tiles LIMIT " + pageSize + " OFFSET " + currentPage * pageSize);
-            jdbcTemplate.batchUpdate("INSERT INTO tiles (zoom_level, tile_column, tile_row, tile_data) VALUES (?, ?, ?, ?)", dataList, pageSize, (PreparedStatement ps, Map<String, Object> rowDataMap) -> {
-                ps.setInt(1, (int) rowDataMap.get("zoom_level"));
-                ps.setInt(2, (int) rowDataMap.get("tile_column"));
-                ps.setInt(3, (int) rowDataMap.get("tile_row"));
-                ps.setBytes(4, (byte[]) rowDataMap.get("tile_data"));
-            });
-        }
-    }
-
     private MbtileMergeFile wrapModel(String item) {
         JdbcTemplate jdbcTemplate = JdbcUtils.getInstance().getJdbcTemplate(appConfig.getDriverClassName(), item);
         return new MbtileMergeFile(item, jdbcTemplate);
     }
 
 
+    /**
+     * 计算合并任务ID，与源文件的顺序无关。对副本排序，不改变调用方列表中决定合并优先级的顺序
+     *
+     * @param sourceNamePaths 源文件路径
+     * @return 任务ID
+     */
     public String computeTaskId(List<String> sourceNamePaths) {
-        Collections.sort(sourceNamePaths);
+        List<String> sorted = new ArrayList<>(sourceNamePaths);
+        Collections.sort(sorted);
         StringBuilder sb = new StringBuilder();
-        sourceNamePaths.forEach(sb::append);
+        sorted.forEach(sb::append);
         return DigestUtils.md5DigestAsHex(sb.toString().getBytes());
     }
 
     public Optional<MbtilesOfMergeProgress> getTask(String taskId) {
-        if (mergeTaskProgress.containsKey(taskId)) {
-            Integer i = mergeTaskProgress.get(taskId);
-            return Optional.of(new MbtilesOfMergeProgress(taskId, i));
+        return Optional.ofNullable(mergeTasks.get(taskId)).map(MbtilesMergeTask::toProgress);
+    }
+
+    /**
+     * 登记裁剪任务，规则与合并任务一致
+     *
+     * @param taskId         任务ID
+     * @param targetFilePath 目标文件名字
+     * @return 新登记的任务，已存在时为空
+     */
+    public Optional<MbtilesMergeTask> createExtractTask(String taskId, String targetFilePath) {
+        return createTask(extractTasks, taskId, targetFilePath);
+    }
+
+    public Optional<MbtilesOfMergeProgress> getExtractTask(String taskId) {
+        return Optional.ofNullable(extractTasks.get(taskId)).map(MbtilesMergeTask::toProgress);
+    }
+
+    /**
+     * 取消运行中的裁剪任务，未完成的目标文件会被删除
+     *
+     * @param taskId 任务ID
+     * @return 任务不存在或不在运行中时为false
+     */
+    public boolean cancelExtractTask(String taskId) {
+        return cancelTask(extractTasks, taskId);
+    }
+
+    /**
+     * 从mbtiles中按范围和层级裁剪出新的mbtiles文件，先写入临时文件，完成后改名。
+     *
+     * @param task    通过createExtractTask登记的任务
+     * @param tileset 源mbtiles文件名称
+     * @param area    裁剪范围，经纬度坐标
+     * @param minZoom 最小层级
+     * @param maxZoom 最大层级
+     */
+    @Async("asyncServiceExecutor")
+    public void extract(MbtilesMergeTask task, String tileset, Geometry area, int minZoom, int maxZoom) {
+        TilesFileModel model = mapServerDataCenter.getTilesFileModel(tileset);
+        if (model == null) {
+            task.setStatus(MbtilesOfMergeProgress.STATUS_FAILED);
+            return;
+        }
+        File targetTmpFile = new File(task.getTargetFilePath() + ".tmp");
+        deleteQuietly(targetTmpFile);
+
+        boolean complete;
+        try (MbtilesExtractor extractor = new MbtilesExtractor(targetTmpFile.getAbsolutePath(), model.getFilePath())) {
+            List<MbtilesExtractor.TileRange> ranges = new ArrayList<>();
+            for (int z = minZoom; z <= maxZoom; z++) {
+                ranges.addAll(MbtilesExtractor.computeRanges(area, z));
+            }
+            long tilesCount = model.getTilesCount();
+            double bytesPerTile = tilesCount > 0 ? (double) new File(model.getFilePath()).length() / tilesCount : 0;
+            task.start(extractor.count(ranges), 0, bytesPerTile);
+            complete = extractor.extract(ranges, copied -> {
+                task.addComplete(copied);
+                return !task.isCancelled();
+            });
+            if (complete) {
+                extractor.finish(buildExtractMetadata(model.getMetaDataMap(), area, minZoom, maxZoom));
+            }
+        } catch (SQLException e) {
+            LOGGER.error("Extract mbtiles failed: {}", e.getMessage());
+            deleteQuietly(targetTmpFile);
+            task.setStatus(MbtilesOfMergeProgress.STATUS_FAILED);
+            return;
+        }
+
+        if (!complete) {
+            deleteQuietly(targetTmpFile);
+            LOGGER.info("Extract task cancelled: {}", task.getTaskId());
+            task.setStatus(MbtilesOfMergeProgress.STATUS_CANCELLED);
+        } else if (targetTmpFile.renameTo(new File(task.getTargetFilePath()))) {
+            MbtilesOfMergeProgress progress = task.toProgress();
+            LOGGER.info("Extracted {} tiles from {}, {} tiles/s", progress.getCompleteCount(), tileset, progress.getTilesPerSecond());
+            task.setStatus(MbtilesOfMergeProgress.STATUS_COMPLETED);
         } else {
-            return Optional.empty();
+            LOGGER.error("Rename file failed: {}", task.getTargetFilePath());
+            task.setStatus(MbtilesOfMergeProgress.STATUS_FAILED);
+        }
+    }
+
+    private Map<String, String> buildExtractMetadata(Map<String, String> sourceMetadata, Geometry area, int minZoom, int maxZoom) {
+        Envelope envelope = new Envelope(area.getEnvelopeInternal());
+        String sourceBounds = sourceMetadata.get("bounds");
+        if (sourceBounds != null) {
+            String[] split = sourceBounds.split(",");
+            if (split.length == 4) {
+                try {
+                    envelope = envelope.intersection(new Envelope(Double.parseDouble(split[0]), Double.parseDouble(split[2]),
+                            Double.parseDouble(split[1]), Double.parseDouble(split[3])));
+                } catch (NumberFormatException e) {
+                    LOGGER.warn("Invalid bounds of source: {}", sourceBounds);
+                }
+            }
+        }
+        Map<String, String> metadata = new LinkedHashMap<>();
+        metadata.put("minzoom", String.valueOf(minZoom));
+        metadata.put("maxzoom", String.valueOf(maxZoom));
+        if (!envelope.isNull()) {
+            metadata.put("bounds", envelope.getMinX() + "," + envelope.getMinY() + "," + envelope.getMaxX() + "," + envelope.getMaxY());
+            metadata.put("center", envelope.centre().x + "," + envelope.centre().y + "," + minZoom);
         }
+        return metadata;
     }
 
     public void indexPoi(File csvFile) {
@@ -381,6 +734,7 @@ public class AsyncService {
         String poiFile = absolutePath.substring(0, absolutePath.lastIndexOf(".")) + ".poi";
         if (new File(poiFile).exists()) {
             LOGGER.info("The file of poi already exists: {}", poiFile);
+            upgradePoiIndex(poiFile);
             return;
         }
         JdbcTemplate jdbcTemplate = JdbcUtils.getInstance().getJdbcTemplate(appConfig.getDriverClassName(), poiFile);
@@ -403,6 +757,8 @@ public class AsyncService {
                 }
             }
             insertTable(jdbcTemplate, data);
+            PoiFullTextIndex.build(jdbcTemplate);
+            PoiSpatialIndex.build(jdbcTemplate);
             JdbcUtils.getInstance().releaseJdbcTemplate(jdbcTemplate);
             LOGGER.info("Index poi of count: {}", i);
         } catch (IOException e) {
@@ -410,6 +766,28 @@ public class AsyncService {
         }
     }
 
+    /**
+     * 为旧版本的POI文件补建全文索引和空间索引
+     *
+     * @param poiFile poi或idx文件
+     */
+    private void upgradePoiIndex(String poiFile) {
+        JdbcTemplate jdbcTemplate = JdbcUtils.getInstance().getJdbcTemplate(appConfig.getDriverClassName(), poiFile);
+        try {
+            if (!PoiFullTextIndex.isReady(jdbcTemplate)) {
+                LOGGER.info("Build full text index of poi file: {}", poiFile);
+                PoiFullTextIndex.build(jdbcTemplate);
+            }
+            if (!PoiSpatialIndex.isReady(jdbcTemplate) && PoiSpatialIndex.build(jdbcTemplate)) {
+                LOGGER.info("Build spatial index of poi file: {}", poiFile);
+            }
+        } catch (DataAccessException e) {
+            LOGGER.error("Build index of poi file failed: {}, {}", poiFile, e.getMessage());
+        } finally {
+            JdbcUtils.getInstance().releaseJdbcTemplate(jdbcTemplate);
+        }
+    }
+
     private void insertTable(JdbcTemplate jdbcTemplate, List<String[]> data) {
         jdbcTemplate.batchUpdate("INSERT INTO poi (id, name, category, subcategory, lon, lat, srid, wkt, opening_hours, alternative_name, postcode, phone, street, email, last_update, name_en, image, wikipedia, city, country, operator, description, housenumber, international_name, fax, website, other_tags) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?,?, ?, ?, ?, ?, ?, ?, ?, ?, ?,?, ?, ?, ?, ?, ?, ?)", data, data.size(), (PreparedStatement ps, String[] row) -> {
             ps.setString(1, row[0]);
@@ -474,4 +852,10 @@ public class AsyncService {
         sb.append(split[26].toLowerCase(Locale.getDefault())).append(" TEXT)");
         jdbcTemplate.execute(sb.toString());
     }
+
+    /**
+     * 待提取POI的瓦片
+     */
+    private record PoiTile(int column, int row, byte[] data) {
+    }
 }
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2024 QMJY.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+
+package io.github.qmjy.mapserver.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.github.qmjy.mapserver.config.AppConfig;
+import io.github.qmjy.mapserver.util.IOUtils;
+import io.github.qmjy.mapserver.util.VectorTileUtils;
+import org.springframework.stereotype.Service;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Function;
+
+/**
+ * 矢量瓦片叠加服务。<br>
+ * 从底图和多个专题瓦片集读取同一位置的瓦片，按顺序合并图层后作为一个瓦片返回，客户端每个位置只需要请求一次。
+ * 合并结果以GZIP压缩后按(瓦片集列表, 瓦片坐标)缓存。
+ *
+ * @author liushaofeng
+ */
+@Service
+public class CompositeTileService {
+
+    /**
+     * 每个缓存条目除瓦片数据之外的估算开销
+     */
+    private static final int ENTRY_OVERHEAD = 128;
+
+    private final Cache<TileKey, byte[]> cache;
+
+    public CompositeTileService(AppConfig appConfig) {
+        long maxBytes = appConfig.getTileCompositeCacheMaxBytes();
+        this.cache = maxBytes > 0 ? Caffeine.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher((TileKey key, byte[] value) -> value.length + ENTRY_OVERHEAD)
+                .build() : null;
+    }
+
+    /**
+     * 获取合并后的瓦片
+     *
+     * @param tilesets    参与合并的瓦片集，按叠加顺序排列，图层重名时后面的瓦片集的图层被重命名
+     * @param z           瓦片层级
+     * @param x           瓦片列号
+     * @param y           瓦片行号
+     * @param acceptsGzip 客户端是否接受GZIP，不接受时返回解压后的数据
+     * @param loader      读取单个瓦片集未压缩瓦片的方法
+     * @return 合并后的瓦片数据，所有瓦片集都没有该瓦片时为空
+     */
+    public Optional<byte[]> getTile(List<String> tilesets, int z, int x, int y, boolean acceptsGzip,
+                                    Function<String, Optional<byte[]>> loader) {
+        Optional<byte[]> compressed = cache == null ? composite(tilesets, loader)
+                : Optional.ofNullable(cache.get(new TileKey(List.copyOf(tilesets), z, x, y), key -> composite(tilesets, loader).orElse(null)));
+        return acceptsGzip ? compressed : compressed.map(IOUtils::decompress);
+    }
+
+    private Optional<byte[]> composite(List<String> tilesets, Function<String, Optional<byte[]>> loader) {
+        Map<String, byte[]> tiles = new LinkedHashMap<>();
+        for (String tileset : tilesets) {
+            loader.apply(tileset).ifPresent(data -> tiles.put(tileset, data));
+        }
+        if (tiles.isEmpty()) {
+            return Optional.empty();
+        }
+        return VectorTileUtils.composite(tiles).map(IOUtils::compress);
+    }
+
+    /**
+     * 清除包含指定瓦片集的合并结果，数据源变更时调用
+     *
+     * @param tileset 瓦片集名称
+     */
+    public void invalidate(String tileset) {
+        if (cache != null) {
+            cache.asMap().keySet().removeIf(key -> key.tilesets().contains(tileset));
+        }
+    }
+
+    /**
+     * 缓存键
+     */
+    private record TileKey(List<String> tilesets, int z, int x, int y) {
+    }
+}
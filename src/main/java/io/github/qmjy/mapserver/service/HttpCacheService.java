@@ -0,0 +1,322 @@
+/*
+ * Copyright (c) 2024 QMJY.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+
+package io.github.qmjy.mapserver.service;
+
+import io.github.qmjy.mapserver.config.AppConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Service;
+import org.springframework.web.context.request.WebRequest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HTTP缓存校验服务。<br>
+ * 瓦片的ETag由瓦片集版本和瓦片坐标组成，判断是否返回304时不需要读取瓦片数据。瓦片集版本由文件名、大小、修改时间和文件头计算，
+ * SQLite的文件头中包含每次写事务都会递增的修改计数；WAL模式下写入先进入-wal文件，因此-wal文件的大小和修改时间也参与计算。
+ * 版本缓存一小段时间后重新检查文件状态，状态变化时才重新读取文件头。请求路径中带有与当前一致的瓦片集版本时，响应标记为immutable并长期缓存。
+ *
+ * @author liushaofeng
+ */
+@Service
+public class HttpCacheService {
+    private static final Logger logger = LoggerFactory.getLogger(HttpCacheService.class);
+
+    /**
+     * 参与瓦片集版本计算的文件头字节数
+     */
+    private static final int HEADER_BYTES = 4096;
+
+    /**
+     * 瓦片集版本的重新检查间隔（毫秒），期间的请求直接使用缓存的版本
+     */
+    private static final long VERSION_CHECK_MILLIS = 1000;
+
+    /**
+     * 版本化路径的缓存时间，一年
+     */
+    private static final long IMMUTABLE_MAX_AGE_SECONDS = 365L * 24 * 60 * 60;
+
+    private final AppConfig appConfig;
+    private final Map<String, TilesetVersion> versions = new ConcurrentHashMap<>();
+
+    public HttpCacheService(AppConfig appConfig) {
+        this.appConfig = appConfig;
+    }
+
+    /**
+     * 获取瓦片集版本
+     *
+     * @param tileset 瓦片集文件名
+     * @return 瓦片集版本，瓦片目录或文件不存在时为空
+     */
+    public Optional<String> getTilesetVersion(String tileset) {
+        return getVersion(tileset).map(TilesetVersion::version);
+    }
+
+    /**
+     * 生成瓦片的缓存校验信息
+     *
+     * @param tileset 瓦片集名称
+     * @param version 请求路径中的瓦片集版本，可为空
+     * @param z       瓦片层级
+     * @param x       瓦片列号
+     * @param y       瓦片行号
+     * @param variant 同一瓦片的不同表示，例如编码、裁剪规则，没有时为空字符串
+     * @return 缓存校验信息，瓦片集不存在时为空
+     */
+    public Optional<CacheValidator> tileValidator(String tileset, @Nullable String version, int z, int x, int y, String variant) {
+        Optional<TilesetVersion> versionOpt = getVersion(tileset);
+        if (versionOpt.isPresent()) {
+            TilesetVersion current = versionOpt.get();
+            String etag = etag(current.version() + "-" + z + "-" + x + "-" + y, variant);
+            //路径中的版本已经过期时仍然返回当前数据，但不能再标记为immutable
+            return Optional.of(new CacheValidator(etag, current.lastModified(), current.version().equals(version), false));
+        }
+
+        //瓦片目录中的每个瓦片是单独的文件，以文件大小和修改时间作为版本
+        File tile = new File(getTilesetsPath() + tileset + File.separator + z + File.separator + x + File.separator + y + AppConfig.FILE_EXTENSION_NAME_PBF);
+        return fileValidator(tile, variant);
+    }
+
+    /**
+     * 生成叠加瓦片的缓存校验信息，由各瓦片集的版本共同决定
+     *
+     * @param tilesets 参与叠加的瓦片集，按叠加顺序排列
+     * @param z        瓦片层级
+     * @param x        瓦片列号
+     * @param y        瓦片行号
+     * @param variant  同一瓦片的不同表示，没有时为空字符串
+     * @return 缓存校验信息，任一瓦片集没有版本（例如瓦片目录、虚拟瓦片集）时为空
+     */
+    public Optional<CacheValidator> compositeValidator(List<String> tilesets, int z, int x, int y, String variant) {
+        StringBuilder versionsOfTilesets = new StringBuilder();
+        long lastModified = 0;
+        for (String tileset : tilesets) {
+            Optional<TilesetVersion> versionOpt = getVersion(tileset);
+            if (versionOpt.isEmpty()) {
+                return Optional.empty();
+            }
+            versionsOfTilesets.append(tileset).append('@').append(versionOpt.get().version()).append(',');
+            lastModified = Math.max(lastModified, versionOpt.get().lastModified());
+        }
+        String etag = etag(hash(versionsOfTilesets.toString()) + "-" + z + "-" + x + "-" + y, variant);
+        return Optional.of(new CacheValidator(etag, lastModified, false, false));
+    }
+
+    /**
+     * 生成数据文件的缓存校验信息，用于字体、雪碧图、样式等按文件返回的数据
+     *
+     * @param file    数据文件
+     * @param variant 同一文件的不同表示，没有时为空字符串
+     * @return 缓存校验信息，文件不存在时为空
+     */
+    public Optional<CacheValidator> fileValidator(File file, String variant) {
+        long lastModified = file.lastModified();
+        if (lastModified == 0 || !file.isFile()) {
+            return Optional.empty();
+        }
+        return Optional.of(new CacheValidator(etag(hash(file.getName() + ":" + file.length() + ":" + lastModified), variant), lastModified, false, false));
+    }
+
+    /**
+     * 检查客户端缓存是否仍然有效，If-None-Match优先于If-Modified-Since。<br>
+     * 不使用WebRequest.checkNotModified：它会直接在响应上写入强ETag和Last-Modified，与{@link #headers}写入的校验信息重复。
+     *
+     * @param request   请求
+     * @param validator 缓存校验信息
+     * @param <T>       响应类型
+     * @return 客户端缓存有效时为304响应
+     */
+    public <T> Optional<ResponseEntity<T>> checkNotModified(WebRequest request, Optional<CacheValidator> validator) {
+        if (validator.isPresent() && isNotModified(request.getHeaderValues(HttpHeaders.IF_NONE_MATCH),
+                request.getHeader(HttpHeaders.IF_MODIFIED_SINCE), validator.get())) {
+            return Optional.of(ResponseEntity.status(HttpStatus.NOT_MODIFIED).headers(headers(validator.get())).build());
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * 按请求头判断客户端缓存是否有效。If-None-Match使用弱比较，忽略W/前缀
+     *
+     * @param ifNoneMatch     If-None-Match请求头，可为空
+     * @param ifModifiedSince If-Modified-Since请求头，可为空
+     * @param validator       缓存校验信息
+     * @return 客户端缓存是否有效
+     */
+    static boolean isNotModified(@Nullable String[] ifNoneMatch, @Nullable String ifModifiedSince, CacheValidator validator) {
+        if (ifNoneMatch != null && ifNoneMatch.length > 0) {
+            for (String header : ifNoneMatch) {
+                for (String tag : header.split(",")) {
+                    String value = tag.trim();
+                    if ("*".equals(value) || (value.startsWith("W/") ? value.substring(2) : value).equals(validator.etag())) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+        if (ifModifiedSince == null) {
+            return false;
+        }
+        try {
+            long since = ZonedDateTime.parse(ifModifiedSince, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+            //HTTP日期只精确到秒
+            return validator.lastModified() / 1000 * 1000 <= since;
+        } catch (DateTimeParseException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 生成缓存相关的响应头，200和304响应使用同一个校验信息，ETag的强弱保持一致
+     *
+     * @param validator 缓存校验信息
+     * @return ETag、Last-Modified和Cache-Control响应头
+     */
+    public HttpHeaders headers(CacheValidator validator) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setETag(validator.weak() ? "W/" + validator.etag() : validator.etag());
+        headers.setLastModified(validator.lastModified());
+        if (validator.immutable()) {
+            headers.setCacheControl(CacheControl.maxAge(IMMUTABLE_MAX_AGE_SECONDS, TimeUnit.SECONDS).cachePublic().immutable());
+        } else if (appConfig.getHttpCacheMaxAge() > 0) {
+            headers.setCacheControl(CacheControl.maxAge(appConfig.getHttpCacheMaxAge(), TimeUnit.SECONDS).cachePublic());
+        } else {
+            headers.setCacheControl(CacheControl.noCache().cachePublic());
+        }
+        return headers;
+    }
+
+    /**
+     * 移除瓦片集版本，数据源变更时调用
+     *
+     * @param tileset 瓦片集名称
+     */
+    public void invalidate(String tileset) {
+        versions.remove(tileset);
+    }
+
+    private Optional<TilesetVersion> getVersion(String tileset) {
+        TilesetVersion version = versions.get(tileset);
+        long now = System.currentTimeMillis();
+        if (version != null && now - version.checkedAt() < VERSION_CHECK_MILLIS) {
+            return Optional.of(version);
+        }
+        File file = new File(getTilesetsPath() + tileset);
+        if (!file.isFile()) {
+            versions.remove(tileset);
+            return Optional.empty();
+        }
+        File wal = new File(file.getAbsolutePath() + "-wal");
+        String stamp = file.length() + ":" + file.lastModified() + ":" + wal.length() + ":" + wal.lastModified();
+        if (version != null && version.stamp().equals(stamp)) {
+            version = new TilesetVersion(version.version(), version.lastModified(), stamp, now);
+            versions.put(tileset, version);
+            return Optional.of(version);
+        }
+        try {
+            version = computeVersion(file, stamp, Math.max(file.lastModified(), wal.lastModified()), now);
+            versions.put(tileset, version);
+            return Optional.of(version);
+        } catch (IOException e) {
+            logger.warn("Compute tileset version failed: {}", file.getAbsolutePath());
+            return Optional.empty();
+        }
+    }
+
+    private TilesetVersion computeVersion(File file, String stamp, long lastModified, long now) throws IOException {
+        MessageDigest digest = sha256();
+        digest.update((file.getName() + ":" + stamp).getBytes(StandardCharsets.UTF_8));
+        try (InputStream inputStream = Files.newInputStream(file.toPath())) {
+            digest.update(inputStream.readNBytes(HEADER_BYTES));
+        }
+        return new TilesetVersion(HexFormat.of().formatHex(digest.digest(), 0, 8), lastModified, stamp, now);
+    }
+
+    private String getTilesetsPath() {
+        return appConfig.getDataPath() + File.separator + "tilesets" + File.separator;
+    }
+
+    private static String etag(String tag, String variant) {
+        return "\"" + (variant.isEmpty() ? tag : tag + "-" + hash(variant)) + "\"";
+    }
+
+    private static String hash(String value) {
+        return HexFormat.of().formatHex(sha256().digest(value.getBytes(StandardCharsets.UTF_8)), 0, 8);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 缓存校验信息
+     *
+     * @param etag         ETag的值，带引号，不带W/前缀
+     * @param lastModified 最后修改时间（毫秒）
+     * @param immutable    是否为当前版本的版本化路径
+     * @param weak         是否使用弱ETag
+     */
+    public record CacheValidator(String etag, long lastModified, boolean immutable, boolean weak) {
+
+        /**
+         * 改为弱ETag。响应可能由服务器压缩时使用，Tomcat不会压缩带强ETag的响应
+         *
+         * @return 使用弱ETag的校验信息
+         */
+        public CacheValidator asWeak() {
+            return new CacheValidator(etag, lastModified, immutable, true);
+        }
+    }
+
+    /**
+     * 瓦片集版本
+     *
+     * @param version      版本
+     * @param lastModified 文件和-wal文件的最后修改时间（毫秒）
+     * @param stamp        计算版本时文件和-wal文件的大小及修改时间
+     * @param checkedAt    最近一次检查文件状态的时间（毫秒）
+     */
+    private record TilesetVersion(String version, long lastModified, String stamp, long checkedAt) {
+    }
+}
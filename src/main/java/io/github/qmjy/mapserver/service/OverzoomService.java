@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2024 QMJY.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.github.qmjy.mapserver.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.wdtinc.mapbox_vector_tile.adapt.jts.model.JtsMvt;
+import io.github.qmjy.mapserver.config.AppConfig;
+import io.github.qmjy.mapserver.util.VectorTileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.io.ByteArrayInputStream;
+import java.util.Optional;
+
+/**
+ * 矢量瓦片超级缩放服务。<br>
+ * 请求层级超过瓦片集的最大层级时，读取最大层级上的祖先瓦片，按子瓦片范围裁剪并放大几何坐标后重新编码，要素ID原样保留，
+ * 生成的瓦片放在独立的缓存中，避免挤占原始瓦片的缓存。
+ *
+ * @author liushaofeng
+ */
+@Service
+public class OverzoomService {
+    private static final Logger logger = LoggerFactory.getLogger(OverzoomService.class);
+
+    /**
+     * 裁剪时在子瓦片四周保留的缓冲区，单位为瓦片extent坐标，避免线宽和标注在瓦片边界处被截断
+     */
+    private static final int CLIP_BUFFER = 64;
+
+    /**
+     * 每个缓存条目除瓦片数据之外的估算开销
+     */
+    private static final int ENTRY_OVERHEAD = 96;
+
+    private final int maxLevels;
+    private final Cache<TileKey, byte[]> cache;
+
+    public OverzoomService(AppConfig appConfig) {
+        this.maxLevels = appConfig.getOverzoomMaxLevels();
+        long maxBytes = appConfig.getOverzoomCacheMaxBytes();
+        if (maxLevels > 0 && maxBytes > 0) {
+            this.cache = Caffeine.newBuilder()
+                    .maximumWeight(maxBytes)
+                    .weigher((TileKey key, byte[] value) -> value.length + ENTRY_OVERHEAD)
+                    .build();
+        } else {
+            this.cache = null;
+        }
+    }
+
+    /**
+     * 生成超出最大层级的瓦片
+     *
+     * @param tileset  瓦片集名称
+     * @param maxzoom  瓦片集的最大层级
+     * @param z        瓦片层级
+     * @param x        瓦片列号
+     * @param y        瓦片行号（TMS）
+     * @param ancestor 读取祖先瓦片的方法，返回未压缩的MVT数据
+     * @return 未压缩的MVT数据，超出允许的层级或祖先瓦片不存在时为空
+     */
+    public Optional<byte[]> getTile(String tileset, int maxzoom, int z, int x, int y, AncestorLoader ancestor) {
+        int dz = z - maxzoom;
+        if (dz <= 0 || dz > maxLevels || x < 0 || y < 0 || x >= (1 << z) || y >= (1 << z)) {
+            return Optional.empty();
+        }
+        if (cache == null) {
+            return generate(maxzoom, z, x, y, ancestor);
+        }
+        return Optional.ofNullable(cache.get(new TileKey(tileset, z, x, y), key -> generate(maxzoom, z, x, y, ancestor).orElse(null)));
+    }
+
+    /**
+     * 清除指定瓦片集生成的瓦片，数据源变更时调用
+     *
+     * @param tileset 瓦片集名称
+     */
+    public void invalidate(String tileset) {
+        if (cache != null) {
+            cache.asMap().keySet().removeIf(key -> key.tileset().equals(tileset));
+        }
+    }
+
+    private Optional<byte[]> generate(int maxzoom, int z, int x, int y, AncestorLoader ancestor) {
+        int dz = z - maxzoom;
+        //裁剪在自上而下的瓦片坐标系中进行
+        int row = (1 << z) - 1 - y;
+        int ancestorX = x >> dz;
+        int ancestorRow = row >> dz;
+        Optional<byte[]> ancestorOpt = ancestor.load(maxzoom, ancestorX, (1 << maxzoom) - 1 - ancestorRow);
+        if (ancestorOpt.isEmpty()) {
+            return Optional.empty();
+        }
+        Optional<JtsMvt> mvtOpt = VectorTileUtils.decodeJtsMvt(new ByteArrayInputStream(ancestorOpt.get()), true);
+        if (mvtOpt.isEmpty()) {
+            logger.warn("Decode ancestor tile {}/{}/{} failed.", maxzoom, ancestorX, ancestorRow);
+            return Optional.empty();
+        }
+        JtsMvt child = VectorTileUtils.overzoom(mvtOpt.get(), dz, x - (ancestorX << dz), row - (ancestorRow << dz), CLIP_BUFFER);
+        return Optional.of(VectorTileUtils.encodeJtsMvt(child));
+    }
+
+    /**
+     * 祖先瓦片读取方法
+     */
+    @FunctionalInterface
+    public interface AncestorLoader {
+
+        /**
+         * 读取瓦片
+         *
+         * @param z 瓦片层级
+         * @param x 瓦片列号
+         * @param y 瓦片行号（TMS）
+         * @return 未压缩的MVT数据
+         */
+        Optional<byte[]> load(int z, int x, int y);
+    }
+
+    /**
+     * 缓存键
+     */
+    private record TileKey(String tileset, int z, int x, int y) {
+    }
+}
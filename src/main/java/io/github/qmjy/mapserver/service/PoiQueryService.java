@@ -0,0 +1,424 @@
+/*
+ * Copyright (c) 2024 QMJY.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.github.qmjy.mapserver.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.github.qmjy.mapserver.MapServerDataCenter;
+import io.github.qmjy.mapserver.config.AppConfig;
+import io.github.qmjy.mapserver.util.BackendLimiter;
+import io.github.qmjy.mapserver.util.PoiFullTextIndex;
+import io.github.qmjy.mapserver.util.PoiSpatialIndex;
+import io.github.qmjy.mapserver.util.SourceRegistry;
+import io.github.qmjy.mapserver.util.SqliteReadPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * POI查询服务。<br>
+ * 每个POI文件只打开一个只读连接池，连接上缓存预编译语句；文件被替换后重新打开，空闲一段时间后关闭。
+ * 相同的关键词和分页在短时间内重复查询时直接返回缓存的结果。有空间索引的文件支持半径、矩形范围和k近邻查询。<br>
+ * 查询与瓦片读取一样先获取该文件的读取许可，后端饱和时抛出过载异常。
+ *
+ * @author liushaofeng
+ */
+@Service
+public class PoiQueryService implements DisposableBean {
+    private static final Logger logger = LoggerFactory.getLogger(PoiQueryService.class);
+
+    /**
+     * 结果中距离字段的名称，单位米
+     */
+    public static final String DISTANCE = "distance";
+
+    /**
+     * 空间查询时从R*Tree读取的最大候选数
+     */
+    private static final int MAX_CANDIDATES = 50000;
+
+    /**
+     * k近邻查询的初始半径，单位米
+     */
+    private static final double KNN_INITIAL_RADIUS = 500;
+
+    /**
+     * k近邻查询的最大半径，超过后返回已找到的POI
+     */
+    private static final double KNN_MAX_RADIUS = Math.PI * PoiSpatialIndex.EARTH_RADIUS;
+
+    private static final int KNN_MAX_ITERATIONS = 32;
+
+    private final AppConfig appConfig;
+    private final SourceRegistry<PoiSource> sources = new SourceRegistry<>(source -> source.pool.close());
+    private final Cache<SearchKey, List<Map<String, Object>>> cache;
+
+    public PoiQueryService(AppConfig appConfig) {
+        this.appConfig = appConfig;
+        long ttl = appConfig.getPoiSearchCacheTtlSeconds();
+        this.cache = ttl > 0 ? Caffeine.newBuilder()
+                .expireAfterWrite(Duration.ofSeconds(ttl))
+                .maximumSize(appConfig.getPoiSearchCacheMaxSize())
+                .build() : null;
+    }
+
+    /**
+     * 搜索名称同时包含所有关键词的POI
+     *
+     * @param poiFile  POI文件名，.poi文件位于poi目录，否则为tilesets目录下瓦片集对应的.idx文件
+     * @param keywords 关键词
+     * @param limit    返回的条数
+     * @param offset   跳过的条数
+     * @return poi表的记录，POI文件不存在时为空
+     * @throws SQLException 数据库访问异常
+     */
+    public Optional<List<Map<String, Object>>> search(String poiFile, List<String> keywords, int limit, long offset) throws SQLException {
+        File file = resolve(poiFile);
+        if (!file.isFile()) {
+            return Optional.empty();
+        }
+        //文件被替换后长度或修改时间变化，不会命中替换前的结果
+        SearchKey key = new SearchKey(poiFile, file.length(), file.lastModified(), keywords, limit, offset);
+        List<Map<String, Object>> cached = cache == null ? null : cache.getIfPresent(key);
+        if (cached != null) {
+            return Optional.of(cached);
+        }
+        Optional<List<Map<String, Object>>> result = withSource(poiFile, source ->
+                Optional.of(execute(source, PoiFullTextIndex.buildSearch(keywords, source.fts, limit, offset))));
+        if (cache != null && result.isPresent()) {
+            cache.put(key, result.get());
+        }
+        return result;
+    }
+
+    /**
+     * 查询距离某点指定半径内的POI，按距离由近到远排序
+     *
+     * @param poiFile  POI文件名
+     * @param lon      中心经度
+     * @param lat      中心纬度
+     * @param radius   半径，单位米
+     * @param keywords 关键词，可为空列表
+     * @param category 类别，只有poi文件支持，可为空
+     * @param limit    返回的条数
+     * @return poi表的记录，带有distance距离字段。POI文件不存在或没有空间索引时为空
+     * @throws SQLException 数据库访问异常
+     */
+    public Optional<List<Map<String, Object>>> nearby(String poiFile, double lon, double lat, double radius, List<String> keywords,
+                                                      String category, int limit) throws SQLException {
+        return withSpatialSource(poiFile, category, source -> {
+            List<Candidate> candidates = readCandidates(source, PoiSpatialIndex.buildCandidates(PoiSpatialIndex.bbox(lon, lat, radius),
+                    keywords, source.fts, category, MAX_CANDIDATES), lon, lat);
+            return Optional.of(fetchNearest(source, candidates, radius, limit));
+        });
+    }
+
+    /**
+     * 查询矩形范围内的POI，按到范围中心的距离由近到远排序。范围内的POI超过候选数上限时只在前面的候选中排序，结果标记为截断。
+     *
+     * @param poiFile  POI文件名
+     * @param bbox     范围，{minLon, minLat, maxLon, maxLat}
+     * @param keywords 关键词，可为空列表
+     * @param category 类别，只有poi文件支持，可为空
+     * @param limit    返回的条数
+     * @return poi表的记录，带有distance距离字段。POI文件不存在或没有空间索引时为空
+     * @throws SQLException 数据库访问异常
+     */
+    public Optional<WithinResult> within(String poiFile, double[] bbox, List<String> keywords, String category, int limit) throws SQLException {
+        return withSpatialSource(poiFile, category, new WithinResult(List.of(), false), source -> {
+            List<Candidate> candidates = readCandidates(source, PoiSpatialIndex.buildCandidates(bbox, keywords, source.fts, category, MAX_CANDIDATES + 1),
+                    (bbox[0] + bbox[2]) / 2, (bbox[1] + bbox[3]) / 2);
+            boolean truncated = candidates.size() > MAX_CANDIDATES;
+            if (truncated) {
+                candidates = candidates.subList(0, MAX_CANDIDATES);
+            }
+            return Optional.of(new WithinResult(fetchNearest(source, candidates, Double.MAX_VALUE, limit), truncated));
+        });
+    }
+
+    /**
+     * 查询距离某点最近的k个POI。从较小的半径开始查询，结果不足k个时扩大半径，候选过多时缩小半径。
+     *
+     * @param poiFile  POI文件名
+     * @param lon      中心经度
+     * @param lat      中心纬度
+     * @param k        返回的条数
+     * @param keywords 关键词，可为空列表
+     * @param category 类别，只有poi文件支持，可为空
+     * @return poi表的记录，带有distance距离字段。POI文件不存在或没有空间索引时为空
+     * @throws SQLException 数据库访问异常
+     */
+    public Optional<List<Map<String, Object>>> nearest(String poiFile, double lon, double lat, int k, List<String> keywords,
+                                                       String category) throws SQLException {
+        return withSpatialSource(poiFile, category, source -> {
+            double radius = KNN_INITIAL_RADIUS;
+            //候选数超过上限的最小半径，扩大半径时不超过它
+            double overflowRadius = Double.MAX_VALUE;
+            List<Map<String, Object>> found = List.of();
+            for (int i = 0; i < KNN_MAX_ITERATIONS; i++) {
+                List<Candidate> candidates = readCandidates(source, PoiSpatialIndex.buildCandidates(PoiSpatialIndex.bbox(lon, lat, radius),
+                        keywords, source.fts, category, MAX_CANDIDATES + 1), lon, lat);
+                if (candidates.size() > MAX_CANDIDATES) {
+                    //候选被截断时圆内最近的POI可能不在其中
+                    overflowRadius = radius;
+                    radius /= 2;
+                    continue;
+                }
+                found = fetchNearest(source, candidates, radius, k);
+                double next = radius * (found.isEmpty() ? 4 : 2);
+                if (found.size() >= k || radius >= KNN_MAX_RADIUS || next >= overflowRadius) {
+                    break;
+                }
+                radius = next;
+            }
+            return Optional.of(found);
+        });
+    }
+
+    /**
+     * 关闭空闲的POI文件连接池
+     */
+    @Scheduled(fixedDelay = 60000)
+    public void closeIdleSources() {
+        long idleMillis = appConfig.getPoiSearchIdleCloseSeconds() * 1000;
+        long now = System.currentTimeMillis();
+        sources.snapshot().forEach((name, source) -> {
+            if (now - source.lastAccess > idleMillis) {
+                logger.info("Close idle poi file: {}", name);
+                sources.remove(name);
+            }
+        });
+    }
+
+    @Override
+    public void destroy() {
+        sources.snapshot().keySet().forEach(sources::remove);
+    }
+
+    private <T> Optional<T> withSource(String poiFile, SourceCallback<T> callback) throws SQLException {
+        File file = resolve(poiFile);
+        if (!file.isFile()) {
+            return Optional.empty();
+        }
+        Optional<SourceRegistry.Lease<PoiSource>> leaseOpt = acquire(poiFile, file);
+        if (leaseOpt.isEmpty()) {
+            return Optional.empty();
+        }
+        try (SourceRegistry.Lease<PoiSource> lease = leaseOpt.get();
+             BackendLimiter.Permit ignored = MapServerDataCenter.acquireReadPermit(file.getName())) {
+            PoiSource source = lease.get();
+            source.lastAccess = System.currentTimeMillis();
+            return callback.apply(source);
+        }
+    }
+
+    /**
+     * 只在有空间索引的POI文件上执行。文件没有category列时按类别查询的结果为空。
+     */
+    private Optional<List<Map<String, Object>>> withSpatialSource(String poiFile, String category, SourceCallback<List<Map<String, Object>>> callback) throws SQLException {
+        return withSpatialSource(poiFile, category, List.of(), callback);
+    }
+
+    private <T> Optional<T> withSpatialSource(String poiFile, String category, T noCategory, SourceCallback<T> callback) throws SQLException {
+        return withSource(poiFile, source -> {
+            if (!source.rtree) {
+                return Optional.empty();
+            }
+            if (category != null && !source.hasCategory) {
+                return Optional.of(noCategory);
+            }
+            return callback.apply(source);
+        });
+    }
+
+    private List<Map<String, Object>> execute(PoiSource source, PoiFullTextIndex.Query query) throws SQLException {
+        return source.pool.execute(connection -> {
+            PreparedStatement statement = connection.prepare(query.sql());
+            for (int i = 0; i < query.args().size(); i++) {
+                statement.setObject(i + 1, query.args().get(i));
+            }
+            List<Map<String, Object>> rows = new ArrayList<>();
+            try (ResultSet rs = statement.executeQuery()) {
+                ResultSetMetaData metaData = rs.getMetaData();
+                while (rs.next()) {
+                    Map<String, Object> row = new LinkedHashMap<>();
+                    for (int i = 1; i <= metaData.getColumnCount(); i++) {
+                        row.put(metaData.getColumnLabel(i), rs.getObject(i));
+                    }
+                    rows.add(row);
+                }
+            }
+            return rows;
+        });
+    }
+
+    /**
+     * 读取候选POI的rowid和坐标，并计算到中心点的距离
+     */
+    private List<Candidate> readCandidates(PoiSource source, PoiFullTextIndex.Query query, double lon, double lat) throws SQLException {
+        return source.pool.execute(connection -> {
+            PreparedStatement statement = connection.prepare(query.sql());
+            for (int i = 0; i < query.args().size(); i++) {
+                statement.setObject(i + 1, query.args().get(i));
+            }
+            List<Candidate> candidates = new ArrayList<>();
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    candidates.add(new Candidate(rs.getLong(1), PoiSpatialIndex.distance(lon, lat, rs.getDouble(2), rs.getDouble(3))));
+                }
+            }
+            return candidates;
+        });
+    }
+
+    /**
+     * 过滤半径以外的候选并按距离排序，只读取最近的limit条记录
+     */
+    private List<Map<String, Object>> fetchNearest(PoiSource source, List<Candidate> candidates, double radius, int limit) throws SQLException {
+        List<Candidate> nearest = candidates.stream()
+                .filter(candidate -> candidate.distance() <= radius)
+                .sorted(Comparator.comparingDouble(Candidate::distance))
+                .limit(limit)
+                .toList();
+        if (nearest.isEmpty()) {
+            return new ArrayList<>();
+        }
+        Map<Long, Map<String, Object>> rows = new HashMap<>();
+        for (Map<String, Object> row : execute(source, PoiSpatialIndex.buildFetch(nearest.stream().map(Candidate::rowid).toList()))) {
+            rows.put(((Number) row.remove(PoiSpatialIndex.ROWID_COLUMN)).longValue(), row);
+        }
+        List<Map<String, Object>> result = new ArrayList<>();
+        for (Candidate candidate : nearest) {
+            Map<String, Object> row = rows.get(candidate.rowid());
+            if (row != null) {
+                row.put(DISTANCE, candidate.distance());
+                result.add(row);
+            }
+        }
+        return result;
+    }
+
+    private File resolve(String poiFile) {
+        return new File(poiFile.endsWith(".poi") ? appConfig.getDataPath() + File.separator + "poi" + File.separator + poiFile
+                : appConfig.getDataPath() + File.separator + "tilesets" + File.separator + poiFile + ".idx");
+    }
+
+    /**
+     * 借出POI文件的连接池，尚未打开或文件已被替换时重新打开
+     */
+    private Optional<SourceRegistry.Lease<PoiSource>> acquire(String poiFile, File file) throws SQLException {
+        Optional<SourceRegistry.Lease<PoiSource>> leaseOpt = sources.acquire(poiFile);
+        if (leaseOpt.isPresent() && leaseOpt.get().get().isCurrent(file)) {
+            return leaseOpt;
+        }
+        leaseOpt.ifPresent(SourceRegistry.Lease::close);
+        synchronized (this) {
+            leaseOpt = sources.acquire(poiFile);
+            if (leaseOpt.isPresent() && leaseOpt.get().get().isCurrent(file)) {
+                return leaseOpt;
+            }
+            leaseOpt.ifPresent(SourceRegistry.Lease::close);
+            PoiSource source = new PoiSource(file);
+            try {
+                source.pool.execute(connection -> {
+                    source.fts = PoiFullTextIndex.isReady(connection.getConnection());
+                    source.rtree = PoiSpatialIndex.isReady(connection.getConnection());
+                    try (Statement statement = connection.getConnection().createStatement();
+                         ResultSet rs = statement.executeQuery("SELECT 1 FROM pragma_table_info('poi') WHERE name = 'category'")) {
+                        source.hasCategory = rs.next();
+                    }
+                    return true;
+                });
+            } catch (SQLException e) {
+                source.pool.close();
+                throw e;
+            }
+            sources.put(poiFile, source);
+            if (cache != null) {
+                cache.asMap().keySet().removeIf(key -> key.poiFile().equals(poiFile));
+            }
+            logger.info("Open poi file: {}, full text index: {}, spatial index: {}", file.getName(), source.fts, source.rtree);
+            return sources.acquire(poiFile);
+        }
+    }
+
+    /**
+     * 矩形范围查询的结果
+     *
+     * @param rows      poi表的记录，带有distance距离字段
+     * @param truncated 范围内的POI超过候选数上限，结果只在部分POI中排序
+     */
+    public record WithinResult(List<Map<String, Object>> rows, boolean truncated) {
+    }
+
+    /**
+     * 空间查询的候选POI
+     */
+    private record Candidate(long rowid, double distance) {
+    }
+
+    /**
+     * 一个POI文件的只读连接池
+     */
+    private static final class PoiSource {
+        private final SqliteReadPool pool;
+        private final long length;
+        private final long lastModified;
+        private volatile boolean fts;
+        private volatile boolean rtree;
+        private volatile boolean hasCategory;
+        private volatile long lastAccess = System.currentTimeMillis();
+
+        private PoiSource(File file) {
+            this.pool = new SqliteReadPool(file.getAbsolutePath(), false);
+            this.length = file.length();
+            this.lastModified = file.lastModified();
+        }
+
+        private boolean isCurrent(File file) {
+            return file.length() == length && file.lastModified() == lastModified;
+        }
+    }
+
+    @FunctionalInterface
+    private interface SourceCallback<T> {
+        Optional<T> apply(PoiSource source) throws SQLException;
+    }
+
+    /**
+     * 搜索结果的缓存键，包含POI文件的长度和修改时间
+     */
+    private record SearchKey(String poiFile, long length, long lastModified, List<String> keywords, int limit, long offset) {
+    }
+}
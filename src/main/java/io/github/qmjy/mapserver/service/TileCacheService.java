@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2024 QMJY.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.github.qmjy.mapserver.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import io.github.qmjy.mapserver.config.AppConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Supplier;
+
+/**
+ * 热点瓦片内存缓存。<br>
+ * 以瓦片字节数为预算进行容量控制，淘汰策略为Caffeine的W-TinyLFU（按访问频率决定是否准入），
+ * 同一个瓦片的并发未命中只会触发一次后端读取。
+ *
+ * @author liushaofeng
+ */
+@Service
+public class TileCacheService {
+    private static final Logger logger = LoggerFactory.getLogger(TileCacheService.class);
+
+    /**
+     * 瓦片数据为GZIP压缩编码
+     */
+    public static final String ENCODING_GZIP = "gzip";
+
+    /**
+     * 瓦片数据未经压缩编码
+     */
+    public static final String ENCODING_IDENTITY = "identity";
+
+    /**
+     * 每个缓存条目除瓦片数据之外的估算开销
+     */
+    private static final int ENTRY_OVERHEAD = 96;
+
+    private final Cache<TileKey, byte[]> cache;
+
+    public TileCacheService(AppConfig appConfig) {
+        long maxBytes = appConfig.getTileCacheMaxBytes();
+        if (maxBytes > 0) {
+            this.cache = Caffeine.newBuilder()
+                    .maximumWeight(maxBytes)
+                    .weigher((TileKey key, byte[] value) -> value.length + ENTRY_OVERHEAD)
+                    .recordStats()
+                    .build();
+            logger.info("Tile cache enabled, max bytes: {}", maxBytes);
+        } else {
+            this.cache = null;
+            logger.info("Tile cache disabled.");
+        }
+    }
+
+    /**
+     * 获取瓦片数据，未命中时通过loader从后端读取并放入缓存。读取不到的瓦片不会被缓存。
+     *
+     * @param tileset  瓦片集名称
+     * @param z        瓦片层级
+     * @param x        瓦片列号
+     * @param y        瓦片行号
+     * @param encoding 瓦片数据编码
+     * @param loader   后端读取方法
+     * @return 瓦片数据
+     */
+    public Optional<byte[]> get(String tileset, int z, int x, int y, String encoding, Supplier<Optional<byte[]>> loader) {
+        if (cache == null) {
+            return loader.get();
+        }
+        return Optional.ofNullable(cache.get(new TileKey(tileset, z, x, y, encoding), key -> loader.get().orElse(null)));
+    }
+
+    /**
+     * 只查询缓存，不触发后端读取
+     *
+     * @param tileset  瓦片集名称
+     * @param z        瓦片层级
+     * @param x        瓦片列号
+     * @param y        瓦片行号
+     * @param encoding 瓦片数据编码
+     * @return 缓存的瓦片数据
+     */
+    public Optional<byte[]> getIfPresent(String tileset, int z, int x, int y, String encoding) {
+        if (cache == null) {
+            return Optional.empty();
+        }
+        return Optional.ofNullable(cache.getIfPresent(new TileKey(tileset, z, x, y, encoding)));
+    }
+
+    /**
+     * 放入缓存，用于批量读取后回填
+     *
+     * @param tileset  瓦片集名称
+     * @param z        瓦片层级
+     * @param x        瓦片列号
+     * @param y        瓦片行号
+     * @param encoding 瓦片数据编码
+     * @param data     瓦片数据
+     */
+    public void put(String tileset, int z, int x, int y, String encoding, byte[] data) {
+        if (cache != null) {
+            cache.put(new TileKey(tileset, z, x, y, encoding), data);
+        }
+    }
+
+    /**
+     * 清除指定瓦片集的所有缓存
+     *
+     * @param tileset 瓦片集名称
+     */
+    public void invalidate(String tileset) {
+        if (cache != null) {
+            cache.asMap().keySet().removeIf(key -> key.tileset().equals(tileset));
+        }
+    }
+
+    /**
+     * 清除全部缓存
+     */
+    public void invalidateAll() {
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+    }
+
+    /**
+     * 缓存统计信息
+     *
+     * @return 命中、未命中、淘汰等计数
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> result = new HashMap<>();
+        result.put("enabled", cache != null);
+        if (cache != null) {
+            CacheStats stats = cache.stats();
+            result.put("hitCount", stats.hitCount());
+            result.put("missCount", stats.missCount());
+            result.put("hitRate", stats.hitRate());
+            result.put("loadCount", stats.loadCount());
+            result.put("evictionCount", stats.evictionCount());
+            result.put("evictionBytes", stats.evictionWeight());
+            result.put("entries", cache.estimatedSize());
+            cache.policy().eviction().ifPresent(eviction -> {
+                result.put("maxBytes", eviction.getMaximum());
+                result.put("bytes", eviction.weightedSize().orElse(0));
+            });
+        }
+        return result;
+    }
+
+    /**
+     * 缓存键
+     */
+    private record TileKey(String tileset, int z, int x, int y, String encoding) {
+    }
+}
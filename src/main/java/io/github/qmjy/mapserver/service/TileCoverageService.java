@@ -0,0 +1,248 @@
+/*
+ * Copyright (c) 2024 QMJY.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.github.qmjy.mapserver.service;
+
+import io.github.qmjy.mapserver.MapServerDataCenter;
+import io.github.qmjy.mapserver.config.AppConfig;
+import io.github.qmjy.mapserver.util.TileCoverage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.scheduling.annotation.Async;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 瓦片集覆盖范围服务。<br>
+ * 数据源加载后异步构建每个瓦片集的覆盖范围，并以“数据文件名.coverage”的形式缓存在数据文件旁边，
+ * 服务启动时数据文件未变化则直接加载缓存。瓦片目录无法可靠判断是否变化，不缓存，每次加载时重新遍历。覆盖范围就绪后，不存在的瓦片、越界坐标和不存在的层级都在内存中直接返回404。
+ *
+ * @author liushaofeng
+ */
+@Service
+public class TileCoverageService {
+    private static final Logger logger = LoggerFactory.getLogger(TileCoverageService.class);
+
+    /**
+     * 覆盖范围缓存文件的扩展名
+     */
+    public static final String FILE_EXTENSION_NAME_COVERAGE = ".coverage";
+
+    private final AppConfig appConfig;
+    private final MapServerDataCenter mapServerDataCenter;
+    private final Map<String, TileCoverage> coverages = new ConcurrentHashMap<>();
+
+    /**
+     * 瓦片集数据源的版本号，每次失效时递增，加载开始后版本变化的结果不再放入缓存
+     */
+    private final Map<String, Long> generations = new ConcurrentHashMap<>();
+
+    public TileCoverageService(AppConfig appConfig, MapServerDataCenter mapServerDataCenter) {
+        this.appConfig = appConfig;
+        this.mapServerDataCenter = mapServerDataCenter;
+    }
+
+    /**
+     * 判断瓦片是否可能存在。覆盖范围尚未构建完成时只校验坐标是否越界。
+     *
+     * @param tileset 瓦片集名称
+     * @param z       瓦片层级
+     * @param x       瓦片列号
+     * @param y       瓦片行号
+     * @return 为false时瓦片一定不存在
+     */
+    public boolean mayContain(String tileset, int z, int x, int y) {
+        if (z < 0 || z > TileCoverage.MAX_ZOOM || x < 0 || y < 0 || x >= (1 << z) || y >= (1 << z)) {
+            return false;
+        }
+        TileCoverage coverage = coverages.get(tileset);
+        return coverage == null || coverage.contains(z, x, y);
+    }
+
+    /**
+     * 获取瓦片集的覆盖范围
+     *
+     * @param tileset 瓦片集名称
+     * @return 覆盖范围，尚未构建完成时为空
+     */
+    public Optional<TileCoverage> getCoverage(String tileset) {
+        return Optional.ofNullable(coverages.get(tileset));
+    }
+
+    /**
+     * 移除瓦片集的覆盖范围，数据源变更时调用
+     *
+     * @param tileset 瓦片集名称
+     */
+    public void invalidate(String tileset) {
+        generations.merge(tileset, 1L, Long::sum);
+        coverages.remove(tileset);
+    }
+
+    /**
+     * 加载或构建瓦片集的覆盖范围
+     *
+     * @param source mbtiles、tpk、pmtiles文件或瓦片目录
+     */
+    @Async("asyncServiceExecutor")
+    public void load(File source) {
+        if (!appConfig.isTileCoverageEnabled()) {
+            return;
+        }
+        long generation = generations.getOrDefault(source.getName(), 0L);
+        File sidecar = new File(source.getAbsolutePath() + FILE_EXTENSION_NAME_COVERAGE);
+        long sourceLength = source.length();
+        long sourceModified = source.lastModified();
+
+        //瓦片目录子文件夹中的变化不会改变顶层目录的修改时间，无法判断缓存是否过期，每次都遍历目录重新构建
+        boolean persistent = !source.isDirectory();
+        if (!persistent) {
+            deleteQuietly(sidecar);
+        } else {
+            Optional<TileCoverage> cached = TileCoverage.read(sidecar, sourceLength, sourceModified);
+            if (cached.isPresent()) {
+                if (install(source.getName(), generation, cached.get())) {
+                    logger.info("Load tile coverage from cache: {}", sidecar.getName());
+                }
+                return;
+            }
+        }
+
+        long start = System.currentTimeMillis();
+        Optional<TileCoverage> built = build(source);
+        if (built.isPresent()) {
+            if (!install(source.getName(), generation, built.get())) {
+                logger.info("Tileset changed while building tile coverage, discard: {}", source.getName());
+                return;
+            }
+            logger.info("Build tile coverage of {} in {} ms", source.getName(), System.currentTimeMillis() - start);
+            if (!persistent) {
+                return;
+            }
+            try {
+                built.get().write(sidecar, sourceLength, sourceModified);
+            } catch (IOException e) {
+                logger.warn("Write tile coverage file failed: {}", sidecar.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * 数据源版本未变化时放入覆盖范围，与invalidate互斥，避免过期的加载结果覆盖失效操作
+     *
+     * @return 版本已变化、未放入时为false
+     */
+    private boolean install(String tileset, long generation, TileCoverage coverage) {
+        boolean[] installed = new boolean[1];
+        coverages.compute(tileset, (key, old) -> {
+            installed[0] = generations.getOrDefault(key, 0L) == generation;
+            return installed[0] ? coverage : old;
+        });
+        return installed[0];
+    }
+
+    private Optional<TileCoverage> build(File source) {
+        String name = source.getName();
+        TileCoverage.Builder builder = new TileCoverage.Builder();
+        if (name.endsWith(AppConfig.FILE_EXTENSION_NAME_MBTILES)) {
+            Optional<Boolean> scanned = mapServerDataCenter.withTilesFileModelInBackground(name, model -> {
+                model.getJdbcTemplate().query("SELECT zoom_level, tile_column, tile_row FROM tiles",
+                        (RowCallbackHandler) rs -> builder.add(rs.getInt(1), rs.getInt(2), rs.getInt(3)));
+                return Optional.of(true);
+            });
+            if (scanned.isEmpty()) {
+                return Optional.empty();
+            }
+        } else if (name.endsWith(AppConfig.FILE_EXTENSION_NAME_TPK)) {
+            Optional<Boolean> scanned = mapServerDataCenter.withTpkReaderInBackground(name, reader -> {
+                reader.forEachTile(builder::add);
+                return Optional.of(true);
+            });
+            if (scanned.isEmpty()) {
+                return Optional.empty();
+            }
+        } else if (name.endsWith(AppConfig.FILE_EXTENSION_NAME_PMTILES)) {
+            Optional<Boolean> scanned = mapServerDataCenter.withPmtilesReaderInBackground(name, reader -> {
+                try {
+                    reader.forEachTile(builder::add);
+                    return Optional.of(true);
+                } catch (IOException e) {
+                    logger.warn("Read pmtiles directories failed: {}", name);
+                    return Optional.empty();
+                }
+            });
+            if (scanned.isEmpty()) {
+                return Optional.empty();
+            }
+        } else if (source.isDirectory()) {
+            walkDirectory(source, builder);
+        } else {
+            return Optional.empty();
+        }
+        return Optional.of(builder.build());
+    }
+
+    /**
+     * 遍历 {z}/{x}/{y}.pbf 结构的瓦片目录
+     */
+    private void walkDirectory(File folder, TileCoverage.Builder builder) {
+        File[] zoomFolders = folder.listFiles(File::isDirectory);
+        if (zoomFolders == null) {
+            return;
+        }
+        for (File zoomFolder : zoomFolders) {
+            Optional<Integer> z = parseInt(zoomFolder.getName());
+            File[] columnFolders = zoomFolder.listFiles(File::isDirectory);
+            if (z.isEmpty() || columnFolders == null) {
+                continue;
+            }
+            for (File columnFolder : columnFolders) {
+                Optional<Integer> x = parseInt(columnFolder.getName());
+                String[] tiles = columnFolder.list((dir, fileName) -> fileName.endsWith(AppConfig.FILE_EXTENSION_NAME_PBF));
+                if (x.isEmpty() || tiles == null) {
+                    continue;
+                }
+                for (String tile : tiles) {
+                    parseInt(tile.substring(0, tile.length() - AppConfig.FILE_EXTENSION_NAME_PBF.length()))
+                            .ifPresent(y -> builder.add(z.get(), x.get(), y));
+                }
+            }
+        }
+    }
+
+    private void deleteQuietly(File file) {
+        try {
+            Files.deleteIfExists(file.toPath());
+        } catch (IOException e) {
+            logger.warn("Delete stale coverage file failed: {}", file.getAbsolutePath());
+        }
+    }
+
+    private Optional<Integer> parseInt(String value) {
+        try {
+            return Optional.of(Integer.parseInt(value));
+        } catch (NumberFormatException e) {
+            return Optional.empty();
+        }
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2024 QMJY.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+
+package io.github.qmjy.mapserver.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.github.qmjy.mapserver.config.AppConfig;
+import io.github.qmjy.mapserver.util.IOUtils;
+import io.github.qmjy.mapserver.util.TilePruneProfile;
+import io.github.qmjy.mapserver.util.VectorTileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * 矢量瓦片裁剪服务。<br>
+ * 按样式文件或者指定的图层、属性列表删除客户端用不到的图层和属性，裁剪结果按(瓦片集, 裁剪规则)缓存，
+ * 并统计每个裁剪规则裁剪前后的字节数。样式文件生成的规则缓存后按较短的间隔检查文件是否修改，不在每个请求上访问文件。
+ *
+ * @author liushaofeng
+ */
+@Service
+public class TilePruneService {
+    private static final Logger logger = LoggerFactory.getLogger(TilePruneService.class);
+
+    /**
+     * 每个缓存条目除瓦片数据之外的估算开销
+     */
+    private static final int ENTRY_OVERHEAD = 128;
+
+    /**
+     * 样式文件的重新检查间隔（毫秒），期间的请求直接使用缓存的裁剪规则，不访问样式文件
+     */
+    private static final long STYLE_CHECK_MILLIS = 1000;
+
+    private final AppConfig appConfig;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final Cache<TileKey, byte[]> cache;
+    private final Map<String, StyleProfile> styleProfiles = new ConcurrentHashMap<>();
+    private final Map<String, PruneStats> stats = new ConcurrentHashMap<>();
+
+    public TilePruneService(AppConfig appConfig) {
+        this.appConfig = appConfig;
+        long maxBytes = appConfig.getTilePruneCacheMaxBytes();
+        this.cache = maxBytes > 0 ? Caffeine.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher((TileKey key, byte[] value) -> value.length + ENTRY_OVERHEAD)
+                .build() : null;
+    }
+
+    /**
+     * 获取样式文件对应的裁剪规则。缓存的规则在检查间隔内直接使用，超过间隔后检查样式文件是否修改
+     *
+     * @param styleName 样式文件名称，位于数据目录的styles文件夹下
+     * @return 裁剪规则，样式文件不存在或无法解析时为空
+     */
+    public Optional<TilePruneProfile> getStyleProfile(String styleName) {
+        return getStyle(styleName).map(StyleProfile::profile);
+    }
+
+    /**
+     * 获取样式文件的修改时间，与{@link #getStyleProfile}使用同一份缓存
+     *
+     * @param styleName 样式文件名称
+     * @return 修改时间，样式文件不存在或无法解析时为空
+     */
+    public Optional<Long> getStyleModified(String styleName) {
+        return getStyle(styleName).map(StyleProfile::lastModified);
+    }
+
+    private Optional<StyleProfile> getStyle(String styleName) {
+        StyleProfile cached = styleProfiles.get(styleName);
+        long now = System.currentTimeMillis();
+        if (cached != null && now - cached.checkedAt() < STYLE_CHECK_MILLIS) {
+            return Optional.of(cached);
+        }
+        File styleFile = new File(appConfig.getDataPath() + File.separator + "styles" + File.separator + styleName);
+        if (!styleFile.isFile()) {
+            styleProfiles.remove(styleName);
+            return Optional.empty();
+        }
+        long lastModified = styleFile.lastModified();
+        if (cached != null && cached.lastModified() == lastModified) {
+            StyleProfile checked = new StyleProfile(cached.profile(), lastModified, now);
+            styleProfiles.put(styleName, checked);
+            return Optional.of(checked);
+        }
+        try {
+            TilePruneProfile profile = TilePruneProfile.fromStyle(styleName, objectMapper.readTree(styleFile));
+            StyleProfile parsed = new StyleProfile(profile, lastModified, now);
+            styleProfiles.put(styleName, parsed);
+            invalidateProfile(profile.getName());
+            return Optional.of(parsed);
+        } catch (IOException e) {
+            logger.warn("Parse style file failed: {}", styleFile.getAbsolutePath());
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * 获取裁剪后的瓦片
+     *
+     * @param tileset     瓦片集名称
+     * @param profile     裁剪规则
+     * @param z           瓦片层级
+     * @param x           瓦片列号
+     * @param y           瓦片行号
+     * @param acceptsGzip 客户端是否接受GZIP，接受时返回GZIP压缩后的数据
+     * @param loader      读取未压缩原始瓦片的方法
+     * @return 裁剪后的瓦片数据
+     */
+    public Optional<byte[]> getTile(String tileset, TilePruneProfile profile, int z, int x, int y, boolean acceptsGzip,
+                                    Supplier<Optional<byte[]>> loader) {
+        String encoding = acceptsGzip ? TileCacheService.ENCODING_GZIP : TileCacheService.ENCODING_IDENTITY;
+        if (cache == null) {
+            return prune(profile, loader, acceptsGzip);
+        }
+        return Optional.ofNullable(cache.get(new TileKey(tileset, profile.getName(), z, x, y, encoding),
+                key -> prune(profile, loader, acceptsGzip).orElse(null)));
+    }
+
+    private Optional<byte[]> prune(TilePruneProfile profile, Supplier<Optional<byte[]>> loader, boolean acceptsGzip) {
+        Optional<byte[]> source = loader.get();
+        if (source.isEmpty()) {
+            return Optional.empty();
+        }
+        Optional<byte[]> pruned = VectorTileUtils.prune(source.get(), profile);
+        if (pruned.isEmpty()) {
+            return Optional.empty();
+        }
+        PruneStats pruneStats = stats.computeIfAbsent(profile.getName(), k -> new PruneStats());
+        pruneStats.tiles.increment();
+        pruneStats.sourceBytes.add(source.get().length);
+        pruneStats.prunedBytes.add(pruned.get().length);
+        return Optional.of(acceptsGzip ? IOUtils.compress(pruned.get()) : pruned.get());
+    }
+
+    /**
+     * 清除指定瓦片集裁剪后的瓦片，数据源变更时调用
+     *
+     * @param tileset 瓦片集名称
+     */
+    public void invalidate(String tileset) {
+        if (cache != null) {
+            cache.asMap().keySet().removeIf(key -> key.tileset().equals(tileset));
+        }
+    }
+
+    private void invalidateProfile(String profile) {
+        if (cache != null) {
+            cache.asMap().keySet().removeIf(key -> key.profile().equals(profile));
+        }
+    }
+
+    /**
+     * 各裁剪规则的统计信息，字节数均为未压缩的大小，只统计实际执行的裁剪，不含缓存命中
+     *
+     * @return key为裁剪规则名称
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> result = new HashMap<>();
+        stats.forEach((profile, pruneStats) -> {
+            long sourceBytes = pruneStats.sourceBytes.sum();
+            long prunedBytes = pruneStats.prunedBytes.sum();
+            Map<String, Object> item = new HashMap<>();
+            item.put("tiles", pruneStats.tiles.sum());
+            item.put("sourceBytes", sourceBytes);
+            item.put("prunedBytes", prunedBytes);
+            item.put("reduction", sourceBytes == 0 ? 0 : 1 - (double) prunedBytes / sourceBytes);
+            result.put(profile, item);
+        });
+        return result;
+    }
+
+    private static class PruneStats {
+        private final LongAdder tiles = new LongAdder();
+        private final LongAdder sourceBytes = new LongAdder();
+        private final LongAdder prunedBytes = new LongAdder();
+    }
+
+    private record StyleProfile(TilePruneProfile profile, long lastModified, long checkedAt) {
+    }
+
+    /**
+     * 缓存键
+     */
+    private record TileKey(String tileset, String profile, int z, int x, int y, String encoding) {
+    }
+}
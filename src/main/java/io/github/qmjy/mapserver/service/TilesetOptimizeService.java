@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2024 QMJY.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.github.qmjy.mapserver.service;
+
+import io.github.qmjy.mapserver.MapServerDataCenter;
+import io.github.qmjy.mapserver.model.MbtilesOfMergeProgress;
+import io.github.qmjy.mapserver.model.TilesFileModel;
+import io.github.qmjy.mapserver.model.TilesetOptimizeReport;
+import io.github.qmjy.mapserver.util.MbtilesOptimizer;
+import io.github.qmjy.mapserver.util.SqliteReadPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Async;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 瓦片集离线优化服务。<br>
+ * 将mbtiles重写为瓦片数据去重、按希尔伯特曲线排列的文件，完成后原子替换原文件，由数据目录监听重新加载。
+ * 提供访问日志时，用优化前后的文件分别模拟日志中的请求，报告读页次数的变化。
+ *
+ * @author liushaofeng
+ */
+@Service
+public class TilesetOptimizeService {
+    private static final Logger logger = LoggerFactory.getLogger(TilesetOptimizeService.class);
+
+    /**
+     * 优化过程中目标文件的扩展名
+     */
+    public static final String FILE_EXTENSION_NAME_OPTIMIZE = ".optimize.tmp";
+
+    /**
+     * 访问日志中参与模拟的最大请求数
+     */
+    private static final int MAX_SAMPLE_REQUESTS = 1_000_000;
+
+    /**
+     * 模拟的页缓存大小，与读连接池每个连接的cache_size一致
+     */
+    private static final long SIMULATE_CACHE_BYTES = -SqliteReadPool.DEFAULT_CACHE_SIZE * 1024L;
+
+    private static final Pattern TILE_PATTERN = Pattern.compile("/(\\d{1,2})/(\\d{1,9})/(\\d{1,9})\\.(?:pbf|png|jpg|jpeg|webp)");
+
+    private final MapServerDataCenter mapServerDataCenter;
+    private final Map<String, TilesetOptimizeReport> reports = new ConcurrentHashMap<>();
+
+    public TilesetOptimizeService(MapServerDataCenter mapServerDataCenter) {
+        this.mapServerDataCenter = mapServerDataCenter;
+    }
+
+    /**
+     * 登记优化任务，同一瓦片集同时只能有一个运行中的任务
+     *
+     * @param tileset 瓦片集名称
+     * @return 新登记的任务，已有运行中的任务时为空
+     */
+    public Optional<TilesetOptimizeReport> createTask(String tileset) {
+        TilesetOptimizeReport report = new TilesetOptimizeReport();
+        report.setTileset(tileset);
+        TilesetOptimizeReport current = reports.compute(tileset, (key, old) ->
+                old != null && MbtilesOfMergeProgress.STATUS_RUNNING.equals(old.getStatus()) ? old : report);
+        return current == report ? Optional.of(report) : Optional.empty();
+    }
+
+    /**
+     * 获取最近一次优化任务的状态和结果
+     *
+     * @param tileset 瓦片集名称
+     * @return 优化结果
+     */
+    public Optional<TilesetOptimizeReport> getReport(String tileset) {
+        return Optional.ofNullable(reports.get(tileset));
+    }
+
+    /**
+     * 优化瓦片集
+     *
+     * @param report    已登记的任务
+     * @param accessLog 访问日志，可为空
+     */
+    @Async("asyncServiceExecutor")
+    public void optimize(TilesetOptimizeReport report, File accessLog) {
+        long start = System.currentTimeMillis();
+        TilesFileModel model = mapServerDataCenter.getTilesFileModel(report.getTileset());
+        if (model == null) {
+            fail(report, "Tileset not found");
+            return;
+        }
+        File source = new File(model.getFilePath());
+        File target = new File(source.getAbsolutePath() + FILE_EXTENSION_NAME_OPTIMIZE);
+        try {
+            Files.deleteIfExists(target.toPath());
+            if (!checkpoint(source)) {
+                fail(report, "Tileset is being written, WAL can not be checkpointed");
+                return;
+            }
+            try (MbtilesOptimizer optimizer = new MbtilesOptimizer(target.getAbsolutePath(), source.getAbsolutePath())) {
+                long[] counts = optimizer.optimize();
+                optimizer.compact();
+                report.setTilesCount(counts[0]);
+                report.setUniqueTilesCount(counts[1]);
+            }
+            report.setSourceBytes(source.length());
+            report.setTargetBytes(target.length());
+            report.setSavedPercent(percent(source.length() - target.length(), source.length()));
+
+            if (accessLog != null) {
+                List<int[]> requests = readAccessLog(accessLog, report.getTileset());
+                report.setSampleRequests(requests.size());
+                report.setSourcePageReads(MbtilesOptimizer.simulatePageReads(source.getAbsolutePath(), requests, SIMULATE_CACHE_BYTES));
+                report.setTargetPageReads(MbtilesOptimizer.simulatePageReads(target.getAbsolutePath(), requests, SIMULATE_CACHE_BYTES));
+                report.setPageReadReduction(percent(report.getSourcePageReads() - report.getTargetPageReads(), report.getSourcePageReads()));
+            }
+
+            if (!clearWal(source)) {
+                fail(report, "Tileset was written during optimization");
+                Files.deleteIfExists(target.toPath());
+                return;
+            }
+            Files.move(target.toPath(), source.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            report.setElapsedMillis(System.currentTimeMillis() - start);
+            report.setStatus(MbtilesOfMergeProgress.STATUS_COMPLETED);
+            logger.info("Optimize {}: {} -> {} bytes, {} tiles, {} unique, page reads {} -> {}", report.getTileset(), report.getSourceBytes(),
+                    report.getTargetBytes(), report.getTilesCount(), report.getUniqueTilesCount(), report.getSourcePageReads(), report.getTargetPageReads());
+        } catch (SQLException | IOException e) {
+            logger.error("Optimize {} failed: {}", report.getTileset(), e.getMessage());
+            fail(report, e.getMessage());
+            try {
+                Files.deleteIfExists(target.toPath());
+            } catch (IOException ex) {
+                logger.warn("Delete optimize file failed: {}", target.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * 将源文件WAL中的数据写回数据库并截断WAL，保证优化读取到完整的数据
+     *
+     * @return WAL全部写回时为true，有其他连接正在写入时为false
+     */
+    private boolean checkpoint(File source) throws SQLException {
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + source.getAbsolutePath());
+             Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery("PRAGMA wal_checkpoint(TRUNCATE)")) {
+            return rs.next() && rs.getInt(1) == 0;
+        }
+    }
+
+    /**
+     * 替换源文件前删除其WAL和共享内存文件，否则SQLite会把旧WAL回放到新文件上
+     *
+     * @return 删除成功时为true，优化期间WAL又有写入时为false
+     */
+    private boolean clearWal(File source) throws IOException {
+        File wal = new File(source.getAbsolutePath() + "-wal");
+        if (wal.length() > 0) {
+            return false;
+        }
+        Files.deleteIfExists(wal.toPath());
+        Files.deleteIfExists(new File(source.getAbsolutePath() + "-shm").toPath());
+        return true;
+    }
+
+    /**
+     * 从访问日志中提取该瓦片集的瓦片请求，行中包含“/瓦片集名称/z/x/y.扩展名”
+     */
+    private List<int[]> readAccessLog(File accessLog, String tileset) throws IOException {
+        List<int[]> requests = new ArrayList<>();
+        String prefix = "/" + tileset + "/";
+        try (BufferedReader reader = Files.newBufferedReader(accessLog.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null && requests.size() < MAX_SAMPLE_REQUESTS) {
+                int index = line.indexOf(prefix);
+                if (index < 0) {
+                    continue;
+                }
+                Matcher matcher = TILE_PATTERN.matcher(line);
+                if (matcher.find(index + prefix.length() - 1)) {
+                    int z = Integer.parseInt(matcher.group(1));
+                    int x = Integer.parseInt(matcher.group(2));
+                    int y = Integer.parseInt(matcher.group(3));
+                    if (z <= 30 && x < (1 << z) && y < (1 << z)) {
+                        requests.add(new int[]{z, x, y});
+                    }
+                }
+            }
+        }
+        return requests;
+    }
+
+    private void fail(TilesetOptimizeReport report, String message) {
+        report.setMessage(message);
+        report.setStatus(MbtilesOfMergeProgress.STATUS_FAILED);
+    }
+
+    private double percent(long value, long total) {
+        return total > 0 ? Math.round(value * 10000.0 / total) / 100.0 : 0;
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright (c) 2024 QMJY.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.github.qmjy.mapserver.service;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.github.qmjy.mapserver.MapServerDataCenter;
+import io.github.qmjy.mapserver.model.MbtilesOfMergeProgress;
+import io.github.qmjy.mapserver.model.TilesFileModel;
+import io.github.qmjy.mapserver.model.TilesetStats;
+import io.github.qmjy.mapserver.util.TileStatsCollector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Async;
+import org.springframework.stereotype.Service;
+import org.sqlite.SQLiteConfig;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 瓦片集统计服务。<br>
+ * 按层级和列号范围把mbtiles切分为多个分区并行扫描，统计每个层级的瓦片数、字节数分布、最大的瓦片以及矢量瓦片的图层构成。
+ * 统计结果以“数据文件名.stats.json”的形式保存在数据文件旁边，数据文件未变化时直接读取。
+ *
+ * @author liushaofeng
+ */
+@Service
+public class TilesetStatsService {
+    private static final Logger logger = LoggerFactory.getLogger(TilesetStatsService.class);
+
+    /**
+     * 统计结果缓存文件的扩展名
+     */
+    public static final String FILE_EXTENSION_NAME_STATS = ".stats.json";
+
+    /**
+     * 每个扫描线程平均分到的分区数，分区越多各线程的负载越均衡
+     */
+    private static final int PARTITIONS_PER_THREAD = 4;
+
+    private final MapServerDataCenter mapServerDataCenter;
+    private final ObjectMapper objectMapper = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    private final Map<String, TilesetStats> stats = new ConcurrentHashMap<>();
+
+    public TilesetStatsService(MapServerDataCenter mapServerDataCenter) {
+        this.mapServerDataCenter = mapServerDataCenter;
+    }
+
+    /**
+     * 获取瓦片集的统计结果，内存中没有时读取缓存文件。数据文件变化后之前的统计结果失效。
+     *
+     * @param tileset 瓦片集名称
+     * @return 统计结果或运行中的任务
+     */
+    public Optional<TilesetStats> getStats(String tileset) {
+        TilesFileModel model = mapServerDataCenter.getTilesFileModel(tileset);
+        if (model == null) {
+            return Optional.empty();
+        }
+        File source = new File(model.getFilePath());
+        TilesetStats current = stats.get(tileset);
+        if (current != null && (MbtilesOfMergeProgress.STATUS_RUNNING.equals(current.getStatus()) || isFresh(current, source))) {
+            return Optional.of(current);
+        }
+        File sidecar = new File(source.getAbsolutePath() + FILE_EXTENSION_NAME_STATS);
+        if (sidecar.isFile()) {
+            try {
+                TilesetStats cached = objectMapper.readValue(sidecar, TilesetStats.class);
+                if (isFresh(cached, source)) {
+                    stats.put(tileset, cached);
+                    return Optional.of(cached);
+                }
+            } catch (IOException e) {
+                logger.warn("Read tileset stats file failed: {}", sidecar.getAbsolutePath());
+            }
+        }
+        return Optional.ofNullable(current);
+    }
+
+    /**
+     * 登记统计任务，同一瓦片集同时只能有一个运行中的任务
+     *
+     * @param tileset 瓦片集名称
+     * @return 新登记的任务，已有运行中的任务时为空
+     */
+    public Optional<TilesetStats> createTask(String tileset) {
+        TilesetStats task = new TilesetStats();
+        task.setTileset(tileset);
+        TilesetStats current = stats.compute(tileset, (key, old) ->
+                old != null && MbtilesOfMergeProgress.STATUS_RUNNING.equals(old.getStatus()) ? old : task);
+        return current == task ? Optional.of(task) : Optional.empty();
+    }
+
+    /**
+     * 扫描瓦片集并保存统计结果
+     *
+     * @param task 已登记的任务
+     */
+    @Async("asyncServiceExecutor")
+    public void scan(TilesetStats task) {
+        long start = System.currentTimeMillis();
+        TilesFileModel model = mapServerDataCenter.getTilesFileModel(task.getTileset());
+        if (model == null) {
+            task.setStatus(MbtilesOfMergeProgress.STATUS_FAILED);
+            return;
+        }
+        File source = new File(model.getFilePath());
+        task.setSourceLength(source.length());
+        task.setSourceModified(source.lastModified());
+        String format = model.getMetaDataMap().get("format");
+        boolean vector = "pbf".equals(format) || "mvt".equals(format);
+        TileStatsCollector collector = new TileStatsCollector(vector);
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<TileStatsCollector>> futures = new ArrayList<>();
+            for (int[] partition : partition(source, threads * PARTITIONS_PER_THREAD)) {
+                futures.add(executor.submit(() -> scanPartition(source, partition, vector)));
+            }
+            for (Future<TileStatsCollector> future : futures) {
+                collector.merge(future.get());
+            }
+        } catch (SQLException | ExecutionException e) {
+            logger.error("Scan tileset stats failed: {}, {}", task.getTileset(), e.getMessage());
+            task.setStatus(MbtilesOfMergeProgress.STATUS_FAILED);
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            task.setStatus(MbtilesOfMergeProgress.STATUS_FAILED);
+            return;
+        } finally {
+            executor.shutdownNow();
+        }
+
+        task.setZooms(collector.build());
+        task.setTilesCount(task.getZooms().stream().mapToLong(TilesetStats.ZoomStats::getTilesCount).sum());
+        task.setTotalBytes(task.getZooms().stream().mapToLong(TilesetStats.ZoomStats::getTotalBytes).sum());
+        task.setGeneratedAt(System.currentTimeMillis());
+        task.setElapsedMillis(System.currentTimeMillis() - start);
+        task.setStatus(MbtilesOfMergeProgress.STATUS_COMPLETED);
+        logger.info("Scan {} tiles of {} with {} threads in {} ms", task.getTilesCount(), task.getTileset(), threads, task.getElapsedMillis());
+
+        File sidecar = new File(source.getAbsolutePath() + FILE_EXTENSION_NAME_STATS);
+        try {
+            objectMapper.writeValue(sidecar, task);
+        } catch (IOException e) {
+            logger.warn("Write tileset stats file failed: {}", sidecar.getAbsolutePath());
+        }
+    }
+
+    /**
+     * 按层级和列号范围切分分区，每项为{zoom, minColumn, maxColumn}。低层级的列数少，整个层级作为一个分区。
+     */
+    private List<int[]> partition(File source, int targetPartitions) throws SQLException {
+        List<int[]> zooms = new ArrayList<>();
+        try (Connection connection = open(source);
+             Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT zoom_level, MIN(tile_column), MAX(tile_column) FROM tiles GROUP BY zoom_level")) {
+            while (rs.next()) {
+                zooms.add(new int[]{rs.getInt(1), rs.getInt(2), rs.getInt(3)});
+            }
+        }
+        List<int[]> partitions = new ArrayList<>();
+        for (int[] zoom : zooms) {
+            long width = (long) zoom[2] - zoom[1] + 1;
+            long step = Math.max(1, (width + targetPartitions - 1) / targetPartitions);
+            for (long column = zoom[1]; column <= zoom[2]; column += step) {
+                partitions.add(new int[]{zoom[0], (int) column, (int) Math.min(zoom[2], column + step - 1)});
+            }
+        }
+        return partitions;
+    }
+
+    private TileStatsCollector scanPartition(File source, int[] partition, boolean vector) throws SQLException {
+        TileStatsCollector collector = new TileStatsCollector(vector);
+        try (Connection connection = open(source);
+             PreparedStatement ps = connection.prepareStatement("SELECT tile_column, tile_row, tile_data FROM tiles " +
+                     "WHERE zoom_level = ? AND tile_column BETWEEN ? AND ?")) {
+            ps.setInt(1, partition[0]);
+            ps.setInt(2, partition[1]);
+            ps.setInt(3, partition[2]);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    byte[] data = rs.getBytes(3);
+                    collector.add(partition[0], rs.getInt(1), rs.getInt(2), data == null ? new byte[0] : data);
+                }
+            }
+        }
+        return collector;
+    }
+
+    private Connection open(File source) throws SQLException {
+        SQLiteConfig config = new SQLiteConfig();
+        config.setReadOnly(true);
+        return DriverManager.getConnection("jdbc:sqlite:" + source.getAbsolutePath(), config.toProperties());
+    }
+
+    private boolean isFresh(TilesetStats cached, File source) {
+        return MbtilesOfMergeProgress.STATUS_COMPLETED.equals(cached.getStatus())
+                && cached.getSourceLength() == source.length() && cached.getSourceModified() == source.lastModified();
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright (c) 2024 QMJY.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+
+package io.github.qmjy.mapserver.service;
+
+import io.github.qmjy.mapserver.MapServerDataCenter;
+import io.github.qmjy.mapserver.config.AppConfig;
+import io.github.qmjy.mapserver.config.VirtualTilesetConfig;
+import io.github.qmjy.mapserver.model.TilesFileModel;
+import io.github.qmjy.mapserver.util.GeometryUtils;
+import io.github.qmjy.mapserver.util.PmtilesReader;
+import io.github.qmjy.mapserver.util.TileCoverage;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.index.strtree.STRtree;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 虚拟瓦片集服务。<br>
+ * 虚拟瓦片集由配置中的多个mbtiles或pmtiles组成，按各数据源元数据中的bounds和层级范围建立R树，
+ * 请求时查询与瓦片相交的数据源，再用覆盖范围排除实际不含该瓦片的数据源，按优先级选出一个数据源读取。
+ * 数据源加载、替换或卸载后重新建立索引。
+ *
+ * @author liushaofeng
+ */
+@Service
+public class VirtualTilesetService {
+    private static final Logger logger = LoggerFactory.getLogger(VirtualTilesetService.class);
+
+    /**
+     * 数据源元数据中没有bounds时使用的范围
+     */
+    private static final double[] WORLD_BOUNDS = {-180, -85.0511287798, 180, 85.0511287798};
+
+    private final MapServerDataCenter mapServerDataCenter;
+    private final TileCoverageService tileCoverageService;
+    private final Map<String, VirtualTilesetConfig.VirtualTileset> definitions = new LinkedHashMap<>();
+    private final Map<String, SourceIndex> indexes = new ConcurrentHashMap<>();
+
+    public VirtualTilesetService(VirtualTilesetConfig config, MapServerDataCenter mapServerDataCenter, TileCoverageService tileCoverageService) {
+        this.mapServerDataCenter = mapServerDataCenter;
+        this.tileCoverageService = tileCoverageService;
+        for (VirtualTilesetConfig.VirtualTileset tileset : config.getTilesets()) {
+            if (tileset.getName() == null || tileset.getName().isBlank() || tileset.getSources().isEmpty()) {
+                logger.warn("Ignore virtual tileset without name or sources: {}", tileset.getName());
+                continue;
+            }
+            definitions.put(tileset.getName(), tileset);
+        }
+    }
+
+    /**
+     * 是否为虚拟瓦片集
+     *
+     * @param tileset 瓦片集名称
+     * @return 是否为配置中的虚拟瓦片集
+     */
+    public boolean isVirtual(String tileset) {
+        return definitions.containsKey(tileset);
+    }
+
+    /**
+     * 所有虚拟瓦片集的名称
+     *
+     * @return 虚拟瓦片集名称
+     */
+    public List<String> getNames() {
+        return new ArrayList<>(definitions.keySet());
+    }
+
+    /**
+     * 虚拟瓦片集中已加载的数据源
+     *
+     * @param tileset 虚拟瓦片集名称
+     * @return 数据源瓦片集名称，按优先级从高到低排列
+     */
+    public List<String> getSources(String tileset) {
+        SourceIndex index = getIndex(tileset);
+        return index == null ? List.of() : index.sources().stream().map(Source::tileset).toList();
+    }
+
+    /**
+     * 选择包含瓦片的数据源
+     *
+     * @param tileset 虚拟瓦片集名称
+     * @param z       瓦片层级
+     * @param x       瓦片列号
+     * @param y       瓦片行号（TMS）
+     * @return 数据源瓦片集名称，没有数据源包含该瓦片时为空
+     */
+    public Optional<String> route(String tileset, int z, int x, int y) {
+        SourceIndex index = getIndex(tileset);
+        if (index == null || z < 0 || z > TileCoverage.MAX_ZOOM || x < 0 || y < 0 || x >= (1 << z) || y >= (1 << z)) {
+            return Optional.empty();
+        }
+        int row = (1 << z) - 1 - y;
+        double[] northWest = GeometryUtils.mercatorTileToLatLon(x, row, z);
+        double[] southEast = GeometryUtils.mercatorTileToLatLon(x + 1, row + 1, z);
+        Envelope envelope = new Envelope(northWest[1], southEast[1], southEast[0], northWest[0]);
+        //只有边相接的数据源不算包含该瓦片
+        envelope.expandBy(-envelope.getWidth() * 1e-6, -envelope.getHeight() * 1e-6);
+
+        @SuppressWarnings("unchecked")
+        List<Source> candidates = new ArrayList<>(index.tree().query(envelope));
+        if (candidates.isEmpty()) {
+            return Optional.empty();
+        }
+        candidates.sort(Comparator.comparingInt(Source::order));
+        for (Source source : candidates) {
+            if (z >= source.minzoom() && z <= source.maxzoom() && tileCoverageService.mayContain(source.tileset(), z, x, y)) {
+                return Optional.of(source.tileset());
+            }
+        }
+        //超出所有数据源的最大层级时，交给最大层级包含祖先瓦片的数据源超级缩放
+        for (Source source : candidates) {
+            int dz = z - source.maxzoom();
+            if (dz > 0 && tileCoverageService.mayContain(source.tileset(), source.maxzoom(), x >> dz, y >> dz)) {
+                return Optional.of(source.tileset());
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * 虚拟瓦片集的元数据，由数据源的元数据汇总
+     *
+     * @param tileset 虚拟瓦片集名称
+     * @return 元数据，不是虚拟瓦片集时为空
+     */
+    public Optional<Map<String, String>> getMetaData(String tileset) {
+        SourceIndex index = getIndex(tileset);
+        return index == null ? Optional.empty() : Optional.of(index.metaData());
+    }
+
+    /**
+     * 数据源变更时重建包含该数据源的虚拟瓦片集索引
+     *
+     * @param source 数据源瓦片集名称
+     * @return 包含该数据源的虚拟瓦片集名称
+     */
+    public List<String> invalidate(String source) {
+        List<String> affected = new ArrayList<>();
+        definitions.forEach((name, definition) -> {
+            if (definition.getSources().stream().anyMatch(item -> source.equals(item.getTileset()))) {
+                indexes.remove(name);
+                affected.add(name);
+            }
+        });
+        return affected;
+    }
+
+    private SourceIndex getIndex(String tileset) {
+        VirtualTilesetConfig.VirtualTileset definition = definitions.get(tileset);
+        return definition == null ? null : indexes.computeIfAbsent(tileset, k -> buildIndex(definition));
+    }
+
+    private SourceIndex buildIndex(VirtualTilesetConfig.VirtualTileset definition) {
+        List<VirtualTilesetConfig.Source> configured = new ArrayList<>(definition.getSources());
+        //优先级高的在前，相同优先级按配置顺序
+        configured.sort(Comparator.comparingInt(VirtualTilesetConfig.Source::getPriority).reversed());
+
+        STRtree tree = new STRtree();
+        List<Source> sources = new ArrayList<>();
+        double[] union = null;
+        int minzoom = Integer.MAX_VALUE;
+        int maxzoom = Integer.MIN_VALUE;
+        String format = null;
+        for (VirtualTilesetConfig.Source item : configured) {
+            Optional<Map<String, String>> metaDataOpt = getSourceMetaData(item.getTileset());
+            if (metaDataOpt.isEmpty()) {
+                logger.warn("Source {} of virtual tileset {} is not loaded", item.getTileset(), definition.getName());
+                continue;
+            }
+            Map<String, String> metaData = metaDataOpt.get();
+            double[] bounds = parseBounds(metaData.get("bounds"));
+            Source source = new Source(item.getTileset(), sources.size(), parseInt(metaData.get("minzoom"), 0),
+                    parseInt(metaData.get("maxzoom"), TileCoverage.MAX_ZOOM));
+            tree.insert(new Envelope(bounds[0], bounds[2], bounds[1], bounds[3]), source);
+            sources.add(source);
+
+            union = union == null ? bounds.clone() : new double[]{Math.min(union[0], bounds[0]), Math.min(union[1], bounds[1]),
+                    Math.max(union[2], bounds[2]), Math.max(union[3], bounds[3])};
+            minzoom = Math.min(minzoom, source.minzoom());
+            maxzoom = Math.max(maxzoom, source.maxzoom());
+            if (format == null) {
+                format = metaData.get("format");
+            } else if (!format.equals(metaData.get("format"))) {
+                logger.warn("Format of {} differs from other sources of virtual tileset {}", item.getTileset(), definition.getName());
+            }
+        }
+        tree.build();
+
+        Map<String, String> metaData = new HashMap<>();
+        metaData.put("name", definition.getName());
+        metaData.put("sources", String.join(",", sources.stream().map(Source::tileset).toList()));
+        if (!sources.isEmpty()) {
+            metaData.put("format", format);
+            metaData.put("minzoom", String.valueOf(minzoom));
+            metaData.put("maxzoom", String.valueOf(maxzoom));
+            metaData.put("bounds", union[0] + "," + union[1] + "," + union[2] + "," + union[3]);
+        }
+        logger.info("Build virtual tileset {} with {} sources", definition.getName(), sources.size());
+        return new SourceIndex(tree, Collections.unmodifiableList(sources), Collections.unmodifiableMap(metaData));
+    }
+
+    private Optional<Map<String, String>> getSourceMetaData(String tileset) {
+        if (tileset == null) {
+            return Optional.empty();
+        }
+        if (tileset.endsWith(AppConfig.FILE_EXTENSION_NAME_MBTILES)) {
+            return Optional.ofNullable(mapServerDataCenter.getTilesFileModel(tileset)).map(TilesFileModel::getMetaDataMap);
+        }
+        if (tileset.endsWith(AppConfig.FILE_EXTENSION_NAME_PMTILES)) {
+            return mapServerDataCenter.getPmtilesReader(tileset).map(PmtilesReader::getMetaDataMap);
+        }
+        return Optional.empty();
+    }
+
+    private double[] parseBounds(String bounds) {
+        if (bounds == null) {
+            return WORLD_BOUNDS;
+        }
+        String[] split = bounds.split(",");
+        if (split.length != 4) {
+            return WORLD_BOUNDS;
+        }
+        try {
+            double[] result = new double[4];
+            for (int i = 0; i < 4; i++) {
+                result[i] = Double.parseDouble(split[i].trim());
+            }
+            return result;
+        } catch (NumberFormatException e) {
+            return WORLD_BOUNDS;
+        }
+    }
+
+    private int parseInt(String value, int defaultValue) {
+        try {
+            return value == null ? defaultValue : Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * 数据源索引项
+     *
+     * @param order 优先级顺序，越小越优先
+     */
+    private record Source(String tileset, int order, int minzoom, int maxzoom) {
+    }
+
+    private record SourceIndex(STRtree tree, List<Source> sources, Map<String, String> metaData) {
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2024 QMJY.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+
+package io.github.qmjy.mapserver.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * 按瓦片集限制阻塞读取的并发数。<br>
+ * 请求运行在虚拟线程上后不再受Web容器线程数的约束，SQLite的JNI调用和文件读取会占住承载线程，
+ * 因此每个瓦片集的同时读取数限制在只读连接池的大小以内，多出的请求在信号量上等待而不是占用承载线程。<br>
+ * 等待超时抛出{@link BackendOverloadException}，由控制器统一返回503，避免把存在的瓦片报告为404。
+ *
+ * @author liushaofeng
+ */
+public class BackendLimiter {
+    private static final Logger logger = LoggerFactory.getLogger(BackendLimiter.class);
+
+    private final int permits;
+    private final long timeoutMillis;
+    private final Map<String, Semaphore> semaphores = new ConcurrentHashMap<>();
+
+    /**
+     * 创建限流器
+     *
+     * @param permits       每个瓦片集的并发读取数，小于等于0时为CPU核数，与只读连接池的默认大小一致
+     * @param timeoutMillis 等待许可的超时时间（毫秒）
+     */
+    public BackendLimiter(int permits, long timeoutMillis) {
+        this.permits = permits > 0 ? permits : Runtime.getRuntime().availableProcessors();
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * 获取许可后执行读取
+     *
+     * @param key    瓦片集名称
+     * @param action 读取方法
+     * @param <T>    读取结果类型
+     * @return 读取结果
+     * @throws BackendOverloadException 等待许可超时或被中断
+     */
+    public <T> Optional<T> call(String key, Supplier<Optional<T>> action) {
+        try (Permit ignored = acquire(key)) {
+            return action.get();
+        }
+    }
+
+    /**
+     * 获取许可，读取结束后关闭许可以释放。用于读取方法会抛出受检异常等不便使用{@link #call}的场景
+     *
+     * @param key 数据源名称
+     * @return 许可
+     * @throws BackendOverloadException 等待许可超时或被中断
+     */
+    public Permit acquire(String key) {
+        Semaphore semaphore = semaphores.computeIfAbsent(key, k -> new Semaphore(permits));
+        try {
+            if (!semaphore.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                logger.warn("Timeout while waiting for read permit of {}, {} requests waiting", key, semaphore.getQueueLength());
+                throw new BackendOverloadException(key);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BackendOverloadException(key);
+        }
+        return new Permit(semaphore);
+    }
+
+    /**
+     * 移除瓦片集的信号量，瓦片集卸载时调用。正在读取的请求仍然释放到原来的信号量上
+     *
+     * @param key 瓦片集名称
+     */
+    public void remove(String key) {
+        semaphores.remove(key);
+    }
+
+    /**
+     * 每个瓦片集的并发读取数
+     *
+     * @return 并发读取数
+     */
+    public int getPermits() {
+        return permits;
+    }
+
+    /**
+     * 读取许可，关闭时释放，重复关闭只释放一次
+     */
+    public static final class Permit implements AutoCloseable {
+        private final Semaphore semaphore;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Permit(Semaphore semaphore) {
+            this.semaphore = semaphore;
+        }
+
+        @Override
+        public void close() {
+            if (released.compareAndSet(false, true)) {
+                semaphore.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright (c) 2024 QMJY.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+
+package io.github.qmjy.mapserver.util;
+
+/**
+ * 等待读取许可超时，后端读取已饱和。控制器据此返回503而不是404。
+ *
+ * @author liushaofeng
+ */
+public class BackendOverloadException extends RuntimeException {
+    private final String key;
+
+    public BackendOverloadException(String key) {
+        super("Backend is busy: " + key);
+        this.key = key;
+    }
+
+    /**
+     * 等待许可的数据源名称
+     *
+     * @return 数据源名称
+     */
+    public String getKey() {
+        return key;
+    }
+}
@@ -109,21 +109,21 @@ public class GeometryUtils {
      * 4. 计算瓦片地理区域的右下角经纬度：使用瓦片左上角的经纬度和瓦片的地理尺寸，你可以计算出瓦片地理区域的右下角经纬度。<p>
      *
      * @param xTile  瓦片X坐标
-     * @param yTile  瓦片Y坐标
+     * @param yTile  瓦片Y坐标（TMS）
      * @param zoom   缩放层级
      * @param xPixel 瓦片内像素X坐标
-     * @param yPixel 瓦片内像素Y坐标
+     * @param yPixel 瓦片内像素Y坐标，自上而下
      * @param extent 瓦片像素宽度
      * @return 经纬度坐标
      */
-    public static double[] pixel2deg(int xTile, int yTile, int zoom, int xPixel, int yPixel, int extent) {
+    public static double[] pixel2deg(int xTile, int yTile, int zoom, double xPixel, double yPixel, int extent) {
         double n = Math.pow(2, zoom);
 
-        xTile = xTile + (xPixel / extent);
-        yTile = yTile + ((extent - yPixel) / extent);
+        double x = xTile + xPixel / extent;
+        double y = yTile + (extent - yPixel) / extent;
 
-        double lonDeg = (xTile / n) * 360 - 180;
-        double latRad = 0 - Math.atan(Math.sinh(Math.PI * (1 - 2 * yTile / n)));
+        double lonDeg = (x / n) * 360 - 180;
+        double latRad = 0 - Math.atan(Math.sinh(Math.PI * (1 - 2 * y / n)));
         double latDeg = Math.toDegrees(latRad);
         return new double[]{lonDeg, latDeg};
     }
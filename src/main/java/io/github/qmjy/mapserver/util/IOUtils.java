@@ -25,6 +25,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.util.Locale;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
@@ -138,6 +139,46 @@ public class IOUtils {
         }
     }
 
+    /**
+     * 根据GZIP魔数判断数据是否为GZIP压缩格式
+     *
+     * @param data 待判断的数据
+     * @return 是否为GZIP数据
+     */
+    public static boolean isGzipped(byte[] data) {
+        return data != null && data.length > 2 && (data[0] & 0xff) == 0x1f && (data[1] & 0xff) == 0x8b;
+    }
+
+    /**
+     * 解析请求头Accept-Encoding，判断客户端是否接受GZIP编码的响应
+     *
+     * @param acceptEncoding 请求头Accept-Encoding的值
+     * @return 是否接受GZIP
+     */
+    public static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null || acceptEncoding.isBlank()) {
+            return false;
+        }
+        for (String item : acceptEncoding.split(",")) {
+            String[] parts = item.trim().split(";");
+            String coding = parts[0].trim().toLowerCase(Locale.ROOT);
+            if ("gzip".equals(coding) || "x-gzip".equals(coding) || "*".equals(coding)) {
+                for (int i = 1; i < parts.length; i++) {
+                    String param = parts[i].trim();
+                    if (param.startsWith("q=")) {
+                        try {
+                            return Double.parseDouble(param.substring(2)) > 0;
+                        } catch (NumberFormatException e) {
+                            return false;
+                        }
+                    }
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * 解压缩数据
      *
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2024 QMJY.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.github.qmjy.mapserver.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 只读内存映射文件。<br>
+ * 按1GB分段映射，支持超过2GB的大文件；所有读取都是按绝对位置进行的，可被多线程并发调用。
+ *
+ * @author liushaofeng
+ */
+public class MappedFileReader implements Closeable {
+    private static final int SEGMENT_BITS = 30;
+    private static final long SEGMENT_SIZE = 1L << SEGMENT_BITS;
+
+    private final File file;
+    private final FileChannel channel;
+    private final MappedByteBuffer[] segments;
+    private final long size;
+
+    public MappedFileReader(File file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.size = channel.size();
+        int count = (int) ((size + SEGMENT_SIZE - 1) >>> SEGMENT_BITS);
+        this.segments = new MappedByteBuffer[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                long position = (long) i << SEGMENT_BITS;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(SEGMENT_SIZE, size - position));
+                segments[i].order(ByteOrder.LITTLE_ENDIAN);
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    /**
+     * 读取指定位置的数据
+     *
+     * @param position 文件中的起始位置
+     * @param length   读取长度
+     * @return 读取到的数据
+     */
+    public byte[] read(long position, int length) {
+        checkBounds(position, length);
+        byte[] data = new byte[length];
+        int copied = 0;
+        while (copied < length) {
+            long current = position + copied;
+            MappedByteBuffer segment = segments[(int) (current >>> SEGMENT_BITS)];
+            int offset = (int) (current & (SEGMENT_SIZE - 1));
+            int count = Math.min(length - copied, segment.capacity() - offset);
+            segment.get(offset, data, copied, count);
+            copied += count;
+        }
+        return data;
+    }
+
+    public int readUnsignedByte(long position) {
+        checkBounds(position, 1);
+        return segments[(int) (position >>> SEGMENT_BITS)].get((int) (position & (SEGMENT_SIZE - 1))) & 0xff;
+    }
+
+    /**
+     * 读取小端序的无符号整数
+     *
+     * @param position 文件中的起始位置
+     * @param bytes    整数的字节数，1-8
+     * @return 整数值
+     */
+    public long readLittleEndian(long position, int bytes) {
+        checkBounds(position, bytes);
+        long value = 0;
+        for (int i = 0; i < bytes; i++) {
+            value |= (long) readUnsignedByte(position + i) << (8 * i);
+        }
+        return value;
+    }
+
+    private void checkBounds(long position, int length) {
+        if (position < 0 || length < 0 || position + length > size) {
+            throw new IndexOutOfBoundsException("Read " + length + " bytes at " + position + " out of file size " + size + ": " + file.getName());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (c) 2024 QMJY.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.github.qmjy.mapserver.util;
+
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.TopologyException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 从MBTiles中按范围和层级裁剪出新的MBTiles文件。<br>
+ * 每个层级按列计算与裁剪范围相交的行号区间，每个区间对应tiles索引上的一次范围扫描，
+ * 由SQLite以“INSERT ... SELECT”直接写入目标文件，瓦片数据不经过JVM。
+ *
+ * @author liushaofeng
+ */
+public class MbtilesExtractor implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(MbtilesExtractor.class);
+    private static final GeometryFactory geomFactory = new GeometryFactory();
+
+    /**
+     * 墨卡托投影的纬度范围
+     */
+    private static final double MAX_LATITUDE = 85.0511287798;
+
+    private static final String SOURCE_SCHEMA = "src";
+
+    private final String targetFilePath;
+    private final Connection connection;
+
+    /**
+     * 同一列上连续的瓦片
+     *
+     * @param zoom   层级
+     * @param column 列号
+     * @param minRow 起始行号（TMS）
+     * @param maxRow 结束行号（TMS），包含在内
+     */
+    public record TileRange(int zoom, int column, int minRow, int maxRow) {
+    }
+
+    /**
+     * 每个区间拷贝完成后的回调
+     */
+    @FunctionalInterface
+    public interface RangeListener {
+        /**
+         * @param copied 本区间拷贝的瓦片数
+         * @return 为false时停止裁剪
+         */
+        boolean onRange(long copied);
+    }
+
+    /**
+     * 计算裁剪范围在指定层级覆盖的瓦片区间。多边形按列求交，每个交集部分的外接矩形对应一个行号区间，结果可能比多边形略大。
+     *
+     * @param area 裁剪范围，经纬度坐标
+     * @param zoom 层级
+     * @return 按列号、行号排列的瓦片区间
+     */
+    public static List<TileRange> computeRanges(Geometry area, int zoom) {
+        List<TileRange> ranges = new ArrayList<>();
+        if (area.isEmpty()) {
+            return ranges;
+        }
+        Envelope envelope = area.getEnvelopeInternal();
+        int n = 1 << zoom;
+        int minColumn = toColumn(envelope.getMinX(), n);
+        int maxColumn = toColumn(envelope.getMaxX(), n);
+        boolean rectangle = area.isRectangle();
+        for (int column = minColumn; column <= maxColumn; column++) {
+            if (rectangle) {
+                ranges.add(toRange(zoom, column, envelope.getMinY(), envelope.getMaxY()));
+                continue;
+            }
+            double west = column * 360.0 / n - 180;
+            double east = (column + 1) * 360.0 / n - 180;
+            Geometry strip = geomFactory.toGeometry(new Envelope(west, east, envelope.getMinY(), envelope.getMaxY()));
+            Geometry part;
+            try {
+                part = area.intersection(strip);
+            } catch (TopologyException e) {
+                //无效的多边形退化为外接矩形
+                ranges.add(toRange(zoom, column, envelope.getMinY(), envelope.getMaxY()));
+                continue;
+            }
+            List<TileRange> columnRanges = new ArrayList<>();
+            for (int i = 0; i < part.getNumGeometries(); i++) {
+                Envelope partEnvelope = part.getGeometryN(i).getEnvelopeInternal();
+                if (!partEnvelope.isNull()) {
+                    columnRanges.add(toRange(zoom, column, partEnvelope.getMinY(), partEnvelope.getMaxY()));
+                }
+            }
+            ranges.addAll(mergeRanges(columnRanges));
+        }
+        return ranges;
+    }
+
+    private static List<TileRange> mergeRanges(List<TileRange> ranges) {
+        ranges.sort(Comparator.comparingInt(TileRange::minRow));
+        List<TileRange> merged = new ArrayList<>();
+        for (TileRange range : ranges) {
+            if (!merged.isEmpty() && merged.getLast().maxRow() + 1 >= range.minRow()) {
+                TileRange last = merged.removeLast();
+                merged.add(new TileRange(last.zoom(), last.column(), last.minRow(), Math.max(last.maxRow(), range.maxRow())));
+            } else {
+                merged.add(range);
+            }
+        }
+        return merged;
+    }
+
+    private static int toColumn(double lon, int n) {
+        return Math.clamp((long) Math.floor((lon + 180) / 360 * n), 0, n - 1);
+    }
+
+    private static TileRange toRange(int zoom, int column, double minLat, double maxLat) {
+        int n = 1 << zoom;
+        int top = GeometryUtils.mercatorLatLonToTile(Math.clamp(maxLat, -MAX_LATITUDE, MAX_LATITUDE), 0, zoom)[1];
+        int bottom = GeometryUtils.mercatorLatLonToTile(Math.clamp(minLat, -MAX_LATITUDE, MAX_LATITUDE), 0, zoom)[1];
+        top = Math.clamp(top, 0, n - 1);
+        bottom = Math.clamp(bottom, 0, n - 1);
+        return new TileRange(zoom, column, n - 1 - bottom, n - 1 - top);
+    }
+
+    /**
+     * 创建目标文件并进入快速写入模式，唯一索引在裁剪完成后创建
+     *
+     * @param targetFilePath 目标mbtiles文件，不能已存在
+     * @param sourceFilePath 源mbtiles文件
+     * @throws SQLException 数据库访问异常
+     */
+    public MbtilesExtractor(String targetFilePath, String sourceFilePath) throws SQLException {
+        this.targetFilePath = targetFilePath;
+        this.connection = DriverManager.getConnection("jdbc:sqlite:" + targetFilePath);
+        try (Statement statement = connection.createStatement();
+             PreparedStatement attach = connection.prepareStatement("ATTACH DATABASE ? AS " + SOURCE_SCHEMA)) {
+            statement.execute("PRAGMA journal_mode = OFF");
+            statement.execute("PRAGMA synchronous = OFF");
+            statement.execute("PRAGMA locking_mode = EXCLUSIVE");
+            statement.execute("CREATE TABLE metadata (name TEXT, value TEXT)");
+            statement.execute("CREATE TABLE tiles (zoom_level INTEGER, tile_column INTEGER, tile_row INTEGER, tile_data BLOB)");
+            attach.setString(1, sourceFilePath);
+            attach.execute();
+            statement.execute("INSERT INTO main.metadata (name, value) SELECT name, value FROM " + SOURCE_SCHEMA + ".metadata GROUP BY name");
+        } catch (SQLException e) {
+            connection.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 统计区间内的瓦片数，只扫描索引，用于估算进度
+     *
+     * @param ranges 瓦片区间
+     * @return 瓦片数
+     * @throws SQLException 数据库访问异常
+     */
+    public long count(List<TileRange> ranges) throws SQLException {
+        long count = 0;
+        try (PreparedStatement ps = connection.prepareStatement("SELECT COUNT(*) FROM " + SOURCE_SCHEMA + ".tiles " +
+                "WHERE zoom_level = ? AND tile_column = ? AND tile_row BETWEEN ? AND ?")) {
+            for (TileRange range : ranges) {
+                setRange(ps, range);
+                try (ResultSet rs = ps.executeQuery()) {
+                    count += rs.next() ? rs.getLong(1) : 0;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 拷贝区间内的瓦片，全部区间在一个事务中完成。目标文件关闭了日志无法回滚，失败或取消后应直接删除。
+     *
+     * @param ranges   瓦片区间
+     * @param listener 每个区间拷贝后的回调
+     * @return 是否全部拷贝完成，回调要求停止时为false
+     * @throws SQLException 数据库访问异常
+     */
+    public boolean extract(List<TileRange> ranges, RangeListener listener) throws SQLException {
+        connection.setAutoCommit(false);
+        try (PreparedStatement ps = connection.prepareStatement("INSERT INTO main.tiles (zoom_level, tile_column, tile_row, tile_data) " +
+                "SELECT zoom_level, tile_column, tile_row, tile_data FROM " + SOURCE_SCHEMA + ".tiles " +
+                "WHERE zoom_level = ? AND tile_column = ? AND tile_row BETWEEN ? AND ?")) {
+            for (TileRange range : ranges) {
+                setRange(ps, range);
+                if (!listener.onRange(ps.executeUpdate())) {
+                    return false;
+                }
+            }
+            connection.commit();
+            return true;
+        } finally {
+            connection.setAutoCommit(true);
+        }
+    }
+
+    private void setRange(PreparedStatement ps, TileRange range) throws SQLException {
+        ps.setInt(1, range.zoom());
+        ps.setInt(2, range.column());
+        ps.setInt(3, range.minRow());
+        ps.setInt(4, range.maxRow());
+    }
+
+    /**
+     * 更新元数据并创建索引
+     *
+     * @param metadata 需要覆盖的元数据，例如bounds、minzoom、maxzoom
+     * @throws SQLException 数据库访问异常
+     */
+    public void finish(Map<String, String> metadata) throws SQLException {
+        try (Statement statement = connection.createStatement();
+             PreparedStatement delete = connection.prepareStatement("DELETE FROM metadata WHERE name = ?");
+             PreparedStatement insert = connection.prepareStatement("INSERT INTO metadata (name, value) VALUES (?, ?)")) {
+            statement.execute("DETACH DATABASE " + SOURCE_SCHEMA);
+            for (Map.Entry<String, String> entry : metadata.entrySet()) {
+                delete.setString(1, entry.getKey());
+                delete.executeUpdate();
+                insert.setString(1, entry.getKey());
+                insert.setString(2, entry.getValue());
+                insert.executeUpdate();
+            }
+            long start = System.currentTimeMillis();
+            statement.execute("CREATE UNIQUE INDEX tile_index ON tiles (zoom_level, tile_column, tile_row)");
+            statement.execute("CREATE UNIQUE INDEX name ON metadata (name)");
+            logger.info("Create indexes of {} in {} ms", targetFilePath, System.currentTimeMillis() - start);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            logger.warn("Close extract target failed: {}", targetFilePath);
+        }
+    }
+}
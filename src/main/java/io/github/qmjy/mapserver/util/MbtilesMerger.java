@@ -0,0 +1,537 @@
+/*
+ * Copyright (c) 2024 QMJY.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.github.qmjy.mapserver.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * MBTiles批量合并引擎。<br>
+ * 以ATTACH方式挂载源文件，由SQLite在库内执行“INSERT ... SELECT”拷贝，数据不经过JVM。
+ * 合并期间关闭同步并独占文件锁，tiles表上的索引先删除、合并完成后统一去重并重建。<br>
+ * 源文件按(zoom_level, tile_column, tile_row)顺序分批拷贝，每批与断点记录在同一事务中提交，
+ * 断点保存在目标文件的merge_checkpoint表中，进程重启后可从上次提交的位置继续。<br>
+ * 矢量瓦片可选择图层合并模式：同一坐标的瓦片不再由后写入的覆盖，而是在工作线程池中解码两份瓦片、按图层合并要素后重新编码。
+ * 该模式需要在合并期间保留tiles表的唯一索引用于查找冲突的瓦片；冲突的瓦片按小批次读取、合并并写回，
+ * 内存中同时只保留一个小批次的瓦片数据。
+ *
+ * @author liushaofeng
+ */
+public class MbtilesMerger implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(MbtilesMerger.class);
+
+    /**
+     * 每批拷贝的瓦片数
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 50000;
+
+    private static final String SOURCE_SCHEMA = "src";
+    private static final String COLUMNS = "zoom_level, tile_column, tile_row";
+    private static final String SOURCE_COLUMNS = "s.zoom_level, s.tile_column, s.tile_row";
+    private static final String UNION_INDEX = "merge_tile_key";
+    /**
+     * 图层合并模式下每个小批次的冲突瓦片数
+     */
+    static final int UNION_BATCH_SIZE = 256;
+    private static final long[] LAST_KEY = {Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE};
+
+    private final String targetFilePath;
+    private final int chunkSize;
+    private final Connection connection;
+    private boolean union;
+    /**
+     * 图层合并模式下解码、合并、编码瓦片的工作线程池
+     */
+    private ExecutorService workers;
+    /**
+     * 合并前tiles表上的索引定义，合并完成后按原样重建
+     */
+    private final List<String> indexSqlList = new ArrayList<>();
+
+    /**
+     * 每批拷贝完成后的回调
+     */
+    @FunctionalInterface
+    public interface ChunkListener {
+        /**
+         * @param copied 本批拷贝的瓦片数
+         * @return 为false时停止合并，已提交的批次保留，可稍后继续
+         */
+        boolean onChunk(long copied);
+    }
+
+    public MbtilesMerger(String targetFilePath, List<String> sourceFilePaths) throws SQLException {
+        this(targetFilePath, sourceFilePaths, DEFAULT_CHUNK_SIZE, false);
+    }
+
+    public MbtilesMerger(String targetFilePath, List<String> sourceFilePaths, int chunkSize) throws SQLException {
+        this(targetFilePath, sourceFilePaths, chunkSize, false);
+    }
+
+    /**
+     * 打开目标文件并进入快速写入模式。目标文件中已有断点时沿用原有记录，包括合并模式。
+     *
+     * @param targetFilePath  目标mbtiles文件，需已存在tiles表
+     * @param sourceFilePaths 参与合并的全部源文件，按合并顺序排列
+     * @param chunkSize       每批拷贝的瓦片数
+     * @param union           是否按图层合并同一坐标的矢量瓦片，为false时后写入的瓦片覆盖先写入的
+     * @throws SQLException 数据库访问异常或tiles不是普通表
+     */
+    public MbtilesMerger(String targetFilePath, List<String> sourceFilePaths, int chunkSize, boolean union) throws SQLException {
+        this.targetFilePath = targetFilePath;
+        this.chunkSize = Math.max(1, chunkSize);
+        this.connection = DriverManager.getConnection("jdbc:sqlite:" + targetFilePath);
+        try {
+            prepare(sourceFilePaths, union);
+        } catch (SQLException e) {
+            connection.close();
+            throw e;
+        }
+        if (this.union) {
+            this.workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        }
+    }
+
+    private void prepare(List<String> sourceFilePaths, boolean union) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            try (ResultSet rs = statement.executeQuery("SELECT type FROM sqlite_master WHERE name = 'tiles'")) {
+                if (!rs.next() || !"table".equals(rs.getString(1))) {
+                    throw new SQLException("Table of tiles not found or it is a view: " + targetFilePath);
+                }
+            }
+            //断点续传要求已提交的批次在进程崩溃后仍然有效，因此使用WAL而不是关闭日志
+            statement.execute("PRAGMA locking_mode = EXCLUSIVE");
+            statement.execute("PRAGMA journal_mode = WAL");
+            statement.execute("PRAGMA synchronous = OFF");
+            statement.execute("PRAGMA temp_store = MEMORY");
+
+            boolean resume = exists(statement, "merge_index");
+            if (resume) {
+                try (ResultSet rs = statement.executeQuery("SELECT sql FROM merge_index")) {
+                    while (rs.next()) {
+                        indexSqlList.add(rs.getString(1));
+                    }
+                }
+                try (ResultSet rs = statement.executeQuery("SELECT value FROM merge_option WHERE name = 'union'")) {
+                    this.union = rs.next() && "1".equals(rs.getString(1));
+                }
+            } else {
+                this.union = union;
+                connection.setAutoCommit(false);
+                try {
+                    statement.execute("CREATE TABLE merge_checkpoint (seq INTEGER PRIMARY KEY, source TEXT UNIQUE, zoom_level INTEGER DEFAULT -1, " +
+                            "tile_column INTEGER DEFAULT -1, tile_row INTEGER DEFAULT -1, copied INTEGER DEFAULT 0, done INTEGER DEFAULT 0)");
+                    statement.execute("CREATE TABLE merge_index (sql TEXT)");
+                    statement.execute("CREATE TABLE merge_option (name TEXT PRIMARY KEY, value TEXT)");
+                    statement.execute("INSERT INTO merge_option VALUES ('union', '" + (union ? 1 : 0) + "')");
+                    if (union) {
+                        //查找冲突的瓦片依赖唯一索引，保留原有索引，没有时临时创建一个
+                        if (!hasUniqueTileIndex(statement)) {
+                            statement.execute("CREATE UNIQUE INDEX " + UNION_INDEX + " ON tiles (" + COLUMNS + ")");
+                        }
+                    } else {
+                        dropIndexes(statement);
+                    }
+                    connection.commit();
+                } catch (SQLException e) {
+                    connection.rollback();
+                    throw e;
+                } finally {
+                    connection.setAutoCommit(true);
+                }
+            }
+            try (PreparedStatement ps = connection.prepareStatement("INSERT OR IGNORE INTO merge_checkpoint (source) VALUES (?)")) {
+                for (String source : sourceFilePaths) {
+                    ps.setString(1, source);
+                    ps.executeUpdate();
+                }
+            }
+            if (resume) {
+                logger.info("Resume merging into {}, {} tiles already copied", targetFilePath, getCopiedCount());
+            }
+        }
+    }
+
+    private void dropIndexes(Statement statement) throws SQLException {
+        List<String> indexNames = new ArrayList<>();
+        try (ResultSet rs = statement.executeQuery("SELECT name, sql FROM sqlite_master WHERE type = 'index' AND tbl_name = 'tiles' AND sql IS NOT NULL")) {
+            while (rs.next()) {
+                indexNames.add(rs.getString(1));
+                indexSqlList.add(rs.getString(2));
+            }
+        }
+        try (PreparedStatement ps = connection.prepareStatement("INSERT INTO merge_index (sql) VALUES (?)")) {
+            for (String indexSql : indexSqlList) {
+                ps.setString(1, indexSql);
+                ps.executeUpdate();
+            }
+        }
+        for (String indexName : indexNames) {
+            statement.execute("DROP INDEX \"" + indexName.replace("\"", "\"\"") + "\"");
+        }
+    }
+
+    private boolean hasUniqueTileIndex(Statement statement) throws SQLException {
+        List<String> uniqueIndexes = new ArrayList<>();
+        try (ResultSet rs = statement.executeQuery("PRAGMA index_list('tiles')")) {
+            while (rs.next()) {
+                if (rs.getInt("unique") == 1) {
+                    uniqueIndexes.add(rs.getString("name"));
+                }
+            }
+        }
+        for (String indexName : uniqueIndexes) {
+            List<String> columns = new ArrayList<>();
+            try (ResultSet rs = statement.executeQuery("PRAGMA index_info('" + indexName.replace("'", "''") + "')")) {
+                while (rs.next()) {
+                    columns.add(rs.getString("name"));
+                }
+            }
+            if (String.join(", ", columns).equals(COLUMNS)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean exists(Statement statement, String table) throws SQLException {
+        try (ResultSet rs = statement.executeQuery("SELECT 1 FROM sqlite_master WHERE type = 'table' AND name = '" + table + "'")) {
+            return rs.next();
+        }
+    }
+
+    /**
+     * 读取未完成合并的目标文件中记录的源文件列表
+     *
+     * @param targetFilePath 合并中的目标文件
+     * @return 按合并顺序排列的源文件，目标文件不是合并中的文件时为空
+     */
+    public static Optional<List<String>> readSources(String targetFilePath) {
+        if (!new File(targetFilePath).isFile()) {
+            return Optional.empty();
+        }
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + targetFilePath);
+             Statement statement = conn.createStatement()) {
+            if (!exists(statement, "merge_checkpoint")) {
+                return Optional.empty();
+            }
+            List<String> sources = new ArrayList<>();
+            try (ResultSet rs = statement.executeQuery("SELECT source FROM merge_checkpoint ORDER BY seq")) {
+                while (rs.next()) {
+                    sources.add(rs.getString(1));
+                }
+            }
+            return Optional.of(sources);
+        } catch (SQLException e) {
+            logger.warn("Read merge checkpoint failed: {}", targetFilePath);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * 将源文件标记为已完成，不拷贝数据。用于直接作为目标文件底本的源文件。
+     *
+     * @param sourceFilePath 源文件
+     * @param count          源文件的瓦片数
+     * @throws SQLException 数据库访问异常
+     */
+    public void markDone(String sourceFilePath, long count) throws SQLException {
+        try (PreparedStatement ps = connection.prepareStatement("UPDATE merge_checkpoint SET copied = ?, done = 1 WHERE source = ? AND done = 0")) {
+            ps.setLong(1, count);
+            ps.setString(2, sourceFilePath);
+            ps.executeUpdate();
+        }
+    }
+
+    /**
+     * @return 所有源文件已经拷贝的瓦片数之和
+     */
+    public long getCopiedCount() throws SQLException {
+        try (Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT COALESCE(SUM(copied), 0) FROM merge_checkpoint")) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+
+    /**
+     * 从断点处拷贝源文件剩余的全部瓦片
+     *
+     * @param sourceFilePath 源mbtiles文件
+     * @return 本次拷贝的瓦片数
+     * @throws SQLException 数据库访问异常
+     */
+    public long merge(String sourceFilePath) throws SQLException {
+        long[] copied = new long[1];
+        merge(sourceFilePath, chunk -> {
+            copied[0] += chunk;
+            return true;
+        });
+        return copied[0];
+    }
+
+    /**
+     * 从断点处继续拷贝源文件的瓦片。SQLite不允许在事务内ATTACH，源文件在事务外挂载，每批一个事务。<br>
+     * 建表语句自带的唯一约束无法删除，此时由OR REPLACE保证后写入的瓦片覆盖先写入的。
+     * 图层合并模式下冲突的瓦片先合并写回，其余瓦片以OR IGNORE拷贝。
+     *
+     * @param sourceFilePath 源mbtiles文件
+     * @param listener       每批提交后的回调
+     * @return 源文件是否已全部拷贝，回调要求停止时为false
+     * @throws SQLException 数据库访问异常
+     */
+    public boolean merge(String sourceFilePath, ChunkListener listener) throws SQLException {
+        long[] checkpoint = new long[3];
+        try (PreparedStatement ps = connection.prepareStatement("SELECT " + COLUMNS + ", done FROM merge_checkpoint WHERE source = ?")) {
+            ps.setString(1, sourceFilePath);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (!rs.next()) {
+                    throw new SQLException("Source not registered: " + sourceFilePath);
+                }
+                if (rs.getInt(4) == 1) {
+                    return true;
+                }
+                checkpoint[0] = rs.getLong(1);
+                checkpoint[1] = rs.getLong(2);
+                checkpoint[2] = rs.getLong(3);
+            }
+        }
+
+        try (PreparedStatement attach = connection.prepareStatement("ATTACH DATABASE ? AS " + SOURCE_SCHEMA)) {
+            attach.setString(1, sourceFilePath);
+            attach.execute();
+        }
+        String after = "(" + COLUMNS + ") > (?, ?, ?)";
+        String conflict = union ? "IGNORE" : "REPLACE";
+        try (PreparedStatement boundary = connection.prepareStatement("SELECT " + COLUMNS + " FROM " + SOURCE_SCHEMA + ".tiles WHERE " + after +
+                " ORDER BY " + COLUMNS + " LIMIT 1 OFFSET " + (chunkSize - 1));
+             PreparedStatement copyRange = connection.prepareStatement("INSERT OR " + conflict + " INTO main.tiles (" + COLUMNS + ", tile_data) SELECT " + COLUMNS +
+                     ", tile_data FROM " + SOURCE_SCHEMA + ".tiles WHERE " + after + " AND (" + COLUMNS + ") <= (?, ?, ?)");
+             PreparedStatement copyRest = connection.prepareStatement("INSERT OR " + conflict + " INTO main.tiles (" + COLUMNS + ", tile_data) SELECT " + COLUMNS +
+                     ", tile_data FROM " + SOURCE_SCHEMA + ".tiles WHERE " + after);
+             PreparedStatement save = connection.prepareStatement("UPDATE merge_checkpoint SET zoom_level = ?, tile_column = ?, tile_row = ?, " +
+                     "copied = copied + ?, done = ? WHERE source = ?");
+             PreparedStatement collision = connection.prepareStatement("SELECT " + SOURCE_COLUMNS + ", m.tile_data, s.tile_data FROM " + SOURCE_SCHEMA +
+                     ".tiles s JOIN main.tiles m ON m.zoom_level = s.zoom_level AND m.tile_column = s.tile_column AND m.tile_row = s.tile_row " +
+                     "WHERE (" + SOURCE_COLUMNS + ") > (?, ?, ?) AND (" + SOURCE_COLUMNS + ") <= (?, ?, ?) ORDER BY " + SOURCE_COLUMNS + " LIMIT " + UNION_BATCH_SIZE);
+             PreparedStatement update = connection.prepareStatement("UPDATE main.tiles SET tile_data = ? WHERE zoom_level = ? AND tile_column = ? AND tile_row = ?")) {
+            while (true) {
+                Optional<long[]> next = findBoundary(boundary, checkpoint);
+                PreparedStatement copy = copyRest;
+                if (next.isPresent()) {
+                    copy = copyRange;
+                    setKey(copyRange, 4, next.get());
+                }
+                setKey(copy, 1, checkpoint);
+
+                connection.setAutoCommit(false);
+                long count;
+                try {
+                    //图层合并模式下先将冲突的瓦片合并后写回，再拷贝其余瓦片，已存在的（即刚合并的）瓦片被忽略
+                    count = union ? unionCollisions(collision, update, checkpoint, next.orElse(LAST_KEY)) : 0;
+                    count += copy.executeUpdate();
+                    long[] position = next.orElse(checkpoint);
+                    setKey(save, 1, position);
+                    save.setLong(4, count);
+                    save.setInt(5, next.isPresent() ? 0 : 1);
+                    save.setString(6, sourceFilePath);
+                    save.executeUpdate();
+                    connection.commit();
+                } catch (SQLException e) {
+                    connection.rollback();
+                    throw e;
+                } finally {
+                    connection.setAutoCommit(true);
+                }
+
+                if (next.isEmpty()) {
+                    listener.onChunk(count);
+                    return true;
+                }
+                checkpoint = next.get();
+                if (!listener.onChunk(count)) {
+                    return false;
+                }
+            }
+        } finally {
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("DETACH DATABASE " + SOURCE_SCHEMA);
+            }
+        }
+    }
+
+    /**
+     * 按小批次读取区间内冲突的瓦片，在工作线程池中合并后写回目标文件，每个批次写完后才读取下一批
+     *
+     * @return 合并的瓦片数
+     */
+    private long unionCollisions(PreparedStatement collision, PreparedStatement update, long[] from, long[] to) throws SQLException {
+        long merged = 0;
+        long[] position = from;
+        while (true) {
+            setKey(collision, 1, position);
+            setKey(collision, 4, to);
+            List<Future<Tile>> futures = new ArrayList<>(UNION_BATCH_SIZE);
+            try (ResultSet rs = collision.executeQuery()) {
+                while (rs.next()) {
+                    long[] key = {rs.getLong(1), rs.getLong(2), rs.getLong(3)};
+                    byte[] target = rs.getBytes(4);
+                    byte[] source = rs.getBytes(5);
+                    futures.add(workers.submit(() -> new Tile(key, unionTile(target, source))));
+                }
+            }
+            if (futures.isEmpty()) {
+                return merged;
+            }
+            try {
+                for (Future<Tile> future : futures) {
+                    Tile tile = future.get();
+                    update.setBytes(1, tile.data());
+                    setKey(update, 2, tile.key());
+                    update.executeUpdate();
+                    position = tile.key();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                futures.forEach(future -> future.cancel(true));
+                throw new SQLException("Interrupted while merging tiles: " + targetFilePath, e);
+            } catch (ExecutionException e) {
+                futures.forEach(future -> future.cancel(true));
+                throw new SQLException("Merge tiles failed: " + targetFilePath, e.getCause());
+            } catch (SQLException e) {
+                futures.forEach(future -> future.cancel(true));
+                throw e;
+            }
+            merged += futures.size();
+            if (futures.size() < UNION_BATCH_SIZE) {
+                return merged;
+            }
+        }
+    }
+
+    /**
+     * 按图层合并两份矢量瓦片，任意一份为GZIP压缩时结果也压缩。无法解析时保留后写入的瓦片。
+     *
+     * @param target 目标文件中已有的瓦片
+     * @param source 源文件中的瓦片
+     * @return 合并后的瓦片数据
+     */
+    static byte[] unionTile(byte[] target, byte[] source) {
+        boolean gzipped = IOUtils.isGzipped(target) || IOUtils.isGzipped(source);
+        byte[] first = IOUtils.isGzipped(target) ? IOUtils.decompress(target) : target;
+        byte[] second = IOUtils.isGzipped(source) ? IOUtils.decompress(source) : source;
+        Optional<byte[]> merged = VectorTileUtils.union(List.of(first, second));
+        if (merged.isEmpty()) {
+            return source;
+        }
+        return gzipped ? IOUtils.compress(merged.get()) : merged.get();
+    }
+
+    private record Tile(long[] key, byte[] data) {
+    }
+
+    private Optional<long[]> findBoundary(PreparedStatement boundary, long[] checkpoint) throws SQLException {
+        setKey(boundary, 1, checkpoint);
+        try (ResultSet rs = boundary.executeQuery()) {
+            if (rs.next()) {
+                return Optional.of(new long[]{rs.getLong(1), rs.getLong(2), rs.getLong(3)});
+            }
+            return Optional.empty();
+        }
+    }
+
+    private void setKey(PreparedStatement ps, int index, long[] key) throws SQLException {
+        ps.setLong(index, key[0]);
+        ps.setLong(index + 1, key[1]);
+        ps.setLong(index + 2, key[2]);
+    }
+
+    /**
+     * 更新元数据，不存在的条目会被插入
+     *
+     * @param metadata 元数据
+     * @throws SQLException 数据库访问异常
+     */
+    public void updateMetadata(Map<String, String> metadata) throws SQLException {
+        try (PreparedStatement delete = connection.prepareStatement("DELETE FROM metadata WHERE name = ?");
+             PreparedStatement insert = connection.prepareStatement("INSERT INTO metadata (name, value) VALUES (?, ?)")) {
+            for (Map.Entry<String, String> entry : metadata.entrySet()) {
+                delete.setString(1, entry.getKey());
+                delete.executeUpdate();
+                insert.setString(1, entry.getKey());
+                insert.setString(2, entry.getValue());
+                insert.executeUpdate();
+            }
+        }
+    }
+
+    /**
+     * 合并结束：同一坐标的瓦片保留最后写入的一份，重建索引并清理断点记录
+     *
+     * @throws SQLException 数据库访问异常
+     */
+    public void finish() throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            long start = System.currentTimeMillis();
+            //图层合并模式全程保留了唯一索引，不会有重复的瓦片
+            int duplicates = union ? 0 : statement.executeUpdate("DELETE FROM tiles WHERE rowid NOT IN " +
+                    "(SELECT MAX(rowid) FROM tiles GROUP BY " + COLUMNS + ")");
+            for (String indexSql : indexSqlList) {
+                statement.execute(indexSql);
+            }
+            statement.execute("DROP INDEX IF EXISTS " + UNION_INDEX);
+            statement.execute("DROP TABLE merge_checkpoint");
+            statement.execute("DROP TABLE merge_index");
+            statement.execute("DROP TABLE IF EXISTS merge_option");
+            statement.execute("PRAGMA journal_mode = DELETE");
+            logger.info("Removed {} duplicated tiles and rebuilt {} indexes of {} in {} ms", duplicates, indexSqlList.size(),
+                    targetFilePath, System.currentTimeMillis() - start);
+        }
+    }
+
+    public boolean isUnion() {
+        return union;
+    }
+
+    @Override
+    public void close() {
+        if (workers != null) {
+            workers.shutdownNow();
+        }
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            logger.warn("Close merge target failed: {}", targetFilePath);
+        }
+    }
+}
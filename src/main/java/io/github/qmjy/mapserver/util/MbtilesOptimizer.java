@@ -0,0 +1,321 @@
+/*
+ * Copyright (c) 2024 QMJY.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.github.qmjy.mapserver.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sqlite.Function;
+
+import java.io.Closeable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * MBTiles离线优化。<br>
+ * 对每个瓦片的数据计算MD5，按MBTiles规范的map/images结构重写：map为WITHOUT ROWID表，只保存坐标到tile_id的映射；
+ * 相同的瓦片数据在images中只保存一份，并按各自首次出现位置的希尔伯特曲线顺序写入，使空间上相邻的瓦片落在相邻的页中。<br>
+ * MD5只在构建时用于去重，tile_id为按希尔伯特顺序分配的整数，即images的rowid，读取时由map直接按rowid定位瓦片数据，
+ * 不经过按MD5随机排列的文本索引。
+ * 最后创建tiles视图以兼容原有的查询，并执行VACUUM和ANALYZE。
+ *
+ * @author liushaofeng
+ */
+public class MbtilesOptimizer implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(MbtilesOptimizer.class);
+
+    private static final String SOURCE_SCHEMA = "src";
+
+    /**
+     * 估算页面时每个索引项的字节数：坐标和rowid的变长整数、记录头及单元格指针
+     */
+    private static final long INDEX_ENTRY_BYTES = 16;
+
+    private final String targetFilePath;
+    private final Connection connection;
+
+    /**
+     * 创建目标文件并挂载源文件
+     *
+     * @param targetFilePath 目标文件，不能已存在
+     * @param sourceFilePath 源mbtiles文件
+     * @throws SQLException 数据库访问异常
+     */
+    public MbtilesOptimizer(String targetFilePath, String sourceFilePath) throws SQLException {
+        this.targetFilePath = targetFilePath;
+        this.connection = DriverManager.getConnection("jdbc:sqlite:" + targetFilePath);
+        try (Statement statement = connection.createStatement();
+             PreparedStatement attach = connection.prepareStatement("ATTACH DATABASE ? AS " + SOURCE_SCHEMA)) {
+            statement.execute("PRAGMA journal_mode = OFF");
+            statement.execute("PRAGMA synchronous = OFF");
+            statement.execute("PRAGMA locking_mode = EXCLUSIVE");
+            statement.execute("PRAGMA temp_store = FILE");
+            attach.setString(1, sourceFilePath);
+            attach.execute();
+            Function.create(connection, "tile_hash", new TileHash());
+            Function.create(connection, "hilbert", new Hilbert());
+        } catch (SQLException e) {
+            connection.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 重写为map/images结构
+     *
+     * @return 瓦片总数和去重后的瓦片数
+     * @throws SQLException 数据库访问异常
+     */
+    public long[] optimize() throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            long start = System.currentTimeMillis();
+            statement.execute("CREATE TABLE metadata (name TEXT, value TEXT)");
+            statement.execute("CREATE TABLE map (zoom_level INTEGER, tile_column INTEGER, tile_row INTEGER, tile_id INTEGER, " +
+                    "PRIMARY KEY (zoom_level, tile_column, tile_row)) WITHOUT ROWID");
+            statement.execute("CREATE TABLE images (tile_id INTEGER PRIMARY KEY, tile_data BLOB)");
+
+            connection.setAutoCommit(false);
+            try {
+                statement.execute("INSERT INTO main.metadata (name, value) SELECT name, value FROM " + SOURCE_SCHEMA + ".metadata GROUP BY name");
+                //MD5只在构建期间用于去重，保存在临时表中，按源文件的索引顺序读取
+                statement.execute("CREATE TEMP TABLE tile_hashes (zoom_level INTEGER, tile_column INTEGER, tile_row INTEGER, hash TEXT, " +
+                        "PRIMARY KEY (zoom_level, tile_column, tile_row)) WITHOUT ROWID");
+                int tiles = statement.executeUpdate("INSERT INTO temp.tile_hashes (zoom_level, tile_column, tile_row, hash) " +
+                        "SELECT zoom_level, tile_column, tile_row, tile_hash(tile_data) FROM " + SOURCE_SCHEMA + ".tiles ORDER BY zoom_level, tile_column, tile_row");
+                //每个hash取希尔伯特值最小的坐标作为代表，按希尔伯特顺序插入，自增的id即为images的rowid
+                statement.execute("CREATE TEMP TABLE tile_ids (id INTEGER PRIMARY KEY, hash TEXT, zoom_level INTEGER, tile_column INTEGER, tile_row INTEGER)");
+                statement.execute("INSERT INTO temp.tile_ids (hash, zoom_level, tile_column, tile_row) SELECT hash, zoom_level, tile_column, tile_row FROM " +
+                        "(SELECT hash, zoom_level, tile_column, tile_row, MIN(hilbert(zoom_level, tile_column, tile_row)) AS h FROM temp.tile_hashes GROUP BY hash) ORDER BY h");
+                statement.execute("CREATE UNIQUE INDEX temp.tile_ids_hash ON tile_ids (hash)");
+                //只排序坐标，瓦片数据按id顺序逐条读取并追加到images末尾
+                int images = statement.executeUpdate("INSERT INTO images (tile_id, tile_data) SELECT r.id, s.tile_data FROM temp.tile_ids r " +
+                        "JOIN " + SOURCE_SCHEMA + ".tiles s ON s.zoom_level = r.zoom_level AND s.tile_column = r.tile_column AND s.tile_row = r.tile_row ORDER BY r.id");
+                //map按主键顺序追加
+                statement.executeUpdate("INSERT INTO map (zoom_level, tile_column, tile_row, tile_id) SELECT t.zoom_level, t.tile_column, t.tile_row, r.id " +
+                        "FROM temp.tile_hashes t JOIN temp.tile_ids r ON r.hash = t.hash ORDER BY t.zoom_level, t.tile_column, t.tile_row");
+                statement.execute("DROP TABLE temp.tile_ids");
+                statement.execute("DROP TABLE temp.tile_hashes");
+                statement.execute("CREATE VIEW tiles AS SELECT map.zoom_level AS zoom_level, map.tile_column AS tile_column, " +
+                        "map.tile_row AS tile_row, images.tile_data AS tile_data FROM map JOIN images ON images.tile_id = map.tile_id");
+                statement.execute("CREATE UNIQUE INDEX name ON metadata (name)");
+                connection.commit();
+                logger.info("Rewrite {} tiles into {} images of {} in {} ms", tiles, images, targetFilePath, System.currentTimeMillis() - start);
+                return new long[]{tiles, images};
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        }
+    }
+
+    /**
+     * 卸载源文件并整理目标文件。VACUUM按rowid顺序重建images，希尔伯特顺序保持不变。
+     *
+     * @throws SQLException 数据库访问异常
+     */
+    public void compact() throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            long start = System.currentTimeMillis();
+            statement.execute("DETACH DATABASE " + SOURCE_SCHEMA);
+            statement.execute("VACUUM");
+            statement.execute("ANALYZE");
+            logger.info("Vacuum and analyze {} in {} ms", targetFilePath, System.currentTimeMillis() - start);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            logger.warn("Close optimize target failed: {}", targetFilePath);
+        }
+    }
+
+    /**
+     * 计算瓦片在希尔伯特曲线上的位置，层级放在最高位，同一层级的瓦片连续排列
+     *
+     * @param z 层级
+     * @param x 列号
+     * @param y 行号
+     * @return 排序键
+     */
+    public static long hilbert(int z, int x, int y) {
+        long n = 1L << z;
+        long d = 0;
+        long rx;
+        long ry;
+        long tx = x;
+        long ty = y;
+        for (long s = n / 2; s > 0; s /= 2) {
+            rx = (tx & s) > 0 ? 1 : 0;
+            ry = (ty & s) > 0 ? 1 : 0;
+            d += s * s * ((3 * rx) ^ ry);
+            //旋转象限
+            if (ry == 0) {
+                if (rx == 1) {
+                    tx = s - 1 - tx;
+                    ty = s - 1 - ty;
+                }
+                long t = tx;
+                tx = ty;
+                ty = t;
+            }
+        }
+        return ((long) z << 58) | d;
+    }
+
+    /**
+     * 按存储顺序估算访问日志中的瓦片请求需要读取的数据页，并用LRU页缓存模拟缺页次数。<br>
+     * 与实际读取一致，每个请求先按坐标查找索引（map表或tiles的唯一索引），再按rowid读取瓦片数据。
+     * 索引项和瓦片数据按各自B树的键顺序依次排列，数据页由累计偏移量换算，忽略B树内部页和行头，结果用于比较不同存储顺序的局部性。
+     *
+     * @param filePath   mbtiles文件
+     * @param requests   瓦片请求，每项为{z, x, y}
+     * @param cacheBytes 页缓存大小
+     * @return 缺页次数
+     * @throws SQLException 数据库访问异常
+     */
+    public static long simulatePageReads(String filePath, List<int[]> requests, long cacheBytes) throws SQLException {
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + filePath);
+             Statement statement = conn.createStatement()) {
+            long pageSize;
+            try (ResultSet rs = statement.executeQuery("PRAGMA page_size")) {
+                pageSize = rs.next() ? rs.getLong(1) : 4096;
+            }
+            boolean deduplicated;
+            try (ResultSet rs = statement.executeQuery("SELECT type FROM sqlite_master WHERE name = 'images'")) {
+                deduplicated = rs.next();
+            }
+            //请求的瓦片：key为坐标，value为{索引项偏移量, 数据rowid}
+            Map<Long, long[]> lookups = new HashMap<>();
+            for (int[] request : requests) {
+                lookups.put(tileKey(request[0], request[1], request[2]), null);
+            }
+            scanIndex(statement, deduplicated
+                    ? "SELECT zoom_level, tile_column, tile_row, tile_id FROM map ORDER BY zoom_level, tile_column, tile_row"
+                    : "SELECT zoom_level, tile_column, tile_row, rowid FROM tiles ORDER BY zoom_level, tile_column, tile_row", lookups);
+            //瓦片数据在存储中的位置：key为rowid，value为{offset, length}
+            Map<Long, long[]> spans = new HashMap<>();
+            lookups.values().stream().filter(Objects::nonNull).forEach(lookup -> spans.put(lookup[1], null));
+            scanOffsets(statement, deduplicated
+                    ? "SELECT tile_id, length(tile_data) FROM images ORDER BY tile_id"
+                    : "SELECT rowid, length(tile_data) FROM tiles ORDER BY rowid", spans);
+
+            long capacity = Math.max(1, cacheBytes / pageSize);
+            LinkedHashMap<Long, Boolean> cache = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+                    return size() > capacity;
+                }
+            };
+            long misses = 0;
+            for (int[] request : requests) {
+                long[] lookup = lookups.get(tileKey(request[0], request[1], request[2]));
+                if (lookup == null) {
+                    continue;
+                }
+                //索引页用负数编号，与数据页区分
+                if (cache.put(-1 - lookup[0] / pageSize, Boolean.TRUE) == null) {
+                    misses++;
+                }
+                long[] span = spans.get(lookup[1]);
+                if (span == null) {
+                    continue;
+                }
+                for (long page = span[0] / pageSize; page <= (span[0] + Math.max(0, span[1] - 1)) / pageSize; page++) {
+                    if (cache.put(page, Boolean.TRUE) == null) {
+                        misses++;
+                    }
+                }
+            }
+            return misses;
+        }
+    }
+
+    private static void scanIndex(Statement statement, String sql, Map<Long, long[]> lookups) throws SQLException {
+        long offset = 0;
+        try (ResultSet rs = statement.executeQuery(sql)) {
+            while (rs.next()) {
+                Long key = tileKey(rs.getInt(1), rs.getInt(2), rs.getInt(3));
+                if (lookups.containsKey(key)) {
+                    lookups.put(key, new long[]{offset, rs.getLong(4)});
+                }
+                offset += INDEX_ENTRY_BYTES;
+            }
+        }
+    }
+
+    private static void scanOffsets(Statement statement, String sql, Map<Long, long[]> spans) throws SQLException {
+        long offset = 0;
+        try (ResultSet rs = statement.executeQuery(sql)) {
+            while (rs.next()) {
+                long id = rs.getLong(1);
+                long length = rs.getLong(2);
+                if (spans.containsKey(id)) {
+                    spans.put(id, new long[]{offset, length});
+                }
+                offset += length;
+            }
+        }
+    }
+
+    private static Long tileKey(int z, int x, int y) {
+        return hilbert(z, x, y);
+    }
+
+    /**
+     * SQL函数tile_hash(tile_data)：瓦片数据的MD5
+     */
+    private static final class TileHash extends Function {
+        private final MessageDigest digest;
+
+        private TileHash() {
+            try {
+                this.digest = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        protected void xFunc() throws SQLException {
+            byte[] data = value_blob(0);
+            result(HexFormat.of().formatHex(digest.digest(data == null ? new byte[0] : data)));
+        }
+    }
+
+    /**
+     * SQL函数hilbert(zoom_level, tile_column, tile_row)
+     */
+    private static final class Hilbert extends Function {
+        @Override
+        protected void xFunc() throws SQLException {
+            result(hilbert(value_int(0), value_int(1), value_int(2)));
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2024 QMJY.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.github.qmjy.mapserver.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Mbtiles瓦片读取器。<br>
+ * 基于只读连接池和预编译语句读取单个瓦片，替代每次拼接SQL并通过JdbcTemplate查询的方式。
+ *
+ * @author liushaofeng
+ */
+public class MbtilesTileReader implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(MbtilesTileReader.class);
+    private static final String SQL_TILE = "SELECT tile_data FROM tiles WHERE zoom_level = ? AND tile_column = ? AND tile_row = ?";
+    private static final String SQL_TILE_RANGE = "SELECT tile_column, tile_row, tile_data FROM tiles WHERE zoom_level = ? AND tile_column BETWEEN ? AND ? AND tile_row BETWEEN ? AND ?";
+
+    /**
+     * 外接矩形的面积不超过请求瓦片数的该倍数时使用范围查询，否则逐个查询
+     */
+    private static final int RANGE_DENSITY = 4;
+
+    private final SqliteReadPool pool;
+
+    public MbtilesTileReader(String filePath) {
+        this(filePath, false);
+    }
+
+    /**
+     * 构造方法
+     *
+     * @param filePath  mbtiles文件路径
+     * @param immutable 文件在服务期间是否只读不变
+     */
+    public MbtilesTileReader(String filePath, boolean immutable) {
+        this.pool = new SqliteReadPool(filePath, immutable);
+    }
+
+    /**
+     * 读取指定瓦片的原始数据，数据按数据库中的存储格式返回（可能是gzip压缩的）
+     *
+     * @param z 瓦片层级
+     * @param x 瓦片列号
+     * @param y 瓦片行号（TMS）
+     * @return 瓦片数据
+     */
+    public Optional<byte[]> readTile(int z, int x, int y) {
+        try {
+            byte[] data = pool.execute(connection -> {
+                PreparedStatement statement = connection.prepare(SQL_TILE);
+                statement.setInt(1, z);
+                statement.setInt(2, x);
+                statement.setInt(3, y);
+                try (ResultSet rs = statement.executeQuery()) {
+                    return rs.next() ? rs.getBytes(1) : null;
+                }
+            });
+            return Optional.ofNullable(data);
+        } catch (SQLException e) {
+            logger.error("Read tile {}/{}/{} failed from {}: {}", z, x, y, pool.getFilePath(), e.getMessage());
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * 批量读取同一层级的多个瓦片，在同一个连接上完成。<br>
+     * 请求的瓦片较密集时（如连续的视口）按外接矩形执行一次范围查询（走瓦片唯一索引）再过滤；
+     * 瓦片稀疏、外接矩形远大于瓦片数时逐个按主键查询，避免扫描整个矩形。
+     *
+     * @param z     瓦片层级
+     * @param tiles 待读取的瓦片，每项为 x, y（TMS）
+     * @return key为 {@link #tileKey(int, int)}，value为按存储格式返回的瓦片数据，不存在的瓦片不包含在内
+     */
+    public Map<Long, byte[]> readTiles(int z, Collection<int[]> tiles) {
+        Map<Long, byte[]> result = new HashMap<>();
+        if (tiles.isEmpty()) {
+            return result;
+        }
+        Set<Long> requested = new HashSet<>();
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+        for (int[] tile : tiles) {
+            requested.add(tileKey(tile[0], tile[1]));
+            minX = Math.min(minX, tile[0]);
+            minY = Math.min(minY, tile[1]);
+            maxX = Math.max(maxX, tile[0]);
+            maxY = Math.max(maxY, tile[1]);
+        }
+        int[] range = {minX, maxX, minY, maxY};
+        long area = (long) (maxX - minX + 1) * (maxY - minY + 1);
+        boolean dense = area <= (long) requested.size() * RANGE_DENSITY;
+        try {
+            pool.execute(connection -> {
+                if (dense) {
+                    PreparedStatement statement = connection.prepare(SQL_TILE_RANGE);
+                    statement.setInt(1, z);
+                    statement.setInt(2, range[0]);
+                    statement.setInt(3, range[1]);
+                    statement.setInt(4, range[2]);
+                    statement.setInt(5, range[3]);
+                    try (ResultSet rs = statement.executeQuery()) {
+                        while (rs.next()) {
+                            long key = tileKey(rs.getInt(1), rs.getInt(2));
+                            if (requested.contains(key)) {
+                                result.put(key, rs.getBytes(3));
+                            }
+                        }
+                    }
+                    return null;
+                }
+                PreparedStatement statement = connection.prepare(SQL_TILE);
+                for (long key : requested) {
+                    statement.setInt(1, z);
+                    statement.setInt(2, (int) (key >> 32));
+                    statement.setInt(3, (int) key);
+                    try (ResultSet rs = statement.executeQuery()) {
+                        if (rs.next()) {
+                            result.put(key, rs.getBytes(1));
+                        }
+                    }
+                }
+                return null;
+            });
+        } catch (SQLException e) {
+            logger.error("Read tiles of zoom {} failed from {}: {}", z, pool.getFilePath(), e.getMessage());
+        }
+        return result;
+    }
+
+    /**
+     * 同一层级内瓦片的唯一键
+     *
+     * @param x 瓦片列号
+     * @param y 瓦片行号
+     * @return 唯一键
+     */
+    public static long tileKey(int x, int y) {
+        return (long) x << 32 | (y & 0xffffffffL);
+    }
+
+    public SqliteReadPool getPool() {
+        return pool;
+    }
+
+    @Override
+    public void close() {
+        pool.close();
+    }
+}
@@ -0,0 +1,365 @@
+/*
+ * Copyright (c) 2024 QMJY.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.github.qmjy.mapserver.util;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * PMTiles v3 瓦片读取器。<br>
+ * 规范定义：<a href="https://github.com/protomaps/PMTiles/blob/main/spec/v3/spec.md">PMTiles v3</a><br>
+ * 文件通过内存映射打开，根目录在打开时解码并常驻内存，叶子目录解码后放入有界缓存，
+ * 读取一个瓦片只需在内存中二分查找目录，再从映射区域复制瓦片数据，不经过任何SQL引擎。
+ *
+ * @author liushaofeng
+ */
+public class PmtilesReader implements Closeable {
+    private static final int HEADER_SIZE = 127;
+    private static final int SPEC_VERSION = 3;
+    private static final int MAX_DEPTH = 4;
+    private static final int LEAF_CACHE_SIZE = 512;
+
+    public static final int COMPRESSION_NONE = 1;
+    public static final int COMPRESSION_GZIP = 2;
+    public static final int COMPRESSION_BROTLI = 3;
+    public static final int COMPRESSION_ZSTD = 4;
+
+    public static final int TILE_TYPE_MVT = 1;
+    public static final int TILE_TYPE_PNG = 2;
+    public static final int TILE_TYPE_JPEG = 3;
+    public static final int TILE_TYPE_WEBP = 4;
+    public static final int TILE_TYPE_AVIF = 5;
+
+    private final MappedFileReader mapped;
+    private final long rootOffset;
+    private final long rootLength;
+    private final long metadataOffset;
+    private final long metadataLength;
+    private final long leafOffset;
+    private final long tileDataOffset;
+    private final int internalCompression;
+    private final int tileCompression;
+    private final int tileType;
+    private final int minZoom;
+    private final int maxZoom;
+    private final Directory root;
+    private final Cache<Long, Directory> leafCache = Caffeine.newBuilder().maximumSize(LEAF_CACHE_SIZE).build();
+    private final Map<String, String> metaDataMap = new HashMap<>();
+
+    public PmtilesReader(File file) throws IOException {
+        this.mapped = new MappedFileReader(file);
+        try {
+            if (mapped.size() < HEADER_SIZE || !"PMTiles".equals(new String(mapped.read(0, 7), StandardCharsets.US_ASCII))) {
+                throw new IOException("Not a pmtiles file: " + file.getName());
+            }
+            int version = mapped.readUnsignedByte(7);
+            if (version != SPEC_VERSION) {
+                throw new IOException("Unsupported pmtiles version " + version + ": " + file.getName());
+            }
+            this.rootOffset = mapped.readLittleEndian(8, 8);
+            this.rootLength = mapped.readLittleEndian(16, 8);
+            this.metadataOffset = mapped.readLittleEndian(24, 8);
+            this.metadataLength = mapped.readLittleEndian(32, 8);
+            this.leafOffset = mapped.readLittleEndian(40, 8);
+            this.tileDataOffset = mapped.readLittleEndian(56, 8);
+            this.internalCompression = mapped.readUnsignedByte(97);
+            this.tileCompression = mapped.readUnsignedByte(98);
+            this.tileType = mapped.readUnsignedByte(99);
+            this.minZoom = mapped.readUnsignedByte(100);
+            this.maxZoom = mapped.readUnsignedByte(101);
+            if (internalCompression != COMPRESSION_NONE && internalCompression != COMPRESSION_GZIP) {
+                throw new IOException("Unsupported pmtiles internal compression " + internalCompression + ": " + file.getName());
+            }
+            //瓦片数据按原样返回，只能以gzip或不压缩的形式提供给客户端，brotli、zstd等压缩方式无法正确设置响应头
+            if (tileCompression != COMPRESSION_NONE && tileCompression != COMPRESSION_GZIP) {
+                throw new IOException("Unsupported pmtiles tile compression " + tileCompression + ": " + file.getName());
+            }
+            this.root = readDirectory(rootOffset, rootLength);
+            loadMetaData();
+        } catch (IOException | RuntimeException e) {
+            mapped.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 读取单个瓦片，数据按文件中的存储格式返回（矢量瓦片通常是gzip压缩的）
+     *
+     * @param z 瓦片层级
+     * @param x 瓦片列号
+     * @param y 瓦片行号（TMS，左下角为原点）
+     * @return 瓦片数据
+     */
+    public Optional<byte[]> readTile(int z, int x, int y) {
+        if (z < minZoom || z > maxZoom || z > TileCoverage.MAX_ZOOM || x < 0 || y < 0 || x >= (1 << z) || y >= (1 << z)) {
+            return Optional.empty();
+        }
+        //PMTiles的行号以左上角为原点
+        long tileId = tileId(z, x, (1 << z) - 1 - y);
+        Directory directory = root;
+        for (int depth = 0; depth < MAX_DEPTH; depth++) {
+            int index = directory.find(tileId);
+            if (index < 0) {
+                return Optional.empty();
+            }
+            if (directory.runLengths[index] > 0) {
+                return Optional.of(mapped.read(tileDataOffset + directory.offsets[index], directory.lengths[index]));
+            }
+            long offset = leafOffset + directory.offsets[index];
+            int length = directory.lengths[index];
+            directory = leafCache.get(offset, key -> {
+                try {
+                    return readDirectory(offset, length);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * 遍历所有存在的瓦片，只读取目录，不读取瓦片数据
+     *
+     * @param visitor 瓦片坐标回调，y为TMS行号
+     * @throws IOException 目录读取失败
+     */
+    public void forEachTile(TileVisitor visitor) throws IOException {
+        visitDirectory(root, visitor, 0);
+    }
+
+    private void visitDirectory(Directory directory, TileVisitor visitor, int depth) throws IOException {
+        for (int i = 0; i < directory.tileIds.length; i++) {
+            if (directory.runLengths[i] == 0) {
+                if (depth + 1 < MAX_DEPTH) {
+                    visitDirectory(readDirectory(leafOffset + directory.offsets[i], directory.lengths[i]), visitor, depth + 1);
+                }
+                continue;
+            }
+            for (long tileId = directory.tileIds[i]; tileId < directory.tileIds[i] + directory.runLengths[i]; tileId++) {
+                int[] zxy = tileIdToZxy(tileId);
+                visitor.accept(zxy[0], zxy[1], (1 << zxy[0]) - 1 - zxy[2]);
+            }
+        }
+    }
+
+    /**
+     * 瓦片数据是否为gzip压缩
+     *
+     * @return 是否压缩
+     */
+    public boolean isCompressed() {
+        return tileCompression == COMPRESSION_GZIP;
+    }
+
+    public int getTileType() {
+        return tileType;
+    }
+
+    /**
+     * 元数据，包含头部信息（format、minzoom、maxzoom、bounds、center）以及文件内嵌的JSON元数据，与mbtiles的metadata表字段一致
+     *
+     * @return 元数据
+     */
+    public Map<String, String> getMetaDataMap() {
+        return metaDataMap;
+    }
+
+    public File getFile() {
+        return mapped.getFile();
+    }
+
+    /**
+     * 计算瓦片的PMTiles编号：低层级的瓦片总数加上当前层级的希尔伯特编号
+     *
+     * @param z 瓦片层级
+     * @param x 瓦片列号
+     * @param y 瓦片行号（左上角为原点）
+     * @return 瓦片编号
+     */
+    public static long tileId(int z, int x, int y) {
+        return ((1L << (2 * z)) - 1) / 3 + TileCoverage.hilbertIndex(z, x, y);
+    }
+
+    /**
+     * 由瓦片编号计算瓦片坐标
+     *
+     * @param tileId 瓦片编号
+     * @return z, x, y（左上角为原点）
+     */
+    public static int[] tileIdToZxy(long tileId) {
+        long accumulated = 0;
+        for (int z = 0; z <= TileCoverage.MAX_ZOOM; z++) {
+            long count = 1L << (2 * z);
+            if (tileId < accumulated + count) {
+                int[] xy = TileCoverage.hilbertPoint(z, tileId - accumulated);
+                return new int[]{z, xy[0], xy[1]};
+            }
+            accumulated += count;
+        }
+        throw new IllegalArgumentException("Tile id out of range: " + tileId);
+    }
+
+    private Directory readDirectory(long offset, long length) throws IOException {
+        byte[] data = decompress(mapped.read(offset, Math.toIntExact(length)));
+        int[] position = new int[1];
+        int count = Math.toIntExact(readVarint(data, position));
+        Directory directory = new Directory(count);
+        long lastId = 0;
+        for (int i = 0; i < count; i++) {
+            lastId += readVarint(data, position);
+            directory.tileIds[i] = lastId;
+        }
+        for (int i = 0; i < count; i++) {
+            directory.runLengths[i] = Math.toIntExact(readVarint(data, position));
+        }
+        for (int i = 0; i < count; i++) {
+            directory.lengths[i] = Math.toIntExact(readVarint(data, position));
+        }
+        for (int i = 0; i < count; i++) {
+            long value = readVarint(data, position);
+            //0表示紧跟在上一个条目之后
+            if (value == 0 && i > 0) {
+                directory.offsets[i] = directory.offsets[i - 1] + directory.lengths[i - 1];
+            } else {
+                directory.offsets[i] = value - 1;
+            }
+        }
+        return directory;
+    }
+
+    private void loadMetaData() throws IOException {
+        if (metadataLength > 0) {
+            byte[] json = decompress(mapped.read(metadataOffset, Math.toIntExact(metadataLength)));
+            ObjectMapper mapper = new ObjectMapper();
+            Map<?, ?> map = mapper.readValue(json, Map.class);
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                Object value = entry.getValue();
+                metaDataMap.put(String.valueOf(entry.getKey()), value instanceof String ? (String) value : mapper.writeValueAsString(value));
+            }
+        }
+
+        metaDataMap.put("format", formatName(tileType));
+        metaDataMap.put("minzoom", String.valueOf(minZoom));
+        metaDataMap.put("maxzoom", String.valueOf(maxZoom));
+        double minLon = (int) mapped.readLittleEndian(102, 4) / 1e7;
+        double minLat = (int) mapped.readLittleEndian(106, 4) / 1e7;
+        double maxLon = (int) mapped.readLittleEndian(110, 4) / 1e7;
+        double maxLat = (int) mapped.readLittleEndian(114, 4) / 1e7;
+        metaDataMap.put("bounds", minLon + "," + minLat + "," + maxLon + "," + maxLat);
+        int centerZoom = mapped.readUnsignedByte(118);
+        double centerLon = (int) mapped.readLittleEndian(119, 4) / 1e7;
+        double centerLat = (int) mapped.readLittleEndian(123, 4) / 1e7;
+        metaDataMap.put("center", centerLon + "," + centerLat + "," + centerZoom);
+    }
+
+    private static String formatName(int tileType) {
+        return switch (tileType) {
+            case TILE_TYPE_MVT -> "pbf";
+            case TILE_TYPE_PNG -> "png";
+            case TILE_TYPE_JPEG -> "jpg";
+            case TILE_TYPE_WEBP -> "webp";
+            case TILE_TYPE_AVIF -> "avif";
+            default -> "unknown";
+        };
+    }
+
+    private byte[] decompress(byte[] data) throws IOException {
+        if (internalCompression == COMPRESSION_GZIP) {
+            try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(data))) {
+                return in.readAllBytes();
+            }
+        }
+        return data;
+    }
+
+    private static long readVarint(byte[] data, int[] position) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (position[0] >= data.length) {
+                throw new IOException("Truncated pmtiles directory");
+            }
+            byte b = data[position[0]++];
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint in pmtiles directory");
+    }
+
+    @Override
+    public void close() throws IOException {
+        leafCache.invalidateAll();
+        mapped.close();
+    }
+
+    /**
+     * 解码后的目录，按瓦片编号升序排列。runLength为0的条目指向叶子目录。
+     */
+    private static class Directory {
+        private final long[] tileIds;
+        private final int[] runLengths;
+        private final long[] offsets;
+        private final int[] lengths;
+
+        private Directory(int count) {
+            this.tileIds = new long[count];
+            this.runLengths = new int[count];
+            this.offsets = new long[count];
+            this.lengths = new int[count];
+        }
+
+        /**
+         * 查找包含指定瓦片编号的条目
+         *
+         * @param tileId 瓦片编号
+         * @return 条目下标，不存在时为-1
+         */
+        private int find(long tileId) {
+            int low = 0;
+            int high = tileIds.length - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                long cmp = tileId - tileIds[mid];
+                if (cmp > 0) {
+                    low = mid + 1;
+                } else if (cmp < 0) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            if (high >= 0 && (runLengths[high] == 0 || tileId - tileIds[high] < runLengths[high])) {
+                return high;
+            }
+            return -1;
+        }
+    }
+}
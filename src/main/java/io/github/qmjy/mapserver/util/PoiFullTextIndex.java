@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 2024 QMJY.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.github.qmjy.mapserver.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * POI名称的全文索引。<br>
+ * 在poi表上建立trigram分词的FTS5外部内容表poi_fts，任意3个及以上字符的子串（包括中文）都能走索引；
+ * 短于3个字符的关键词无法用trigram匹配，作为LIKE条件在MATCH的结果上过滤，全部关键词都过短时退化为LIKE扫描。<br>
+ * 建立索引时预先计算每个名称的拉丁转写（中文为全拼）和首字母，保存在poi_latin表并建立同样的trigram索引poi_latin_fts，
+ * 只包含ASCII字符的关键词在转写上匹配，其余关键词在原名称上匹配，查询时不需要再做转写。
+ * 索引版本保存在poi_meta表中，旧版本的POI文件加载时补建索引。
+ *
+ * @author liushaofeng
+ */
+public class PoiFullTextIndex {
+    private static final Logger logger = LoggerFactory.getLogger(PoiFullTextIndex.class);
+
+    /**
+     * 全文索引的版本，索引结构变化时递增，低于该版本的POI文件重新建立索引
+     */
+    public static final int VERSION = 2;
+
+    /**
+     * trigram分词能够匹配的最短关键词长度
+     */
+    private static final int TRIGRAM_LENGTH = 3;
+
+    private static final int TRANSLITERATE_BATCH_SIZE = 10000;
+
+    /**
+     * 单次搜索允许的最大关键词数
+     */
+    public static final int MAX_KEYWORDS = 8;
+
+    private PoiFullTextIndex() {
+    }
+
+    /**
+     * 判断POI文件的全文索引是否可用
+     *
+     * @param jdbcTemplate POI文件
+     * @return 索引存在且版本不低于当前版本
+     */
+    public static boolean isReady(JdbcTemplate jdbcTemplate) {
+        try {
+            List<String> versions = jdbcTemplate.queryForList("SELECT value FROM poi_meta WHERE name = 'fts_version'", String.class);
+            return !versions.isEmpty() && Integer.parseInt(versions.getFirst()) >= VERSION;
+        } catch (DataAccessException | NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 重新建立全文索引，poi表写入完成后调用
+     *
+     * @param jdbcTemplate POI文件
+     */
+    public static void build(JdbcTemplate jdbcTemplate) {
+        long start = System.currentTimeMillis();
+        jdbcTemplate.execute("DROP TABLE IF EXISTS poi_fts");
+        jdbcTemplate.execute("CREATE VIRTUAL TABLE poi_fts USING fts5(name, content = 'poi', tokenize = 'trigram')");
+        jdbcTemplate.execute("INSERT INTO poi_fts (poi_fts) VALUES ('rebuild')");
+        jdbcTemplate.execute("INSERT INTO poi_fts (poi_fts) VALUES ('optimize')");
+
+        jdbcTemplate.execute("DROP TABLE IF EXISTS poi_latin_fts");
+        jdbcTemplate.execute("DROP TABLE IF EXISTS poi_latin");
+        jdbcTemplate.execute("CREATE TABLE poi_latin (id INTEGER PRIMARY KEY, latin TEXT NOT NULL, initials TEXT NOT NULL)");
+        Long count = jdbcTemplate.execute((ConnectionCallback<Long>) PoiFullTextIndex::transliterate);
+        jdbcTemplate.execute("CREATE VIRTUAL TABLE poi_latin_fts USING fts5(latin, initials, content = 'poi_latin', content_rowid = 'id', tokenize = 'trigram')");
+        jdbcTemplate.execute("INSERT INTO poi_latin_fts (poi_latin_fts) VALUES ('rebuild')");
+        jdbcTemplate.execute("INSERT INTO poi_latin_fts (poi_latin_fts) VALUES ('optimize')");
+
+        jdbcTemplate.execute("CREATE TABLE IF NOT EXISTS poi_meta (name TEXT PRIMARY KEY, value TEXT)");
+        jdbcTemplate.update("INSERT OR REPLACE INTO poi_meta (name, value) VALUES ('fts_version', ?)", String.valueOf(VERSION));
+        logger.info("Build poi full text index with {} transliterated names in {} ms", count, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * 在一个事务中转写所有POI名称并写入poi_latin表
+     */
+    private static Long transliterate(Connection connection) throws SQLException {
+        PoiTransliterator transliterator = new PoiTransliterator();
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        long count = 0;
+        try (Statement query = connection.createStatement();
+             ResultSet rs = query.executeQuery("SELECT rowid, name FROM poi WHERE name IS NOT NULL");
+             PreparedStatement insert = connection.prepareStatement("INSERT INTO poi_latin (id, latin, initials) VALUES (?, ?, ?)")) {
+            while (rs.next()) {
+                String[] latin = transliterator.transliterate(rs.getString(2));
+                if (latin[0].isEmpty()) {
+                    continue;
+                }
+                insert.setLong(1, rs.getLong(1));
+                insert.setString(2, latin[0]);
+                insert.setString(3, latin[1]);
+                insert.addBatch();
+                if (++count % TRANSLITERATE_BATCH_SIZE == 0) {
+                    insert.executeBatch();
+                }
+            }
+            insert.executeBatch();
+            connection.commit();
+        } catch (SQLException | RuntimeException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+        return count;
+    }
+
+    /**
+     * 拆分关键词，多个关键词用空白字符分隔
+     *
+     * @param keywords 关键词
+     * @return 去重后的关键词
+     */
+    public static List<String> splitKeywords(String keywords) {
+        return Arrays.stream(keywords.trim().split("\\s+")).filter(keyword -> !keyword.isEmpty()).distinct().toList();
+    }
+
+    /**
+     * 判断POI文件的全文索引是否可用
+     *
+     * @param connection POI文件的连接
+     * @return 索引存在且版本不低于当前版本
+     */
+    public static boolean isReady(Connection connection) {
+        try (Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT value FROM poi_meta WHERE name = 'fts_version'")) {
+            return rs.next() && Integer.parseInt(rs.getString(1)) >= VERSION;
+        } catch (SQLException | NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 生成搜索名称同时包含所有关键词的POI的查询，有可用的全文索引时按bm25相关度排序
+     *
+     * @param keywords 关键词
+     * @param fts      是否使用全文索引
+     * @param limit    返回的条数
+     * @param offset   跳过的条数
+     * @return 查询poi表记录的SQL和参数。关键词数量和长短相同的查询SQL相同，可复用预编译语句
+     */
+    public static Query buildSearch(List<String> keywords, boolean fts, int limit, long offset) {
+        Filters filters = classify(keywords, fts);
+        List<Object> args = new ArrayList<>();
+        StringBuilder sql = new StringBuilder();
+        String rank = null;
+        if (!filters.nameMatches().isEmpty()) {
+            sql.append("SELECT poi.* FROM poi_fts JOIN poi ON poi.rowid = poi_fts.rowid WHERE poi_fts MATCH ?");
+            args.add(String.join(" AND ", filters.nameMatches()));
+            appendLatinMatch(sql, args, filters.latinMatches());
+            rank = "poi_fts.rank";
+        } else if (!filters.latinMatches().isEmpty()) {
+            sql.append("SELECT poi.* FROM poi_latin_fts JOIN poi ON poi.rowid = poi_latin_fts.rowid WHERE poi_latin_fts MATCH ?");
+            args.add(String.join(" AND ", filters.latinMatches()));
+            rank = "poi_latin_fts.rank";
+        } else {
+            sql.append("SELECT poi.* FROM poi WHERE 1 = 1");
+        }
+        appendLikes(sql, args, filters);
+        sql.append(rank == null ? " LIMIT ? OFFSET ?" : " ORDER BY " + rank + " LIMIT ? OFFSET ?");
+        args.add(limit);
+        args.add(offset);
+        return new Query(sql.toString(), args);
+    }
+
+    /**
+     * 在查询poi表的语句后追加名称包含所有关键词的条件
+     *
+     * @param sql      以WHERE条件结尾的SQL
+     * @param args     参数
+     * @param keywords 关键词，可为空列表
+     * @param fts      是否使用全文索引
+     */
+    public static void appendKeywordFilter(StringBuilder sql, List<Object> args, List<String> keywords, boolean fts) {
+        Filters filters = classify(keywords, fts);
+        if (!filters.nameMatches().isEmpty()) {
+            sql.append(" AND poi.rowid IN (SELECT rowid FROM poi_fts WHERE poi_fts MATCH ?)");
+            args.add(String.join(" AND ", filters.nameMatches()));
+        }
+        appendLatinMatch(sql, args, filters.latinMatches());
+        appendLikes(sql, args, filters);
+    }
+
+    private static void appendLatinMatch(StringBuilder sql, List<Object> args, List<String> latinMatches) {
+        if (!latinMatches.isEmpty()) {
+            sql.append(" AND poi.rowid IN (SELECT rowid FROM poi_latin_fts WHERE poi_latin_fts MATCH ?)");
+            args.add(String.join(" AND ", latinMatches));
+        }
+    }
+
+    private static void appendLikes(StringBuilder sql, List<Object> args, Filters filters) {
+        for (String like : filters.nameLikes()) {
+            sql.append(" AND poi.name LIKE ? ESCAPE '\\'");
+            args.add(like);
+        }
+        for (String like : filters.latinLikes()) {
+            sql.append(" AND poi.rowid IN (SELECT id FROM poi_latin WHERE latin LIKE ? OR initials LIKE ?)");
+            args.add(like);
+            args.add(like);
+        }
+    }
+
+    /**
+     * 能用trigram匹配的关键词转换为MATCH短语，其余的转换为LIKE模式。
+     * 有全文索引时只包含ASCII字符的关键词规范化后在转写上匹配，否则在原名称上匹配。
+     */
+    private static Filters classify(List<String> keywords, boolean fts) {
+        Filters filters = new Filters(new ArrayList<>(), new ArrayList<>(), new ArrayList<>(), new ArrayList<>());
+        for (String keyword : keywords) {
+            String latin = fts && PoiTransliterator.isAscii(keyword) ? PoiTransliterator.normalizeAscii(keyword) : "";
+            if (!latin.isEmpty()) {
+                //规范后只有字母和数字，不需要转义
+                if (latin.length() >= TRIGRAM_LENGTH) {
+                    filters.latinMatches().add("\"" + latin + "\"");
+                } else {
+                    filters.latinLikes().add("%" + latin + "%");
+                }
+            } else if (fts && keyword.codePointCount(0, keyword.length()) >= TRIGRAM_LENGTH) {
+                filters.nameMatches().add("\"" + keyword.replace("\"", "\"\"") + "\"");
+            } else {
+                filters.nameLikes().add("%" + escapeLike(keyword) + "%");
+            }
+        }
+        return filters;
+    }
+
+    private record Filters(List<String> nameMatches, List<String> latinMatches, List<String> nameLikes, List<String> latinLikes) {
+    }
+
+    /**
+     * 查询语句
+     *
+     * @param sql  SQL
+     * @param args 参数
+     */
+    public record Query(String sql, List<Object> args) {
+    }
+
+    private static String escapeLike(String keyword) {
+        return keyword.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2024 QMJY.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.github.qmjy.mapserver.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * POI的空间索引。<br>
+ * 在带有lon、lat列的poi表上建立R*Tree虚拟表poi_rtree，用矩形范围筛选候选POI，再按球面距离精确过滤和排序。
+ * R*Tree以32位浮点数保存坐标并向外取整，矩形筛选不会漏掉边界上的POI。
+ *
+ * @author liushaofeng
+ */
+public class PoiSpatialIndex {
+    private static final Logger logger = LoggerFactory.getLogger(PoiSpatialIndex.class);
+
+    /**
+     * 空间索引的版本，索引结构变化时递增
+     */
+    public static final int VERSION = 1;
+
+    /**
+     * 地球平均半径，单位米
+     */
+    public static final double EARTH_RADIUS = 6371008.8;
+
+    /**
+     * {@link #buildFetch}结果中rowid列的名称
+     */
+    public static final String ROWID_COLUMN = "poi_rowid";
+
+    private PoiSpatialIndex() {
+    }
+
+    /**
+     * 判断POI文件的空间索引是否可用
+     *
+     * @param jdbcTemplate POI文件
+     * @return 索引存在且版本不低于当前版本
+     */
+    public static boolean isReady(JdbcTemplate jdbcTemplate) {
+        try {
+            List<String> versions = jdbcTemplate.queryForList("SELECT value FROM poi_meta WHERE name = 'rtree_version'", String.class);
+            return !versions.isEmpty() && Integer.parseInt(versions.getFirst()) >= VERSION;
+        } catch (DataAccessException | NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 判断POI文件的空间索引是否可用
+     *
+     * @param connection POI文件的连接
+     * @return 索引存在且版本不低于当前版本
+     */
+    public static boolean isReady(Connection connection) {
+        try (Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT value FROM poi_meta WHERE name = 'rtree_version'")) {
+            return rs.next() && Integer.parseInt(rs.getString(1)) >= VERSION;
+        } catch (SQLException | NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 重新建立空间索引。poi表没有lon、lat列时（旧版本的idx文件）不建立。
+     *
+     * @param jdbcTemplate POI文件
+     * @return 是否建立了索引
+     */
+    public static boolean build(JdbcTemplate jdbcTemplate) {
+        List<String> columns = jdbcTemplate.queryForList("SELECT name FROM pragma_table_info('poi')", String.class);
+        if (!columns.contains("lon") || !columns.contains("lat")) {
+            return false;
+        }
+        long start = System.currentTimeMillis();
+        jdbcTemplate.execute("DROP TABLE IF EXISTS poi_rtree");
+        jdbcTemplate.execute("CREATE VIRTUAL TABLE poi_rtree USING rtree(id, min_lon, max_lon, min_lat, max_lat)");
+        jdbcTemplate.execute("INSERT INTO poi_rtree (id, min_lon, max_lon, min_lat, max_lat) SELECT rowid, lon, lon, lat, lat FROM poi " +
+                "WHERE typeof(lon) IN ('real', 'integer') AND typeof(lat) IN ('real', 'integer')");
+        jdbcTemplate.execute("CREATE TABLE IF NOT EXISTS poi_meta (name TEXT PRIMARY KEY, value TEXT)");
+        jdbcTemplate.update("INSERT OR REPLACE INTO poi_meta (name, value) VALUES ('rtree_version', ?)", String.valueOf(VERSION));
+        logger.info("Build poi spatial index in {} ms", System.currentTimeMillis() - start);
+        return true;
+    }
+
+    /**
+     * 生成查询矩形范围内候选POI的语句，只读取rowid和坐标，按距离排序后再读取需要返回的记录
+     *
+     * @param bbox     范围，{minLon, minLat, maxLon, maxLat}
+     * @param keywords 关键词，可为空列表
+     * @param fts      是否使用全文索引
+     * @param category 类别，可为空
+     * @param limit    返回的条数
+     * @return 查询rowid、lon、lat的SQL和参数
+     */
+    public static PoiFullTextIndex.Query buildCandidates(double[] bbox, List<String> keywords, boolean fts, String category, int limit) {
+        List<Object> args = new ArrayList<>(List.of(bbox[0], bbox[2], bbox[1], bbox[3]));
+        StringBuilder sql = new StringBuilder("SELECT poi.rowid, poi.lon, poi.lat FROM poi_rtree JOIN poi ON poi.rowid = poi_rtree.id " +
+                "WHERE poi_rtree.max_lon >= ? AND poi_rtree.min_lon <= ? AND poi_rtree.max_lat >= ? AND poi_rtree.min_lat <= ?");
+        PoiFullTextIndex.appendKeywordFilter(sql, args, keywords, fts);
+        if (category != null) {
+            sql.append(" AND poi.category = ?");
+            args.add(category);
+        }
+        sql.append(" LIMIT ?");
+        args.add(limit);
+        return new PoiFullTextIndex.Query(sql.toString(), args);
+    }
+
+    /**
+     * 生成按rowid读取POI记录的语句，结果的第一列为rowid
+     *
+     * @param rowids POI的rowid
+     * @return 查询poi表记录的SQL和参数
+     */
+    public static PoiFullTextIndex.Query buildFetch(List<Long> rowids) {
+        StringBuilder sql = new StringBuilder("SELECT poi.rowid AS ").append(ROWID_COLUMN).append(", poi.* FROM poi WHERE poi.rowid IN (");
+        for (int i = 0; i < rowids.size(); i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        sql.append(")");
+        return new PoiFullTextIndex.Query(sql.toString(), new ArrayList<>(rowids));
+    }
+
+    /**
+     * 以某点为中心、指定半径的圆的外接矩形。跨越180度经线或靠近极点时经度取全部范围。
+     *
+     * @param lon    中心经度
+     * @param lat    中心纬度
+     * @param radius 半径，单位米
+     * @return {minLon, minLat, maxLon, maxLat}
+     */
+    public static double[] bbox(double lon, double lat, double radius) {
+        double dLat = Math.toDegrees(radius / EARTH_RADIUS);
+        double minLat = Math.max(-90, lat - dLat);
+        double maxLat = Math.min(90, lat + dLat);
+        double cos = Math.cos(Math.toRadians(Math.max(Math.abs(minLat), Math.abs(maxLat))));
+        if (cos < 1e-9 || maxLat >= 90 || minLat <= -90) {
+            return new double[]{-180, minLat, 180, maxLat};
+        }
+        double dLon = dLat / cos;
+        if (lon - dLon < -180 || lon + dLon > 180) {
+            return new double[]{-180, minLat, 180, maxLat};
+        }
+        return new double[]{lon - dLon, minLat, lon + dLon, maxLat};
+    }
+
+    /**
+     * 两点间的球面距离
+     *
+     * @return 距离，单位米
+     */
+    public static double distance(double lon1, double lat1, double lon2, double lat2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        return 2 * EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2024 QMJY.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+
+package io.github.qmjy.mapserver.util;
+
+import com.ibm.icu.text.Transliterator;
+
+/**
+ * POI名称的拉丁转写。<br>
+ * 任意文字先转写为拉丁字母（中文为拼音），再去掉声调和变音符号并转为小写，只保留字母和数字。
+ * 中文名称得到全拼和每个音节的首字母，例如“春熙路”为chunxilu和cxl；其他文字的名称得到转写和每个单词的首字母。
+ * 转写器不是线程安全的，每个线程使用单独的实例。
+ *
+ * @author liushaofeng
+ */
+public class PoiTransliterator {
+    private static final String RULES = "Any-Latin; Latin-ASCII; Any-Lower";
+
+    private final Transliterator transliterator = Transliterator.getInstance(RULES);
+
+    /**
+     * 转写POI名称
+     *
+     * @param name POI名称
+     * @return {全拼或转写, 首字母}，名称中没有可转写的字符时都为空字符串
+     */
+    public String[] transliterate(String name) {
+        String latin = transliterator.transform(name);
+        StringBuilder full = new StringBuilder(latin.length());
+        StringBuilder initials = new StringBuilder();
+        boolean wordStart = true;
+        for (int i = 0; i < latin.length(); i++) {
+            char c = latin.charAt(i);
+            if (Character.isWhitespace(c)) {
+                wordStart = true;
+            } else if (isAsciiLetterOrDigit(c)) {
+                full.append(c);
+                if (wordStart) {
+                    initials.append(c);
+                    wordStart = false;
+                }
+            }
+        }
+        return new String[]{full.toString(), initials.toString()};
+    }
+
+    /**
+     * 判断关键词是否只包含ASCII字符，这类关键词在转写上匹配，其余的在原名称上匹配
+     *
+     * @param keyword 关键词
+     * @return 是否只包含ASCII字符
+     */
+    public static boolean isAscii(String keyword) {
+        for (int i = 0; i < keyword.length(); i++) {
+            if (keyword.charAt(i) > 0x7f) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 将ASCII关键词规范为与转写相同的形式：小写，只保留字母和数字
+     *
+     * @param keyword 只包含ASCII字符的关键词
+     * @return 规范后的关键词，可能为空字符串
+     */
+    public static String normalizeAscii(String keyword) {
+        StringBuilder sb = new StringBuilder(keyword.length());
+        for (int i = 0; i < keyword.length(); i++) {
+            char c = Character.toLowerCase(keyword.charAt(i));
+            if (isAsciiLetterOrDigit(c)) {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static boolean isAsciiLetterOrDigit(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9');
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2024 QMJY.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+
+package io.github.qmjy.mapserver.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * 数据源注册表。<br>
+ * 读取时直接访问当前的不可变快照，不加锁；新增、替换、移除时复制快照并整体替换。
+ * 每个数据源带有引用计数，被替换或移除的数据源在所有借出的租约归还之后才会关闭，正在进行的读取不会读到已关闭的文件。
+ *
+ * @param <V> 数据源类型
+ * @author liushaofeng
+ */
+public class SourceRegistry<V> {
+    private static final Logger logger = LoggerFactory.getLogger(SourceRegistry.class);
+
+    private final Consumer<V> closer;
+    private volatile Map<String, Entry<V>> snapshot = Map.of();
+
+    /**
+     * 构造方法
+     *
+     * @param closer 数据源不再被使用时的关闭方法
+     */
+    public SourceRegistry(Consumer<V> closer) {
+        this.closer = closer;
+    }
+
+    /**
+     * 获取数据源，不持有租约。只适合读取元数据等不访问文件的场景
+     *
+     * @param name 数据源名称
+     * @return 数据源
+     */
+    public Optional<V> get(String name) {
+        Entry<V> entry = name == null ? null : snapshot.get(name);
+        return entry == null ? Optional.empty() : Optional.of(entry.value);
+    }
+
+    /**
+     * 借出数据源，租约归还之前数据源不会被关闭。需要配合try-with-resources使用
+     *
+     * @param name 数据源名称
+     * @return 租约
+     */
+    public Optional<Lease<V>> acquire(String name) {
+        if (name == null) {
+            return Optional.empty();
+        }
+        while (true) {
+            Entry<V> entry = snapshot.get(name);
+            if (entry == null) {
+                return Optional.empty();
+            }
+            if (entry.retain()) {
+                return Optional.of(new Lease<>(this, entry));
+            }
+            //数据源刚被替换或移除，快照已经是新的，重新查找
+        }
+    }
+
+    /**
+     * 新增或替换数据源，被替换的数据源在租约全部归还后关闭
+     *
+     * @param name  数据源名称
+     * @param value 数据源
+     */
+    public void put(String name, V value) {
+        Entry<V> old;
+        synchronized (this) {
+            Map<String, Entry<V>> next = new HashMap<>(snapshot);
+            old = next.put(name, new Entry<>(value));
+            snapshot = Collections.unmodifiableMap(next);
+        }
+        if (old != null) {
+            release(old);
+        }
+    }
+
+    /**
+     * 移除数据源，数据源在租约全部归还后关闭
+     *
+     * @param name 数据源名称
+     * @return 数据源是否存在
+     */
+    public boolean remove(String name) {
+        Entry<V> old;
+        synchronized (this) {
+            if (!snapshot.containsKey(name)) {
+                return false;
+            }
+            Map<String, Entry<V>> next = new HashMap<>(snapshot);
+            old = next.remove(name);
+            snapshot = Collections.unmodifiableMap(next);
+        }
+        release(old);
+        return true;
+    }
+
+    /**
+     * 当前所有数据源的快照
+     *
+     * @return 不可修改的数据源映射
+     */
+    public Map<String, V> snapshot() {
+        Map<String, V> result = new HashMap<>();
+        snapshot.forEach((name, entry) -> result.put(name, entry.value));
+        return Collections.unmodifiableMap(result);
+    }
+
+    private void release(Entry<V> entry) {
+        if (entry.refs.decrementAndGet() == 0 && closer != null) {
+            try {
+                closer.accept(entry.value);
+            } catch (RuntimeException e) {
+                logger.warn("Close data source failed: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 数据源租约
+     *
+     * @param <V> 数据源类型
+     */
+    public static final class Lease<V> implements AutoCloseable {
+        private final SourceRegistry<V> registry;
+        private final Entry<V> entry;
+        private boolean released = false;
+
+        private Lease(SourceRegistry<V> registry, Entry<V> entry) {
+            this.registry = registry;
+            this.entry = entry;
+        }
+
+        public V get() {
+            return entry.value;
+        }
+
+        @Override
+        public void close() {
+            if (!released) {
+                released = true;
+                registry.release(entry);
+            }
+        }
+    }
+
+    /**
+     * 注册表中的数据源，注册表本身持有一个引用
+     */
+    private static final class Entry<V> {
+        private final V value;
+        private final AtomicInteger refs = new AtomicInteger(1);
+
+        private Entry(V value) {
+            this.value = value;
+        }
+
+        private boolean retain() {
+            int current;
+            do {
+                current = refs.get();
+                if (current == 0) {
+                    return false;
+                }
+            } while (!refs.compareAndSet(current, current + 1));
+            return true;
+        }
+    }
+}
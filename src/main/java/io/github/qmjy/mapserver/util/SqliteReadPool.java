@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) 2024 QMJY.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.github.qmjy.mapserver.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sqlite.SQLiteConfig;
+import org.sqlite.SQLiteOpenMode;
+
+import java.io.Closeable;
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 只读SQLite连接池。<br>
+ * 每个连接以只读方式打开并设置读优化的pragma，同时缓存该连接上已经编译过的PreparedStatement，
+ * 避免高频查询时反复解析SQL。连接数默认与CPU核数一致。
+ *
+ * @author liushaofeng
+ */
+public class SqliteReadPool implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(SqliteReadPool.class);
+
+    /**
+     * 默认内存映射大小：256MB
+     */
+    public static final long DEFAULT_MMAP_SIZE = 256L * 1024 * 1024;
+
+    /**
+     * 默认页缓存大小，负数表示KB：每个连接16MB
+     */
+    public static final int DEFAULT_CACHE_SIZE = -16 * 1024;
+
+    private static final long BORROW_TIMEOUT_SECONDS = 30;
+
+    private final String filePath;
+    private final boolean immutable;
+    private final int maxSize;
+    private final BlockingQueue<PooledConnection> idle;
+    private final AtomicInteger opened = new AtomicInteger(0);
+    private volatile boolean closed = false;
+
+    /**
+     * 以CPU核数作为连接池大小
+     *
+     * @param filePath  SQLite文件路径
+     * @param immutable 文件在服务期间是否不会被修改。为true时SQLite不再做文件锁和变更检测
+     */
+    public SqliteReadPool(String filePath, boolean immutable) {
+        this(filePath, immutable, Runtime.getRuntime().availableProcessors());
+    }
+
+    public SqliteReadPool(String filePath, boolean immutable, int maxSize) {
+        this.filePath = filePath;
+        this.immutable = immutable;
+        this.maxSize = Math.max(1, maxSize);
+        this.idle = new ArrayBlockingQueue<>(this.maxSize);
+    }
+
+    /**
+     * 借用一个连接执行回调，执行完成后自动归还
+     *
+     * @param callback 数据库操作
+     * @param <T>      返回值类型
+     * @return 回调返回值
+     * @throws SQLException 数据库访问异常
+     */
+    public <T> T execute(ConnectionCallback<T> callback) throws SQLException {
+        PooledConnection connection = borrow();
+        boolean broken = false;
+        try {
+            return callback.doInConnection(connection);
+        } catch (SQLException e) {
+            broken = connection.isBroken();
+            throw e;
+        } finally {
+            giveBack(connection, broken);
+        }
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public String getFilePath() {
+        return filePath;
+    }
+
+    private PooledConnection borrow() throws SQLException {
+        if (closed) {
+            throw new SQLException("Pool already closed: " + filePath);
+        }
+        PooledConnection connection = idle.poll();
+        if (connection != null) {
+            return connection;
+        }
+        if (opened.incrementAndGet() <= maxSize) {
+            try {
+                return open();
+            } catch (SQLException e) {
+                opened.decrementAndGet();
+                throw e;
+            }
+        }
+        opened.decrementAndGet();
+        try {
+            connection = idle.poll(BORROW_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for connection: " + filePath, e);
+        }
+        if (connection == null) {
+            throw new SQLException("Timeout while waiting for connection: " + filePath);
+        }
+        return connection;
+    }
+
+    private void giveBack(PooledConnection connection, boolean broken) {
+        if (broken || closed || !idle.offer(connection)) {
+            opened.decrementAndGet();
+            connection.close();
+        }
+    }
+
+    private PooledConnection open() throws SQLException {
+        SQLiteConfig config = new SQLiteConfig();
+        config.setReadOnly(true);
+        config.setCacheSize(DEFAULT_CACHE_SIZE);
+
+        String url;
+        if (immutable) {
+            config.setOpenMode(SQLiteOpenMode.OPEN_URI);
+            url = "jdbc:sqlite:" + new File(filePath).toURI() + "?immutable=1";
+        } else {
+            url = "jdbc:sqlite:" + filePath;
+        }
+
+        Connection connection = DriverManager.getConnection(url, config.toProperties());
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("PRAGMA mmap_size = " + DEFAULT_MMAP_SIZE);
+            statement.execute("PRAGMA query_only = 1");
+            statement.execute("PRAGMA temp_store = MEMORY");
+        } catch (SQLException e) {
+            connection.close();
+            throw e;
+        }
+        return new PooledConnection(connection);
+    }
+
+    /**
+     * 关闭连接池。正在被借用的连接会在归还时关闭，保证正在进行的读取能够完成。
+     */
+    @Override
+    public void close() {
+        closed = true;
+        PooledConnection connection;
+        while ((connection = idle.poll()) != null) {
+            opened.decrementAndGet();
+            connection.close();
+        }
+    }
+
+    /**
+     * 池化连接，缓存该连接上的PreparedStatement。同一时刻只会被一个线程持有。
+     */
+    public static class PooledConnection {
+        private final Connection connection;
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+        private PooledConnection(Connection connection) {
+            this.connection = connection;
+        }
+
+        /**
+         * 获取缓存的预编译语句，不存在时编译并缓存
+         *
+         * @param sql 待执行的SQL
+         * @return 预编译语句
+         * @throws SQLException 编译失败
+         */
+        public PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement statement = statements.get(sql);
+            if (statement == null) {
+                statement = connection.prepareStatement(sql);
+                statements.put(sql, statement);
+            } else {
+                statement.clearParameters();
+            }
+            return statement;
+        }
+
+        public Connection getConnection() {
+            return connection;
+        }
+
+        private boolean isBroken() {
+            try {
+                return connection.isClosed();
+            } catch (SQLException e) {
+                return true;
+            }
+        }
+
+        private void close() {
+            for (PreparedStatement statement : statements.values()) {
+                try {
+                    statement.close();
+                } catch (SQLException e) {
+                    logger.warn("Close statement failed: {}", e.getMessage());
+                }
+            }
+            statements.clear();
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                logger.warn("Close connection failed: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 连接回调
+     *
+     * @param <T> 返回值类型
+     */
+    @FunctionalInterface
+    public interface ConnectionCallback<T> {
+        T doInConnection(PooledConnection connection) throws SQLException;
+    }
+}
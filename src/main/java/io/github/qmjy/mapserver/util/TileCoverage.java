@@ -0,0 +1,469 @@
+/*
+ * Copyright (c) 2024 QMJY.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.github.qmjy.mapserver.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 瓦片集覆盖范围。<br>
+ * 每个层级的瓦片坐标按希尔伯特曲线编号，编号排序后压缩为连续区间（run-length），空间上相邻的瓦片编号也相邻，
+ * 因此大片连续覆盖的区域只需要很少的区间即可表示。查询一个瓦片是否存在只需在内存中二分查找，无需访问后端存储。
+ * 构建完成后不可变，可被多线程并发读取。
+ *
+ * @author liushaofeng
+ */
+public class TileCoverage {
+    private static final Logger logger = LoggerFactory.getLogger(TileCoverage.class);
+
+    /**
+     * 支持的最大层级，希尔伯特编号需要2*z位
+     */
+    public static final int MAX_ZOOM = 30;
+
+    private static final int MAGIC = 0x54434f56;
+    private static final int VERSION = 1;
+
+    private final ZoomCoverage[] zooms;
+
+    private TileCoverage(ZoomCoverage[] zooms) {
+        this.zooms = zooms;
+    }
+
+    /**
+     * 判断瓦片是否存在
+     *
+     * @param z 瓦片层级
+     * @param x 瓦片列号
+     * @param y 瓦片行号
+     * @return 瓦片是否存在
+     */
+    public boolean contains(int z, int x, int y) {
+        if (z < 0 || z > MAX_ZOOM) {
+            return false;
+        }
+        ZoomCoverage coverage = zooms[z];
+        if (coverage == null || x < coverage.minX || x > coverage.maxX || y < coverage.minY || y > coverage.maxY) {
+            return false;
+        }
+        long index = hilbertIndex(z, x, y);
+        int pos = Arrays.binarySearch(coverage.starts, index);
+        if (pos >= 0) {
+            return true;
+        }
+        int run = -pos - 2;
+        return run >= 0 && index <= coverage.ends[run];
+    }
+
+    /**
+     * 是否包含指定层级的瓦片
+     *
+     * @param z 瓦片层级
+     * @return 是否包含
+     */
+    public boolean hasZoom(int z) {
+        return z >= 0 && z <= MAX_ZOOM && zooms[z] != null;
+    }
+
+    /**
+     * 包含瓦片的所有层级
+     *
+     * @return 层级列表，升序
+     */
+    public List<Integer> getZooms() {
+        List<Integer> result = new ArrayList<>();
+        for (int z = 0; z <= MAX_ZOOM; z++) {
+            if (zooms[z] != null) {
+                result.add(z);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 指定层级的瓦片数量
+     *
+     * @param z 瓦片层级
+     * @return 瓦片数量
+     */
+    public long getTileCount(int z) {
+        return hasZoom(z) ? zooms[z].tileCount : 0;
+    }
+
+    /**
+     * 指定层级的区间数量，用于观察压缩效果
+     *
+     * @param z 瓦片层级
+     * @return 区间数量
+     */
+    public int getRunCount(int z) {
+        return hasZoom(z) ? zooms[z].starts.length : 0;
+    }
+
+    /**
+     * 指定层级的瓦片坐标范围
+     *
+     * @param z 瓦片层级
+     * @return minX, minY, maxX, maxY
+     */
+    public Optional<int[]> getBounds(int z) {
+        if (!hasZoom(z)) {
+            return Optional.empty();
+        }
+        ZoomCoverage coverage = zooms[z];
+        return Optional.of(new int[]{coverage.minX, coverage.minY, coverage.maxX, coverage.maxY});
+    }
+
+    /**
+     * 将指定层级的覆盖范围合并为矩形。同一行内连续的瓦片合并为一段，相邻行完全相同的段再合并为一个矩形。
+     *
+     * @param z        瓦片层级
+     * @param maxTiles 允许展开的最大瓦片数，超过时不计算
+     * @return 矩形列表，每项为 minX, minY, maxX, maxY（均包含）
+     */
+    public Optional<List<int[]>> toRectangles(int z, long maxTiles) {
+        if (!hasZoom(z)) {
+            return Optional.of(Collections.emptyList());
+        }
+        ZoomCoverage coverage = zooms[z];
+        if (coverage.tileCount > maxTiles) {
+            return Optional.empty();
+        }
+
+        Map<Integer, BitSet> rows = new TreeMap<>();
+        for (int i = 0; i < coverage.starts.length; i++) {
+            for (long index = coverage.starts[i]; index <= coverage.ends[i]; index++) {
+                int[] point = hilbertPoint(z, index);
+                rows.computeIfAbsent(point[1], key -> new BitSet()).set(point[0]);
+            }
+        }
+
+        List<int[]> rectangles = new ArrayList<>();
+        //key: 行内段的起止列，value: 仍在向上延伸的矩形
+        Map<Long, int[]> open = new HashMap<>();
+        int lastRow = Integer.MIN_VALUE;
+        for (Map.Entry<Integer, BitSet> entry : rows.entrySet()) {
+            int row = entry.getKey();
+            if (row != lastRow + 1) {
+                rectangles.addAll(open.values());
+                open.clear();
+            }
+            Map<Long, int[]> next = new HashMap<>();
+            BitSet bits = entry.getValue();
+            for (int start = bits.nextSetBit(0); start >= 0; ) {
+                int end = bits.nextClearBit(start) - 1;
+                long key = (long) start << 32 | end;
+                int[] rectangle = open.remove(key);
+                if (rectangle == null) {
+                    rectangle = new int[]{start, row, end, row};
+                } else {
+                    rectangle[3] = row;
+                }
+                next.put(key, rectangle);
+                start = bits.nextSetBit(end + 1);
+            }
+            rectangles.addAll(open.values());
+            open = next;
+            lastRow = row;
+        }
+        rectangles.addAll(open.values());
+        return Optional.of(rectangles);
+    }
+
+    /**
+     * 将覆盖范围写入缓存文件，并记录源数据的大小和修改时间，源数据变化后缓存自动失效。
+     *
+     * @param file           缓存文件
+     * @param sourceLength   源数据大小
+     * @param sourceModified 源数据修改时间
+     * @throws IOException 写入失败
+     */
+    public void write(File file, long sourceLength, long sourceModified) throws IOException {
+        File tmp = new File(file.getAbsolutePath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tmp))))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(sourceLength);
+            out.writeLong(sourceModified);
+            List<Integer> zoomList = getZooms();
+            out.writeInt(zoomList.size());
+            for (int z : zoomList) {
+                ZoomCoverage coverage = zooms[z];
+                out.writeInt(z);
+                out.writeInt(coverage.minX);
+                out.writeInt(coverage.minY);
+                out.writeInt(coverage.maxX);
+                out.writeInt(coverage.maxY);
+                out.writeLong(coverage.tileCount);
+                out.writeInt(coverage.starts.length);
+                long previous = 0;
+                for (int i = 0; i < coverage.starts.length; i++) {
+                    //按增量存储，压缩效果更好
+                    out.writeLong(coverage.starts[i] - previous);
+                    out.writeLong(coverage.ends[i] - coverage.starts[i]);
+                    previous = coverage.ends[i];
+                }
+            }
+        }
+        if (!tmp.renameTo(file)) {
+            if (!file.delete() || !tmp.renameTo(file)) {
+                throw new IOException("Rename coverage file failed: " + file.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * 读取缓存文件中的覆盖范围
+     *
+     * @param file           缓存文件
+     * @param sourceLength   源数据当前大小
+     * @param sourceModified 源数据当前修改时间
+     * @return 覆盖范围，缓存文件不存在、损坏或已过期时为空
+     */
+    public static Optional<TileCoverage> read(File file, long sourceLength, long sourceModified) {
+        if (!file.exists()) {
+            return Optional.empty();
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readLong() != sourceLength || in.readLong() != sourceModified) {
+                return Optional.empty();
+            }
+            ZoomCoverage[] zooms = new ZoomCoverage[MAX_ZOOM + 1];
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                int z = in.readInt();
+                ZoomCoverage coverage = new ZoomCoverage();
+                coverage.minX = in.readInt();
+                coverage.minY = in.readInt();
+                coverage.maxX = in.readInt();
+                coverage.maxY = in.readInt();
+                coverage.tileCount = in.readLong();
+                int runs = in.readInt();
+                coverage.starts = new long[runs];
+                coverage.ends = new long[runs];
+                long previous = 0;
+                for (int j = 0; j < runs; j++) {
+                    coverage.starts[j] = previous + in.readLong();
+                    coverage.ends[j] = coverage.starts[j] + in.readLong();
+                    previous = coverage.ends[j];
+                }
+                zooms[z] = coverage;
+            }
+            return Optional.of(new TileCoverage(zooms));
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Read coverage file failed, it will be rebuilt: {}", file.getAbsolutePath());
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * 计算瓦片在希尔伯特曲线上的编号
+     *
+     * @param z 瓦片层级
+     * @param x 瓦片列号
+     * @param y 瓦片行号
+     * @return 希尔伯特编号
+     */
+    public static long hilbertIndex(int z, int x, int y) {
+        long index = 0;
+        for (long s = (1L << z) >> 1; s > 0; s >>= 1) {
+            int rx = (x & s) > 0 ? 1 : 0;
+            int ry = (y & s) > 0 ? 1 : 0;
+            index += s * s * ((3 * rx) ^ ry);
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = (int) (s - 1 - (x & (s - 1)));
+                    y = (int) (s - 1 - (y & (s - 1)));
+                }
+                int t = x;
+                x = y;
+                y = t;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * 由希尔伯特编号计算瓦片坐标
+     *
+     * @param z     瓦片层级
+     * @param index 希尔伯特编号
+     * @return x, y
+     */
+    public static int[] hilbertPoint(int z, long index) {
+        long x = 0;
+        long y = 0;
+        long t = index;
+        for (long s = 1; s < (1L << z); s <<= 1) {
+            long rx = 1 & (t / 2);
+            long ry = 1 & (t ^ rx);
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = s - 1 - x;
+                    y = s - 1 - y;
+                }
+                long tmp = x;
+                x = y;
+                y = tmp;
+            }
+            x += s * rx;
+            y += s * ry;
+            t /= 4;
+        }
+        return new int[]{(int) x, (int) y};
+    }
+
+    /**
+     * 单个层级的覆盖范围，starts与ends一一对应，均为包含的希尔伯特编号
+     */
+    private static class ZoomCoverage {
+        private long[] starts;
+        private long[] ends;
+        private long tileCount;
+        private int minX;
+        private int minY;
+        private int maxX;
+        private int maxY;
+    }
+
+    /**
+     * 覆盖范围构建器，非线程安全。<br>
+     * 每个层级的希尔伯特编号先写入固定大小的缓冲区，缓冲区满时排序并压缩为区间后合并到已有区间，
+     * 构建过程占用的内存与区间数量成正比，而不是与瓦片数量成正比。
+     */
+    public static class Builder {
+        /**
+         * 每个层级的缓冲区大小
+         */
+        private static final int CHUNK_SIZE = 1 << 16;
+
+        private final long[][] buffers = new long[MAX_ZOOM + 1][];
+        private final int[] sizes = new int[MAX_ZOOM + 1];
+        private final long[][] starts = new long[MAX_ZOOM + 1][];
+        private final long[][] ends = new long[MAX_ZOOM + 1][];
+        private final int[] runs = new int[MAX_ZOOM + 1];
+        private final int[][] bounds = new int[MAX_ZOOM + 1][];
+
+        /**
+         * 添加一个存在的瓦片，超出层级范围的坐标会被忽略
+         *
+         * @param z 瓦片层级
+         * @param x 瓦片列号
+         * @param y 瓦片行号
+         */
+        public void add(int z, int x, int y) {
+            if (z < 0 || z > MAX_ZOOM || x < 0 || y < 0 || x >= (1 << z) || y >= (1 << z)) {
+                return;
+            }
+            long[] buffer = buffers[z];
+            if (buffer == null) {
+                buffer = new long[1024];
+                buffers[z] = buffer;
+                starts[z] = new long[16];
+                ends[z] = new long[16];
+                bounds[z] = new int[]{x, y, x, y};
+            } else if (sizes[z] == buffer.length) {
+                if (buffer.length < CHUNK_SIZE) {
+                    buffer = Arrays.copyOf(buffer, Math.min(CHUNK_SIZE, buffer.length * 2));
+                    buffers[z] = buffer;
+                } else {
+                    flush(z);
+                }
+            }
+            buffer[sizes[z]++] = hilbertIndex(z, x, y);
+            int[] b = bounds[z];
+            b[0] = Math.min(b[0], x);
+            b[1] = Math.min(b[1], y);
+            b[2] = Math.max(b[2], x);
+            b[3] = Math.max(b[3], y);
+        }
+
+        /**
+         * 将缓冲区排序后与已有区间合并，合并时相邻和重叠的区间连接为一个
+         */
+        private void flush(int z) {
+            long[] buffer = buffers[z];
+            int size = sizes[z];
+            Arrays.sort(buffer, 0, size);
+            long[] oldStarts = starts[z];
+            long[] oldEnds = ends[z];
+            int oldRuns = runs[z];
+            long[] newStarts = new long[Math.max(16, oldRuns + size)];
+            long[] newEnds = new long[newStarts.length];
+            int count = 0;
+            int i = 0;
+            int j = 0;
+            while (i < oldRuns || j < size) {
+                long start;
+                long end;
+                if (j >= size || (i < oldRuns && oldStarts[i] <= buffer[j])) {
+                    start = oldStarts[i];
+                    end = oldEnds[i];
+                    i++;
+                } else {
+                    start = buffer[j];
+                    end = buffer[j];
+                    j++;
+                }
+                if (count > 0 && start <= newEnds[count - 1] + 1) {
+                    newEnds[count - 1] = Math.max(newEnds[count - 1], end);
+                } else {
+                    newStarts[count] = start;
+                    newEnds[count] = end;
+                    count++;
+                }
+            }
+            starts[z] = newStarts.length > count * 2 ? Arrays.copyOf(newStarts, count) : newStarts;
+            ends[z] = newEnds.length > count * 2 ? Arrays.copyOf(newEnds, count) : newEnds;
+            runs[z] = count;
+            sizes[z] = 0;
+        }
+
+        public TileCoverage build() {
+            ZoomCoverage[] zooms = new ZoomCoverage[MAX_ZOOM + 1];
+            for (int z = 0; z <= MAX_ZOOM; z++) {
+                if (buffers[z] == null) {
+                    continue;
+                }
+                flush(z);
+                buffers[z] = null;
+
+                ZoomCoverage coverage = new ZoomCoverage();
+                coverage.starts = Arrays.copyOf(starts[z], runs[z]);
+                coverage.ends = Arrays.copyOf(ends[z], runs[z]);
+                long tileCount = 0;
+                for (int i = 0; i < runs[z]; i++) {
+                    tileCount += coverage.ends[i] - coverage.starts[i] + 1;
+                }
+                coverage.tileCount = tileCount;
+                coverage.minX = bounds[z][0];
+                coverage.minY = bounds[z][1];
+                coverage.maxX = bounds[z][2];
+                coverage.maxY = bounds[z][3];
+                zooms[z] = coverage;
+                starts[z] = null;
+                ends[z] = null;
+            }
+            return new TileCoverage(zooms);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2024 QMJY.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+
+package io.github.qmjy.mapserver.util;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 矢量瓦片裁剪规则，定义需要保留的图层和属性。<br>
+ * 可以由样式文件生成（只保留样式引用到的source-layer以及过滤条件、表达式、文本模板中用到的属性），
+ * 也可以由图层列表和属性列表直接指定。
+ *
+ * @author liushaofeng
+ */
+public class TilePruneProfile {
+    /**
+     * 旧版过滤条件中第二个元素为属性名的操作符
+     */
+    private static final Set<String> LEGACY_FILTER_OPERATORS = Set.of("==", "!=", ">", ">=", "<", "<=", "in", "!in", "has", "!has");
+
+    /**
+     * 文本模板中的属性引用，例如：{name:zh}
+     */
+    private static final Pattern TOKEN_PATTERN = Pattern.compile("\\{([^{}]+)}");
+
+    private final String name;
+    private final Set<String> layers;
+    private final Map<String, Set<String>> layerFields;
+    private final Set<String> fields;
+
+    private TilePruneProfile(String name, Set<String> layers, Map<String, Set<String>> layerFields, Set<String> fields) {
+        this.name = name;
+        this.layers = layers;
+        this.layerFields = layerFields;
+        this.fields = fields;
+    }
+
+    /**
+     * 由样式文件生成裁剪规则
+     *
+     * @param styleName 样式文件名称
+     * @param style     样式JSON
+     * @return 裁剪规则
+     */
+    public static TilePruneProfile fromStyle(String styleName, JsonNode style) {
+        Map<String, Set<String>> layerFields = new HashMap<>();
+        for (JsonNode layer : style.path("layers")) {
+            JsonNode sourceLayer = layer.get("source-layer");
+            if (sourceLayer == null || !sourceLayer.isTextual()) {
+                continue;
+            }
+            Set<String> fields = layerFields.computeIfAbsent(sourceLayer.asText(), k -> new HashSet<>());
+            collectFields(layer.get("filter"), fields);
+            collectFields(layer.get("layout"), fields);
+            collectFields(layer.get("paint"), fields);
+        }
+        //数据源中指定为要素ID的属性也需要保留
+        Set<String> promoteIds = new HashSet<>();
+        for (JsonNode source : style.path("sources")) {
+            JsonNode promoteId = source.get("promoteId");
+            if (promoteId != null && promoteId.isTextual()) {
+                promoteIds.add(promoteId.asText());
+            } else if (promoteId != null && promoteId.isObject()) {
+                promoteId.forEach(value -> promoteIds.add(value.asText()));
+            }
+        }
+        layerFields.values().forEach(fields -> fields.addAll(promoteIds));
+        return new TilePruneProfile("style:" + styleName, new HashSet<>(layerFields.keySet()), layerFields, null);
+    }
+
+    /**
+     * 由图层列表和属性列表生成裁剪规则
+     *
+     * @param layers 需要保留的图层，多个用英文逗号分割，为空时保留所有图层
+     * @param fields 需要保留的属性，多个用英文逗号分割，为空时保留所有属性
+     * @return 裁剪规则
+     */
+    public static TilePruneProfile fromParams(String layers, String fields) {
+        Set<String> layerSet = split(layers);
+        Set<String> fieldSet = split(fields);
+        String name = "layers:" + (layerSet == null ? "*" : String.join(",", layerSet)) + "|fields:" + (fieldSet == null ? "*" : String.join(",", fieldSet));
+        return new TilePruneProfile(name, layerSet, Map.of(), fieldSet);
+    }
+
+    private static Set<String> split(String value) {
+        if (value == null || value.isBlank()) {
+            return null;
+        }
+        Set<String> result = new TreeSet<>();
+        Arrays.stream(value.split(",")).map(String::trim).filter(s -> !s.isEmpty()).forEach(result::add);
+        return result;
+    }
+
+    private static void collectFields(JsonNode node, Set<String> fields) {
+        if (node == null) {
+            return;
+        }
+        if (node.isArray() && node.size() > 1 && node.get(0).isTextual()) {
+            String operator = node.get(0).asText();
+            JsonNode operand = node.get(1);
+            if (operand.isTextual() && ("get".equals(operator) || LEGACY_FILTER_OPERATORS.contains(operator))) {
+                fields.add(operand.asText());
+            }
+        }
+        if (node.isObject()) {
+            JsonNode property = node.get("property");
+            if (property != null && property.isTextual()) {
+                fields.add(property.asText());
+            }
+        }
+        if (node.isTextual()) {
+            Matcher matcher = TOKEN_PATTERN.matcher(node.asText());
+            while (matcher.find()) {
+                fields.add(matcher.group(1));
+            }
+        }
+        Iterator<JsonNode> elements = node.elements();
+        while (elements.hasNext()) {
+            collectFields(elements.next(), fields);
+        }
+    }
+
+    /**
+     * 裁剪规则名称，同一规则的名称相同，用于区分缓存
+     *
+     * @return 规则名称
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * 是否保留图层
+     *
+     * @param layer 图层名称
+     * @return 是否保留
+     */
+    public boolean keepLayer(String layer) {
+        return layers == null || layers.contains(layer);
+    }
+
+    /**
+     * 是否保留图层中的属性
+     *
+     * @param layer 图层名称
+     * @param field 属性名称
+     * @return 是否保留
+     */
+    public boolean keepField(String layer, String field) {
+        Set<String> fieldsOfLayer = layerFields.get(layer);
+        if (fieldsOfLayer != null) {
+            return fieldsOfLayer.contains(field);
+        }
+        return fields == null || fields.contains(field);
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright (c) 2024 QMJY.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.github.qmjy.mapserver.util;
+
+import io.github.qmjy.mapserver.model.TilesetStats;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+/**
+ * 瓦片统计的累加器。<br>
+ * 每个扫描线程使用独立的实例，扫描完成后合并。字节数用对数分桶的直方图统计，内存占用与瓦片数无关；
+ * 矢量瓦片只按protobuf的编码格式遍历图层和要素，不解码几何。
+ *
+ * @author liushaofeng
+ */
+public class TileStatsCollector {
+    /**
+     * 每个层级保留的最大瓦片数
+     */
+    public static final int LARGEST_TILES = 10;
+
+    /**
+     * 每个2的幂区间再细分的桶数的位数，32个桶，误差约3%
+     */
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+    private final boolean vector;
+    private final Map<Integer, ZoomAccumulator> zooms = new HashMap<>();
+
+    /**
+     * @param vector 是否为矢量瓦片，矢量瓦片额外统计图层
+     */
+    public TileStatsCollector(boolean vector) {
+        this.vector = vector;
+    }
+
+    /**
+     * 统计一个瓦片
+     *
+     * @param z    层级
+     * @param x    列号
+     * @param y    行号
+     * @param data 存储的瓦片数据
+     */
+    public void add(int z, int x, int y, byte[] data) {
+        ZoomAccumulator zoom = zooms.computeIfAbsent(z, key -> new ZoomAccumulator());
+        zoom.add(x, y, data.length);
+        if (vector && data.length > 0) {
+            byte[] tile = IOUtils.isGzipped(data) ? IOUtils.decompress(data) : data;
+            try {
+                forEachLayer(tile, zoom::addLayer);
+            } catch (IllegalArgumentException e) {
+                zoom.invalid++;
+            }
+        }
+    }
+
+    /**
+     * 合并另一个累加器的结果
+     *
+     * @param other 其他线程的累加器
+     */
+    public void merge(TileStatsCollector other) {
+        other.zooms.forEach((z, accumulator) -> zooms.computeIfAbsent(z, key -> new ZoomAccumulator()).merge(accumulator));
+    }
+
+    /**
+     * 生成按层级排序的统计结果
+     *
+     * @return 层级统计
+     */
+    public List<TilesetStats.ZoomStats> build() {
+        List<TilesetStats.ZoomStats> result = new ArrayList<>();
+        new TreeMap<>(zooms).forEach((z, accumulator) -> result.add(accumulator.build(z)));
+        return result;
+    }
+
+    /**
+     * 遍历矢量瓦片的图层
+     *
+     * @param tile    未压缩的MVT数据
+     * @param visitor 图层回调
+     * @throws IllegalArgumentException 数据不是合法的protobuf编码
+     */
+    public static void forEachLayer(byte[] tile, LayerVisitor visitor) {
+        int[] pos = {0};
+        while (pos[0] < tile.length) {
+            long tag = readVarint(tile, pos);
+            //Tile.layers = 3
+            if (tag == ((3 << 3) | 2)) {
+                int length = readLength(tile, pos);
+                int end = pos[0] + length;
+                String name = "";
+                int features = 0;
+                while (pos[0] < end) {
+                    long layerTag = readVarint(tile, pos);
+                    if (layerTag == ((1 << 3) | 2)) {
+                        int nameLength = readLength(tile, pos);
+                        name = new String(tile, pos[0], nameLength, StandardCharsets.UTF_8);
+                        pos[0] += nameLength;
+                    } else {
+                        if (layerTag == ((2 << 3) | 2)) {
+                            features++;
+                        }
+                        skip(tile, pos, (int) (layerTag & 7));
+                    }
+                }
+                if (pos[0] != end) {
+                    throw new IllegalArgumentException("Malformed layer");
+                }
+                visitor.accept(name, features, length);
+            } else {
+                skip(tile, pos, (int) (tag & 7));
+            }
+        }
+    }
+
+    private static void skip(byte[] data, int[] pos, int wireType) {
+        switch (wireType) {
+            case 0 -> readVarint(data, pos);
+            case 1 -> pos[0] += 8;
+            case 2 -> {
+                int length = readLength(data, pos);
+                pos[0] += length;
+            }
+            case 5 -> pos[0] += 4;
+            default -> throw new IllegalArgumentException("Unsupported wire type: " + wireType);
+        }
+        if (pos[0] > data.length) {
+            throw new IllegalArgumentException("Truncated field");
+        }
+    }
+
+    private static int readLength(byte[] data, int[] pos) {
+        long length = readVarint(data, pos);
+        if (length < 0 || pos[0] + length > data.length) {
+            throw new IllegalArgumentException("Truncated field");
+        }
+        return (int) length;
+    }
+
+    private static long readVarint(byte[] data, int[] pos) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (pos[0] >= data.length) {
+                throw new IllegalArgumentException("Truncated varint");
+            }
+            byte b = data[pos[0]++];
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    static int bucket(long bytes) {
+        if (bytes < SUB_BUCKETS) {
+            return (int) bytes;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(bytes);
+        int mantissa = (int) ((bytes >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + mantissa;
+    }
+
+    /**
+     * 桶内的最大值
+     */
+    static long bucketUpperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int mantissa = bucket % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + mantissa + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    /**
+     * 图层回调
+     */
+    @FunctionalInterface
+    public interface LayerVisitor {
+        /**
+         * @param name     图层名称
+         * @param features 要素数
+         * @param bytes    图层的字节数
+         */
+        void accept(String name, int features, int bytes);
+    }
+
+    private static final class ZoomAccumulator {
+        private final long[] histogram = new long[BUCKETS];
+        private final PriorityQueue<long[]> largest = new PriorityQueue<>(Comparator.comparingLong(tile -> tile[2]));
+        private final Map<String, TilesetStats.LayerStats> layers = new HashMap<>();
+        private long count;
+        private long totalBytes;
+        private long minBytes = Long.MAX_VALUE;
+        private long maxBytes;
+        private long invalid;
+
+        private void add(int x, int y, long bytes) {
+            count++;
+            totalBytes += bytes;
+            minBytes = Math.min(minBytes, bytes);
+            maxBytes = Math.max(maxBytes, bytes);
+            histogram[bucket(bytes)]++;
+            offerLargest(new long[]{x, y, bytes});
+        }
+
+        private void offerLargest(long[] tile) {
+            if (largest.size() < LARGEST_TILES) {
+                largest.offer(tile);
+            } else if (largest.peek()[2] < tile[2]) {
+                largest.poll();
+                largest.offer(tile);
+            }
+        }
+
+        private void addLayer(String name, int features, int bytes) {
+            TilesetStats.LayerStats layer = layers.computeIfAbsent(name, key -> new TilesetStats.LayerStats());
+            layer.setTilesCount(layer.getTilesCount() + 1);
+            layer.setFeaturesCount(layer.getFeaturesCount() + features);
+            layer.setBytes(layer.getBytes() + bytes);
+        }
+
+        private void merge(ZoomAccumulator other) {
+            count += other.count;
+            totalBytes += other.totalBytes;
+            minBytes = Math.min(minBytes, other.minBytes);
+            maxBytes = Math.max(maxBytes, other.maxBytes);
+            invalid += other.invalid;
+            for (int i = 0; i < BUCKETS; i++) {
+                histogram[i] += other.histogram[i];
+            }
+            other.largest.forEach(this::offerLargest);
+            other.layers.forEach((name, stats) -> {
+                TilesetStats.LayerStats layer = layers.computeIfAbsent(name, key -> new TilesetStats.LayerStats());
+                layer.setTilesCount(layer.getTilesCount() + stats.getTilesCount());
+                layer.setFeaturesCount(layer.getFeaturesCount() + stats.getFeaturesCount());
+                layer.setBytes(layer.getBytes() + stats.getBytes());
+            });
+        }
+
+        private long percentile(double quantile) {
+            long rank = Math.max(1, (long) Math.ceil(quantile * count));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += histogram[i];
+                if (seen >= rank) {
+                    return Math.clamp(bucketUpperBound(i), minBytes, maxBytes);
+                }
+            }
+            return maxBytes;
+        }
+
+        private TilesetStats.ZoomStats build(int z) {
+            TilesetStats.ZoomStats stats = new TilesetStats.ZoomStats();
+            stats.setZoom(z);
+            stats.setTilesCount(count);
+            stats.setInvalidTilesCount(invalid);
+            stats.setTotalBytes(totalBytes);
+            stats.setMinBytes(count > 0 ? minBytes : 0);
+            stats.setMaxBytes(maxBytes);
+            stats.setAvgBytes(count > 0 ? totalBytes / count : 0);
+            stats.setP50Bytes(percentile(0.5));
+            stats.setP90Bytes(percentile(0.9));
+            stats.setP95Bytes(percentile(0.95));
+            stats.setP99Bytes(percentile(0.99));
+            largest.stream().sorted(Comparator.comparingLong((long[] tile) -> tile[2]).reversed()).forEach(tile -> {
+                TilesetStats.LargestTile largestTile = new TilesetStats.LargestTile();
+                largestTile.setX((int) tile[0]);
+                largestTile.setY((int) tile[1]);
+                largestTile.setBytes(tile[2]);
+                stats.getLargestTiles().add(largestTile);
+            });
+            stats.getLayers().putAll(layers);
+            return stats;
+        }
+    }
+}
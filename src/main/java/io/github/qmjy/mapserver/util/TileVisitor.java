@@ -0,0 +1,35 @@
+/*
+ * Copyright (c) 2024 QMJY.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.github.qmjy.mapserver.util;
+
+/**
+ * 瓦片坐标回调，用于遍历瓦片集中存在的瓦片
+ *
+ * @author liushaofeng
+ */
+@FunctionalInterface
+public interface TileVisitor {
+
+    /**
+     * 访问一个存在的瓦片
+     *
+     * @param z 瓦片层级
+     * @param x 瓦片列号
+     * @param y 瓦片行号（TMS）
+     */
+    void accept(int z, int x, int y);
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright (c) 2024 QMJY.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.github.qmjy.mapserver.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * TPK紧凑型缓存（Compact Cache V1/V2）瓦片读取器。<br>
+ * TPK本身是一个zip包，其中的bundle文件通常以不压缩（STORED）的方式存放。
+ * 打开时只解析一次zip中央目录，记录每个bundle在tpk文件中的数据偏移，之后通过内存映射直接读取bundle索引和瓦片数据，
+ * 单个瓦片的读取为O(1)，无需加载整个层级的瓦片。
+ *
+ * @author liushaofeng
+ */
+public class TpkBundleReader implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(TpkBundleReader.class);
+
+    /**
+     * 每个bundle包含128x128个瓦片
+     */
+    private static final int PACKET_SIZE = 128;
+    private static final int BUNDLX_HEADER_SIZE = 16;
+    private static final int BUNDLX_ENTRY_SIZE = 5;
+    private static final int V1_SIZE_PREFIX = 4;
+    private static final int V2_HEADER_SIZE = 64;
+    private static final int V2_ENTRY_SIZE = 8;
+    private static final int V2_VERSION = 3;
+    private static final long V2_OFFSET_MASK = (1L << 40) - 1;
+
+    private static final int SIG_EOCD = 0x06054b50;
+    private static final int SIG_ZIP64_LOCATOR = 0x07064b50;
+    private static final int SIG_ZIP64_EOCD = 0x06064b50;
+    private static final int SIG_CENTRAL = 0x02014b50;
+    private static final int SIG_LOCAL = 0x04034b50;
+    private static final int METHOD_STORED = 0;
+
+    private static final Pattern BUNDLE_PATTERN = Pattern.compile(".*/l(\\d+)/r([0-9a-f]+)c([0-9a-f]+)\\.(bundle|bundlx)$");
+
+    private final MappedFileReader mapped;
+    private final Map<Long, Bundle> bundles = new HashMap<>();
+    private volatile boolean supported = true;
+
+    public TpkBundleReader(File tpk) throws IOException {
+        this.mapped = new MappedFileReader(tpk);
+        try {
+            indexEntries();
+        } catch (RuntimeException e) {
+            logger.warn("Parse tpk zip directory failed, fallback to GeoTools: {}", tpk.getName());
+            supported = false;
+        }
+    }
+
+    /**
+     * 是否可以直接从内存映射读取。bundle被压缩存放时无法直接读取。
+     *
+     * @return 是否支持
+     */
+    public boolean isSupported() {
+        return supported;
+    }
+
+    /**
+     * 读取单个瓦片
+     *
+     * @param z 瓦片层级
+     * @param x 瓦片列号
+     * @param y 瓦片行号（TMS，左下角为原点）
+     * @return 瓦片数据
+     */
+    public Optional<byte[]> readTile(int z, int x, int y) {
+        if (z < 0 || z > 30 || x < 0 || y < 0 || x >= (1 << z) || y >= (1 << z)) {
+            return Optional.empty();
+        }
+        //TPK的行号以左上角为原点
+        long row = (1L << z) - 1 - y;
+        long bundleRow = row / PACKET_SIZE * PACKET_SIZE;
+        long bundleCol = (long) x / PACKET_SIZE * PACKET_SIZE;
+        Bundle bundle = bundles.get(bundleKey(z, bundleRow, bundleCol));
+        if (bundle == null || bundle.bundle == null) {
+            return Optional.empty();
+        }
+        int rowInBundle = (int) (row - bundleRow);
+        int colInBundle = (int) (x - bundleCol);
+        return bundle.isV2() ? readV2(bundle, rowInBundle, colInBundle) : readV1(bundle, rowInBundle, colInBundle);
+    }
+
+    /**
+     * 遍历所有存在的瓦片，只读取bundle索引，不读取瓦片数据
+     *
+     * @param visitor 瓦片坐标回调，y为TMS行号
+     */
+    public void forEachTile(TileVisitor visitor) {
+        for (Bundle bundle : bundles.values()) {
+            if (bundle.bundle == null || bundle.level > 30) {
+                continue;
+            }
+            long size = 1L << bundle.level;
+            for (int r = 0; r < PACKET_SIZE && bundle.row + r < size; r++) {
+                for (int c = 0; c < PACKET_SIZE && bundle.col + c < size; c++) {
+                    if (tileLength(bundle, r, c) > 0) {
+                        visitor.accept(bundle.level, (int) (bundle.col + c), (int) (size - 1 - bundle.row - r));
+                    }
+                }
+            }
+        }
+    }
+
+    private long tileLength(Bundle bundle, int row, int col) {
+        if (bundle.isV2()) {
+            long value = mapped.readLittleEndian(bundle.bundle.offset + V2_HEADER_SIZE + (long) (row * PACKET_SIZE + col) * V2_ENTRY_SIZE, V2_ENTRY_SIZE);
+            return value >>> 40;
+        }
+        long offset = mapped.readLittleEndian(bundle.bundlx.offset + BUNDLX_HEADER_SIZE + (long) (col * PACKET_SIZE + row) * BUNDLX_ENTRY_SIZE, BUNDLX_ENTRY_SIZE);
+        if (offset + V1_SIZE_PREFIX > bundle.bundle.size) {
+            return 0;
+        }
+        return mapped.readLittleEndian(bundle.bundle.offset + offset, V1_SIZE_PREFIX);
+    }
+
+    private Optional<byte[]> readV1(Bundle bundle, int row, int col) {
+        long entry = bundle.bundlx.offset + BUNDLX_HEADER_SIZE + (long) (col * PACKET_SIZE + row) * BUNDLX_ENTRY_SIZE;
+        long offset = mapped.readLittleEndian(entry, BUNDLX_ENTRY_SIZE);
+        if (offset + V1_SIZE_PREFIX > bundle.bundle.size) {
+            return Optional.empty();
+        }
+        int length = (int) mapped.readLittleEndian(bundle.bundle.offset + offset, V1_SIZE_PREFIX);
+        if (length <= 0 || offset + V1_SIZE_PREFIX + length > bundle.bundle.size) {
+            return Optional.empty();
+        }
+        return Optional.of(mapped.read(bundle.bundle.offset + offset + V1_SIZE_PREFIX, length));
+    }
+
+    private Optional<byte[]> readV2(Bundle bundle, int row, int col) {
+        long entry = bundle.bundle.offset + V2_HEADER_SIZE + (long) (row * PACKET_SIZE + col) * V2_ENTRY_SIZE;
+        long value = mapped.readLittleEndian(entry, V2_ENTRY_SIZE);
+        long offset = value & V2_OFFSET_MASK;
+        int length = (int) (value >>> 40);
+        if (length <= 0 || offset + length > bundle.bundle.size) {
+            return Optional.empty();
+        }
+        return Optional.of(mapped.read(bundle.bundle.offset + offset, length));
+    }
+
+    /**
+     * 解析zip中央目录，记录每个bundle/bundlx条目的数据位置
+     */
+    private void indexEntries() {
+        long eocd = findEndOfCentralDirectory();
+        long entries = mapped.readLittleEndian(eocd + 10, 2);
+        long directoryOffset = mapped.readLittleEndian(eocd + 16, 4);
+        if (entries == 0xffff || directoryOffset == 0xffffffffL) {
+            long locator = eocd - 20;
+            if (locator >= 0 && mapped.readLittleEndian(locator, 4) == SIG_ZIP64_LOCATOR) {
+                long zip64Eocd = mapped.readLittleEndian(locator + 8, 8);
+                if (mapped.readLittleEndian(zip64Eocd, 4) == SIG_ZIP64_EOCD) {
+                    entries = mapped.readLittleEndian(zip64Eocd + 32, 8);
+                    directoryOffset = mapped.readLittleEndian(zip64Eocd + 48, 8);
+                }
+            }
+        }
+
+        long position = directoryOffset;
+        for (long i = 0; i < entries; i++) {
+            if (mapped.readLittleEndian(position, 4) != SIG_CENTRAL) {
+                throw new IllegalStateException("Bad central directory entry at " + position);
+            }
+            int method = (int) mapped.readLittleEndian(position + 10, 2);
+            long compressedSize = mapped.readLittleEndian(position + 20, 4);
+            int nameLength = (int) mapped.readLittleEndian(position + 28, 2);
+            int extraLength = (int) mapped.readLittleEndian(position + 30, 2);
+            int commentLength = (int) mapped.readLittleEndian(position + 32, 2);
+            long localHeader = mapped.readLittleEndian(position + 42, 4);
+            String name = new String(mapped.read(position + 46, nameLength), StandardCharsets.UTF_8).replace('\\', '/').toLowerCase(Locale.ROOT);
+
+            Matcher matcher = BUNDLE_PATTERN.matcher(name);
+            if (matcher.matches()) {
+                if (compressedSize == 0xffffffffL || localHeader == 0xffffffffL) {
+                    long[] values = readZip64Extra(position + 46 + nameLength, extraLength, mapped.readLittleEndian(position + 24, 4) == 0xffffffffL, compressedSize == 0xffffffffL, localHeader == 0xffffffffL);
+                    compressedSize = values[0] >= 0 ? values[0] : compressedSize;
+                    localHeader = values[1] >= 0 ? values[1] : localHeader;
+                }
+                if (method != METHOD_STORED) {
+                    logger.warn("Bundle is compressed in tpk, fallback to GeoTools: {}", name);
+                    supported = false;
+                }
+                long dataOffset = localHeader + 30 + mapped.readLittleEndian(localHeader + 26, 2) + mapped.readLittleEndian(localHeader + 28, 2);
+                if (mapped.readLittleEndian(localHeader, 4) != SIG_LOCAL) {
+                    throw new IllegalStateException("Bad local header for " + name);
+                }
+
+                int level = Integer.parseInt(matcher.group(1));
+                long row = Long.parseLong(matcher.group(2), 16);
+                long col = Long.parseLong(matcher.group(3), 16);
+                Bundle bundle = bundles.computeIfAbsent(bundleKey(level, row, col), key -> new Bundle(level, row, col));
+                Region region = new Region(dataOffset, compressedSize);
+                if ("bundle".equals(matcher.group(4))) {
+                    bundle.bundle = region;
+                } else {
+                    bundle.bundlx = region;
+                }
+            }
+            position += 46 + nameLength + extraLength + commentLength;
+        }
+
+        for (Bundle bundle : bundles.values()) {
+            if (bundle.bundle != null && bundle.bundlx == null && mapped.readLittleEndian(bundle.bundle.offset, 4) != V2_VERSION) {
+                logger.warn("Unknown bundle format in tpk: {}", mapped.getFile().getName());
+                supported = false;
+            }
+        }
+    }
+
+    private long[] readZip64Extra(long position, int length, boolean hasUncompressed, boolean hasCompressed, boolean hasLocalHeader) {
+        long end = position + length;
+        while (position + 4 <= end) {
+            int id = (int) mapped.readLittleEndian(position, 2);
+            int size = (int) mapped.readLittleEndian(position + 2, 2);
+            if (id == 0x0001) {
+                long cursor = position + 4;
+                if (hasUncompressed) {
+                    cursor += 8;
+                }
+                long compressed = -1;
+                if (hasCompressed) {
+                    compressed = mapped.readLittleEndian(cursor, 8);
+                    cursor += 8;
+                }
+                long localHeader = hasLocalHeader ? mapped.readLittleEndian(cursor, 8) : -1;
+                return new long[]{compressed, localHeader};
+            }
+            position += 4 + size;
+        }
+        return new long[]{-1, -1};
+    }
+
+    private long findEndOfCentralDirectory() {
+        long min = Math.max(0, mapped.size() - 22 - 0xffff);
+        for (long position = mapped.size() - 22; position >= min; position--) {
+            if (mapped.readLittleEndian(position, 4) == SIG_EOCD) {
+                return position;
+            }
+        }
+        throw new IllegalStateException("End of central directory not found");
+    }
+
+    private static long bundleKey(long level, long row, long col) {
+        return level << 56 | row << 28 | col;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mapped.close();
+    }
+
+    /**
+     * zip条目在tpk文件中的数据区域
+     */
+    private record Region(long offset, long size) {
+    }
+
+    /**
+     * 一个bundle及其对应的bundlx（V1格式）
+     */
+    private static class Bundle {
+        private final int level;
+        private final long row;
+        private final long col;
+        private Region bundle;
+        private Region bundlx;
+
+        private Bundle(int level, long row, long col) {
+            this.level = level;
+            this.row = row;
+            this.col = col;
+        }
+
+        private boolean isV2() {
+            return bundlx == null;
+        }
+    }
+}
@@ -16,26 +16,420 @@
 
 package io.github.qmjy.mapserver.util;
 
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.wdtinc.mapbox_vector_tile.VectorTile;
+import com.wdtinc.mapbox_vector_tile.adapt.jts.IUserDataConverter;
+import com.wdtinc.mapbox_vector_tile.adapt.jts.JtsAdapter;
 import com.wdtinc.mapbox_vector_tile.adapt.jts.MvtReader;
 import com.wdtinc.mapbox_vector_tile.adapt.jts.TagKeyValueMapConverter;
+import com.wdtinc.mapbox_vector_tile.adapt.jts.UserDataKeyValueMapConverter;
+import com.wdtinc.mapbox_vector_tile.adapt.jts.model.JtsLayer;
 import com.wdtinc.mapbox_vector_tile.adapt.jts.model.JtsMvt;
+import com.wdtinc.mapbox_vector_tile.build.MvtLayerBuild;
+import com.wdtinc.mapbox_vector_tile.build.MvtLayerParams;
+import com.wdtinc.mapbox_vector_tile.build.MvtLayerProps;
+import org.locationtech.jts.geom.CoordinateFilter;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryCollection;
 import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.TopologyException;
+import org.locationtech.jts.geom.util.AffineTransformation;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 
 /**
- * 读取MVT数据
+ * 读取、裁剪和编码MVT数据
  */
 public class VectorTileUtils {
     private static final GeometryFactory geomFactory = new GeometryFactory();
 
+    /**
+     * 编码时使用的瓦片像素大小，只影响MvtLayerParams中的比例，不影响写入的坐标
+     */
+    private static final int TILE_SIZE = 256;
+
+    /**
+     * 解码时在userData中暂存要素ID的键，重新编码时写回要素ID而不作为属性
+     */
+    private static final String FEATURE_ID_KEY = "__mvt_feature_id";
+
     public static Optional<JtsMvt> decodeJtsMvt(InputStream inputStream) {
+        return decodeJtsMvt(inputStream, false);
+    }
+
+    /**
+     * 解码MVT数据，几何对象的userData为属性的Map
+     *
+     * @param inputStream 未压缩的MVT数据
+     * @param keepIds     是否在userData中保留要素ID，用于重新编码时原样写回
+     * @return 解码后的瓦片，数据无法解析时为空
+     */
+    public static Optional<JtsMvt> decodeJtsMvt(InputStream inputStream, boolean keepIds) {
         try {
-            return Optional.of(MvtReader.loadMvt(inputStream, geomFactory, new TagKeyValueMapConverter()));
+            return Optional.of(MvtReader.loadMvt(inputStream, geomFactory,
+                    keepIds ? new TagKeyValueMapConverter(false, FEATURE_ID_KEY) : new TagKeyValueMapConverter()));
         } catch (IOException e) {
             return Optional.empty();
         }
     }
+
+    /**
+     * 将解码后的瓦片重新编码为MVT，图层保留原有的extent，要素属性取自几何对象的userData，
+     * 解码时保留了要素ID的写回要素ID
+     *
+     * @param mvt 瓦片数据
+     * @return MVT格式的瓦片数据
+     */
+    public static byte[] encodeJtsMvt(JtsMvt mvt) {
+        VectorTile.Tile.Builder tileBuilder = VectorTile.Tile.newBuilder();
+        for (JtsLayer layer : mvt.getLayers()) {
+            MvtLayerProps layerProps = new MvtLayerProps();
+            List<VectorTile.Tile.Feature> features = JtsAdapter.toFeatures(layer.getGeometries(), layerProps, new FeatureIdConverter());
+            if (features.isEmpty()) {
+                continue;
+            }
+            VectorTile.Tile.Layer.Builder layerBuilder = MvtLayerBuild.newLayerBuilder(layer.getName(), new MvtLayerParams(TILE_SIZE, layer.getExtent()));
+            layerBuilder.addAllFeatures(features);
+            MvtLayerBuild.writeProps(layerBuilder, layerProps);
+            tileBuilder.addLayers(layerBuilder.build());
+        }
+        return tileBuilder.build().toByteArray();
+    }
+
+    /**
+     * 从祖先瓦片中裁剪出子瓦片的范围，并将几何坐标放大到子瓦片的extent。祖先瓦片按保留要素ID的方式解码时，ID随userData保留。
+     *
+     * @param ancestor 解码后的祖先瓦片
+     * @param dz       子瓦片与祖先瓦片的层级差
+     * @param dx       子瓦片在祖先瓦片内的列偏移
+     * @param dy       子瓦片在祖先瓦片内的行偏移（自上而下）
+     * @param buffer   裁剪时在子瓦片四周保留的缓冲区，单位为子瓦片的extent坐标
+     * @return 子瓦片，没有要素的图层不包含在内
+     */
+    public static JtsMvt overzoom(JtsMvt ancestor, int dz, int dx, int dy, int buffer) {
+        int scale = 1 << dz;
+        List<JtsLayer> layers = new ArrayList<>();
+        for (JtsLayer layer : ancestor.getLayers()) {
+            int extent = layer.getExtent();
+            double size = (double) extent / scale;
+            double margin = (double) buffer / scale;
+            Envelope clipEnvelope = new Envelope(dx * size - margin, (dx + 1) * size + margin, dy * size - margin, (dy + 1) * size + margin);
+            Geometry clipGeometry = geomFactory.toGeometry(clipEnvelope);
+            AffineTransformation transformation = new AffineTransformation().translate(-dx * size, -dy * size).scale(scale, scale);
+
+            List<Geometry> geometries = new ArrayList<>();
+            for (Geometry geometry : layer.getGeometries()) {
+                Envelope envelope = geometry.getEnvelopeInternal();
+                if (!clipEnvelope.intersects(envelope)) {
+                    continue;
+                }
+                Geometry clipped = clipEnvelope.contains(envelope) ? geometry : clip(geometry, clipGeometry);
+                if (clipped == null || clipped.isEmpty()) {
+                    continue;
+                }
+                Geometry scaled = transformation.transform(clipped);
+                scaled.apply((CoordinateFilter) coordinate -> {
+                    coordinate.x = Math.round(coordinate.x);
+                    coordinate.y = Math.round(coordinate.y);
+                });
+                scaled.geometryChanged();
+                addParts(scaled, geometry.getDimension(), geometry.getUserData(), geometries);
+            }
+            if (!geometries.isEmpty()) {
+                layers.add(new JtsLayer(layer.getName(), geometries, extent));
+            }
+        }
+        return new JtsMvt(layers);
+    }
+
+    /**
+     * 按裁剪规则删除瓦片中不需要的图层和属性。直接在protobuf层面处理，几何和要素ID原样保留，不需要解码几何。
+     *
+     * @param data    未压缩的MVT数据
+     * @param profile 裁剪规则
+     * @return 裁剪后的MVT数据，数据无法解析时为空
+     */
+    public static Optional<byte[]> prune(byte[] data, TilePruneProfile profile) {
+        VectorTile.Tile tile;
+        try {
+            tile = VectorTile.Tile.parseFrom(data);
+        } catch (InvalidProtocolBufferException e) {
+            return Optional.empty();
+        }
+        VectorTile.Tile.Builder tileBuilder = VectorTile.Tile.newBuilder();
+        for (VectorTile.Tile.Layer layer : tile.getLayersList()) {
+            if (!profile.keepLayer(layer.getName())) {
+                continue;
+            }
+            int keyCount = layer.getKeysCount();
+            boolean[] keepKeys = new boolean[keyCount];
+            boolean keepAll = true;
+            for (int i = 0; i < keyCount; i++) {
+                keepKeys[i] = profile.keepField(layer.getName(), layer.getKeys(i));
+                keepAll &= keepKeys[i];
+            }
+            if (keepAll) {
+                tileBuilder.addLayers(layer);
+                continue;
+            }
+
+            //只写入仍被引用的键和值，并重新编号
+            int[] keyIndexes = new int[keyCount];
+            int[] valueIndexes = new int[layer.getValuesCount()];
+            Arrays.fill(keyIndexes, -1);
+            Arrays.fill(valueIndexes, -1);
+            VectorTile.Tile.Layer.Builder layerBuilder = layer.toBuilder().clearKeys().clearValues().clearFeatures();
+            for (VectorTile.Tile.Feature feature : layer.getFeaturesList()) {
+                VectorTile.Tile.Feature.Builder featureBuilder = feature.toBuilder().clearTags();
+                for (int i = 0; i + 1 < feature.getTagsCount(); i += 2) {
+                    int key = feature.getTags(i);
+                    int value = feature.getTags(i + 1);
+                    if (key >= keyCount || value >= valueIndexes.length || !keepKeys[key]) {
+                        continue;
+                    }
+                    if (keyIndexes[key] < 0) {
+                        keyIndexes[key] = layerBuilder.getKeysCount();
+                        layerBuilder.addKeys(layer.getKeys(key));
+                    }
+                    if (valueIndexes[value] < 0) {
+                        valueIndexes[value] = layerBuilder.getValuesCount();
+                        layerBuilder.addValues(layer.getValues(value));
+                    }
+                    featureBuilder.addTags(keyIndexes[key]).addTags(valueIndexes[value]);
+                }
+                layerBuilder.addFeatures(featureBuilder.build());
+            }
+            tileBuilder.addLayers(layerBuilder.build());
+        }
+        return Optional.of(tileBuilder.build().toByteArray());
+    }
+
+    /**
+     * 将多个瓦片的图层依次合并为一个瓦片。直接复制protobuf中的图层，不解码几何；图层重名时在后出现的图层名后追加数据源名称。
+     *
+     * @param tiles key为数据源名称、value为未压缩的MVT数据，按叠加顺序排列
+     * @return 合并后的MVT数据，没有任何图层时为空
+     */
+    public static Optional<byte[]> composite(Map<String, byte[]> tiles) {
+        VectorTile.Tile.Builder tileBuilder = VectorTile.Tile.newBuilder();
+        Set<String> names = new HashSet<>();
+        for (Map.Entry<String, byte[]> entry : tiles.entrySet()) {
+            VectorTile.Tile tile;
+            try {
+                tile = VectorTile.Tile.parseFrom(entry.getValue());
+            } catch (InvalidProtocolBufferException e) {
+                continue;
+            }
+            String source = entry.getKey();
+            int dot = source.indexOf('.');
+            String suffix = "_" + (dot > 0 ? source.substring(0, dot) : source);
+            for (VectorTile.Tile.Layer layer : tile.getLayersList()) {
+                String name = layer.getName();
+                if (names.add(name)) {
+                    tileBuilder.addLayers(layer);
+                    continue;
+                }
+                String renamed = name + suffix;
+                for (int i = 2; !names.add(renamed); i++) {
+                    renamed = name + suffix + "_" + i;
+                }
+                tileBuilder.addLayers(layer.toBuilder().setName(renamed).build());
+            }
+        }
+        return tileBuilder.getLayersCount() == 0 ? Optional.empty() : Optional.of(tileBuilder.build().toByteArray());
+    }
+
+    /**
+     * 将同一坐标的多个瓦片按图层合并为一个瓦片。同名图层的要素追加到同一图层中，键和值去重后共用一张表；
+     * 图层extent不一致时换算到先出现的图层的extent。完全相同的要素只保留一份，避免相邻数据在边界处重复切出的要素叠加。
+     *
+     * @param tiles 未压缩的MVT数据，按合并顺序排列
+     * @return 合并后的MVT数据，没有任何图层时为空
+     */
+    public static Optional<byte[]> union(List<byte[]> tiles) {
+        Map<String, LayerUnion> layers = new LinkedHashMap<>();
+        for (byte[] data : tiles) {
+            VectorTile.Tile tile;
+            try {
+                tile = VectorTile.Tile.parseFrom(data);
+            } catch (InvalidProtocolBufferException e) {
+                continue;
+            }
+            for (VectorTile.Tile.Layer layer : tile.getLayersList()) {
+                layers.computeIfAbsent(layer.getName(), name -> new LayerUnion(layer)).add(layer);
+            }
+        }
+        if (layers.isEmpty()) {
+            return Optional.empty();
+        }
+        VectorTile.Tile.Builder tileBuilder = VectorTile.Tile.newBuilder();
+        layers.values().forEach(layer -> tileBuilder.addLayers(layer.build()));
+        return Optional.of(tileBuilder.build().toByteArray());
+    }
+
+    /**
+     * 按比例换算几何指令中的坐标。先还原绝对坐标再换算，避免逐段取整的误差累积。
+     */
+    private static List<Integer> scaleGeometry(List<Integer> geometry, double scale) {
+        List<Integer> result = new ArrayList<>(geometry.size());
+        int x = 0;
+        int y = 0;
+        int scaledX = 0;
+        int scaledY = 0;
+        int i = 0;
+        while (i < geometry.size()) {
+            int command = geometry.get(i++);
+            result.add(command);
+            //ClosePath没有参数
+            if ((command & 0x7) == 7) {
+                continue;
+            }
+            int count = command >>> 3;
+            for (int c = 0; c < count && i + 1 < geometry.size(); c++) {
+                x += zigZagDecode(geometry.get(i++));
+                y += zigZagDecode(geometry.get(i++));
+                int nextX = (int) Math.round(x * scale);
+                int nextY = (int) Math.round(y * scale);
+                result.add(zigZagEncode(nextX - scaledX));
+                result.add(zigZagEncode(nextY - scaledY));
+                scaledX = nextX;
+                scaledY = nextY;
+            }
+        }
+        return result;
+    }
+
+    private static int zigZagDecode(int n) {
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    private static int zigZagEncode(int n) {
+        return (n << 1) ^ (n >> 31);
+    }
+
+    /**
+     * 从userData中取出暂存的要素ID写入要素，其余的键值作为属性
+     */
+    private static final class FeatureIdConverter implements IUserDataConverter {
+        private final IUserDataConverter tags = new UserDataKeyValueMapConverter();
+
+        @Override
+        public void addTags(Object userData, MvtLayerProps layerProps, VectorTile.Tile.Feature.Builder featureBuilder) {
+            if (!(userData instanceof Map<?, ?> map) || !map.containsKey(FEATURE_ID_KEY)) {
+                tags.addTags(userData, layerProps, featureBuilder);
+                return;
+            }
+            Map<Object, Object> properties = new LinkedHashMap<>(map);
+            if (properties.remove(FEATURE_ID_KEY) instanceof Number id) {
+                featureBuilder.setId(id.longValue());
+            }
+            tags.addTags(properties, layerProps, featureBuilder);
+        }
+    }
+
+    /**
+     * 合并中的同名图层
+     */
+    private static final class LayerUnion {
+        private final VectorTile.Tile.Layer.Builder builder;
+        private final int extent;
+        private final Map<String, Integer> keys = new HashMap<>();
+        private final Map<VectorTile.Tile.Value, Integer> values = new HashMap<>();
+        private final Set<VectorTile.Tile.Feature> features = new LinkedHashSet<>();
+
+        private LayerUnion(VectorTile.Tile.Layer first) {
+            this.builder = first.toBuilder().clearKeys().clearValues().clearFeatures();
+            this.extent = first.getExtent();
+        }
+
+        private void add(VectorTile.Tile.Layer layer) {
+            int[] keyIndexes = new int[layer.getKeysCount()];
+            for (int i = 0; i < keyIndexes.length; i++) {
+                String key = layer.getKeys(i);
+                Integer index = keys.get(key);
+                if (index == null) {
+                    index = keys.size();
+                    keys.put(key, index);
+                    builder.addKeys(key);
+                }
+                keyIndexes[i] = index;
+            }
+            int[] valueIndexes = new int[layer.getValuesCount()];
+            for (int i = 0; i < valueIndexes.length; i++) {
+                VectorTile.Tile.Value value = layer.getValues(i);
+                Integer index = values.get(value);
+                if (index == null) {
+                    index = values.size();
+                    values.put(value, index);
+                    builder.addValues(value);
+                }
+                valueIndexes[i] = index;
+            }
+
+            boolean rescale = layer.getExtent() != extent;
+            for (VectorTile.Tile.Feature feature : layer.getFeaturesList()) {
+                VectorTile.Tile.Feature.Builder featureBuilder = feature.toBuilder().clearTags();
+                for (int i = 0; i + 1 < feature.getTagsCount(); i += 2) {
+                    int key = feature.getTags(i);
+                    int value = feature.getTags(i + 1);
+                    if (key < keyIndexes.length && value < valueIndexes.length) {
+                        featureBuilder.addTags(keyIndexes[key]).addTags(valueIndexes[value]);
+                    }
+                }
+                if (rescale) {
+                    featureBuilder.clearGeometry().addAllGeometry(scaleGeometry(feature.getGeometryList(), (double) extent / layer.getExtent()));
+                }
+                features.add(featureBuilder.build());
+            }
+        }
+
+        private VectorTile.Tile.Layer build() {
+            return builder.addAllFeatures(features).build();
+        }
+    }
+
+    private static Geometry clip(Geometry geometry, Geometry clipGeometry) {
+        try {
+            return geometry.intersection(clipGeometry);
+        } catch (TopologyException e) {
+            //自相交的面先修复再裁剪
+            if (geometry.getDimension() == 2) {
+                try {
+                    return geometry.buffer(0).intersection(clipGeometry);
+                } catch (TopologyException ignored) {
+                    return null;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * 裁剪可能产生混合类型的GeometryCollection（例如面在边界上退化为线），只保留与原要素同维度的部分
+     */
+    private static void addParts(Geometry geometry, int dimension, Object userData, List<Geometry> result) {
+        if (geometry.getClass() == GeometryCollection.class) {
+            for (int i = 0; i < geometry.getNumGeometries(); i++) {
+                addParts(geometry.getGeometryN(i), dimension, userData, result);
+            }
+            return;
+        }
+        if (geometry.isEmpty() || geometry.getDimension() != dimension || (dimension == 2 && geometry.getArea() == 0)) {
+            return;
+        }
+        geometry.setUserData(userData);
+        result.add(geometry);
+    }
 }
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2024 QMJY.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+
+package io.github.qmjy.mapserver.service;
+
+import io.github.qmjy.mapserver.config.AppConfig;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.context.request.WebRequest;
+
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.Optional;
+
+public class HttpCacheServiceTest {
+    private final HttpCacheService service = new HttpCacheService(new AppConfig());
+    private final HttpCacheService.CacheValidator validator = new HttpCacheService.CacheValidator("\"v1-3-4-5\"", 1700000000000L, false, false).asWeak();
+
+    @Test
+    public void singleEtag() {
+        //200：没有条件请求头，响应头中只有一个弱ETag
+        Assert.assertTrue(service.checkNotModified(request(Map.of()), Optional.of(validator)).isEmpty());
+        HttpHeaders headers = service.headers(validator);
+        Assert.assertEquals(1, headers.get(HttpHeaders.ETAG).size());
+        Assert.assertEquals("W/\"v1-3-4-5\"", headers.getETag());
+        Assert.assertEquals(1, headers.get(HttpHeaders.LAST_MODIFIED).size());
+
+        //304：弱比较命中，ETag与200响应相同且只有一个
+        Optional<ResponseEntity<Object>> notModified = service.checkNotModified(request(Map.of(HttpHeaders.IF_NONE_MATCH, "W/\"v1-3-4-5\"")), Optional.of(validator));
+        Assert.assertTrue(notModified.isPresent());
+        Assert.assertEquals(HttpStatus.NOT_MODIFIED, notModified.get().getStatusCode());
+        Assert.assertEquals(1, notModified.get().getHeaders().get(HttpHeaders.ETAG).size());
+        Assert.assertEquals("W/\"v1-3-4-5\"", notModified.get().getHeaders().getETag());
+        Assert.assertEquals(1, notModified.get().getHeaders().get(HttpHeaders.LAST_MODIFIED).size());
+    }
+
+    @Test
+    public void conditions() {
+        //强ETag的请求同样命中，If-None-Match不匹配时不再看If-Modified-Since
+        Assert.assertTrue(HttpCacheService.isNotModified(new String[]{"\"other\", \"v1-3-4-5\""}, null, validator));
+        Assert.assertTrue(HttpCacheService.isNotModified(new String[]{"*"}, null, validator));
+        Assert.assertFalse(HttpCacheService.isNotModified(new String[]{"\"other\""}, "Tue, 14 Nov 2023 22:13:20 GMT", validator));
+
+        Assert.assertTrue(HttpCacheService.isNotModified(null, "Tue, 14 Nov 2023 22:13:20 GMT", validator));
+        Assert.assertFalse(HttpCacheService.isNotModified(null, "Tue, 14 Nov 2023 22:13:19 GMT", validator));
+        Assert.assertFalse(HttpCacheService.isNotModified(null, "yesterday", validator));
+        Assert.assertFalse(HttpCacheService.isNotModified(null, null, validator));
+    }
+
+    /**
+     * 只提供请求头的WebRequest，调用其他方法（包括会写响应头的checkNotModified）时失败
+     */
+    private static WebRequest request(Map<String, String> headers) {
+        return (WebRequest) Proxy.newProxyInstance(WebRequest.class.getClassLoader(), new Class<?>[]{WebRequest.class}, (proxy, method, args) -> {
+            return switch (method.getName()) {
+                case "getHeader" -> headers.get((String) args[0]);
+                case "getHeaderValues" -> headers.containsKey((String) args[0]) ? new String[]{headers.get((String) args[0])} : null;
+                default -> throw new UnsupportedOperationException(method.getName());
+            };
+        });
+    }
+}
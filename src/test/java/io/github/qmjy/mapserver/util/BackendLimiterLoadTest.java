@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2024 QMJY.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+
+package io.github.qmjy.mapserver.util;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 瓦片集并发读取限制，以及2000个并发客户端下平台线程池与虚拟线程加信号量两种方式的p99延迟对比
+ */
+public class BackendLimiterLoadTest {
+    private static final int ZOOM = MbtilesTileReaderBenchmarkTest.ZOOM;
+    private static final int SIZE = MbtilesTileReaderBenchmarkTest.SIZE;
+    private static final int CLIENTS = 2000;
+    private static final int REQUESTS_PER_CLIENT = 20;
+    /**
+     * Tomcat默认的最大工作线程数
+     */
+    private static final int TOMCAT_MAX_THREADS = 200;
+
+    @Test
+    public void limit() throws Exception {
+        BackendLimiter limiter = new BackendLimiter(2, 5000);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < 50; i++) {
+                executor.submit(() -> limiter.call("a.mbtiles", () -> {
+                    maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    sleep(2);
+                    running.decrementAndGet();
+                    return Optional.of(true);
+                }));
+            }
+        }
+        Assert.assertEquals(2, maxRunning.get());
+
+        //许可被占满时等待超时返回空，其他瓦片集不受影响
+        BackendLimiter busy = new BackendLimiter(1, 50);
+        CountDownLatch holding = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread holder = Thread.ofVirtual().start(() -> busy.call("a.mbtiles", () -> {
+            holding.countDown();
+            await(release);
+            return Optional.of(true);
+        }));
+        Assert.assertTrue(holding.await(5, TimeUnit.SECONDS));
+        Assert.assertThrows(BackendOverloadException.class, () -> busy.call("a.mbtiles", () -> Optional.of(true)));
+        Assert.assertEquals(Optional.of(true), busy.call("b.mbtiles", () -> Optional.of(true)));
+        release.countDown();
+        holder.join();
+        Assert.assertEquals(Optional.of(true), busy.call("a.mbtiles", () -> Optional.of(true)));
+    }
+
+    @Test
+    public void loadTest() throws Exception {
+        //耗时较长，只在benchmark配置下运行：mvn test -Pbenchmark
+        Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+        File mbtiles = MbtilesTileReaderBenchmarkTest.createMbtiles();
+        MbtilesTileReader reader = new MbtilesTileReader(mbtiles.getAbsolutePath());
+        BackendLimiter limiter = new BackendLimiter(0, 30000);
+        try {
+            //预热
+            try (ExecutorService platform = Executors.newFixedThreadPool(TOMCAT_MAX_THREADS)) {
+                run(platform, CLIENTS / 10, index -> reader.readTile(ZOOM, index % SIZE, (index / SIZE) % SIZE));
+            }
+
+            long[] before;
+            try (ExecutorService platform = Executors.newFixedThreadPool(TOMCAT_MAX_THREADS)) {
+                before = run(platform, CLIENTS, index -> reader.readTile(ZOOM, index % SIZE, (index / SIZE) % SIZE));
+            }
+            long[] after;
+            try (ExecutorService virtual = Executors.newVirtualThreadPerTaskExecutor()) {
+                after = run(virtual, CLIENTS, index -> limiter.call(mbtiles.getName(),
+                        () -> reader.readTile(ZOOM, index % SIZE, (index / SIZE) % SIZE)));
+            }
+            System.out.printf("clients=%d, platform threads(%d): p50 %.2f ms, p99 %.2f ms; virtual threads + %d permits: p50 %.2f ms, p99 %.2f ms%n",
+                    CLIENTS, TOMCAT_MAX_THREADS, percentile(before, 0.5), percentile(before, 0.99),
+                    limiter.getPermits(), percentile(after, 0.5), percentile(after, 0.99));
+        } finally {
+            reader.close();
+            Files.deleteIfExists(mbtiles.toPath());
+        }
+    }
+
+    /**
+     * 每个客户端依次发送请求并等待响应，记录从提交到响应的延迟（纳秒），包含在服务端排队的时间
+     */
+    private long[] run(ExecutorService server, int clients, Request request) throws Exception {
+        long[] latencies = new long[clients * REQUESTS_PER_CLIENT];
+        AtomicInteger tiles = new AtomicInteger();
+        try (ExecutorService clientExecutor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int c = 0; c < clients; c++) {
+                int client = c;
+                clientExecutor.submit(() -> {
+                    Random random = new Random(client);
+                    for (int i = 0; i < REQUESTS_PER_CLIENT; i++) {
+                        int index = random.nextInt(SIZE * SIZE);
+                        long start = System.nanoTime();
+                        Future<Optional<byte[]>> response = server.submit(() -> request.read(index));
+                        if (response.get().isPresent()) {
+                            tiles.incrementAndGet();
+                        }
+                        latencies[client * REQUESTS_PER_CLIENT + i] = System.nanoTime() - start;
+                    }
+                    return null;
+                });
+            }
+        }
+        Assert.assertEquals(clients * REQUESTS_PER_CLIENT, tiles.get());
+        return latencies;
+    }
+
+    private double percentile(long[] latencies, double percentile) {
+        long[] sorted = latencies.clone();
+        Arrays.sort(sorted);
+        return sorted[(int) Math.ceil(percentile * sorted.length) - 1] / 1e6;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @FunctionalInterface
+    private interface Request {
+        Optional<byte[]> read(int index);
+    }
+}
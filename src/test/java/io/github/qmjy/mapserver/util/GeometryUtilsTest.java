@@ -0,0 +1,34 @@
+/*
+ * Copyright (c) 2024 QMJY.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.github.qmjy.mapserver.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class GeometryUtilsTest {
+
+    @Test
+    public void pixel2deg() {
+        //z1的TMS(1, 1)为东北象限，像素坐标自上而下
+        double[] topLeft = GeometryUtils.pixel2deg(1, 1, 1, 0, 0, 4096);
+        Assert.assertEquals(0, topLeft[0], 1e-9);
+        Assert.assertEquals(85.0511287798, topLeft[1], 1e-9);
+        double[] center = GeometryUtils.pixel2deg(1, 1, 1, 2048, 2048, 4096);
+        Assert.assertEquals(90, center[0], 1e-9);
+        Assert.assertEquals(66.5132604431, center[1], 1e-9);
+    }
+}
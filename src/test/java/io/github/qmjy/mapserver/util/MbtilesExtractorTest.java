@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2024 QMJY.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.github.qmjy.mapserver.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.Polygon;
+
+import java.util.List;
+
+public class MbtilesExtractorTest {
+    private final GeometryFactory factory = new GeometryFactory();
+
+    @Test
+    public void computeRanges() {
+        //矩形范围直接按外接矩形计算
+        Geometry bbox = factory.toGeometry(new Envelope(10, 20, 10, 20));
+        Assert.assertEquals(List.of(new MbtilesExtractor.TileRange(2, 2, 2, 2)), MbtilesExtractor.computeRanges(bbox, 2));
+        Assert.assertEquals(List.of(new MbtilesExtractor.TileRange(0, 0, 0, 0)), MbtilesExtractor.computeRanges(bbox, 0));
+
+        //同一列上不相连的两块区域拆成两个区间，中间的瓦片不拷贝
+        Polygon south = (Polygon) factory.toGeometry(new Envelope(1, 2, 1, 2));
+        Polygon north = (Polygon) factory.toGeometry(new Envelope(1, 2, 60, 61));
+        Geometry area = factory.createMultiPolygon(new Polygon[]{south, north});
+        Assert.assertEquals(List.of(new MbtilesExtractor.TileRange(4, 8, 8, 8), new MbtilesExtractor.TileRange(4, 8, 11, 11)),
+                MbtilesExtractor.computeRanges(area, 4));
+    }
+}
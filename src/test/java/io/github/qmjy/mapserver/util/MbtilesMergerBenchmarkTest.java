@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2024 QMJY.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.github.qmjy.mapserver.util;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * MBTiles批量合并的正确性、断点续传与吞吐量。<br>
+ * 默认数据量较小，可通过-Dmerge.benchmark.tiles指定每个源文件的瓦片数，用多GB的数据集测量tiles/s。
+ */
+public class MbtilesMergerBenchmarkTest {
+    private static final int ZOOM = 14;
+    private static final int SOURCES = 4;
+    private static final int TILES = Integer.getInteger("merge.benchmark.tiles", 20000);
+
+    @Test
+    public void merge() throws Exception {
+        File target = createMbtiles(0, 0, 2, "base");
+        //与目标文件有一个重叠的瓦片，应以后合并的为准
+        File source = createMbtiles(1, 0, 2, "source");
+        try (MbtilesMerger merger = new MbtilesMerger(target.getAbsolutePath(), List.of(source.getAbsolutePath()))) {
+            Assert.assertEquals(2, merger.merge(source.getAbsolutePath()));
+            merger.finish();
+            merger.updateMetadata(Map.of("minzoom", "0", "maxzoom", String.valueOf(ZOOM)));
+        }
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + target.getAbsolutePath());
+             Statement statement = connection.createStatement()) {
+            Assert.assertEquals(3, count(statement, "SELECT COUNT(*) FROM tiles"));
+            Assert.assertEquals(1, count(statement, "SELECT COUNT(*) FROM sqlite_master WHERE type = 'index' AND name = 'tile_index'"));
+            Assert.assertEquals(0, count(statement, "SELECT COUNT(*) FROM sqlite_master WHERE name = 'merge_checkpoint'"));
+            try (ResultSet rs = statement.executeQuery("SELECT tile_data FROM tiles WHERE zoom_level = " + ZOOM + " AND tile_column = 1 AND tile_row = 0")) {
+                Assert.assertTrue(rs.next());
+                Assert.assertEquals("source", new String(rs.getBytes(1)));
+            }
+            try (ResultSet rs = statement.executeQuery("SELECT value FROM metadata WHERE name = 'maxzoom'")) {
+                Assert.assertTrue(rs.next());
+                Assert.assertEquals(String.valueOf(ZOOM), rs.getString(1));
+            }
+        } finally {
+            Files.deleteIfExists(target.toPath());
+            Files.deleteIfExists(source.toPath());
+        }
+    }
+
+    @Test
+    public void unionInBatches() throws Exception {
+        //冲突的瓦片数超过一个小批次，每个冲突的瓦片都应合并，不冲突的瓦片直接拷贝
+        int collisions = MbtilesMerger.UNION_BATCH_SIZE * 2 + 10;
+        File target = createMbtiles(0, 0, collisions, "base");
+        File source = createMbtiles(0, 0, collisions + 5, "source");
+        byte[] expected = MbtilesMerger.unionTile("base".getBytes(), "source".getBytes());
+        try {
+            try (MbtilesMerger merger = new MbtilesMerger(target.getAbsolutePath(), List.of(source.getAbsolutePath()), MbtilesMerger.DEFAULT_CHUNK_SIZE, true)) {
+                Assert.assertEquals(collisions + 5, merger.merge(source.getAbsolutePath()));
+                merger.finish();
+            }
+            try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + target.getAbsolutePath());
+                 Statement statement = connection.createStatement()) {
+                Assert.assertEquals(collisions + 5, count(statement, "SELECT COUNT(*) FROM tiles"));
+                try (ResultSet rs = statement.executeQuery("SELECT tile_column, tile_data FROM tiles ORDER BY tile_column")) {
+                    while (rs.next()) {
+                        byte[] data = rs.getBytes(2);
+                        if (rs.getInt(1) < collisions) {
+                            Assert.assertArrayEquals(expected, data);
+                        } else {
+                            Assert.assertEquals("source", new String(data));
+                        }
+                    }
+                }
+            }
+        } finally {
+            Files.deleteIfExists(target.toPath());
+            Files.deleteIfExists(source.toPath());
+        }
+    }
+
+    @Test
+    public void resume() throws Exception {
+        File target = createMbtiles(0, 0, 1, "base");
+        File source = createMbtiles(1, 0, 5, "source");
+        List<String> sources = List.of(source.getAbsolutePath());
+        try {
+            //每批2个瓦片，第一批提交后中断
+            try (MbtilesMerger merger = new MbtilesMerger(target.getAbsolutePath(), sources, 2)) {
+                Assert.assertFalse(merger.merge(source.getAbsolutePath(), copied -> false));
+                Assert.assertEquals(2, merger.getCopiedCount());
+            }
+            Assert.assertEquals(sources, MbtilesMerger.readSources(target.getAbsolutePath()).orElse(null));
+            try (MbtilesMerger merger = new MbtilesMerger(target.getAbsolutePath(), sources, 2)) {
+                Assert.assertEquals(3, merger.merge(source.getAbsolutePath()));
+                Assert.assertEquals(5, merger.getCopiedCount());
+                merger.finish();
+            }
+            Assert.assertTrue(MbtilesMerger.readSources(target.getAbsolutePath()).isEmpty());
+            try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + target.getAbsolutePath());
+                 Statement statement = connection.createStatement()) {
+                Assert.assertEquals(6, count(statement, "SELECT COUNT(*) FROM tiles"));
+                Assert.assertEquals(1, count(statement, "SELECT COUNT(*) FROM sqlite_master WHERE type = 'index' AND name = 'tile_index'"));
+            }
+        } finally {
+            Files.deleteIfExists(target.toPath());
+            Files.deleteIfExists(source.toPath());
+        }
+    }
+
+    @Test
+    public void benchmark() throws Exception {
+        //耗时较长，只在benchmark配置下运行：mvn test -Pbenchmark
+        Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+        List<File> sources = new ArrayList<>();
+        for (int i = 0; i < SOURCES; i++) {
+            sources.add(createMbtiles(i * TILES, 0, TILES, null));
+        }
+        File target = createMbtiles(SOURCES * TILES, 0, 1, null);
+        long bytes = sources.stream().mapToLong(File::length).sum();
+        try {
+            long start = System.nanoTime();
+            long copied = 0;
+            List<String> paths = sources.stream().map(File::getAbsolutePath).toList();
+            try (MbtilesMerger merger = new MbtilesMerger(target.getAbsolutePath(), paths)) {
+                for (File source : sources) {
+                    copied += merger.merge(source.getAbsolutePath());
+                }
+                merger.finish();
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            Assert.assertEquals((long) SOURCES * TILES, copied);
+            System.out.printf("sources=%d, tiles=%d, size=%d MB, %.0f tiles/s, %.1f MB/s%n", SOURCES, copied, bytes >> 20,
+                    copied / seconds, bytes / seconds / 1024 / 1024);
+        } finally {
+            for (File source : sources) {
+                Files.deleteIfExists(source.toPath());
+            }
+            Files.deleteIfExists(target.toPath());
+        }
+    }
+
+    private long count(Statement statement, String sql) throws SQLException {
+        try (ResultSet rs = statement.executeQuery(sql)) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+
+    /**
+     * 生成连续的瓦片，data为空时写入随机数据
+     */
+    private File createMbtiles(int offset, int row, int count, String data) throws IOException, SQLException {
+        File file = Files.createTempFile("merge", ".mbtiles").toFile();
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath())) {
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("CREATE TABLE metadata (name TEXT, value TEXT)");
+                statement.execute("CREATE TABLE tiles (zoom_level INTEGER, tile_column INTEGER, tile_row INTEGER, tile_data BLOB)");
+                statement.execute("CREATE UNIQUE INDEX tile_index ON tiles (zoom_level, tile_column, tile_row)");
+                statement.execute("INSERT INTO metadata VALUES ('maxzoom', '0')");
+            }
+            connection.setAutoCommit(false);
+            Random random = new Random(offset);
+            try (PreparedStatement ps = connection.prepareStatement("INSERT INTO tiles VALUES (?, ?, ?, ?)")) {
+                for (int i = offset; i < offset + count; i++) {
+                    byte[] bytes = data == null ? new byte[1024 + random.nextInt(16 * 1024)] : data.getBytes();
+                    if (data == null) {
+                        random.nextBytes(bytes);
+                    }
+                    ps.setInt(1, ZOOM);
+                    ps.setInt(2, i % (1 << ZOOM));
+                    ps.setInt(3, row + i / (1 << ZOOM));
+                    ps.setBytes(4, bytes);
+                    ps.addBatch();
+                    if (i % 5000 == 0) {
+                        ps.executeBatch();
+                    }
+                }
+                ps.executeBatch();
+            }
+            connection.commit();
+        }
+        return file;
+    }
+}
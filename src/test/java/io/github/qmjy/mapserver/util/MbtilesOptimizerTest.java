@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2024 QMJY.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.github.qmjy.mapserver.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+public class MbtilesOptimizerTest {
+
+    @Test
+    public void hilbert() {
+        Assert.assertEquals(1L << 58, MbtilesOptimizer.hilbert(1, 0, 0));
+        Assert.assertEquals((1L << 58) | 1, MbtilesOptimizer.hilbert(1, 0, 1));
+        Assert.assertEquals((1L << 58) | 2, MbtilesOptimizer.hilbert(1, 1, 1));
+        Assert.assertEquals((1L << 58) | 3, MbtilesOptimizer.hilbert(1, 1, 0));
+        //相邻的曲线位置对应相邻的瓦片
+        List<long[]> tiles = new ArrayList<>();
+        for (int x = 0; x < 16; x++) {
+            for (int y = 0; y < 16; y++) {
+                tiles.add(new long[]{MbtilesOptimizer.hilbert(4, x, y), x, y});
+            }
+        }
+        tiles.sort((a, b) -> Long.compare(a[0], b[0]));
+        for (int i = 1; i < tiles.size(); i++) {
+            Assert.assertEquals(1, Math.abs(tiles.get(i)[1] - tiles.get(i - 1)[1]) + Math.abs(tiles.get(i)[2] - tiles.get(i - 1)[2]));
+        }
+    }
+
+    @Test
+    public void optimize() throws Exception {
+        File source = Files.createTempFile("optimize", ".mbtiles").toFile();
+        File target = new File(source.getAbsolutePath() + ".optimize.tmp");
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + source.getAbsolutePath());
+             Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE metadata (name TEXT, value TEXT)");
+            statement.execute("CREATE TABLE tiles (zoom_level INTEGER, tile_column INTEGER, tile_row INTEGER, tile_data BLOB)");
+            statement.execute("CREATE UNIQUE INDEX tile_index ON tiles (zoom_level, tile_column, tile_row)");
+            statement.execute("INSERT INTO metadata VALUES ('format', 'pbf')");
+            try (PreparedStatement ps = connection.prepareStatement("INSERT INTO tiles VALUES (3, ?, ?, ?)")) {
+                for (int x = 0; x < 8; x++) {
+                    for (int y = 0; y < 8; y++) {
+                        //海洋瓦片大量重复
+                        ps.setInt(1, x);
+                        ps.setInt(2, y);
+                        ps.setBytes(3, (x < 2 ? "land-" + x + "-" + y : "ocean").getBytes());
+                        ps.executeUpdate();
+                    }
+                }
+            }
+        }
+
+        try (MbtilesOptimizer optimizer = new MbtilesOptimizer(target.getAbsolutePath(), source.getAbsolutePath())) {
+            Assert.assertArrayEquals(new long[]{64, 17}, optimizer.optimize());
+            optimizer.compact();
+        }
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + target.getAbsolutePath());
+             Statement statement = connection.createStatement()) {
+            try (ResultSet rs = statement.executeQuery("SELECT COUNT(*) FROM tiles")) {
+                Assert.assertEquals(64, rs.getInt(1));
+            }
+            try (ResultSet rs = statement.executeQuery("SELECT tile_data FROM tiles WHERE zoom_level = 3 AND tile_column = 1 AND tile_row = 5")) {
+                Assert.assertEquals("land-1-5", new String(rs.getBytes(1)));
+            }
+            //tile_id为按希尔伯特顺序分配的整数，曲线起点的瓦片排在images的第一行
+            try (ResultSet rs = statement.executeQuery("SELECT typeof(tile_id), tile_id FROM map WHERE zoom_level = 3 AND tile_column = 0 AND tile_row = 0")) {
+                Assert.assertEquals("integer", rs.getString(1));
+                Assert.assertEquals(1, rs.getLong(2));
+            }
+            try (ResultSet rs = statement.executeQuery("SELECT MIN(tile_id), MAX(tile_id) FROM images")) {
+                Assert.assertEquals(1, rs.getLong(1));
+                Assert.assertEquals(17, rs.getLong(2));
+            }
+            try (ResultSet rs = statement.executeQuery("SELECT value FROM metadata WHERE name = 'format'")) {
+                Assert.assertEquals("pbf", rs.getString(1));
+            }
+        }
+
+        List<int[]> requests = List.of(new int[]{3, 0, 0}, new int[]{3, 5, 5}, new int[]{3, 6, 6}, new int[]{3, 0, 0});
+        Assert.assertTrue(MbtilesOptimizer.simulatePageReads(source.getAbsolutePath(), requests, 1024 * 1024) > 0);
+        Assert.assertTrue(MbtilesOptimizer.simulatePageReads(target.getAbsolutePath(), requests, 1024 * 1024) > 0);
+        Files.deleteIfExists(source.toPath());
+        Files.deleteIfExists(target.toPath());
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2024 QMJY.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.github.qmjy.mapserver.util;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+
+/**
+ * 对比JdbcTemplate拼接SQL与预编译只读连接池两种瓦片读取方式的吞吐量
+ */
+public class MbtilesTileReaderBenchmarkTest {
+    static final int ZOOM = 10;
+    static final int SIZE = 64;
+    private static final int READS = 50000;
+
+    @Test
+    public void benchmark() throws Exception {
+        //耗时较长，只在benchmark配置下运行：mvn test -Pbenchmark
+        Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+        File mbtiles = createMbtiles();
+        int threads = Runtime.getRuntime().availableProcessors();
+
+        JdbcTemplate jdbcTemplate = JdbcUtils.getInstance().getJdbcTemplate("org.sqlite.JDBC", mbtiles.getAbsolutePath());
+        MbtilesTileReader reader = new MbtilesTileReader(mbtiles.getAbsolutePath());
+        try {
+            Assert.assertArrayEquals(readByJdbcTemplate(jdbcTemplate, 3, 5), reader.readTile(ZOOM, 3, 5).orElse(null));
+            Assert.assertTrue(reader.readTile(ZOOM, SIZE + 1, 0).isEmpty());
+
+            //预热
+            run(threads, READS / 10, i -> readByJdbcTemplate(jdbcTemplate, i % SIZE, (i / SIZE) % SIZE));
+            run(threads, READS / 10, i -> reader.readTile(ZOOM, i % SIZE, (i / SIZE) % SIZE).orElse(null));
+
+            double before = run(threads, READS, i -> readByJdbcTemplate(jdbcTemplate, i % SIZE, (i / SIZE) % SIZE));
+            double after = run(threads, READS, i -> reader.readTile(ZOOM, i % SIZE, (i / SIZE) % SIZE).orElse(null));
+            System.out.printf("threads=%d, JdbcTemplate: %.0f tiles/s, MbtilesTileReader: %.0f tiles/s, speedup: %.2fx%n", threads, before, after, after / before);
+        } finally {
+            reader.close();
+            JdbcUtils.getInstance().releaseJdbcTemplate(jdbcTemplate);
+            Files.deleteIfExists(mbtiles.toPath());
+        }
+    }
+
+    @Test
+    public void readTiles() throws Exception {
+        File mbtiles = createMbtiles();
+        MbtilesTileReader reader = new MbtilesTileReader(mbtiles.getAbsolutePath());
+        try {
+            //视口内的瓦片加上一个不存在的瓦片，外接矩形内未请求的瓦片不应返回
+            List<int[]> tiles = List.of(new int[]{3, 5}, new int[]{4, 5}, new int[]{8, 9}, new int[]{SIZE, 5});
+            Map<Long, byte[]> result = reader.readTiles(ZOOM, tiles);
+            Assert.assertEquals(3, result.size());
+            for (int[] tile : tiles.subList(0, 3)) {
+                Assert.assertArrayEquals(reader.readTile(ZOOM, tile[0], tile[1]).orElse(null), result.get(MbtilesTileReader.tileKey(tile[0], tile[1])));
+            }
+            Assert.assertTrue(reader.readTiles(ZOOM + 1, tiles).isEmpty());
+        } finally {
+            reader.close();
+            Files.deleteIfExists(mbtiles.toPath());
+        }
+    }
+
+    @Test
+    public void readSparseTiles() throws Exception {
+        File mbtiles = createMbtiles();
+        MbtilesTileReader reader = new MbtilesTileReader(mbtiles.getAbsolutePath());
+        try {
+            //相距很远的两个角上的瓦片按主键逐个读取，结果与范围查询一致
+            List<int[]> tiles = List.of(new int[]{0, 0}, new int[]{SIZE - 1, SIZE - 1}, new int[]{0, SIZE - 1}, new int[]{(1 << ZOOM) - 1, 0});
+            Map<Long, byte[]> result = reader.readTiles(ZOOM, tiles);
+            Assert.assertEquals(3, result.size());
+            for (int[] tile : tiles.subList(0, 3)) {
+                Assert.assertArrayEquals(reader.readTile(ZOOM, tile[0], tile[1]).orElse(null), result.get(MbtilesTileReader.tileKey(tile[0], tile[1])));
+            }
+            Assert.assertFalse(result.containsKey(MbtilesTileReader.tileKey((1 << ZOOM) - 1, 0)));
+        } finally {
+            reader.close();
+            Files.deleteIfExists(mbtiles.toPath());
+        }
+    }
+
+    private byte[] readByJdbcTemplate(JdbcTemplate jdbcTemplate, int x, int y) {
+        String sql = "SELECT tile_data FROM tiles WHERE zoom_level = " + ZOOM + " AND tile_column = " + x + " AND tile_row = " + y;
+        try {
+            return jdbcTemplate.queryForObject(sql, (rs, rowNum) -> rs.getBytes(1));
+        } catch (EmptyResultDataAccessException e) {
+            return null;
+        }
+    }
+
+    private double run(int threads, int reads, IntFunction<byte[]> task) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        AtomicLong bytes = new AtomicLong();
+        Random random = new Random(7);
+        long start = System.nanoTime();
+        for (int i = 0; i < reads; i++) {
+            int index = random.nextInt(SIZE * SIZE);
+            executor.execute(() -> {
+                byte[] data = task.apply(index);
+                if (data != null) {
+                    bytes.addAndGet(data.length);
+                }
+            });
+        }
+        executor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(5, TimeUnit.MINUTES));
+        double seconds = (System.nanoTime() - start) / 1e9;
+        Assert.assertTrue(bytes.get() > 0);
+        return reads / seconds;
+    }
+
+    /**
+     * 生成ZOOM层级上SIZE*SIZE个1KB到9KB随机瓦片的mbtiles文件，其他读取性能测试共用
+     */
+    static File createMbtiles() throws IOException, SQLException {
+        File file = Files.createTempFile("benchmark", ".mbtiles").toFile();
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath())) {
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("CREATE TABLE metadata (name TEXT, value TEXT)");
+                statement.execute("CREATE TABLE tiles (zoom_level INTEGER, tile_column INTEGER, tile_row INTEGER, tile_data BLOB)");
+                statement.execute("CREATE UNIQUE INDEX tile_index ON tiles (zoom_level, tile_column, tile_row)");
+            }
+            connection.setAutoCommit(false);
+            Random random = new Random(42);
+            try (PreparedStatement ps = connection.prepareStatement("INSERT INTO tiles VALUES (?, ?, ?, ?)")) {
+                for (int x = 0; x < SIZE; x++) {
+                    for (int y = 0; y < SIZE; y++) {
+                        byte[] data = new byte[1024 + random.nextInt(8 * 1024)];
+                        random.nextBytes(data);
+                        ps.setInt(1, ZOOM);
+                        ps.setInt(2, x);
+                        ps.setInt(3, y);
+                        ps.setBytes(4, data);
+                        ps.addBatch();
+                    }
+                }
+                ps.executeBatch();
+            }
+            connection.commit();
+        }
+        return file;
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2024 QMJY.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.github.qmjy.mapserver.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+public class PmtilesReaderTest {
+
+    @Test
+    public void tileId() {
+        //规范中的示例
+        Assert.assertEquals(0, PmtilesReader.tileId(0, 0, 0));
+        Assert.assertEquals(1, PmtilesReader.tileId(1, 0, 0));
+        Assert.assertEquals(2, PmtilesReader.tileId(1, 0, 1));
+        Assert.assertEquals(3, PmtilesReader.tileId(1, 1, 1));
+        Assert.assertEquals(4, PmtilesReader.tileId(1, 1, 0));
+        Assert.assertEquals(5, PmtilesReader.tileId(2, 0, 0));
+        Assert.assertArrayEquals(new int[]{12, 3423, 1763}, PmtilesReader.tileIdToZxy(PmtilesReader.tileId(12, 3423, 1763)));
+    }
+
+    @Test
+    public void readTiles() throws IOException {
+        byte[] tile0 = "tile-0".getBytes(StandardCharsets.UTF_8);
+        byte[] tile1 = "tile-1".getBytes(StandardCharsets.UTF_8);
+        byte[] tile2 = "tile-2".getBytes(StandardCharsets.UTF_8);
+        byte[] data = new byte[tile0.length + tile1.length + tile2.length];
+        System.arraycopy(tile0, 0, data, 0, tile0.length);
+        System.arraycopy(tile1, 0, data, tile0.length, tile1.length);
+        System.arraycopy(tile2, 0, data, tile0.length + tile1.length, tile2.length);
+
+        //叶子目录：z1的tileId 1-2共用同一个瓦片数据（run length为2），tileId 3为单独的瓦片
+        byte[] leaf = directory(new long[]{1, 3}, new long[]{2, 1}, new long[]{tile0.length, tile0.length + tile1.length},
+                new long[]{tile1.length, tile2.length});
+        //根目录：tileId 0直接指向瓦片，tileId 1起指向叶子目录
+        byte[] root = directory(new long[]{0, 1}, new long[]{1, 0}, new long[]{0, 0}, new long[]{tile0.length, leaf.length});
+        byte[] metadata = "{\"name\":\"test\",\"vector_layers\":[{\"id\":\"water\"}]}".getBytes(StandardCharsets.UTF_8);
+
+        ByteBuffer header = ByteBuffer.allocate(127).order(ByteOrder.LITTLE_ENDIAN);
+        header.put("PMTiles".getBytes(StandardCharsets.US_ASCII)).put((byte) 3);
+        long rootOffset = 127;
+        long metadataOffset = rootOffset + root.length;
+        long leafOffset = metadataOffset + metadata.length;
+        long dataOffset = leafOffset + leaf.length;
+        header.putLong(8, rootOffset).putLong(16, root.length);
+        header.putLong(24, metadataOffset).putLong(32, metadata.length);
+        header.putLong(40, leafOffset).putLong(48, leaf.length);
+        header.putLong(56, dataOffset).putLong(64, data.length);
+        header.put(97, (byte) PmtilesReader.COMPRESSION_NONE).put(98, (byte) PmtilesReader.COMPRESSION_NONE);
+        header.put(99, (byte) PmtilesReader.TILE_TYPE_MVT).put(100, (byte) 0).put(101, (byte) 1);
+        header.putInt(102, -1800000000).putInt(106, -850000000).putInt(110, 1800000000).putInt(114, 850000000);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(header.array());
+        out.write(root);
+        out.write(metadata);
+        out.write(leaf);
+        out.write(data);
+        File file = Files.createTempFile("test", ".pmtiles").toFile();
+        Files.write(file.toPath(), out.toByteArray());
+
+        try (PmtilesReader reader = new PmtilesReader(file)) {
+            Assert.assertArrayEquals(tile0, reader.readTile(0, 0, 0).orElse(null));
+            //API的y为TMS，tileId 1为XYZ(1,0,0)，即TMS(1,0,1)
+            Assert.assertArrayEquals(tile1, reader.readTile(1, 0, 1).orElse(null));
+            Assert.assertArrayEquals(tile1, reader.readTile(1, 0, 0).orElse(null));
+            Assert.assertArrayEquals(tile2, reader.readTile(1, 1, 0).orElse(null));
+            Assert.assertTrue(reader.readTile(1, 1, 1).isEmpty());
+            Assert.assertTrue(reader.readTile(2, 0, 0).isEmpty());
+
+            Assert.assertEquals("pbf", reader.getMetaDataMap().get("format"));
+            Assert.assertEquals("test", reader.getMetaDataMap().get("name"));
+            Assert.assertEquals("1", reader.getMetaDataMap().get("maxzoom"));
+            Assert.assertTrue(reader.getMetaDataMap().get("vector_layers").contains("water"));
+
+            List<String> tiles = new ArrayList<>();
+            reader.forEachTile((z, x, y) -> tiles.add(z + "/" + x + "/" + y));
+            Assert.assertEquals(List.of("0/0/0", "1/0/1", "1/0/0", "1/1/0"), tiles);
+        } finally {
+            Files.deleteIfExists(file.toPath());
+        }
+    }
+
+    @Test
+    public void rejectUnsupportedTileCompression() throws IOException {
+        byte[] root = directory(new long[]{0}, new long[]{1}, new long[]{0}, new long[]{4});
+        ByteBuffer header = ByteBuffer.allocate(127).order(ByteOrder.LITTLE_ENDIAN);
+        header.put("PMTiles".getBytes(StandardCharsets.US_ASCII)).put((byte) 3);
+        header.putLong(8, 127).putLong(16, root.length);
+        header.putLong(56, 127 + root.length).putLong(64, 4);
+        header.put(97, (byte) PmtilesReader.COMPRESSION_NONE).put(98, (byte) PmtilesReader.COMPRESSION_BROTLI);
+        header.put(99, (byte) PmtilesReader.TILE_TYPE_MVT);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(header.array());
+        out.write(root);
+        out.write(new byte[4]);
+        File file = Files.createTempFile("test", ".pmtiles").toFile();
+        Files.write(file.toPath(), out.toByteArray());
+        try {
+            IOException e = Assert.assertThrows(IOException.class, () -> new PmtilesReader(file).close());
+            Assert.assertTrue(e.getMessage().contains("tile compression"));
+        } finally {
+            Files.deleteIfExists(file.toPath());
+        }
+    }
+
+    private byte[] directory(long[] tileIds, long[] runLengths, long[] offsets, long[] lengths) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeVarint(out, tileIds.length);
+        long last = 0;
+        for (long tileId : tileIds) {
+            writeVarint(out, tileId - last);
+            last = tileId;
+        }
+        for (long runLength : runLengths) {
+            writeVarint(out, runLength);
+        }
+        for (long length : lengths) {
+            writeVarint(out, length);
+        }
+        for (long offset : offsets) {
+            writeVarint(out, offset + 1);
+        }
+        return out.toByteArray();
+    }
+
+    private void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+}
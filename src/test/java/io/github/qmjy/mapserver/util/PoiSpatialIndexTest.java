@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2024 QMJY.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+
+package io.github.qmjy.mapserver.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+
+public class PoiSpatialIndexTest {
+
+    @Test
+    public void distance() {
+        //天府广场到成都东站约7.8公里
+        Assert.assertEquals(7795, PoiSpatialIndex.distance(104.0657, 30.6574, 104.1406, 30.6298), 10);
+        Assert.assertEquals(0, PoiSpatialIndex.distance(104, 30, 104, 30), 1e-9);
+        //赤道上经度相差1度
+        Assert.assertEquals(Math.toRadians(1) * PoiSpatialIndex.EARTH_RADIUS, PoiSpatialIndex.distance(0, 0, 1, 0), 1e-6);
+    }
+
+    @Test
+    public void bbox() {
+        double[] bbox = PoiSpatialIndex.bbox(104.0657, 30.6574, 1000);
+        Assert.assertTrue(bbox[0] < 104.0657 && bbox[2] > 104.0657 && bbox[1] < 30.6574 && bbox[3] > 30.6574);
+        //外接矩形的四条边到中心的距离不小于半径
+        Assert.assertTrue(PoiSpatialIndex.distance(104.0657, 30.6574, bbox[0], 30.6574) >= 999.9);
+        Assert.assertTrue(PoiSpatialIndex.distance(104.0657, 30.6574, 104.0657, bbox[3]) >= 999.9);
+
+        //跨越180度经线或覆盖极点时经度取全部范围
+        double[] dateline = PoiSpatialIndex.bbox(179.999, 0, 1000);
+        Assert.assertEquals(-180, dateline[0], 0);
+        Assert.assertEquals(180, dateline[2], 0);
+        double[] pole = PoiSpatialIndex.bbox(0, 89.999, 1000);
+        Assert.assertEquals(-180, pole[0], 0);
+        Assert.assertEquals(90, pole[3], 0);
+    }
+
+    @Test
+    public void buildQueries() {
+        //候选只读取rowid和坐标，按距离排序后再按rowid读取需要返回的记录
+        PoiFullTextIndex.Query candidates = PoiSpatialIndex.buildCandidates(new double[]{104, 30, 105, 31}, List.of(), false, "餐饮", 100);
+        Assert.assertTrue(candidates.sql().startsWith("SELECT poi.rowid, poi.lon, poi.lat FROM poi_rtree"));
+        Assert.assertEquals(List.of(104.0, 105.0, 30.0, 31.0, "餐饮", 100), candidates.args());
+
+        PoiFullTextIndex.Query fetch = PoiSpatialIndex.buildFetch(List.of(7L, 3L, 5L));
+        Assert.assertEquals("SELECT poi.rowid AS " + PoiSpatialIndex.ROWID_COLUMN + ", poi.* FROM poi WHERE poi.rowid IN (?, ?, ?)", fetch.sql());
+        Assert.assertEquals(List.of(7L, 3L, 5L), fetch.args());
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright (c) 2024 QMJY.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+
+package io.github.qmjy.mapserver.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PoiTransliteratorTest {
+
+    @Test
+    public void transliterate() {
+        PoiTransliterator transliterator = new PoiTransliterator();
+        Assert.assertArrayEquals(new String[]{"chunxilu", "cxl"}, transliterator.transliterate("春熙路"));
+        Assert.assertArrayEquals(new String[]{"kfckendeji", "kkdj"}, transliterator.transliterate("KFC 肯德基"));
+        Assert.assertArrayEquals(new String[]{"moskva", "m"}, transliterator.transliterate("Москва"));
+        Assert.assertArrayEquals(new String[]{"cafedeflore", "cdf"}, transliterator.transliterate("Café de Flore"));
+    }
+
+    @Test
+    public void normalizeAscii() {
+        Assert.assertTrue(PoiTransliterator.isAscii("ChunXi-Lu"));
+        Assert.assertFalse(PoiTransliterator.isAscii("春熙路"));
+        Assert.assertEquals("chunxilu", PoiTransliterator.normalizeAscii("ChunXi-Lu"));
+        Assert.assertEquals("", PoiTransliterator.normalizeAscii("--"));
+    }
+}
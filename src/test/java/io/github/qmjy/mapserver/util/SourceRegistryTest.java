@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2024 QMJY.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+
+package io.github.qmjy.mapserver.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class SourceRegistryTest {
+
+    @Test
+    public void closeAfterLeasesReleased() {
+        List<String> closed = new ArrayList<>();
+        SourceRegistry<String> registry = new SourceRegistry<>(closed::add);
+        registry.put("a.mbtiles", "v1");
+
+        SourceRegistry.Lease<String> lease = registry.acquire("a.mbtiles").orElseThrow();
+        registry.put("a.mbtiles", "v2");
+        //替换后新的读取立即看到新版本，旧版本在租约归还前不会关闭
+        Assert.assertEquals("v2", registry.get("a.mbtiles").orElseThrow());
+        Assert.assertEquals("v1", lease.get());
+        Assert.assertTrue(closed.isEmpty());
+        lease.close();
+        lease.close();
+        Assert.assertEquals(List.of("v1"), closed);
+
+        try (SourceRegistry.Lease<String> current = registry.acquire("a.mbtiles").orElseThrow()) {
+            Assert.assertTrue(registry.remove("a.mbtiles"));
+            Assert.assertTrue(registry.acquire("a.mbtiles").isEmpty());
+            Assert.assertEquals("v2", current.get());
+            Assert.assertEquals(List.of("v1"), closed);
+        }
+        Assert.assertEquals(List.of("v1", "v2"), closed);
+        Assert.assertFalse(registry.remove("a.mbtiles"));
+        Assert.assertTrue(registry.snapshot().isEmpty());
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2024 QMJY.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.github.qmjy.mapserver.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+
+public class TileCoverageTest {
+
+    @Test
+    public void hilbertRoundTrip() {
+        for (int z = 0; z <= 6; z++) {
+            int n = 1 << z;
+            boolean[] seen = new boolean[n * n];
+            for (int x = 0; x < n; x++) {
+                for (int y = 0; y < n; y++) {
+                    long index = TileCoverage.hilbertIndex(z, x, y);
+                    Assert.assertFalse(seen[(int) index]);
+                    seen[(int) index] = true;
+                    Assert.assertArrayEquals(new int[]{x, y}, TileCoverage.hilbertPoint(z, index));
+                }
+            }
+        }
+        int[] point = TileCoverage.hilbertPoint(30, TileCoverage.hilbertIndex(30, 1 << 29, 12345));
+        Assert.assertArrayEquals(new int[]{1 << 29, 12345}, point);
+    }
+
+    @Test
+    public void containsAndPersist() throws IOException {
+        TileCoverage.Builder builder = new TileCoverage.Builder();
+        //z=10上一个16x16的完整块，以及一个孤立瓦片
+        for (int x = 512; x < 528; x++) {
+            for (int y = 256; y < 272; y++) {
+                builder.add(10, x, y);
+            }
+        }
+        builder.add(10, 900, 100);
+        builder.add(10, 900, 100);
+        builder.add(3, 8, 0);
+        TileCoverage coverage = builder.build();
+
+        Assert.assertTrue(coverage.contains(10, 512, 256));
+        Assert.assertTrue(coverage.contains(10, 527, 271));
+        Assert.assertTrue(coverage.contains(10, 900, 100));
+        Assert.assertFalse(coverage.contains(10, 528, 256));
+        Assert.assertFalse(coverage.contains(10, 0, 0));
+        Assert.assertFalse(coverage.contains(11, 512, 256));
+        Assert.assertFalse(coverage.hasZoom(3));
+        Assert.assertEquals(257, coverage.getTileCount(10));
+        //对齐的16x16块在希尔伯特曲线上是连续的一段
+        Assert.assertEquals(2, coverage.getRunCount(10));
+
+        List<int[]> rectangles = coverage.toRectangles(10, 1000).orElseThrow();
+        Assert.assertEquals(2, rectangles.size());
+        Assert.assertTrue(coverage.toRectangles(10, 100).isEmpty());
+
+        File file = Files.createTempFile("test", ".coverage").toFile();
+        try {
+            coverage.write(file, 1024, 42);
+            Assert.assertTrue(TileCoverage.read(file, 1024, 43).isEmpty());
+            TileCoverage loaded = TileCoverage.read(file, 1024, 42).orElseThrow();
+            Assert.assertTrue(loaded.contains(10, 520, 260));
+            Assert.assertTrue(loaded.contains(10, 900, 100));
+            Assert.assertFalse(loaded.contains(10, 901, 100));
+            Assert.assertEquals(coverage.getTileCount(10), loaded.getTileCount(10));
+            Assert.assertArrayEquals(coverage.getBounds(10).orElseThrow(), loaded.getBounds(10).orElseThrow());
+        } finally {
+            Files.deleteIfExists(file.toPath());
+        }
+    }
+
+    @Test
+    public void buildInChunks() {
+        //z=9全部瓦片按行序添加，超过一个缓冲区后仍应合并为一个区间，重复添加不影响计数
+        TileCoverage.Builder builder = new TileCoverage.Builder();
+        for (int round = 0; round < 2; round++) {
+            for (int y = 0; y < 512; y++) {
+                for (int x = 0; x < 512; x++) {
+                    builder.add(9, x, y);
+                }
+            }
+        }
+        for (int x = 0; x < 4096; x += 2) {
+            builder.add(12, x, 7);
+        }
+        TileCoverage coverage = builder.build();
+        Assert.assertEquals(512L * 512, coverage.getTileCount(9));
+        Assert.assertEquals(1, coverage.getRunCount(9));
+        Assert.assertEquals(2048, coverage.getTileCount(12));
+        Assert.assertTrue(coverage.contains(12, 4094, 7));
+        Assert.assertFalse(coverage.contains(12, 4095, 7));
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2024 QMJY.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+
+package io.github.qmjy.mapserver.util;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+
+public class TilePruneProfileTest {
+
+    @Test
+    public void fromStyle() throws IOException {
+        String style = """
+                {
+                  "version": 8,
+                  "sources": {"openmaptiles": {"type": "vector", "promoteId": "osm_id"}},
+                  "layers": [
+                    {"id": "background", "type": "background"},
+                    {"id": "park", "type": "fill", "source": "openmaptiles", "source-layer": "park",
+                     "filter": ["==", "class", "national_park"]},
+                    {"id": "road", "type": "line", "source": "openmaptiles", "source-layer": "transportation",
+                     "filter": ["all", ["==", ["get", "class"], "primary"], ["!has", "tunnel"]],
+                     "paint": {"line-width": {"property": "width", "stops": [[1, 1], [4, 4]]}}},
+                    {"id": "road-label", "type": "symbol", "source": "openmaptiles", "source-layer": "transportation_name",
+                     "layout": {"text-field": "{name:zh}\\n{ref}"}}
+                  ]
+                }
+                """;
+        TilePruneProfile profile = TilePruneProfile.fromStyle("test.json", new ObjectMapper().readTree(style));
+        Assert.assertEquals("style:test.json", profile.getName());
+
+        Assert.assertTrue(profile.keepLayer("park"));
+        Assert.assertTrue(profile.keepLayer("transportation"));
+        Assert.assertFalse(profile.keepLayer("poi"));
+
+        Assert.assertTrue(profile.keepField("park", "class"));
+        Assert.assertTrue(profile.keepField("park", "osm_id"));
+        Assert.assertFalse(profile.keepField("park", "name:en"));
+        Assert.assertTrue(profile.keepField("transportation", "class"));
+        Assert.assertTrue(profile.keepField("transportation", "tunnel"));
+        Assert.assertTrue(profile.keepField("transportation", "width"));
+        Assert.assertFalse(profile.keepField("transportation", "primary"));
+        Assert.assertTrue(profile.keepField("transportation_name", "name:zh"));
+        Assert.assertTrue(profile.keepField("transportation_name", "ref"));
+        Assert.assertFalse(profile.keepField("transportation_name", "name:de"));
+    }
+
+    @Test
+    public void fromParams() {
+        TilePruneProfile profile = TilePruneProfile.fromParams("water, road", null);
+        Assert.assertEquals(profile.getName(), TilePruneProfile.fromParams("road,water", "").getName());
+        Assert.assertTrue(profile.keepLayer("road"));
+        Assert.assertFalse(profile.keepLayer("poi"));
+        Assert.assertTrue(profile.keepField("road", "name:en"));
+
+        profile = TilePruneProfile.fromParams(null, "class,name");
+        Assert.assertTrue(profile.keepLayer("poi"));
+        Assert.assertTrue(profile.keepField("poi", "name"));
+        Assert.assertFalse(profile.keepField("poi", "name:en"));
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2024 QMJY.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.github.qmjy.mapserver.util;
+
+import io.github.qmjy.mapserver.model.TilesetStats;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+public class TileStatsCollectorTest {
+
+    @Test
+    public void forEachLayer() {
+        byte[] tile = tile(layer("water", 2), layer("roads", 1));
+        List<String> layers = new ArrayList<>();
+        TileStatsCollector.forEachLayer(tile, (name, features, bytes) -> layers.add(name + ":" + features));
+        Assert.assertEquals(List.of("water:2", "roads:1"), layers);
+        Assert.assertThrows(IllegalArgumentException.class, () -> TileStatsCollector.forEachLayer(new byte[]{0x1a, 0x10, 0x0a}, (name, features, bytes) -> {
+        }));
+    }
+
+    @Test
+    public void build() {
+        TileStatsCollector first = new TileStatsCollector(true);
+        TileStatsCollector second = new TileStatsCollector(true);
+        byte[] water = tile(layer("water", 3));
+        for (int i = 1; i <= 100; i++) {
+            byte[] data = new byte[i];
+            System.arraycopy(water, 0, data, 0, Math.min(i, water.length));
+            (i % 2 == 0 ? first : second).add(10, i, 0, i >= water.length ? water : data);
+        }
+        first.merge(second);
+        TilesetStats.ZoomStats stats = first.build().getFirst();
+        Assert.assertEquals(10, stats.getZoom());
+        Assert.assertEquals(100, stats.getTilesCount());
+        Assert.assertEquals(TileStatsCollector.LARGEST_TILES, stats.getLargestTiles().size());
+        Assert.assertEquals(stats.getMaxBytes(), stats.getLargestTiles().getFirst().getBytes());
+        Assert.assertTrue(stats.getP50Bytes() <= stats.getP90Bytes() && stats.getP90Bytes() <= stats.getP99Bytes());
+        Assert.assertEquals(100 - water.length + 1, stats.getLayers().get("water").getTilesCount());
+        Assert.assertEquals(3 * (100 - water.length + 1), stats.getLayers().get("water").getFeaturesCount());
+        Assert.assertEquals(water.length - 1, stats.getInvalidTilesCount());
+    }
+
+    @Test
+    public void bucket() {
+        for (long bytes : new long[]{0, 31, 32, 63, 64, 1000, 65535, 1L << 40}) {
+            long upper = TileStatsCollector.bucketUpperBound(TileStatsCollector.bucket(bytes));
+            Assert.assertTrue(upper >= bytes && upper <= bytes * 1.04);
+        }
+    }
+
+    private byte[] tile(byte[]... layers) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] layer : layers) {
+            out.write(0x1a);
+            out.write(layer.length);
+            out.writeBytes(layer);
+        }
+        return out.toByteArray();
+    }
+
+    private byte[] layer(String name, int features) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0x78);
+        out.write(2);
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        out.write(0x0a);
+        out.write(nameBytes.length);
+        out.writeBytes(nameBytes);
+        for (int i = 0; i < features; i++) {
+            //feature: type = POINT
+            out.write(0x12);
+            out.write(2);
+            out.write(0x18);
+            out.write(1);
+        }
+        //extent = 4096
+        out.write(0x28);
+        out.write(0x80);
+        out.write(0x20);
+        return out.toByteArray();
+    }
+}
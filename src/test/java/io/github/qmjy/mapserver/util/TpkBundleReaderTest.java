@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2024 QMJY.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package io.github.qmjy.mapserver.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class TpkBundleReaderTest {
+    private static final byte[] TILE = "tile-1-1-1".getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void readCompactCacheV2() throws IOException {
+        //z=1, x=1, TMS y=1 对应TPK的第0行第1列
+        ByteBuffer bundle = ByteBuffer.allocate(64 + 128 * 128 * 8 + TILE.length).order(ByteOrder.LITTLE_ENDIAN);
+        bundle.putInt(0, 3);
+        long offset = 64 + 128 * 128 * 8;
+        bundle.putLong(64 + 8, (long) TILE.length << 40 | offset);
+        bundle.put((int) offset, TILE);
+
+        File tpk = createTpk(new String[]{"v101/Layers/_alllayers/L01/R0000C0000.bundle"}, new byte[][]{bundle.array()});
+        try (TpkBundleReader reader = new TpkBundleReader(tpk)) {
+            Assert.assertTrue(reader.isSupported());
+            Assert.assertArrayEquals(TILE, reader.readTile(1, 1, 1).orElse(null));
+            Assert.assertTrue(reader.readTile(1, 0, 1).isEmpty());
+            Assert.assertTrue(reader.readTile(2, 1, 1).isEmpty());
+
+            List<int[]> tiles = new ArrayList<>();
+            reader.forEachTile((z, x, y) -> tiles.add(new int[]{z, x, y}));
+            Assert.assertEquals(1, tiles.size());
+            Assert.assertArrayEquals(new int[]{1, 1, 1}, tiles.get(0));
+        } finally {
+            Files.deleteIfExists(tpk.toPath());
+        }
+    }
+
+    @Test
+    public void readCompactCacheV1() throws IOException {
+        ByteBuffer bundle = ByteBuffer.allocate(60 + 4 + TILE.length).order(ByteOrder.LITTLE_ENDIAN);
+        bundle.putInt(60, TILE.length);
+        bundle.put(64, TILE);
+
+        //bundlx按列优先排列，每项5字节
+        ByteBuffer bundlx = ByteBuffer.allocate(16 + 128 * 128 * 5 + 16).order(ByteOrder.LITTLE_ENDIAN);
+        int entry = 16 + 128 * 5;
+        bundlx.putInt(entry, 60);
+
+        File tpk = createTpk(new String[]{"v101/Layers/_alllayers/L01/R0000C0000.bundle", "v101/Layers/_alllayers/L01/R0000C0000.bundlx"},
+                new byte[][]{bundle.array(), bundlx.array()});
+        try (TpkBundleReader reader = new TpkBundleReader(tpk)) {
+            Assert.assertTrue(reader.isSupported());
+            Assert.assertArrayEquals(TILE, reader.readTile(1, 1, 1).orElse(null));
+            Assert.assertTrue(reader.readTile(1, 1, 0).isEmpty());
+        } finally {
+            Files.deleteIfExists(tpk.toPath());
+        }
+    }
+
+    private File createTpk(String[] names, byte[][] contents) throws IOException {
+        File file = Files.createTempFile("test", ".tpk").toFile();
+        try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(file))) {
+            zip.putNextEntry(new ZipEntry("v101/Layers/conf.xml"));
+            zip.write("<CacheInfo/>".getBytes(StandardCharsets.UTF_8));
+            zip.closeEntry();
+            for (int i = 0; i < names.length; i++) {
+                ZipEntry entry = new ZipEntry(names[i]);
+                entry.setMethod(ZipEntry.STORED);
+                entry.setSize(contents[i].length);
+                CRC32 crc = new CRC32();
+                crc.update(contents[i]);
+                entry.setCrc(crc.getValue());
+                zip.putNextEntry(entry);
+                zip.write(contents[i]);
+                zip.closeEntry();
+            }
+        }
+        return file;
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2024 QMJY.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *        https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+
+package io.github.qmjy.mapserver.util;
+
+import com.wdtinc.mapbox_vector_tile.VectorTile;
+import com.wdtinc.mapbox_vector_tile.adapt.jts.model.JtsLayer;
+import com.wdtinc.mapbox_vector_tile.adapt.jts.model.JtsMvt;
+import org.junit.Assert;
+import org.junit.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+
+import java.io.ByteArrayInputStream;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class VectorTileUtilsTest {
+    private final GeometryFactory factory = new GeometryFactory();
+
+    @Test
+    public void overzoom() {
+        Geometry park = factory.toGeometry(new Envelope(0, 2048, 0, 2048));
+        park.setUserData(Map.of("class", "park"));
+        Geometry west = factory.createPoint(new Coordinate(1000, 1000));
+        west.setUserData(Map.of("name", "west"));
+        Geometry east = factory.createPoint(new Coordinate(3000, 1000));
+        east.setUserData(Map.of("name", "east"));
+        JtsMvt ancestor = new JtsMvt(List.of(new JtsLayer("landuse", List.of(park), 4096), new JtsLayer("poi", List.of(west, east), 4096)));
+
+        //左上角的子瓦片：面放大后铺满整个瓦片，东侧的点被裁掉
+        JtsMvt northWest = roundTrip(VectorTileUtils.overzoom(ancestor, 1, 0, 0, 64));
+        Geometry scaled = northWest.getLayer("landuse").getGeometries().iterator().next();
+        Assert.assertEquals(new Envelope(0, 4096, 0, 4096), scaled.getEnvelopeInternal());
+        Assert.assertEquals("park", ((Map<?, ?>) scaled.getUserData()).get("class"));
+        Assert.assertEquals(1, northWest.getLayer("poi").getGeometries().size());
+        Assert.assertEquals(new Coordinate(2000, 2000), northWest.getLayer("poi").getGeometries().iterator().next().getCoordinate());
+
+        //右上角的子瓦片：只保留缓冲区内的一条面
+        JtsMvt northEast = roundTrip(VectorTileUtils.overzoom(ancestor, 1, 1, 0, 64));
+        Assert.assertEquals(new Envelope(-64, 0, 0, 4096), northEast.getLayer("landuse").getGeometries().iterator().next().getEnvelopeInternal());
+        Assert.assertEquals(new Coordinate(1904, 2000), northEast.getLayer("poi").getGeometries().iterator().next().getCoordinate());
+
+        //右下角的孙瓦片没有任何要素
+        Assert.assertTrue(VectorTileUtils.overzoom(ancestor, 2, 3, 3, 64).getLayers().isEmpty());
+    }
+
+    @Test
+    public void overzoomKeepsFeatureIds() throws Exception {
+        VectorTile.Tile.Layer layer = VectorTile.Tile.Layer.newBuilder().setVersion(2).setName("poi").setExtent(4096)
+                .addKeys("name").addValues(VectorTile.Tile.Value.newBuilder().setStringValue("west"))
+                //MoveTo(1000, 1000)
+                .addFeatures(VectorTile.Tile.Feature.newBuilder().setId(42).setType(VectorTile.Tile.GeomType.POINT)
+                        .addTags(0).addTags(0).addGeometry(9).addGeometry(2000).addGeometry(2000))
+                .build();
+        byte[] data = VectorTile.Tile.newBuilder().addLayers(layer).build().toByteArray();
+
+        JtsMvt ancestor = VectorTileUtils.decodeJtsMvt(new ByteArrayInputStream(data), true).orElseThrow();
+        VectorTile.Tile child = VectorTile.Tile.parseFrom(VectorTileUtils.encodeJtsMvt(VectorTileUtils.overzoom(ancestor, 1, 0, 0, 64)));
+        VectorTile.Tile.Layer poi = child.getLayers(0);
+        Assert.assertEquals(42, poi.getFeatures(0).getId());
+        //ID不作为属性写入
+        Assert.assertEquals(List.of("name"), poi.getKeysList());
+    }
+
+    @Test
+    public void prune() throws Exception {
+        VectorTile.Tile.Layer poi = VectorTile.Tile.Layer.newBuilder().setVersion(2).setName("poi").setExtent(4096)
+                .addKeys("name").addKeys("class").addKeys("ref")
+                .addValues(string("a")).addValues(string("shop")).addValues(string("x")).addValues(string("b"))
+                .addFeatures(VectorTile.Tile.Feature.newBuilder().setId(1).setType(VectorTile.Tile.GeomType.POINT)
+                        .addTags(0).addTags(0).addTags(1).addTags(1).addTags(2).addTags(2).addGeometry(9).addGeometry(2).addGeometry(2))
+                .addFeatures(VectorTile.Tile.Feature.newBuilder().setId(2).setType(VectorTile.Tile.GeomType.POINT)
+                        .addTags(1).addTags(1).addTags(2).addTags(2).addTags(0).addTags(3).addGeometry(9).addGeometry(4).addGeometry(4))
+                .build();
+        VectorTile.Tile.Layer roads = VectorTile.Tile.Layer.newBuilder().setVersion(2).setName("roads").setExtent(4096)
+                .addKeys("ref").addValues(string("G4"))
+                .addFeatures(VectorTile.Tile.Feature.newBuilder().setType(VectorTile.Tile.GeomType.POINT)
+                        .addTags(0).addTags(0).addGeometry(9).addGeometry(6).addGeometry(6))
+                .build();
+        VectorTile.Tile.Layer water = VectorTile.Tile.Layer.newBuilder().setVersion(2).setName("water").setExtent(4096).build();
+        byte[] data = VectorTile.Tile.newBuilder().addLayers(poi).addLayers(roads).addLayers(water).build().toByteArray();
+
+        VectorTile.Tile pruned = VectorTile.Tile.parseFrom(VectorTileUtils.prune(data, TilePruneProfile.fromParams("poi,roads", "name,ref")).orElseThrow());
+        //不在图层列表中的图层被删除
+        Assert.assertEquals(List.of("poi", "roads"), pruned.getLayersList().stream().map(VectorTile.Tile.Layer::getName).toList());
+
+        //只保留仍被引用的键和值，按首次引用的顺序重新编号
+        VectorTile.Tile.Layer prunedPoi = pruned.getLayers(0);
+        Assert.assertEquals(List.of("name", "ref"), prunedPoi.getKeysList());
+        Assert.assertEquals(List.of(string("a"), string("x"), string("b")), prunedPoi.getValuesList());
+        Assert.assertEquals(List.of(0, 0, 1, 1), prunedPoi.getFeatures(0).getTagsList());
+        Assert.assertEquals(List.of(1, 1, 0, 2), prunedPoi.getFeatures(1).getTagsList());
+        //要素ID和几何原样保留
+        Assert.assertEquals(2, prunedPoi.getFeatures(1).getId());
+        Assert.assertEquals(poi.getFeatures(1).getGeometryList(), prunedPoi.getFeatures(1).getGeometryList());
+
+        //属性全部保留的图层原样复制
+        Assert.assertEquals(roads, pruned.getLayers(1));
+
+        Assert.assertTrue(VectorTileUtils.prune(new byte[]{(byte) 0xff}, TilePruneProfile.fromParams(null, null)).isEmpty());
+    }
+
+    @Test
+    public void composite() {
+        Geometry lake = factory.toGeometry(new Envelope(0, 1024, 0, 1024));
+        lake.setUserData(Map.of("class", "lake"));
+        Geometry station = factory.createPoint(new Coordinate(100, 100));
+        station.setUserData(Map.of("name", "station"));
+        Geometry shop = factory.createPoint(new Coordinate(200, 200));
+        shop.setUserData(Map.of("name", "shop"));
+        byte[] base = VectorTileUtils.encodeJtsMvt(new JtsMvt(List.of(new JtsLayer("water", List.of(lake), 4096), new JtsLayer("poi", List.of(station), 4096))));
+        byte[] overlay = VectorTileUtils.encodeJtsMvt(new JtsMvt(List.of(new JtsLayer("poi", List.of(shop), 4096))));
+
+        Map<String, byte[]> tiles = new LinkedHashMap<>();
+        tiles.put("base.mbtiles", base);
+        tiles.put("shops.mbtiles", overlay);
+        JtsMvt composite = VectorTileUtils.decodeJtsMvt(new ByteArrayInputStream(VectorTileUtils.composite(tiles).orElseThrow())).orElseThrow();
+        //重名的图层追加数据源名称，几何和属性原样保留
+        Assert.assertEquals(3, composite.getLayers().size());
+        Assert.assertEquals("station", ((Map<?, ?>) composite.getLayer("poi").getGeometries().iterator().next().getUserData()).get("name"));
+        Assert.assertEquals("shop", ((Map<?, ?>) composite.getLayer("poi_shops").getGeometries().iterator().next().getUserData()).get("name"));
+        Assert.assertEquals(1, composite.getLayer("water").getGeometries().size());
+
+        Assert.assertTrue(VectorTileUtils.composite(Map.of("empty.mbtiles", new byte[0])).isEmpty());
+    }
+
+    @Test
+    public void union() {
+        Geometry lake = factory.toGeometry(new Envelope(0, 1024, 0, 1024));
+        lake.setUserData(Map.of("class", "lake"));
+        Geometry station = factory.createPoint(new Coordinate(100, 100));
+        station.setUserData(Map.of("name", "station"));
+        Geometry shop = factory.createPoint(new Coordinate(200, 200));
+        shop.setUserData(Map.of("name", "shop"));
+        Geometry far = factory.createPoint(new Coordinate(800, 400));
+        far.setUserData(Map.of("name", "far"));
+        byte[] west = VectorTileUtils.encodeJtsMvt(new JtsMvt(List.of(new JtsLayer("water", List.of(lake), 4096), new JtsLayer("poi", List.of(station), 4096))));
+        //边界两侧的数据都切出了同一个站点
+        byte[] east = VectorTileUtils.encodeJtsMvt(new JtsMvt(List.of(new JtsLayer("poi", List.of(station, shop), 4096))));
+        byte[] detail = VectorTileUtils.encodeJtsMvt(new JtsMvt(List.of(new JtsLayer("poi", List.of(far), 8192))));
+
+        JtsMvt union = VectorTileUtils.decodeJtsMvt(new ByteArrayInputStream(VectorTileUtils.union(List.of(west, east, detail)).orElseThrow())).orElseThrow();
+        Assert.assertEquals(2, union.getLayers().size());
+        Assert.assertEquals(1, union.getLayer("water").getGeometries().size());
+        List<Geometry> pois = List.copyOf(union.getLayer("poi").getGeometries());
+        Assert.assertEquals(3, pois.size());
+        Assert.assertEquals("shop", ((Map<?, ?>) pois.get(1).getUserData()).get("name"));
+        //extent为8192的图层换算到4096
+        Assert.assertEquals("far", ((Map<?, ?>) pois.get(2).getUserData()).get("name"));
+        Assert.assertEquals(new Coordinate(400, 200), pois.get(2).getCoordinate());
+
+        Assert.assertTrue(VectorTileUtils.union(List.of(new byte[0])).isEmpty());
+    }
+
+    private static VectorTile.Tile.Value string(String value) {
+        return VectorTile.Tile.Value.newBuilder().setStringValue(value).build();
+    }
+
+    private JtsMvt roundTrip(JtsMvt mvt) {
+        return VectorTileUtils.decodeJtsMvt(new ByteArrayInputStream(VectorTileUtils.encodeJtsMvt(mvt))).orElseThrow();
+    }
+}